@@ -41,6 +41,17 @@ public class Hamming {
 		return acc;
 	}
 	
+	/**
+	 * Absolute reads, the position of the buffer is not changed.
+	 */
+	public static final int distance(long[] bits1, LongBuffer lb, int lbOffset ) {
+		int acc = 0;
+		for ( int i=0; i<bits1.length; i++) {
+			acc+=Long.bitCount(bits1[i]^lb.get(lbOffset+i));
+		}		
+		return acc;
+	}
+	
 	public static final int distance_offset(long[] data1, long[] data2, int data2Offset) {
 	
 		int res = 0;
@@ -73,6 +84,189 @@ public class Hamming {
 	}
 	
 	
+	/** Codes (or queries) evaluated together by the batch methods */
+	public static final int blockSize = 8;
+	
+	private static final int result(int acc, int max) {
+		return acc > max ? -acc : acc;
+	}
+	
+	/**
+	 * Distances between the query and n codes of q.length longs stored
+	 * consecutively in data starting from offset.
+	 * Codes are evaluated in blocks of {@link #blockSize}, the evaluation of
+	 * a block stops as soon as all its codes are farther than max.
+	 * 
+	 * @param dist	distances from distOffset, negative if greater than max
+	 * 				(as in {@link #distance(long[], long[], int)})
+	 */
+	public static final void distances(long[] q, long[] data, int offset, int n, int max, int[] dist, int distOffset) {
+		final int nLongs = q.length;
+		int i = 0;
+		for ( ; i+blockSize<=n; i+=blockSize ) {
+			int o0 = offset + i*nLongs;
+			int o1 = o0 + nLongs;
+			int o2 = o1 + nLongs;
+			int o3 = o2 + nLongs;
+			int o4 = o3 + nLongs;
+			int o5 = o4 + nLongs;
+			int o6 = o5 + nLongs;
+			int o7 = o6 + nLongs;
+			int a0=0, a1=0, a2=0, a3=0, a4=0, a5=0, a6=0, a7=0;
+			for ( int w=0; w<nLongs; w++ ) {
+				long qw = q[w];
+				a0 += Long.bitCount(qw^data[o0+w]);
+				a1 += Long.bitCount(qw^data[o1+w]);
+				a2 += Long.bitCount(qw^data[o2+w]);
+				a3 += Long.bitCount(qw^data[o3+w]);
+				a4 += Long.bitCount(qw^data[o4+w]);
+				a5 += Long.bitCount(qw^data[o5+w]);
+				a6 += Long.bitCount(qw^data[o6+w]);
+				a7 += Long.bitCount(qw^data[o7+w]);
+				// sign bit set only if all the codes are farther than max
+				if ( ((max-a0)&(max-a1)&(max-a2)&(max-a3)&(max-a4)&(max-a5)&(max-a6)&(max-a7)) < 0 ) break;
+			}
+			int d = distOffset + i;
+			dist[d  ] = result(a0, max);
+			dist[d+1] = result(a1, max);
+			dist[d+2] = result(a2, max);
+			dist[d+3] = result(a3, max);
+			dist[d+4] = result(a4, max);
+			dist[d+5] = result(a5, max);
+			dist[d+6] = result(a6, max);
+			dist[d+7] = result(a7, max);
+		}
+		for ( ; i<n; i++ ) {
+			int o = offset + i*nLongs;
+			int acc = 0;
+			for ( int w=0; w<nLongs && acc<=max; w++ ) {
+				acc += Long.bitCount(q[w]^data[o+w]);
+			}
+			dist[distOffset+i] = result(acc, max);
+		}
+	}
+	
+	/**
+	 * Distances between the query and the codes in pos[from..to) of a
+	 * buffer of codes of q.length longs, the code at position p starts
+	 * from (p-firstPos)*q.length. Absolute reads, the position of the buffer
+	 * is not changed.
+	 * Codes are evaluated in blocks of {@link #blockSize}, the evaluation of
+	 * a block stops as soon as all its codes are farther than max.
+	 * 
+	 * @param dist	distances in dist[from..to), negative if greater than max
+	 */
+	public static final void distances(long[] q, LongBuffer lb, int firstPos, int[] pos, int from, int to, int max, int[] dist) {
+		final int nLongs = q.length;
+		int i = from;
+		for ( ; i+blockSize<=to; i+=blockSize ) {
+			int o0 = (pos[i  ]-firstPos) * nLongs;
+			int o1 = (pos[i+1]-firstPos) * nLongs;
+			int o2 = (pos[i+2]-firstPos) * nLongs;
+			int o3 = (pos[i+3]-firstPos) * nLongs;
+			int o4 = (pos[i+4]-firstPos) * nLongs;
+			int o5 = (pos[i+5]-firstPos) * nLongs;
+			int o6 = (pos[i+6]-firstPos) * nLongs;
+			int o7 = (pos[i+7]-firstPos) * nLongs;
+			int a0=0, a1=0, a2=0, a3=0, a4=0, a5=0, a6=0, a7=0;
+			for ( int w=0; w<nLongs; w++ ) {
+				long qw = q[w];
+				a0 += Long.bitCount(qw^lb.get(o0+w));
+				a1 += Long.bitCount(qw^lb.get(o1+w));
+				a2 += Long.bitCount(qw^lb.get(o2+w));
+				a3 += Long.bitCount(qw^lb.get(o3+w));
+				a4 += Long.bitCount(qw^lb.get(o4+w));
+				a5 += Long.bitCount(qw^lb.get(o5+w));
+				a6 += Long.bitCount(qw^lb.get(o6+w));
+				a7 += Long.bitCount(qw^lb.get(o7+w));
+				if ( ((max-a0)&(max-a1)&(max-a2)&(max-a3)&(max-a4)&(max-a5)&(max-a6)&(max-a7)) < 0 ) break;
+			}
+			dist[i  ] = result(a0, max);
+			dist[i+1] = result(a1, max);
+			dist[i+2] = result(a2, max);
+			dist[i+3] = result(a3, max);
+			dist[i+4] = result(a4, max);
+			dist[i+5] = result(a5, max);
+			dist[i+6] = result(a6, max);
+			dist[i+7] = result(a7, max);
+		}
+		for ( ; i<to; i++ ) {
+			int o = (pos[i]-firstPos) * nLongs;
+			int acc = 0;
+			for ( int w=0; w<nLongs && acc<=max; w++ ) {
+				acc += Long.bitCount(q[w]^lb.get(o+w));
+			}
+			dist[i] = result(acc, max);
+		}
+	}
+	
+	private static final int getMax(double max, double scale) {
+		// (int) saturates to Integer.MAX_VALUE
+		return (int) Math.ceil(max / scale);
+	}
+	
+	/**
+	 * Distances between several queries and one code, as needed by
+	 * {@link it.cnr.isti.vir.similarity.ISimilarityBatch}.
+	 * Queries are evaluated in blocks of {@link #blockSize}, the evaluation
+	 * of a block stops as soon as the code is farther than max for all its
+	 * queries.
+	 * 
+	 * @param scale	factor applied to the distances (1.0/nBits for normalized distances)
+	 * @param dist	scaled distances, negative if greater than max
+	 */
+	public static final void distances(long[][] q, long[] code, double[] max, double scale, double[] dist) {
+		final int nLongs = code.length;
+		int i = 0;
+		for ( ; i+blockSize<=q.length; i+=blockSize ) {
+			long[] q0 = q[i  ];
+			long[] q1 = q[i+1];
+			long[] q2 = q[i+2];
+			long[] q3 = q[i+3];
+			long[] q4 = q[i+4];
+			long[] q5 = q[i+5];
+			long[] q6 = q[i+6];
+			long[] q7 = q[i+7];
+			int m0 = getMax(max[i  ], scale);
+			int m1 = getMax(max[i+1], scale);
+			int m2 = getMax(max[i+2], scale);
+			int m3 = getMax(max[i+3], scale);
+			int m4 = getMax(max[i+4], scale);
+			int m5 = getMax(max[i+5], scale);
+			int m6 = getMax(max[i+6], scale);
+			int m7 = getMax(max[i+7], scale);
+			int a0=0, a1=0, a2=0, a3=0, a4=0, a5=0, a6=0, a7=0;
+			for ( int w=0; w<nLongs; w++ ) {
+				long cw = code[w];
+				a0 += Long.bitCount(q0[w]^cw);
+				a1 += Long.bitCount(q1[w]^cw);
+				a2 += Long.bitCount(q2[w]^cw);
+				a3 += Long.bitCount(q3[w]^cw);
+				a4 += Long.bitCount(q4[w]^cw);
+				a5 += Long.bitCount(q5[w]^cw);
+				a6 += Long.bitCount(q6[w]^cw);
+				a7 += Long.bitCount(q7[w]^cw);
+				if ( ((m0-a0)&(m1-a1)&(m2-a2)&(m3-a3)&(m4-a4)&(m5-a5)&(m6-a6)&(m7-a7)) < 0 ) break;
+			}
+			dist[i  ] = result(a0, m0) * scale;
+			dist[i+1] = result(a1, m1) * scale;
+			dist[i+2] = result(a2, m2) * scale;
+			dist[i+3] = result(a3, m3) * scale;
+			dist[i+4] = result(a4, m4) * scale;
+			dist[i+5] = result(a5, m5) * scale;
+			dist[i+6] = result(a6, m6) * scale;
+			dist[i+7] = result(a7, m7) * scale;
+		}
+		for ( ; i<q.length; i++ ) {
+			int m = getMax(max[i], scale);
+			int acc = 0;
+			for ( int w=0; w<nLongs && acc<=m; w++ ) {
+				acc += Long.bitCount(q[i][w]^code[w]);
+			}
+			dist[i] = result(acc, m) * scale;
+		}
+	}
+	
 	public static final float distance_norm(long[] bits1, long[] bits2, int nBits, double max) {
 		return distance(bits1, bits2, (int) Math.ceil(max*nBits))  / (float)  nBits;
 	}
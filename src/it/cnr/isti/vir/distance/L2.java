@@ -42,6 +42,21 @@ public class L2 {
 		return dist;
 	}
 	
+	/**
+	 * Squared distance between len bytes of v1 from o1 and of v2 from o2,
+	 * negative if greater than maxDist.
+	 */
+	public static final int getSquared(byte[] v1, int o1, byte[] v2, int o2, int len, int maxDist) {
+		int dist = 0;
+		int dif = 0;
+		for (int i = 0; i < len; i++) {
+			dif = v1[o1+i] - v2[o2+i];
+			dist += dif * dif;
+			if ( dist > maxDist ) return -dist;
+		}
+		return dist;
+	}
+	
 	public static final double getSquared(double[]f1, double[]f2) {
 		double acc = 0;
 		for ( int j=0; j<f1.length; j++) {
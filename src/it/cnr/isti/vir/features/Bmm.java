@@ -14,6 +14,7 @@ package it.cnr.isti.vir.features;
 import it.cnr.isti.vir.features.localfeatures.ALocalFeature;
 import it.cnr.isti.vir.features.localfeatures.ALocalFeaturesGroup;
 import it.cnr.isti.vir.file.FeaturesCollectorsArchive;
+import it.cnr.isti.vir.file.FeaturesCollectorsArchivePipelinedIterator;
 import it.cnr.isti.vir.file.FeaturesCollectorsArchives;
 import it.cnr.isti.vir.global.Log;
 import it.cnr.isti.vir.global.ParallelOptions;
@@ -39,7 +40,6 @@ import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Iterator;
 import java.util.Random;
 
 /**
@@ -265,17 +265,22 @@ public final class Bmm {
 		int nLFs = 0;
 		if (fGroupClass != null) {
 			for (int iA = 0; iA < archives.getNArchives(); iA++) {
-				for (Iterator<AbstractFeaturesCollector> it = archives
-						.getArchive(iA).iterator(); it.hasNext();) {
-					AbstractFeaturesCollector fc = it.next();
-					if (fc == null)
-						throw new Exception("IFeaturesCollector null!");
-					ALocalFeaturesGroup group = ((ALocalFeaturesGroup) fc
-							.getFeature(fGroupClass));
-					nLFs += group.size();
-					if (++count % 1000 == 0) {
-						Log.info_verbose(count + " " + nLFs);
+				// only counting, the order is not relevant
+				FeaturesCollectorsArchivePipelinedIterator it = archives
+						.getArchive(iA).pipelinedIterator(false);
+				try {
+					while (it.hasNext()) {
+						// read errors are thrown by the iterator
+						AbstractFeaturesCollector fc = it.next();
+						ALocalFeaturesGroup group = ((ALocalFeaturesGroup) fc
+								.getFeature(fGroupClass));
+						nLFs += group.size();
+						if (++count % 1000 == 0) {
+							Log.info_verbose(count + " " + nLFs);
+						}
 					}
+				} finally {
+					it.close();
 				}
 			}
 		} else {
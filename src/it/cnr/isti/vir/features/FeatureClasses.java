@@ -14,6 +14,7 @@ package it.cnr.isti.vir.features;
 import it.cnr.isti.vir.features.bof.BoF;
 import it.cnr.isti.vir.features.localfeatures.AKAZE;
 import it.cnr.isti.vir.features.localfeatures.AKAZEGroup;
+import it.cnr.isti.vir.features.localfeatures.ALocalFeaturesGroup;
 import it.cnr.isti.vir.features.localfeatures.BRISK;
 import it.cnr.isti.vir.features.localfeatures.BRISKGroup;
 import it.cnr.isti.vir.features.localfeatures.BoFLFGroup;
@@ -124,6 +125,65 @@ public class FeatureClasses {
 	static final Constructor<?>[] constructors_NIO  = ClassIDs.getConstructors(idsFeatures, ByteBuffer.class);
 //	static final Constructor<?>[] constructors2_NIO = ClassIDs.getConstructors(idsFeatures, ByteBuffer.class, IFeaturesCollector.class);
 	
+	// bytes of each value of features serialized as the number of values followed by the values (0 if not)
+	static final int[] valueBytes = getValueBytes();
+	// serialization version of local features groups, -1 for the other features
+	static final int[] groupVersion = getGroupVersions();
+	
+	private static final int[] getValueBytes() {
+		int[] res = new int[idsFeatures.length];
+		for ( int i=0; i<idsFeatures.length; i++ ) {
+			Class c = idsFeatures[i];
+			if ( c == null ) continue;
+			if ( Floats.class.isAssignableFrom(c) || VLAD.class.equals(c) ) res[i] = Float.BYTES;
+			else if ( BinaryLongs.class.equals(c) ) res[i] = Long.BYTES;
+			else if ( FloatsL2Norm_UBytes.class.equals(c) ) res[i] = Byte.BYTES;
+		}
+		return res;
+	}
+	
+	private static final int[] getGroupVersions() {
+		int[] res = new int[idsFeatures.length];
+		for ( int i=0; i<idsFeatures.length; i++ ) {
+			res[i] = -1;
+			Class c = idsFeatures[i];
+			if ( c == null || !ALocalFeaturesGroup.class.isAssignableFrom(c) ) continue;
+			try {
+				res[i] = c.getField("version").getByte(null);
+			} catch (ReflectiveOperationException e) {
+				System.err.println(c + " has not a static version field");
+			}
+		}
+		return res;
+	}
+	
+	/**
+	 * Moves the buffer after the next feature (class ID included) without
+	 * decoding it. This is possible when the size of the feature is in its
+	 * header, i.e. for local features groups written with the current
+	 * version and for arrays of values ({@link Floats}, {@link BinaryLongs},
+	 * {@link FloatsL2Norm_UBytes}, {@link VLAD}).
+	 * 
+	 * @return false if the feature was not skipped, the position is not changed
+	 */
+	public static final boolean skipData(ByteBuffer in) {
+		int start = in.position();
+		byte id = in.get();
+		if ( valueBytes[id] > 0 ) {
+			int size = in.getInt();
+			in.position(in.position() + size*valueBytes[id]);
+			return true;
+		}
+		if ( groupVersion[id] >= 0 && in.get() == groupVersion[id] ) {
+			// version, number of bytes, number of local features and the local features
+			int nBytes = in.getInt();
+			in.position(in.position() + nBytes);
+			return true;
+		}
+		in.position(start);
+		return false;
+	}
+	
 
 	public static final void writeData(DataOutput out, AbstractFeature fc ) throws IOException {
 		out.writeByte(getClassID(fc.getClass()));
@@ -21,6 +21,7 @@ import it.cnr.isti.vir.id.IHasID;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -29,11 +30,22 @@ import java.util.Iterator;
 
 public class FeaturesCollectorArr extends AbstractFeaturesCollector_Labeled_HasID {
 
+	/**
+	 * If true, objects read from a ByteBuffer keep a reference to it and
+	 * features are decoded only when requested by {@link #getFeature(Class)}.
+	 * The buffer must not be modified while the object is used.
+	 */
+	static public boolean lazyDecodingOnReading = false;
+	
 	public AbstractID id;
 	
 	public AbstractLabel cl;
 	
 	private AbstractFeature[] feature;
+	
+	// lazy decoding: source buffer and position of each feature not yet decoded
+	private ByteBuffer src;
+	private int[] featureOffset;
 
 	public FeaturesCollectorArr() {
 		id = null;
@@ -85,6 +97,19 @@ public class FeaturesCollectorArr extends AbstractFeaturesCollector_Labeled_HasI
 		cl = LabelClasses.readData(src);
 		int size = src.get();
 		feature = new AbstractFeature[size];
+		if ( lazyDecodingOnReading ) {
+			// only the features that can not be skipped are decoded
+			featureOffset = new int[size];
+			for ( int i=0; i<feature.length; i++) {
+				featureOffset[i] = src.position();
+				if ( !FeatureClasses.skipData(src) ) {
+					feature[i] = FeatureClasses.readData(src);
+					feature[i].setLinkedFC(this);
+				}
+			}
+			this.src = src;
+			return;
+		}
 		for ( int i=0; i<feature.length; i++) {
 			feature[i] = FeatureClasses.readData(src);
 			feature[i].setLinkedFC(this);
@@ -102,8 +127,50 @@ public class FeaturesCollectorArr extends AbstractFeaturesCollector_Labeled_HasI
 		}
 	}
 		
+	/**
+	 * Decodes the i-th feature if it has not been decoded yet.
+	 */
+	private final AbstractFeature getFeature(int i) {
+		if ( feature[i] == null && src != null ) {
+			ByteBuffer buf = src.duplicate();
+			buf.position(featureOffset[i]);
+			try {
+				AbstractFeature f = FeatureClasses.readData(buf);
+				f.setLinkedFC(this);
+				feature[i] = f;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		return feature[i];
+	}
+	
+	/**
+	 * Class of the i-th feature, it is read from the buffer if the feature
+	 * has not been decoded yet.
+	 */
+	private final Class getFeatureClass(int i) {
+		if ( feature[i] == null && src != null ) {
+			return FeatureClasses.getClass(src.get(featureOffset[i]));
+		}
+		return feature[i] == null ? null : feature[i].getClass();
+	}
+	
+	/**
+	 * Decodes all the features releasing the source buffer.
+	 */
+	private final void decodeAll() {
+		if ( src == null ) return;
+		for ( int i=0; i<feature.length; i++) {
+			getFeature(i);
+		}
+		src = null;
+		featureOffset = null;
+	}
+	
 	@Override
 	public void writeData(DataOutput out) throws IOException {
+		decodeAll();
 		IDClasses.writeData(id, out);
 		LabelClasses.writeData(cl, out);
 		if ( feature==null) 
@@ -136,12 +203,13 @@ public class FeaturesCollectorArr extends AbstractFeaturesCollector_Labeled_HasI
 	@Override
 	public <T extends AbstractFeature> T getFeature(Class<T> featureClass) {
 		for ( int i=0; i<feature.length; i++) {
-			if ( feature[i] == null ) {
+			Class c = getFeatureClass(i);
+			if ( c == null ) {
 				System.err.println("Feature null!!!!");
 				continue;
 			}
-			if ( featureClass.equals(feature[i].getClass())) {
-				return (T) feature[i];
+			if ( featureClass.equals(c)) {
+				return (T) getFeature(i);
 			}
 		}
 		return null;
@@ -152,7 +220,9 @@ public class FeaturesCollectorArr extends AbstractFeaturesCollector_Labeled_HasI
 	
 	@Override
 	public void add(AbstractFeature f) {
-			
+		
+		decodeAll();
+		
 		if ( feature == null ) {
 			feature = new AbstractFeature[1];
 			feature[0] = f;
@@ -176,6 +246,7 @@ public class FeaturesCollectorArr extends AbstractFeaturesCollector_Labeled_HasI
 	@Override
 	public void discardAllBut( 	FeatureClassCollector featuresClasses )
 								throws FeaturesCollectorException {
+		decodeAll();
 		if ( featuresClasses == null ) {
 			feature = null;
 			return;
@@ -195,6 +266,7 @@ public class FeaturesCollectorArr extends AbstractFeaturesCollector_Labeled_HasI
 	}
 	
 	public boolean substitute( AbstractFeature f ) {
+		decodeAll();
 		Class c = f.getClass();
 		for ( int i=0; i<feature.length; i++) {
 			if ( feature[i].getClass().equals(c)) {
@@ -206,6 +278,7 @@ public class FeaturesCollectorArr extends AbstractFeaturesCollector_Labeled_HasI
 	}
 	
 	public void discard( Class c ) {
+		decodeAll();
 		int cIndex = -1;
 		for ( int i=0; i<feature.length && cIndex <0; i++) {
 			if ( feature[i].getClass().equals(c)) {
@@ -225,6 +298,7 @@ public class FeaturesCollectorArr extends AbstractFeaturesCollector_Labeled_HasI
 
 	@Override
 	public Collection<AbstractFeature> getFeatures() {
+		decodeAll();
 		if ( feature == null ) return new ArrayList();
 		return Arrays.asList(feature);
 	}
@@ -232,7 +306,7 @@ public class FeaturesCollectorArr extends AbstractFeaturesCollector_Labeled_HasI
 	@Override
 	public boolean contains(Class<AbstractFeature> c) {
 		for ( int i=0; i<feature.length; i++) {
-			if ( feature[i].getClass().equals(c)) {
+			if ( c.equals(getFeatureClass(i))) {
 				return true;
 			}
 		}
@@ -243,6 +317,8 @@ public class FeaturesCollectorArr extends AbstractFeaturesCollector_Labeled_HasI
 		if ( obj == null ) return false;
 		if ( this == obj ) return true;
 		FeaturesCollectorArr that = (FeaturesCollectorArr) obj;
+		this.decodeAll();
+		that.decodeAll();
 		if ( this.id != that.id && this.id != null && !this.id.equals(that.id)) return false;
 		if ( this.cl != that.cl && this.cl != null && !this.cl.equals(that.cl)) return false;
 		if ( this.feature.length != that.feature.length )return false;
@@ -253,6 +329,7 @@ public class FeaturesCollectorArr extends AbstractFeaturesCollector_Labeled_HasI
 	}
 	
 	public int hashCode() {
+		decodeAll();
 		int hashCode = 1;
 		for ( int i=0; i<feature.length; i++) {
 			hashCode = 31*hashCode + feature[i].hashCode();
@@ -270,6 +347,7 @@ public class FeaturesCollectorArr extends AbstractFeaturesCollector_Labeled_HasI
 	}
 	
 	public String toString() {
+		decodeAll();
 		String tStr = this.getClass() + "\n";
 		tStr += "ID: " + id + "\n";
 		for ( int i=0; i<feature.length; i++) {
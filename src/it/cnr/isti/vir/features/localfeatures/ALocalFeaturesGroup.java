@@ -48,6 +48,16 @@ public abstract class ALocalFeaturesGroup<LF extends ALocalFeature> extends Abst
 	private float avgDistFromMean;
 	private static final float sqrt2 = (float) Math.sqrt(2.0);
 
+	/**
+	 * If true the groups that support it also decode their local features
+	 * in a {@link PackedLocalFeatures} when read from a ByteBuffer.
+	 */
+	public static boolean packOnRead = false;
+
+	protected PackedLocalFeatures packed;
+
+	private LocalFeaturesKDForest kdForest;
+
 	public abstract byte getSerVersion();
 	
 	protected ALocalFeaturesGroup() {} ;
@@ -93,6 +103,37 @@ public abstract class ALocalFeaturesGroup<LF extends ALocalFeature> extends Abst
 		boxWidthHeight = null;
 		bofIDF = null;
 		meanXY = null;
+		packed = null;
+		kdForest = null;
+	}
+
+	/**
+	 * @return true if the packed local features are available
+	 */
+	public final boolean hasPacked() {
+		return packed != null;
+	}
+
+	/**
+	 * The packed local features are created on first request and kept
+	 * until {@link #resetState()} or until lfArr is changed by the group.
+	 */
+	public synchronized PackedLocalFeatures getPacked() {
+		if ( packed == null && lfArr != null ) {
+			packed = new PackedLocalFeatures(lfArr);
+		}
+		return packed;
+	}
+
+	/**
+	 * The kd-forest of the descriptors is created on first request and kept
+	 * as the packed local features.
+	 */
+	public synchronized LocalFeaturesKDForest getKDForest() {
+		if ( kdForest == null && lfArr != null ) {
+			kdForest = new LocalFeaturesKDForest(this);
+		}
+		return kdForest;
 	}
 
 	public float[] getMeanXY() {
@@ -262,6 +303,8 @@ public abstract class ALocalFeaturesGroup<LF extends ALocalFeature> extends Abst
 		//n represents the max number of features (n<max) with complete lf per scale
 		
 		LF[] old = lfArr;
+		packed = null;
+		kdForest = null;
 		lfArr = (LF[]) Array.newInstance( old[0].getClass(), n );
 		for (int i=0; i<n; i++) {
 			lfArr[i] = old[i];
@@ -271,6 +314,8 @@ public abstract class ALocalFeaturesGroup<LF extends ALocalFeature> extends Abst
 	
 	public final void removeAll() {
 		lfArr = null;
+		packed = null;
+		kdForest = null;
 	}
 	
 	public final void removeEvalBEQ(double thr) {
@@ -280,6 +325,8 @@ public abstract class ALocalFeaturesGroup<LF extends ALocalFeature> extends Abst
 		}
 		lfArr = (LF[]) list.toArray();
 		eval = null;
+		packed = null;
+		kdForest = null;
 	}
 	
 	public boolean equals(Object obj) {
@@ -484,6 +531,8 @@ public abstract class ALocalFeaturesGroup<LF extends ALocalFeature> extends Abst
 		System.out.println("Removing " + (lfArr.length - okList.size())
 				/ (double) lfArr.length + " of points.");
 		lfArr = (LF[]) Array.newInstance(this.lfArr[0].getClass(), okList.size());
+		packed = null;
+		kdForest = null;
 		int i = 0;
 		for (Iterator<LF> it1 = okList.iterator(); it1.hasNext();) {
 			lfArr[i++] = it1.next();
@@ -0,0 +1,376 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Fabrizio Falchi (NeMIS Lab., ISTI-CNR, Italy)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package it.cnr.isti.vir.features.localfeatures;
+
+import it.cnr.isti.vir.features.IFloatValues;
+import it.cnr.isti.vir.features.IUByteValues;
+import it.cnr.isti.vir.util.RandomOperations;
+
+import java.util.Arrays;
+
+/**
+ * Randomized kd-forest on the descriptors of a local features group, as
+ * proposed by Silpa-Anan and Hartley and used in FLANN.
+ * Each tree splits the points on the mean of one of the {@link #randDims}
+ * dimensions of highest variance, chosen at random. Approximate 2-NN
+ * searches visit the trees together in best-bin-first order and stop after
+ * a given number of distance computations (checks).
+ * Descriptors are stored as floats, squared distances of byte descriptors
+ * are exact.
+ */
+public class LocalFeaturesKDForest {
+
+	public static int nTrees = 4;
+
+	/** Max number of points in a leaf */
+	public static int leafSize = 4;
+
+	/** Dimensions of highest variance among which the split is chosen */
+	public static int randDims = 5;
+
+	/** Points used to estimate mean and variance of a node */
+	public static int sampleSize = 100;
+
+	public final int n;
+	public final int dim;
+
+	/** Descriptors, n*dim */
+	final float[] data;
+
+	// per tree: split dimension (-1 for leaves), split value, children
+	// (first and last+1 position in perm for leaves)
+	private final int[][] splitDim;
+	private final float[][] splitVal;
+	private final int[][] left;
+	private final int[][] right;
+	private final int[][] perm;
+
+	/**
+	 * @return the descriptors of the group in one array (n*dim)
+	 */
+	public static float[] getFloats(ALocalFeaturesGroup g) {
+		int n = g.size();
+		if ( n == 0 ) return new float[0];
+		if ( g.hasPacked() && g.getPacked().bytes != null ) {
+			byte[] bytes = g.getPacked().bytes;
+			float[] res = new float[bytes.length];
+			for ( int i=0; i<res.length; i++ ) res[i] = bytes[i];
+			return res;
+		}
+		ALocalFeature[] arr = g.lfArr;
+		if ( arr[0] instanceof IUByteValues ) {
+			int dim = ((IUByteValues) arr[0]).getValues().length;
+			float[] res = new float[n*dim];
+			for ( int i=0, o=0; i<n; i++ ) {
+				byte[] values = ((IUByteValues) arr[i]).getValues();
+				for ( int k=0; k<dim; k++ ) res[o++] = values[k];
+			}
+			return res;
+		}
+		if ( arr[0] instanceof IFloatValues ) {
+			int dim = ((IFloatValues) arr[0]).getValues().length;
+			float[] res = new float[n*dim];
+			for ( int i=0; i<n; i++ ) {
+				System.arraycopy(((IFloatValues) arr[i]).getValues(), 0, res, i*dim, dim);
+			}
+			return res;
+		}
+		throw new IllegalArgumentException(arr[0].getClass() + " has neither byte nor float values");
+	}
+
+	public LocalFeaturesKDForest(ALocalFeaturesGroup g) {
+		this(getFloats(g), g.size());
+	}
+
+	public LocalFeaturesKDForest(float[] data, int n) {
+		this.n = n;
+		this.dim = n == 0 ? 0 : data.length / n;
+		this.data = data;
+		splitDim = new int[nTrees][];
+		splitVal = new float[nTrees][];
+		left = new int[nTrees][];
+		right = new int[nTrees][];
+		perm = new int[nTrees][];
+		for ( int t=0; t<nTrees; t++ ) {
+			buildTree(t);
+		}
+	}
+
+	public final int getNTrees() {
+		return splitDim.length;
+	}
+
+	private final void buildTree(int t) {
+		int maxNodes = 2*n+1;
+		int[] sDim = new int[maxNodes];
+		float[] sVal = new float[maxNodes];
+		int[] l = new int[maxNodes];
+		int[] r = new int[maxNodes];
+		int[] p = RandomOperations.getOrderedInts(n);
+		RandomOperations.shuffle(p);
+
+		double[] mean = new double[dim];
+		double[] var = new double[dim];
+		int[] topDims = new int[randDims];
+
+		// nodes to be split: node, first, last+1
+		int[] stack = new int[3*maxNodes];
+		int sp = 0;
+		int nNodes = 1;
+		stack[sp++] = 0; stack[sp++] = 0; stack[sp++] = n;
+		while ( sp > 0 ) {
+			int end = stack[--sp];
+			int start = stack[--sp];
+			int node = stack[--sp];
+
+			int d = -1;
+			int mid = start;
+			if ( end - start > leafSize ) {
+				computeMeanVar(p, start, end, mean, var);
+				d = chooseDim(var, topDims);
+				mid = partition(p, start, end, d, (float) mean[d]);
+				if ( mid == start || mid == end ) {
+					// all the sampled values are equal in d, trying the max variance dimension
+					d = topDims[0];
+					mid = partition(p, start, end, d, (float) mean[d]);
+					if ( mid == start || mid == end ) d = -1;
+				}
+			}
+
+			if ( d < 0 ) {
+				sDim[node] = -1;
+				l[node] = start;
+				r[node] = end;
+				continue;
+			}
+			sDim[node] = d;
+			sVal[node] = (float) mean[d];
+			int lNode = nNodes++;
+			int rNode = nNodes++;
+			l[node] = lNode;
+			r[node] = rNode;
+			stack[sp++] = lNode; stack[sp++] = start; stack[sp++] = mid;
+			stack[sp++] = rNode; stack[sp++] = mid; stack[sp++] = end;
+		}
+
+		splitDim[t] = Arrays.copyOf(sDim, nNodes);
+		splitVal[t] = Arrays.copyOf(sVal, nNodes);
+		left[t] = Arrays.copyOf(l, nNodes);
+		right[t] = Arrays.copyOf(r, nNodes);
+		perm[t] = p;
+	}
+
+	private final void computeMeanVar(int[] p, int start, int end, double[] mean, double[] var) {
+		int count = Math.min(sampleSize, end - start);
+		Arrays.fill(mean, 0);
+		Arrays.fill(var, 0);
+		// points are shuffled when the tree is created, the first ones are used as sample
+		for ( int i=start; i<start+count; i++ ) {
+			int o = p[i]*dim;
+			for ( int k=0; k<dim; k++ ) mean[k] += data[o+k];
+		}
+		for ( int k=0; k<dim; k++ ) mean[k] /= count;
+		for ( int i=start; i<start+count; i++ ) {
+			int o = p[i]*dim;
+			for ( int k=0; k<dim; k++ ) {
+				double diff = data[o+k] - mean[k];
+				var[k] += diff*diff;
+			}
+		}
+	}
+
+	/**
+	 * Random dimension among the randDims of highest variance,
+	 * topDims[0] is the dimension of max variance.
+	 */
+	private final int chooseDim(double[] var, int[] topDims) {
+		int nTop = 0;
+		for ( int k=0; k<dim; k++ ) {
+			if ( nTop < topDims.length || var[k] > var[topDims[nTop-1]] ) {
+				int j = nTop < topDims.length ? nTop++ : nTop-1;
+				while ( j > 0 && var[topDims[j-1]] < var[k] ) {
+					topDims[j] = topDims[j-1];
+					j--;
+				}
+				topDims[j] = k;
+			}
+		}
+		return topDims[RandomOperations.getInt(nTop)];
+	}
+
+	/**
+	 * Points with value less than val in d are moved before the others.
+	 *
+	 * @return the position of the first point not less than val
+	 */
+	private final int partition(int[] p, int start, int end, int d, float val) {
+		int i = start;
+		int j = end-1;
+		while ( i <= j ) {
+			if ( data[p[i]*dim+d] < val ) {
+				i++;
+			} else {
+				int tmp = p[i];
+				p[i] = p[j];
+				p[j] = tmp;
+				j--;
+			}
+		}
+		return i;
+	}
+
+	/**
+	 * Approximate 2-NN search state. Not thread safe, one searcher per thread.
+	 */
+	public class Searcher {
+
+		// branches to be visited, min-heap on the distance lower bound
+		private float[] heapDist = new float[64];
+		private int[] heapTree = new int[64];
+		private int[] heapNode = new int[64];
+		private int heapSize;
+
+		private final int[] visited = new int[n];
+		private int stamp = 0;
+
+		private int checks;
+		private int maxChecks;
+
+		public int nn1;
+		public float dist1;
+		public int nn2;
+		public float dist2;
+
+		/**
+		 * Searches the two nearest neighbors of the query of dim values
+		 * from qOffset. Results are in nn1, dist1, nn2, dist2 (squared
+		 * distances), nn2 is -1 if only one point was checked.
+		 *
+		 * @param maxChecks	max number of distance computations (at least 2)
+		 */
+		public void search2NN(float[] q, int qOffset, int maxChecks) {
+			this.maxChecks = maxChecks;
+			checks = 0;
+			heapSize = 0;
+			nn1 = nn2 = -1;
+			dist1 = dist2 = Float.MAX_VALUE;
+			if ( ++stamp == 0 ) {
+				Arrays.fill(visited, 0);
+				stamp = 1;
+			}
+			for ( int t=0; t<splitDim.length; t++ ) {
+				searchLevel(q, qOffset, t, 0, 0.0f);
+			}
+			while ( heapSize > 0 && !isDone() ) {
+				float d = heapDist[0];
+				int t = heapTree[0];
+				int node = heapNode[0];
+				pop();
+				if ( d >= dist2 ) break;
+				searchLevel(q, qOffset, t, node, d);
+			}
+		}
+
+		private final boolean isDone() {
+			return checks >= maxChecks && nn2 >= 0;
+		}
+
+		private final void searchLevel(float[] q, int qOffset, int t, int node, float minDist) {
+			int[] sDim = splitDim[t];
+			float[] sVal = splitVal[t];
+			int[] l = left[t];
+			int[] r = right[t];
+			while ( sDim[node] >= 0 ) {
+				float diff = q[qOffset+sDim[node]] - sVal[node];
+				int best = diff < 0 ? l[node] : r[node];
+				int other = diff < 0 ? r[node] : l[node];
+				float otherDist = minDist + diff*diff;
+				if ( otherDist < dist2 ) push(otherDist, t, other);
+				node = best;
+			}
+			if ( isDone() ) return;
+			int[] p = perm[t];
+			for ( int i=l[node]; i<r[node]; i++ ) {
+				int id = p[i];
+				if ( visited[id] == stamp ) continue;
+				visited[id] = stamp;
+				checks++;
+				float d = getSquared(q, qOffset, id*dim, dist2);
+				if ( d < dist1 ) {
+					dist2 = dist1;
+					nn2 = nn1;
+					dist1 = d;
+					nn1 = id;
+				} else if ( d < dist2 ) {
+					dist2 = d;
+					nn2 = id;
+				}
+			}
+		}
+
+		private final float getSquared(float[] q, int qOffset, int o, float max) {
+			float acc = 0;
+			for ( int k=0; k<dim; k++ ) {
+				float diff = q[qOffset+k] - data[o+k];
+				acc += diff*diff;
+				if ( acc > max ) return acc;
+			}
+			return acc;
+		}
+
+		private final void push(float d, int t, int node) {
+			if ( heapSize == heapDist.length ) {
+				heapDist = Arrays.copyOf(heapDist, heapSize*2);
+				heapTree = Arrays.copyOf(heapTree, heapSize*2);
+				heapNode = Arrays.copyOf(heapNode, heapSize*2);
+			}
+			int i = heapSize++;
+			while ( i > 0 ) {
+				int parent = (i-1) >> 1;
+				if ( heapDist[parent] <= d ) break;
+				heapDist[i] = heapDist[parent];
+				heapTree[i] = heapTree[parent];
+				heapNode[i] = heapNode[parent];
+				i = parent;
+			}
+			heapDist[i] = d;
+			heapTree[i] = t;
+			heapNode[i] = node;
+		}
+
+		private final void pop() {
+			heapSize--;
+			if ( heapSize == 0 ) return;
+			float d = heapDist[heapSize];
+			int t = heapTree[heapSize];
+			int node = heapNode[heapSize];
+			int i = 0;
+			while ( true ) {
+				int c = 2*i+1;
+				if ( c >= heapSize ) break;
+				if ( c+1 < heapSize && heapDist[c+1] < heapDist[c] ) c++;
+				if ( heapDist[c] >= d ) break;
+				heapDist[i] = heapDist[c];
+				heapTree[i] = heapTree[c];
+				heapNode[i] = heapNode[c];
+				i = c;
+			}
+			heapDist[i] = d;
+			heapTree[i] = t;
+			heapNode[i] = node;
+		}
+	}
+
+	public Searcher getSearcher() {
+		return new Searcher();
+	}
+}
@@ -56,6 +56,14 @@ public class ORBGroup extends ALocalFeaturesGroup<ORB> {
 		int nBytes = in.getInt(); 
 		int nLFs = in.getInt();
 		lfArr = new ORB[nLFs];
+		if ( packOnRead ) {
+			packed = PackedLocalFeatures.read(in, nLFs, 0, ORB.NLONG);
+			for ( int i = 0; i < nLFs; i++ ) {
+				lfArr[i] = new ORB(packed.getKeyPoint(i), packed.getLongs(i));
+				lfArr[i].setLinkedGroup(this);
+			}
+			return;
+		}
 		for ( int i = 0; i < nLFs; i++ ) {
 			lfArr[i] = new ORB(in);
 			lfArr[i].setLinkedGroup(this);
@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Fabrizio Falchi (NeMIS Lab., ISTI-CNR, Italy)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package it.cnr.isti.vir.features.localfeatures;
+
+import it.cnr.isti.vir.features.ILongBinaryValues;
+import it.cnr.isti.vir.features.IUByteValues;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Struct-of-arrays copy of the local features of a group.
+ * Descriptors are stored contiguously in bytes (n*bytesPerLF) or in longs
+ * (n*longsPerLF), key points in parallel arrays. Features without key point
+ * have NaN coordinates.
+ * Positions are the same of the lfArr of the group.
+ */
+public class PackedLocalFeatures {
+
+	public final int n;
+
+	public final float[] x;
+	public final float[] y;
+	public final float[] scale;
+	public final float[] ori;
+
+	/** Byte descriptors (SIFT, RootSIFT), null if not available */
+	public final byte[] bytes;
+	public final int bytesPerLF;
+
+	/** Binary descriptors (ORB), null if not available */
+	public final long[] longs;
+	public final int longsPerLF;
+
+	private PackedLocalFeatures(int n, int bytesPerLF, int longsPerLF) {
+		this.n = n;
+		x = new float[n];
+		y = new float[n];
+		scale = new float[n];
+		ori = new float[n];
+		this.bytesPerLF = bytesPerLF;
+		this.longsPerLF = longsPerLF;
+		bytes = bytesPerLF > 0 ? new byte[n*bytesPerLF] : null;
+		longs = longsPerLF > 0 ? new long[n*longsPerLF] : null;
+	}
+
+	/**
+	 * Copies key points and descriptors of the given local features.
+	 * Descriptors are copied if the local features implement
+	 * {@link IUByteValues} or {@link ILongBinaryValues}.
+	 */
+	public PackedLocalFeatures(ALocalFeature[] arr) {
+		this(	arr.length,
+				arr.length > 0 && arr[0] instanceof IUByteValues ? ((IUByteValues) arr[0]).getValues().length : 0,
+				arr.length > 0 && arr[0] instanceof ILongBinaryValues ? ((ILongBinaryValues) arr[0]).getValues().length : 0 );
+		for ( int i=0; i<n; i++ ) {
+			KeyPoint kp = arr[i].getKeyPoint();
+			setKeyPoint(i, kp);
+			if ( bytes != null ) {
+				System.arraycopy(((IUByteValues) arr[i]).getValues(), 0, bytes, i*bytesPerLF, bytesPerLF);
+			} else if ( longs != null ) {
+				System.arraycopy(((ILongBinaryValues) arr[i]).getValues(), 0, longs, i*longsPerLF, longsPerLF);
+			}
+		}
+	}
+
+	private final void setKeyPoint(int i, KeyPoint kp) {
+		if ( kp == null ) {
+			x[i] = y[i] = scale[i] = ori[i] = Float.NaN;
+		} else {
+			x[i] = kp.getX();
+			y[i] = kp.getY();
+			scale[i] = kp.getScale();
+			ori[i] = kp.getOri();
+		}
+	}
+
+	/**
+	 * Reads n local features serialized as in {@link ALocalFeature#getBytes()}
+	 * (key point flag, key point, descriptor) directly in the packed arrays.
+	 *
+	 * @param bytesPerLF	bytes of each descriptor (0 for binary descriptors)
+	 * @param longsPerLF	longs of each descriptor (0 for byte descriptors)
+	 */
+	public static PackedLocalFeatures read(ByteBuffer in, int n, int bytesPerLF, int longsPerLF) throws IOException {
+		PackedLocalFeatures res = new PackedLocalFeatures(n, bytesPerLF, longsPerLF);
+		for ( int i=0; i<n; i++ ) {
+			byte kpExists = in.get();
+			if ( kpExists == +1 ) {
+				res.x[i] = in.getFloat();
+				res.y[i] = in.getFloat();
+				res.ori[i] = in.getFloat();
+				res.scale[i] = in.getFloat();
+			} else if ( kpExists == -1 ) {
+				res.x[i] = res.y[i] = res.scale[i] = res.ori[i] = Float.NaN;
+			} else {
+				throw new IOException("Error in VIR binary format.");
+			}
+			if ( bytesPerLF > 0 ) {
+				in.get(res.bytes, i*bytesPerLF, bytesPerLF);
+			} else {
+				int o = i*longsPerLF;
+				for ( int j=0; j<longsPerLF; j++ ) {
+					res.longs[o+j] = in.getLong();
+				}
+			}
+		}
+		return res;
+	}
+
+	public final int size() {
+		return n;
+	}
+
+	/**
+	 * @return a new key point, null if the i-th feature has no key point
+	 */
+	public final KeyPoint getKeyPoint(int i) {
+		if ( Float.isNaN(x[i]) ) return null;
+		return new KeyPoint(x[i], y[i], ori[i], scale[i]);
+	}
+
+	/**
+	 * @return a copy of the byte descriptor of the i-th feature
+	 */
+	public final byte[] getBytes(int i) {
+		return Arrays.copyOfRange(bytes, i*bytesPerLF, (i+1)*bytesPerLF);
+	}
+
+	/**
+	 * @return a copy of the binary descriptor of the i-th feature
+	 */
+	public final long[] getLongs(int i) {
+		return Arrays.copyOfRange(longs, i*longsPerLF, (i+1)*longsPerLF);
+	}
+
+	public final long getDataSizeInBytes() {
+		long res = 4L * Float.BYTES * n;
+		if ( bytes != null ) res += bytes.length;
+		if ( longs != null ) res += (long) longs.length * Long.BYTES;
+		return res;
+	}
+}
@@ -68,6 +68,13 @@ public class RootSIFTGroup extends ALocalFeaturesGroup<RootSIFT>  {
 		int nBytes = in.getInt();
 		int nLFs = in.getInt();
 		lfArr = new RootSIFT[nLFs];
+		if ( packOnRead ) {
+			packed = PackedLocalFeatures.read(in, nLFs, RootSIFT.VLEN, 0);
+			for ( int i = 0; i < nLFs; i++ ) {
+				lfArr[i] = new RootSIFT(packed.getKeyPoint(i), packed.getBytes(i), this);
+			}
+			return;
+		}
 		for ( int i = 0; i < nLFs; i++ ) {
 			lfArr[i] = new RootSIFT(in);
 			lfArr[i].setLinkedGroup(this);
@@ -108,6 +108,18 @@ public class SIFT extends ALocalFeature<SIFTGroup> implements IUByteValues {
 		return Math.sqrt(getL2SquaredDistance(s1,s2,(int) Math.ceil(distMax*maxSQRDistValue))/maxSQRDistValue);
 	}
 	
+	/**
+	 * Distances of s2 from each of the s1 (negative if greater than maxDist).
+	 */
+	public static final void getDistance_Norm(SIFT[] s1, SIFT s2, double[] maxDist, double[] dist ) {
+		for ( int i=0; i<s1.length; i++ ) {
+			int max = (int) Math.ceil(maxDist[i]*maxDist[i]*maxSQRDistValue);
+			int sqr = L2.getSquared(s1[i].values, s2.values, max);
+			if ( sqr < 0 ) dist[i] = -Math.sqrt(-sqr/maxSQRDistValue);
+			else dist[i] = Math.sqrt(sqr/maxSQRDistValue);
+		}
+	}
+	
 	public static final double getDistanceSqr_Norm(SIFT s1, SIFT s2 ) {
 		return getL2SquaredDistance(s1,s2)/maxSQRDistValue;
 	}
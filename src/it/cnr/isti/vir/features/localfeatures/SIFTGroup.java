@@ -53,6 +53,13 @@ public class SIFTGroup extends ALocalFeaturesGroup<SIFT> {
 			int nBytes = in.getInt();
 			int nLFs = in.getInt();
 			lfArr = new SIFT[nLFs];
+			if ( packOnRead ) {
+				packed = PackedLocalFeatures.read(in, nLFs, SIFT.VLEN, 0);
+				for ( int i = 0; i < nLFs; i++ ) {
+					lfArr[i] = new SIFT(packed.getKeyPoint(i), packed.getBytes(i), this);
+				}
+				return;
+			}
 			for ( int i = 0; i < nLFs; i++ ) {
 				lfArr[i] = new SIFT(in);
 				lfArr[i].setLinkedGroup(this);
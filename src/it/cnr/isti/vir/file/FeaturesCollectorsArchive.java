@@ -45,15 +45,19 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.ByteBuffer;
 import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 public class FeaturesCollectorsArchive implements Iterable<AbstractFeaturesCollector> {
 
@@ -88,6 +92,23 @@ public class FeaturesCollectorsArchive implements Iterable<AbstractFeaturesColle
 
 	private boolean closed = false;
 	
+	/**
+	 * Max size in bytes of each region mapped in read-only mode.
+	 * Each region contains only whole records.
+	 */
+	public static long mappedRegionMaxSize = Integer.MAX_VALUE;
+	
+	// read-only memory-mapped mode
+	private final boolean mapped;
+	private LongBuffer mappedOffset;
+	private MappedByteBuffer[] mappedRegion;
+	private int[] mappedRegionFirst;
+	private long[] mappedRegionStart;
+	private long mappedLength;
+	
+	// persistent ID index used when IDs are not in memory
+	private FeaturesCollectorsArchiveIDIndex idIndex = null;
+	
 //	public FeatureClassCollector getFeaturesClasses() {
 //		return featuresClasses;
 //	}
@@ -116,8 +137,19 @@ public class FeaturesCollectorsArchive implements Iterable<AbstractFeaturesColle
 	public Class<? extends AbstractID> getIDClass() {
 		return idClass;
 	}
+	
+	public final boolean isMapped() {
+		return mapped;
+	}
 
 	public final AbstractID getID(int i) {
+		if ( ids == null && idIndex != null ) {
+			try {
+				return idIndex.getID(i);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
 		return ids.get(i);
 	}
 	
@@ -194,6 +226,7 @@ public class FeaturesCollectorsArchive implements Iterable<AbstractFeaturesColle
 			throw new Exception("Unable to delete file " + file.getAbsolutePath());
 		rndFile = new RandomAccessFile(file, "rw");
 		rndFile.setLength(0);
+		mapped = false;
 		//rndFile_Offset = new RandomAccessFile( this.getOffsetFileName(file), "rw");
 		//this.offset = null;
 		
@@ -292,6 +325,10 @@ public class FeaturesCollectorsArchive implements Iterable<AbstractFeaturesColle
 	
 	public synchronized void add(AbstractFeaturesCollector fc) throws ArchiveException, IOException {
 
+		if ( mapped ) {
+			throw new ArchiveException("Archive " + f.getAbsolutePath() + " was opened in read-only mapped mode");
+		}
+		
 		if ( changed == false ) {
 			lastSaveSize = size();
 			changed = true;
@@ -425,7 +462,7 @@ public class FeaturesCollectorsArchive implements Iterable<AbstractFeaturesColle
 	}
 */
 	public final AbstractID getIdAt(int i) {
-		return ids.get(i);
+		return getID(i);
 	}
 	
 	static final public void readHeader(DataInputStream in) throws IOException {
@@ -446,7 +483,34 @@ public class FeaturesCollectorsArchive implements Iterable<AbstractFeaturesColle
 	public static FeaturesCollectorsArchive open(File file ) throws SecurityException, NoSuchMethodException, IllegalArgumentException, InstantiationException, IllegalAccessException, InvocationTargetException, IOException {
 		return new FeaturesCollectorsArchive(file );
 	}
+	
+	/**
+	 * Opens an existing archive in read-only mode memory-mapping both the
+	 * data and the offsets files. Random access via {@link #get(int)} does
+	 * not lock and decodes directly from a slice of the mapped file.
+	 * 
+	 * @param file		The file containing the archive
+	 * @param readIDs	specify if IDs are needed
+	 * @return The opened archive
+	 */
+	public static FeaturesCollectorsArchive openMapped(File file, boolean readIDs) throws SecurityException, NoSuchMethodException, IllegalArgumentException, InstantiationException, IllegalAccessException, InvocationTargetException, IOException {
+		return new FeaturesCollectorsArchive(file, readIDs, false, true);
+	}
 
+	/**
+	 * Opens an existing archive without reading the IDs. Lookups by ID use
+	 * the persistent IDs index (see {@link #openIDIndex()}).
+	 * 
+	 * @param file		The file containing the archive
+	 * @param mapped	read-only mode, data and offsets files are memory-mapped
+	 * @return The opened archive
+	 */
+	public static FeaturesCollectorsArchive openIndexed(File file, boolean mapped) throws SecurityException, NoSuchMethodException, IllegalArgumentException, InstantiationException, IllegalAccessException, InvocationTargetException, IOException {
+		FeaturesCollectorsArchive res = new FeaturesCollectorsArchive(file, false, !mapped, mapped);
+		res.openIDIndex();
+		return res;
+	}
+	
 	public static int getSize(File file) throws SecurityException, NoSuchMethodException, IllegalArgumentException, InstantiationException, IllegalAccessException, InvocationTargetException, IOException {
 		FeaturesCollectorsArchive fca = new FeaturesCollectorsArchive(file, false);
 		return fca.size();
@@ -460,6 +524,19 @@ public class FeaturesCollectorsArchive implements Iterable<AbstractFeaturesColle
 	}
 	
 	public FeaturesCollectorsArchive(File file, boolean readIDs, boolean inMemoryOffsets) throws IOException,
+		SecurityException, NoSuchMethodException, IllegalArgumentException,
+		InstantiationException, IllegalAccessException,
+		InvocationTargetException {
+		this ( file, readIDs, inMemoryOffsets, false);
+	}
+	
+	/**
+	 * @param file				The file containing the archive
+	 * @param readIDs			specify if IDs are needed
+	 * @param inMemoryOffsets	offsets are loaded in memory (ignored if mapped)
+	 * @param mapped			read-only mode, data and offsets files are memory-mapped
+	 */
+	public FeaturesCollectorsArchive(File file, boolean readIDs, boolean inMemoryOffsets, boolean mapped) throws IOException,
 			SecurityException, NoSuchMethodException, IllegalArgumentException,
 			InstantiationException, IllegalAccessException,
 			InvocationTargetException {
@@ -477,7 +554,8 @@ public class FeaturesCollectorsArchive implements Iterable<AbstractFeaturesColle
 		if ( !idFile.exists() ) idFile = new File(getIDFileName(file));
 		
 		this.f = file;
-		rndFile = new RandomAccessFile(file, "rw");
+		this.mapped = mapped;
+		rndFile = new RandomAccessFile(file, mapped ? "r" : "rw");
 		
 		if (rndFile.readLong() != fileID) {
 			throw new IOException("The file ["+ file.getAbsolutePath() +"] does not appear to be a FeatureArchive");
@@ -583,7 +661,7 @@ public class FeaturesCollectorsArchive implements Iterable<AbstractFeaturesColle
 			}
 			
 			// Always read everthing
-			rndFile_Offset = new RandomAccessFile(offsetFile, "rw");
+			rndFile_Offset = new RandomAccessFile(offsetFile, mapped ? "r" : "rw");
 			
 			// READING INDEX FILE
 			//RandomAccessFile inOffset = new RandomAccessFile(offsetFile,"r");
@@ -594,7 +672,10 @@ public class FeaturesCollectorsArchive implements Iterable<AbstractFeaturesColle
 					+ " contains " + size + " objects.");
 
 			// Reading offsets
-			if ( inMemoryOffsets ) {
+			if ( mapped ) {
+				offset = null;
+				mapData();
+			} else if ( inMemoryOffsets ) {
 				
 				byte[] byteArray = new byte[size * 8];
 				
@@ -725,7 +806,77 @@ public class FeaturesCollectorsArchive implements Iterable<AbstractFeaturesColle
 	public static final String getOffsetFileName(File file) {
 		return file.getAbsolutePath() + ".off";
 	}
+	
+	/**
+	 * Maps the offsets file and the data file. The data file is split in
+	 * regions of at most mappedRegionMaxSize bytes, each starting at a record
+	 * offset so that no record spans two regions.
+	 */
+	private void mapData() throws IOException {
+		mappedOffset = rndFile_Offset.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, (long) size * Long.BYTES).asLongBuffer();
+		mappedLength = rndFile.length();
+		
+		ArrayList<Integer> first = new ArrayList<Integer>();
+		int i = 0;
+		while ( i < size ) {
+			first.add(i);
+			long start = mappedOffset.get(i);
+			// first record starting beyond the max region size
+			int lo = i+1;
+			int hi = size;
+			while ( lo < hi ) {
+				int mid = (lo + hi) >>> 1;
+				if ( mappedOffset.get(mid) - start <= mappedRegionMaxSize ) lo = mid+1;
+				else hi = mid;
+			}
+			// the region ends where the next one starts
+			int next = lo-1;
+			if ( lo == size && mappedLength - start <= mappedRegionMaxSize ) next = size;
+			if ( next == i ) 
+				throw new IOException("Record " + i + " is bigger than " + mappedRegionMaxSize + " bytes and can't be mapped");
+			i = next;
+		}
+		
+		int nRegions = first.size();
+		mappedRegion = new MappedByteBuffer[nRegions];
+		mappedRegionFirst = new int[nRegions];
+		mappedRegionStart = new long[nRegions];
+		FileChannel channel = rndFile.getChannel();
+		for ( int iR=0; iR<nRegions; iR++ ) {
+			mappedRegionFirst[iR] = first.get(iR);
+			mappedRegionStart[iR] = mappedOffset.get(mappedRegionFirst[iR]);
+		}
+		for ( int iR=0; iR<nRegions; iR++ ) {
+			long end = iR < nRegions-1 ? mappedRegionStart[iR+1] : mappedLength;
+			mappedRegion[iR] = channel.map(FileChannel.MapMode.READ_ONLY, mappedRegionStart[iR], end - mappedRegionStart[iR]);
+		}
+		Log.info_verbose("Archive mapped in " + nRegions + " regions.");
+	}
 
+	public static final String getIDIndexFileName(File file) {
+		return FeaturesCollectorsArchiveIDIndex.getIDIndexFileName(file);
+	}
+	
+	/**
+	 * Opens the persistent IDs index (.idx), creating it if it is missing or
+	 * older than the IDs file. Once opened, {@link #get(AbstractID)},
+	 * {@link #contains(AbstractID)} and {@link #getID(int)} do not need the
+	 * IDs in memory.
+	 */
+	public synchronized void openIDIndex() throws IOException {
+		if ( idIndex != null ) return;
+		if ( idClass == null ) {
+			throw new IOException("The archive " + f.getAbsolutePath() + " does not contain IDs");
+		}
+		if ( changed ) {
+			throw new IOException("The archive " + f.getAbsolutePath() + " has been modified, index files must be saved first");
+		}
+		if ( !idFile.exists() || f.lastModified() > idFile.lastModified() ) {
+			throw new IOException("IDs file " + idFile.getAbsolutePath() + " is missing or out of date, open the archive reading the IDs to rebuild it");
+		}
+		idIndex = FeaturesCollectorsArchiveIDIndex.open(idFile, new File(getIDIndexFileName(f)), size, idClass);
+	}
+	
 	public void createIDFile() throws IOException {
 		createIndexFiles(offsetFile, idFile, offset, ids);
 	}
@@ -775,7 +926,43 @@ public class FeaturesCollectorsArchive implements Iterable<AbstractFeaturesColle
 		return get(RandomOperations.getInt(this.size()));
 	}
 
-	public final synchronized AbstractFeaturesCollector get(int i) throws ArchiveException {
+	public final AbstractFeaturesCollector get(int i) throws ArchiveException {
+		if ( mapped ) return getMapped(i);
+		synchronized ( this ) {
+			return getRnd(i);
+		}
+	}
+	
+	private final AbstractFeaturesCollector getMapped(int i) throws ArchiveException {
+		try {
+			int iR = Arrays.binarySearch(mappedRegionFirst, i);
+			if ( iR < 0 ) iR = -iR-2;
+			
+			long regionStart = mappedRegionStart[iR];
+			int from = (int) (mappedOffset.get(i) - regionStart);
+			int to;
+			if (i < size - 1)
+				to = (int) (mappedOffset.get(i + 1) - regionStart);
+			else
+				to = (int) (mappedLength - regionStart);
+			
+			// the shared region buffer is never moved, each lookup uses its own view
+			ByteBuffer buf = mappedRegion[iR].duplicate();
+			buf.limit(to);
+			buf.position(from);
+			buf = buf.slice();
+			
+			if (fcClassConstructor_NIO == null) {
+				return FeaturesCollectors.readData(buf);
+			} else {
+				return (AbstractFeaturesCollector) fcClassConstructor_NIO.newInstance(buf);
+			}
+		} catch (Exception e) {
+			throw new ArchiveException(e);
+		}
+	}
+	
+	private final AbstractFeaturesCollector getRnd(int i) throws ArchiveException {
 		try {
 			
 			rndFile.seek(getOffset(i));
@@ -818,6 +1005,7 @@ public class FeaturesCollectorsArchive implements Iterable<AbstractFeaturesColle
 	
 	public final long getOffset(int i) throws IOException {
 		if ( offset!= null ) return offset.get(i);
+		if ( mapped ) return mappedOffset.get(i);
 		
 		synchronized(rndFile_Offset) {
 			rndFile_Offset.seek( i*Long.BYTES);
@@ -829,16 +1017,42 @@ public class FeaturesCollectorsArchive implements Iterable<AbstractFeaturesColle
 
 	public final Long getOffset(AbstractID id) throws IOException {
 
-		return getOffset(idPosMap.get(id));
+		return getOffset(getPosition(id));
+	}
+	
+	/**
+	 * @return the position of the object having the given ID, null if not found
+	 */
+	private final Integer getPosition(AbstractID id) throws IOException {
+		if ( idPosMap == null && idIndex != null ) {
+			// the index is read-only
+			int i = idIndex.getPosition(id);
+			if ( i < 0 ) return null;
+			return i;
+		}
+		// in mapped mode idPosMap is never modified
+		if ( mapped ) return idPosMap.get(id);
+		synchronized ( this ) {
+			return idPosMap.get(id);
+		}
 	}
 
-	public synchronized final boolean contains(AbstractID id) throws ArchiveException {
-		return idPosMap.get(id) != null;
+	public final boolean contains(AbstractID id) throws ArchiveException {
+		try {
+			return getPosition(id) != null;
+		} catch (IOException e) {
+			throw new ArchiveException(e);
+		}
 	}
 
-	public synchronized final AbstractFeaturesCollector get(AbstractID id)
+	public final AbstractFeaturesCollector get(AbstractID id)
 			throws ArchiveException {
-		Integer i = idPosMap.get(id);
+		Integer i;
+		try {
+			i = getPosition(id);
+		} catch (IOException e) {
+			throw new ArchiveException(e);
+		}
 		if (i == null)
 			return null;
 		return get(i);
@@ -858,6 +1072,7 @@ public class FeaturesCollectorsArchive implements Iterable<AbstractFeaturesColle
 		}
 		
 		rndFile_Offset.close();
+		if ( idIndex != null ) idIndex.close();
 		closed = true;
 
 	}
@@ -872,6 +1087,64 @@ public class FeaturesCollectorsArchive implements Iterable<AbstractFeaturesColle
 		}
 	}
 	
+	/**
+	 * Iterates through the objects having position in [from, to).
+	 * Each iterator uses its own stream (or the mapped regions), thus
+	 * different ranges can be read concurrently. On mapped archives read
+	 * errors are thrown by next() as RuntimeException.
+	 * 
+	 * @param from	position of the first object (inclusive)
+	 * @param to	position of the last object (exclusive)
+	 */
+	public Iterator<AbstractFeaturesCollector> iterator(final int from, final int to) throws IOException {
+		if ( mapped ) {
+			return new Iterator<AbstractFeaturesCollector>() {
+				int i = from;
+				
+				@Override
+				public boolean hasNext() {
+					return i < to;
+				}
+
+				@Override
+				public AbstractFeaturesCollector next() {
+					if ( i >= to ) throw new NoSuchElementException();
+					try {
+						return get(i++);
+					} catch (ArchiveException e) {
+						// read errors are not hidden as null objects
+						throw new RuntimeException("Error reading object " + (i-1) + " of " + f.getAbsolutePath(), e);
+					}
+				}
+				
+				@Override
+				public void remove() {
+					 throw new UnsupportedOperationException(); 		
+				}
+			};
+		}
+		if ( from >= to ) return new FeaturesCollectorsArchiveIterator(f, fcClassConstructor, 0, 0);
+		return new FeaturesCollectorsArchiveIterator(f, fcClassConstructor, getOffset(from), to-from );
+	}
+	
+	/**
+	 * Iterates through the objects using a reader thread and decoder threads
+	 * (see {@link FeaturesCollectorsArchivePipelinedIterator}).
+	 * 
+	 * @param ordered	if true objects are returned in the archive order
+	 */
+	public FeaturesCollectorsArchivePipelinedIterator pipelinedIterator(boolean ordered) throws IOException {
+		return new FeaturesCollectorsArchivePipelinedIterator(this, ordered);
+	}
+	
+	public FeaturesCollectorsArchivePipelinedIterator pipelinedIterator(int from, int to, int queueDepth, int nDecoders, boolean ordered) throws IOException {
+		return new FeaturesCollectorsArchivePipelinedIterator(this, from, to, queueDepth, nDecoders, ordered);
+	}
+	
+	final Constructor getFcClassConstructor_NIO() {
+		return fcClassConstructor_NIO;
+	}
+	
 	public AbstractID[] getIDs() throws IOException {
 		if ( ids != null ) {
 			AbstractID[] res = new AbstractID[ids.size()];
@@ -0,0 +1,285 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Fabrizio Falchi (NeMIS Lab., ISTI-CNR, Italy)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package it.cnr.isti.vir.file;
+
+import it.cnr.isti.vir.global.Log;
+import it.cnr.isti.vir.id.AbstractID;
+import it.cnr.isti.vir.util.TimeManager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Persistent ID to position index of a {@link FeaturesCollectorsArchive}.
+ *
+ * The index file (.idx) contains the offset of each ID in the IDs file (.id)
+ * and the positions of the objects sorted by ID. Both files are
+ * memory-mapped, lookups are binary searches that only deserialize the IDs
+ * that are compared.
+ */
+public class FeaturesCollectorsArchiveIDIndex {
+
+	public static final int version = 1;
+
+	// header: version, size, maxIDBytes, padding
+	private static final int headerSize = 16;
+
+	/** Maximum size of the mapped segments of the IDs file */
+	public static long segmentSize = 1L << 30;
+
+	/** Longs and ints per mapped segment of the index file */
+	private static final int arrSegmentSize = 1 << 27;
+
+	private final int size;
+	private final int maxIDBytes;
+	private final Constructor<? extends AbstractID> idConstructor_NIO;
+
+	private final RandomAccessFile rndIdx;
+	private final RandomAccessFile rndID;
+
+	private final LongBuffer[] idOffset;
+	private final IntBuffer[] sortedPos;
+	private final ByteBuffer[] idSegment;
+
+	public static final String getIDIndexFileName(File archiveFile) {
+		return archiveFile.getAbsolutePath() + ".idx";
+	}
+
+	/**
+	 * Counts the bytes read from the IDs file.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		long count = 0;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int res = super.read();
+			if ( res >= 0 ) count++;
+			return res;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int res = super.read(b, off, len);
+			if ( res > 0 ) count += res;
+			return res;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long res = super.skip(n);
+			count += res;
+			return res;
+		}
+	}
+
+	/**
+	 * Creates the index reading once the IDs file.
+	 * IDs are kept in memory only during the creation.
+	 */
+	public static void create(File idFile, File idxFile, int size, Class<? extends AbstractID> idClass) throws IOException {
+
+		Log.info_verbose("Creating IDs index " + idxFile.getAbsolutePath());
+
+		Constructor<? extends AbstractID> c = null;
+		try {
+			c = idClass.getConstructor(java.io.DataInput.class);
+		} catch (NoSuchMethodException e) {
+			throw new IOException(e);
+		}
+
+		final AbstractID[] ids = new AbstractID[size];
+		long[] offset = new long[size];
+		int maxIDBytes = 0;
+
+		CountingInputStream counting = new CountingInputStream(new BufferedInputStream(new FileInputStream(idFile)));
+		DataInputStream in = new DataInputStream(counting);
+		TimeManager tm = new TimeManager();
+		tm.setTotNEle(size);
+		long read = 0;
+		try {
+			for ( int i=0; i<size; i++ ) {
+				offset[i] = read;
+				ids[i] = c.newInstance(in);
+				read = counting.count;
+				maxIDBytes = (int) Math.max(maxIDBytes, read - offset[i]);
+				tm.reportProgress();
+			}
+		} catch (ReflectiveOperationException e) {
+			throw new IOException(e);
+		} finally {
+			in.close();
+		}
+
+		Integer[] pos = new Integer[size];
+		for ( int i=0; i<size; i++ ) pos[i] = i;
+		Arrays.sort(pos, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return ids[o1].compareTo(ids[o2]);
+			}
+		});
+
+		for ( int i=1; i<size; i++ ) {
+			if ( ids[pos[i-1]].equals(ids[pos[i]]) )
+				Log.info_verbose("ID " + ids[pos[i]] + " is duplicated");
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(idxFile)));
+		out.writeInt(version);
+		out.writeInt(size);
+		out.writeInt(maxIDBytes);
+		out.writeInt(0);
+		for ( int i=0; i<size; i++ ) out.writeLong(offset[i]);
+		for ( int i=0; i<size; i++ ) out.writeInt(pos[i]);
+		out.close();
+
+		Log.info_verbose("done");
+	}
+
+	/**
+	 * Checks if the index exists and has been created after the IDs file.
+	 */
+	public static boolean isUpToDate(File idFile, File idxFile, int size) throws IOException {
+		if ( !idxFile.exists() || idxFile.lastModified() < idFile.lastModified() ) return false;
+		if ( idxFile.length() != headerSize + (long) size * (Long.BYTES + Integer.BYTES) ) return false;
+		DataInputStream in = new DataInputStream(new FileInputStream(idxFile));
+		try {
+			return in.readInt() == version && in.readInt() == size;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Opens the index creating it if it is missing or out of date.
+	 */
+	public static FeaturesCollectorsArchiveIDIndex open(File idFile, File idxFile, int size, Class<? extends AbstractID> idClass) throws IOException {
+		if ( !isUpToDate(idFile, idxFile, size) ) create(idFile, idxFile, size, idClass);
+		return new FeaturesCollectorsArchiveIDIndex(idFile, idxFile, size, idClass);
+	}
+
+	public FeaturesCollectorsArchiveIDIndex(File idFile, File idxFile, int size, Class<? extends AbstractID> idClass) throws IOException {
+		try {
+			idConstructor_NIO = idClass.getConstructor(ByteBuffer.class);
+		} catch (NoSuchMethodException e) {
+			throw new IOException(e);
+		}
+
+		rndIdx = new RandomAccessFile(idxFile, "r");
+		if ( rndIdx.readInt() != version )
+			throw new IOException("IDs index " + idxFile.getAbsolutePath() + " version not supported");
+		this.size = rndIdx.readInt();
+		if ( this.size != size )
+			throw new IOException("IDs index " + idxFile.getAbsolutePath() + " contains " + this.size + " IDs, " + size + " were expected");
+		maxIDBytes = rndIdx.readInt();
+
+		FileChannel idxChannel = rndIdx.getChannel();
+		int nArrSegments = (size + arrSegmentSize - 1) / arrSegmentSize;
+		idOffset = new LongBuffer[nArrSegments];
+		sortedPos = new IntBuffer[nArrSegments];
+		long posStart = headerSize + (long) size * Long.BYTES;
+		for ( int iS=0; iS<nArrSegments; iS++ ) {
+			long first = (long) iS * arrSegmentSize;
+			int n = (int) Math.min(arrSegmentSize, size - first);
+			idOffset[iS] = idxChannel.map(FileChannel.MapMode.READ_ONLY, headerSize + first * Long.BYTES, (long) n * Long.BYTES).asLongBuffer();
+			sortedPos[iS] = idxChannel.map(FileChannel.MapMode.READ_ONLY, posStart + first * Integer.BYTES, (long) n * Integer.BYTES).asIntBuffer();
+		}
+
+		// segments overlap by maxIDBytes so that each ID is entirely in the segment of its offset
+		rndID = new RandomAccessFile(idFile, "r");
+		FileChannel idChannel = rndID.getChannel();
+		long idLength = rndID.length();
+		int nSegments = (int) Math.max(1, (idLength + segmentSize - 1) / segmentSize);
+		idSegment = new ByteBuffer[nSegments];
+		for ( int iS=0; iS<nSegments; iS++ ) {
+			long start = iS * segmentSize;
+			long end = Math.min(idLength, start + segmentSize + maxIDBytes);
+			idSegment[iS] = idChannel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+		}
+	}
+
+	public final int size() {
+		return size;
+	}
+
+	private final long getIDOffset(int i) {
+		return idOffset[i / arrSegmentSize].get(i % arrSegmentSize);
+	}
+
+	private final int getSortedPos(int i) {
+		return sortedPos[i / arrSegmentSize].get(i % arrSegmentSize);
+	}
+
+	/**
+	 * @param i	position of the object in the archive
+	 * @return	the ID of the object
+	 */
+	public final AbstractID getID(int i) throws IOException {
+		long offset = getIDOffset(i);
+		// each lookup uses its own view of the shared segment
+		ByteBuffer buf = idSegment[(int) (offset / segmentSize)].duplicate();
+		buf.position((int) (offset % segmentSize));
+		try {
+			return idConstructor_NIO.newInstance(buf);
+		} catch (ReflectiveOperationException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * @param id	the ID to be searched
+	 * @return		the position of the object in the archive or -1 if not found
+	 */
+	public final int getPosition(AbstractID id) throws IOException {
+		int lo = 0;
+		int hi = size-1;
+		while ( lo <= hi ) {
+			int mid = (lo + hi) >>> 1;
+			int pos = getSortedPos(mid);
+			int comp = getID(pos).compareTo(id);
+			if ( comp < 0 ) lo = mid+1;
+			else if ( comp > 0 ) hi = mid-1;
+			else return pos;
+		}
+		return -1;
+	}
+
+	public final boolean contains(AbstractID id) throws IOException {
+		return getPosition(id) >= 0;
+	}
+
+	public void close() throws IOException {
+		rndIdx.close();
+		rndID.close();
+	}
+}
@@ -29,6 +29,9 @@ public class FeaturesCollectorsArchiveIterator implements Iterator<AbstractFeatu
 	
 	private boolean erorrState = false;
 	
+	// number of objects still to be read, -1 if reading till the end of the file
+	private int remaining = -1;
+	
 	public FeaturesCollectorsArchiveIterator(File f, Constructor<? extends AbstractFeaturesCollector> fcClassConstructor) throws IOException {
 		
 			in = new DataInputStream(
@@ -38,10 +41,30 @@ public class FeaturesCollectorsArchiveIterator implements Iterator<AbstractFeatu
 			
 			FeaturesCollectorsArchive.readHeader(in);
 	}
+	
+	/**
+	 * Iterates through n objects starting at the given file offset.
+	 * 
+	 * @param f						archive file
+	 * @param fcClassConstructor	features collector constructor 
+	 * @param offset				offset of the first object to read
+	 * @param n						number of objects to read
+	 * @throws IOException
+	 */
+	public FeaturesCollectorsArchiveIterator(File f, Constructor<? extends AbstractFeaturesCollector> fcClassConstructor, long offset, int n) throws IOException {
+		
+			FileInputStream fis = new FileInputStream(f);
+			fis.getChannel().position(offset);
+			in = new DataInputStream(
+				new BufferedInputStream(fis));
+			this.fcClassConstructor = fcClassConstructor;
+			this.remaining = n;
+	}
 
 	@Override
 	public boolean hasNext() {
 		if ( erorrState ) return false;
+		if ( remaining >= 0 ) return remaining > 0;
 		try {
 			return ( in.available() != 0 );
 		} catch (IOException e) {
@@ -52,6 +75,7 @@ public class FeaturesCollectorsArchiveIterator implements Iterator<AbstractFeatu
 
 	@Override
 	public AbstractFeaturesCollector next() {
+		if ( remaining > 0 ) remaining--;
 		try {
 			if (fcClassConstructor == null) {
 				return FeaturesCollectors.readData(in);
@@ -70,9 +94,13 @@ public class FeaturesCollectorsArchiveIterator implements Iterator<AbstractFeatu
 		 throw new UnsupportedOperationException(); 		
 	}
 	
+	public void close() throws IOException {
+		if ( in!= null ) in.close();
+	}
+	
 	@Override
 	public void finalize() throws IOException {
-		if ( in!= null ) in.close();
+		close();
 	}
 
 }
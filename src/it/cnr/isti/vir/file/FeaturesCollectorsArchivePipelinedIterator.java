@@ -0,0 +1,362 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Fabrizio Falchi (NeMIS Lab., ISTI-CNR, Italy)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package it.cnr.isti.vir.file;
+
+import it.cnr.isti.vir.features.AbstractFeaturesCollector;
+import it.cnr.isti.vir.features.FeaturesCollectors;
+import it.cnr.isti.vir.global.ParallelOptions;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Iterates through the objects of a {@link FeaturesCollectorsArchive} using
+ * a reader thread, that reads chunks of consecutive records, and decoder
+ * threads, that create the objects of each chunk.
+ * At most queueDepth chunks are read in advance. If the order is not
+ * required chunks are returned as soon as they are decoded.
+ * Threads and reserved processors are released at the end of the iteration,
+ * by {@link #close()} or, if the iterator is abandoned, when it is finalized.
+ */
+public class FeaturesCollectorsArchivePipelinedIterator implements Iterator<AbstractFeaturesCollector> {
+
+	public static int defaultQueueDepth = 16;
+	public static int defaultChunkBytes = 1 << 22;
+
+	private static final Chunk END = new Chunk(-1, null, null);
+
+	private static class Chunk {
+		final int seq;
+		final byte[] data;
+		// start of each record in data plus the end of the last one
+		final int[] recStart;
+		AbstractFeaturesCollector[] obj;
+
+		Chunk(int seq, byte[] data, int[] recStart) {
+			this.seq = seq;
+			this.data = data;
+			this.recStart = recStart;
+		}
+	}
+
+	/**
+	 * State shared with the threads, that do not reference the iterator.
+	 */
+	private static class Pipeline {
+		final FeaturesCollectorsArchive archive;
+		final Constructor fcClassConstructor_NIO;
+		final RandomAccessFile rndFile;
+		final int from;
+		final int to;
+		final long endOffset;
+		final int chunkBytes;
+		final int queueDepth;
+		final boolean ordered;
+
+		final Semaphore inFlight;
+		final ArrayBlockingQueue<Chunk> toDecode;
+
+		// decoded chunks, guarded by lock
+		final Object lock = new Object();
+		final Chunk[] ring;
+		final ArrayDeque<Chunk> ready;
+		int nChunks = -1;
+
+		Thread reader;
+		Thread[] decoder;
+		int nReserved;
+		boolean freed = false;
+		volatile boolean closed = false;
+		volatile Exception exception = null;
+
+		Pipeline(FeaturesCollectorsArchive archive, int from, int to, int queueDepth, boolean ordered) throws IOException {
+			this.archive = archive;
+			this.fcClassConstructor_NIO = archive.getFcClassConstructor_NIO();
+			this.rndFile = new RandomAccessFile(archive.getfile(), "r");
+			this.from = from;
+			this.to = Math.max(from, to);
+			this.endOffset = to < archive.size() ? archive.getOffset(to) : rndFile.length();
+			this.chunkBytes = defaultChunkBytes;
+			this.queueDepth = Math.max(1, queueDepth);
+			this.ordered = ordered;
+
+			inFlight = new Semaphore(this.queueDepth);
+			toDecode = new ArrayBlockingQueue<Chunk>(this.queueDepth + 1);
+			ring = ordered ? new Chunk[this.queueDepth] : null;
+			ready = ordered ? null : new ArrayDeque<Chunk>(this.queueDepth);
+		}
+
+		void start(int nDecoders) {
+			nReserved = ParallelOptions.reserveNFreeProcessors(Math.max(0, nDecoders-1));
+			decoder = new Thread[nReserved+1];
+			for ( int i=0; i<decoder.length; i++ ) {
+				decoder[i] = new Thread(new Decoder(this));
+				decoder[i].setDaemon(true);
+				decoder[i].start();
+			}
+			reader = new Thread(new Reader(this));
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		void setException(Exception e) {
+			if ( closed ) return;
+			synchronized ( lock ) {
+				if ( exception == null ) exception = e;
+				lock.notifyAll();
+			}
+		}
+
+		void close() {
+			synchronized ( lock ) {
+				if ( freed ) return;
+				freed = true;
+				closed = true;
+				lock.notifyAll();
+			}
+			reader.interrupt();
+			for ( Thread t : decoder ) t.interrupt();
+			ParallelOptions.free(nReserved);
+			try {
+				rndFile.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static class Reader implements Runnable {
+		private final Pipeline p;
+
+		Reader(Pipeline p) {
+			this.p = p;
+		}
+
+		@Override
+		public void run() {
+			try {
+				FileChannel channel = p.rndFile.getChannel();
+				FeaturesCollectorsArchive archive = p.archive;
+				int to = p.to;
+				int seq = 0;
+				int i = p.from;
+				long start = i < to ? archive.getOffset(i) : 0;
+				while ( i < to && !p.closed ) {
+					// records in the chunk
+					int j = i+1;
+					long end = j < to ? archive.getOffset(j) : p.endOffset;
+					while ( j < to ) {
+						long next = j+1 < to ? archive.getOffset(j+1) : p.endOffset;
+						if ( next - start > p.chunkBytes ) break;
+						end = next;
+						j++;
+					}
+					if ( end - start > Integer.MAX_VALUE )
+						throw new IOException("Record " + i + " is too big");
+
+					int[] recStart = new int[j-i+1];
+					for ( int r=i; r<j; r++ ) recStart[r-i] = (int) (archive.getOffset(r) - start);
+					recStart[j-i] = (int) (end - start);
+
+					byte[] data = new byte[(int) (end - start)];
+					ByteBuffer buf = ByteBuffer.wrap(data);
+					long pos = start;
+					while ( buf.hasRemaining() ) {
+						int n = channel.read(buf, pos);
+						if ( n < 0 ) throw new IOException("Unexpected end of file " + archive.getfile().getAbsolutePath());
+						pos += n;
+					}
+
+					p.inFlight.acquire();
+					p.toDecode.put(new Chunk(seq++, data, recStart));
+					i = j;
+					start = end;
+				}
+				synchronized ( p.lock ) {
+					p.nChunks = seq;
+					p.lock.notifyAll();
+				}
+			} catch (Exception e) {
+				p.setException(e);
+			} finally {
+				// one END for each decoder
+				for ( int i=0; i<p.decoder.length && !p.closed; i++ ) {
+					try {
+						p.toDecode.put(END);
+					} catch (InterruptedException e) {
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	private static class Decoder implements Runnable {
+		private final Pipeline p;
+
+		Decoder(Pipeline p) {
+			this.p = p;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while ( true ) {
+					Chunk c = p.toDecode.take();
+					if ( c == END || p.closed ) return;
+					int n = c.recStart.length-1;
+					c.obj = new AbstractFeaturesCollector[n];
+					for ( int r=0; r<n; r++ ) {
+						ByteBuffer buf = ByteBuffer.wrap(c.data, c.recStart[r], c.recStart[r+1]-c.recStart[r]).slice();
+						if ( p.fcClassConstructor_NIO == null ) {
+							c.obj[r] = FeaturesCollectors.readData(buf);
+						} else {
+							c.obj[r] = (AbstractFeaturesCollector) p.fcClassConstructor_NIO.newInstance(buf);
+						}
+					}
+					synchronized ( p.lock ) {
+						if ( p.ordered ) p.ring[c.seq % p.queueDepth] = c;
+						else p.ready.add(c);
+						p.lock.notifyAll();
+					}
+				}
+			} catch (InterruptedException e) {
+				// closed
+			} catch (Exception e) {
+				p.setException(e);
+			}
+		}
+	}
+
+	private final Pipeline p;
+
+	private int consumed = 0;
+	private Chunk curr = null;
+	private int currIndex = 0;
+
+	/**
+	 * @param archive		the archive
+	 * @param from			position of the first object (inclusive)
+	 * @param to			position of the last object (exclusive)
+	 * @param queueDepth	max number of chunks read in advance
+	 * @param nDecoders		max number of decoder threads (limited by {@link ParallelOptions})
+	 * @param ordered		if true objects are returned in the archive order
+	 */
+	public FeaturesCollectorsArchivePipelinedIterator(
+			FeaturesCollectorsArchive archive,
+			int from, int to,
+			int queueDepth, int nDecoders, boolean ordered) throws IOException {
+		p = new Pipeline(archive, from, to, queueDepth, ordered);
+		p.start(nDecoders);
+	}
+
+	public FeaturesCollectorsArchivePipelinedIterator(FeaturesCollectorsArchive archive, boolean ordered) throws IOException {
+		this(archive, 0, archive.size(), defaultQueueDepth, ParallelOptions.nProcessors, ordered);
+	}
+
+	/**
+	 * @return the exception that stopped the iteration, if any
+	 */
+	public Exception getException() {
+		return p.exception;
+	}
+
+	/**
+	 * Waits for the next decoded chunk, null at the end.
+	 */
+	private final Chunk nextChunk() throws InterruptedException {
+		synchronized ( p.lock ) {
+			while ( true ) {
+				if ( p.exception != null || p.closed ) return null;
+				Chunk c = null;
+				if ( p.ordered ) {
+					int slot = consumed % p.queueDepth;
+					if ( p.ring[slot] != null && p.ring[slot].seq == consumed ) {
+						c = p.ring[slot];
+						p.ring[slot] = null;
+					}
+				} else {
+					c = p.ready.poll();
+				}
+				if ( c != null ) {
+					consumed++;
+					p.inFlight.release();
+					return c;
+				}
+				if ( p.nChunks >= 0 && consumed == p.nChunks ) return null;
+				p.lock.wait();
+			}
+		}
+	}
+
+	/**
+	 * @throws RuntimeException wrapping the exception that stopped the
+	 * 		reader or a decoder
+	 */
+	@Override
+	public boolean hasNext() {
+		if ( p.exception != null ) throw getRuntimeException();
+		if ( p.closed ) return false;
+		while ( curr == null || currIndex == curr.obj.length ) {
+			try {
+				curr = nextChunk();
+			} catch (InterruptedException e) {
+				p.setException(e);
+				Thread.currentThread().interrupt();
+				curr = null;
+			}
+			currIndex = 0;
+			if ( curr == null ) {
+				close();
+				if ( p.exception != null ) throw getRuntimeException();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private final RuntimeException getRuntimeException() {
+		if ( p.exception instanceof RuntimeException ) return (RuntimeException) p.exception;
+		return new RuntimeException("Error reading " + p.archive.getfile().getAbsolutePath(), p.exception);
+	}
+
+	@Override
+	public AbstractFeaturesCollector next() {
+		if ( !hasNext() ) throw new NoSuchElementException();
+		return curr.obj[currIndex++];
+	}
+
+	@Override
+	public void remove() {
+		 throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Stops the threads and releases the reserved processors.
+	 */
+	public void close() {
+		p.close();
+	}
+
+	@Override
+	protected void finalize() {
+		close();
+	}
+}
@@ -22,22 +22,91 @@ import it.cnr.isti.vir.features.FeaturesCollectorArr;
 import it.cnr.isti.vir.features.FeaturesCollectors;
 import it.cnr.isti.vir.id.AbstractID;
 import it.cnr.isti.vir.id.IDString;
+import it.cnr.isti.vir.id.IHasID;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Archive writer for multiple producer threads.
+ * Each thread serializes its FeaturesCollectors in its own buffer, full
+ * buffers (batches) are appended to the archive by a single writer thread
+ * that also records offsets and IDs.
+ * If ordered, each object gets a ticket when added and the writer commits
+ * the objects of the batches in the order of the tickets. A thread that
+ * stops adding would stall the writer, its batch is taken by the writer
+ * when too many batches are waiting.
+ * Otherwise batches are committed as soon as they are full (faster).
+ * Offsets and IDs files are written to temporary files that are synced and
+ * renamed at close, after the archive has been synced to disk. If the process is
+ * interrupted the archive is opened without index files, that are rebuilt.
  *
  * @author Fabrizio
  */
 public class FeaturesCollectorsArchive_Buffered {
 
-	private final DataOutputStream out;
+	/** Bytes of the thread-local buffers */
+	public static int batchBytes = 1 << 20;
+	
+	/** Max number of batches waiting for the writer */
+	public static int queueDepth = 64;
+	
+	/** Bytes of the writer output buffer */
+	public static int outBufferBytes = 1 << 22;
+	
+	private static final Batch END = new Batch();
+	
+	private static class Buffer extends ByteArrayOutputStream {
+		// removes a partially written object
+		final void truncate(int size) {
+			count = size;
+		}
+		
+		final void writeTo(OutputStream out, int off, int len) throws IOException {
+			out.write(buf, off, len);
+		}
+	}
+	
+	/**
+	 * Serialized objects with their IDs.
+	 * Objects are added holding the lock of the batch, a detached batch is
+	 * owned by the writer.
+	 */
+	private static class Batch {
+		final Buffer bytes = new Buffer();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		final ArrayList<Integer> recSize = new ArrayList<Integer>();
+		final ArrayList<AbstractID> ids = new ArrayList<AbstractID>();
+		// tickets of the objects (ordered mode only)
+		final ArrayList<Long> tickets = new ArrayList<Long>();
+		boolean detached = false;
+		// detached when full, put by the producer thread
+		boolean full = false;
+		
+		// first object not committed yet and its position (ordered mode only)
+		int next = 0;
+		int nextPos = 0;
+		
+		final int size() {
+			return recSize.size();
+		}
+	}
 	
 	private final File f;
 	private final Constructor fcClassConstructor;
@@ -48,12 +117,37 @@ public class FeaturesCollectorsArchive_Buffered {
 	File offsetFile;
 	File idFile;
 	
-	int size=0;
+	private final File offsetTmpFile;
+	private final File idTmpFile;
+	private final boolean saveIDs;
+	private final boolean ordered;
+	
+	private final FileOutputStream fileOut;
+	private final DataOutputStream out;
+	private final FileOutputStream offsetFileOut;
+	private final DataOutputStream outOffset;
+	private final FileOutputStream idFileOut;
+	private final DataOutputStream outIDs;
+	
+	// written by the writer thread
+	private long filePointer;
+	
+	// objects added, as in the unbuffered archive
+	private final AtomicInteger size = new AtomicInteger(0);
+	
+	private final AtomicLong nextTicket = new AtomicLong(0);
+	private final ArrayBlockingQueue<Batch> toWrite;
+	private final Thread writer;
+	private volatile IOException exception = null;
+	
+	// thread-local buffers
+	private final ThreadLocal<Batch> localBatch = new ThreadLocal<Batch>();
+	private final ArrayList<Batch> allLocalBatches = new ArrayList<Batch>();
 	
 	private boolean closed = false;
 	
 	public final int size() {
-		return size;
+		return size.get();
 	}
 	
 	public static  FeaturesCollectorsArchive_Buffered create(File file ) throws Exception {
@@ -100,6 +194,10 @@ public class FeaturesCollectorsArchive_Buffered {
 		return new FeaturesCollectorsArchive_Buffered(file, archive.getIDClass(), archive.getFcClass() );
 	}
 	
+	public static  FeaturesCollectorsArchive_Buffered createAs(File file, FeaturesCollectorsArchive archive, boolean ordered ) throws Exception {
+		return new FeaturesCollectorsArchive_Buffered(file, archive.getIDClass(), archive.getFcClass(), true, ordered );
+	}
+	
 	/**
 	 * Create an empty archive of FeaturesCollector. FeaturesCollectors are buffered and written to disk while added. 
 	 * @param file The file where the archive will be written
@@ -112,55 +210,293 @@ public class FeaturesCollectorsArchive_Buffered {
 			throws Exception {
 		this(file, idClass, fcClass, true);
 	}
+	
 	public FeaturesCollectorsArchive_Buffered(File file,
 			Class<? extends AbstractID> idClass, Class<? extends AbstractFeaturesCollector> fcClass, boolean saveIDs)
 			throws Exception {
+		this(file, idClass, fcClass, saveIDs, true);
+	}
+	
+	/**
+	 * @param ordered	if true objects are written in the order of the add invocations
+	 */
+	public FeaturesCollectorsArchive_Buffered(File file,
+			Class<? extends AbstractID> idClass, Class<? extends AbstractFeaturesCollector> fcClass, boolean saveIDs, boolean ordered)
+			throws Exception {
 		
-		file.delete();
-		
-		out = new DataOutputStream( 
-				new BufferedOutputStream(new FileOutputStream(file))
-				);
-
 		this.f = file;
 		this.idClass = idClass;
 		this.fcClass = fcClass;
 		this.fcClassConstructor = FeaturesCollectorsArchive.getFCConstructor(fcClass);
-
-		FeaturesCollectorsArchive.writeIntro(out, idClass,	fcClass);
+		this.saveIDs = saveIDs && idClass != null;
+		this.ordered = ordered;
 		
 		idFile = new File(FeaturesCollectorsArchive.getIDFileName(file));
 		offsetFile = new File(FeaturesCollectorsArchive.getOffsetFileName(file));
-
+		offsetTmpFile = new File(offsetFile.getAbsolutePath() + ".tmp");
+		idTmpFile = new File(idFile.getAbsolutePath() + ".tmp");
+		
+		// old index files would be considered valid for the new archive
+		file.delete();
+		idFile.delete();
+		offsetFile.delete();
+		new File(FeaturesCollectorsArchiveIDIndex.getIDIndexFileName(file)).delete();
+		
+		fileOut = new FileOutputStream(file);
+		out = new DataOutputStream( 
+				new BufferedOutputStream(fileOut, outBufferBytes)
+				);
+		FeaturesCollectorsArchive.writeIntro(out, idClass,	fcClass);
+		out.flush();
+		filePointer = out.size();
+		
+		offsetFileOut = new FileOutputStream(offsetTmpFile);
+		outOffset = new DataOutputStream(new BufferedOutputStream(offsetFileOut));
+		idFileOut = this.saveIDs ? new FileOutputStream(idTmpFile) : null;
+		outIDs = this.saveIDs ? new DataOutputStream(new BufferedOutputStream(idFileOut)) : null;
+		
+		toWrite = new ArrayBlockingQueue<Batch>(queueDepth);
+		writer = new Thread(new Writer());
+		writer.setDaemon(true);
+		writer.start();
 	}
 	
-	public synchronized void add(AbstractFeature f, AbstractID id ) throws ArchiveException, IOException, NoSuchMethodException, SecurityException, InstantiationException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
+	public void add(AbstractFeature f, AbstractID id ) throws ArchiveException, IOException, NoSuchMethodException, SecurityException, InstantiationException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
 		add(fcClass.getConstructor(AbstractFeature.class, AbstractID.class).newInstance(f, id));
 	}	
 
-	public synchronized void add(AbstractFeaturesCollector fc) throws ArchiveException, IOException {
-
-		if (fcClass == null) {
-			FeaturesCollectors.writeData(out, fc);
-		} else {
-			if (fcClass.isInstance(fc)) {
-				fc.writeData(out);
+	/**
+	 * Serializes the object in the buffer of the current thread.
+	 * It can be invoked concurrently.
+	 */
+	public void add(AbstractFeaturesCollector fc) throws ArchiveException, IOException {
+		
+		if ( closed ) throw new ArchiveException("Archive " + f.getAbsolutePath() + " has been closed");
+		if ( exception != null ) throw exception;
+		
+		if ( fcClass != null && !fcClass.isInstance(fc) ) {
+			throw new ArchiveException("FeaturesCollector class inserted ("
+					+ fc.getClass() + ") differ from expected (" + fcClass
+					+ ")");
+		}
+		
+		AbstractID id = null;
+		if ( saveIDs ) {
+			id = ((IHasID) fc).getID();
+			if (!idClass.isInstance(id)) {
+				throw new ArchiveException("Object has a wrong ID class: "
+						+ idClass + " requested, " + id.getClass() + " found.");
+			}
+		}
+		
+		Batch batch = localBatch.get();
+		while ( batch == null || !append(batch, fc, id) ) {
+			// the previous batch has been detached
+			batch = newLocalBatch();
+		}
+		size.incrementAndGet();
+		if ( batch.full ) put(batch);
+	}
+	
+	/**
+	 * @return false if the batch is detached, true if the object has been
+	 * 		written (the batch is detached if full)
+	 */
+	private final boolean append(Batch batch, AbstractFeaturesCollector fc, AbstractID id) throws IOException {
+		synchronized ( batch ) {
+			if ( batch.detached ) return false;
+			write(batch, fc, id);
+			if ( batch.bytes.size() >= batchBytes ) {
+				batch.detached = true;
+				batch.full = true;
+			}
+			return true;
+		}
+	}
+	
+	private final void write(Batch batch, AbstractFeaturesCollector fc, AbstractID id) throws IOException {
+		int start = batch.bytes.size();
+		try {
+			if (fcClass == null) {
+				FeaturesCollectors.writeData(batch.out, fc);
 			} else {
-				throw new ArchiveException("FeaturesCollector class inserted ("
-						+ fc.getClass() + ") differ from expected (" + fcClass
-						+ ")");
+				fc.writeData(batch.out);
 			}
+		} catch (IOException | RuntimeException e) {
+			batch.bytes.truncate(start);
+			throw e;
 		}
-
-		size++;
+		batch.recSize.add(batch.bytes.size() - start);
+		batch.ids.add(id);
+		// the ticket is taken only once the object has been written
+		if ( ordered ) batch.tickets.add(nextTicket.getAndIncrement());
 	}
-
-
-	public void close() throws IOException {
+	
+	private final Batch newLocalBatch() {
+		Batch batch = new Batch();
+		localBatch.set(batch);
+		synchronized ( allLocalBatches ) {
+			allLocalBatches.add(batch);
+		}
+		return batch;
+	}
+	
+	private final void put(Batch batch) throws IOException {
+		synchronized ( allLocalBatches ) {
+			allLocalBatches.remove(batch);
+		}
+		try {
+			toWrite.put(batch);
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	private class Writer implements Runnable {
+		
+		// ordered mode: batches by ticket of their first object not committed
+		private final HashMap<Long, Batch> waiting = new HashMap<Long, Batch>();
+		private long next = 0;
+		
+		@Override
+		public void run() {
+			try {
+				while ( true ) {
+					Batch batch = toWrite.take();
+					if ( batch == END ) break;
+					if ( exception != null ) continue;
+					if ( !ordered ) {
+						commit(batch);
+						continue;
+					}
+					if ( batch.size() > 0 ) waiting.put(batch.tickets.get(0), batch);
+					commitWaiting();
+					if ( waiting.size() >= queueDepth && detachNext() ) commitWaiting();
+				}
+			} catch (InterruptedException e) {
+				exception = new IOException(e);
+			} catch (IOException e) {
+				exception = e;
+			}
+		}
+		
+		private final void commitWaiting() throws IOException {
+			Batch batch;
+			while ( (batch = waiting.remove(next)) != null ) {
+				int recSize = batch.recSize.get(batch.next);
+				batch.bytes.writeTo(out, batch.nextPos, recSize);
+				outOffset.writeLong(filePointer);
+				filePointer += recSize;
+				if ( outIDs != null ) batch.ids.get(batch.next).writeData(outIDs);
+				batch.nextPos += recSize;
+				batch.next++;
+				next++;
+				if ( batch.next < batch.size() ) waiting.put(batch.tickets.get(batch.next), batch);
+			}
+		}
+		
+		/**
+		 * Takes the batch of the next ticket from the thread that is filling it.
+		 * @return false if it is not found
+		 */
+		private final boolean detachNext() {
+			synchronized ( allLocalBatches ) {
+				for ( Batch batch : allLocalBatches ) {
+					synchronized ( batch ) {
+						if ( batch.detached || batch.size() == 0 || batch.tickets.get(0) != next ) continue;
+						batch.detached = true;
+					}
+					allLocalBatches.remove(batch);
+					waiting.put(next, batch);
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		private final void commit(Batch batch) throws IOException {
+			batch.bytes.writeTo(out);
+			for ( int i=0; i<batch.size(); i++ ) {
+				outOffset.writeLong(filePointer);
+				filePointer += batch.recSize.get(i);
+				if ( outIDs != null ) batch.ids.get(i).writeData(outIDs);
+			}
+		}
+	}
+	
+	/**
+	 * Commits all the buffered objects, syncs the archive to disk and
+	 * writes the offsets and IDs files.
+	 * Must be invoked when no other thread is adding objects.
+	 */
+	public synchronized void close() throws IOException {
 		if ( closed ) return;
+		closed = true;
+		
+		try {
+			synchronized ( allLocalBatches ) {
+				for ( Batch batch : allLocalBatches ) {
+					synchronized ( batch ) {
+						batch.detached = true;
+					}
+					if ( batch.size() > 0 ) toWrite.put(batch);
+				}
+				allLocalBatches.clear();
+			}
+			toWrite.put(END);
+			writer.join();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+		
+		out.flush();
+		fileOut.getFD().sync();
 		out.close();
+		outOffset.flush();
+		offsetFileOut.getFD().sync();
+		outOffset.close();
+		if ( outIDs != null ) {
+			outIDs.flush();
+			idFileOut.getFD().sync();
+			outIDs.close();
+		}
 		
-		closed = true;
+		if ( exception != null ) {
+			// the archive can be opened rebuilding the index files
+			offsetTmpFile.delete();
+			idTmpFile.delete();
+			throw exception;
+		}
+		
+		// index files are valid only if they are not older than the archive
+		long time = Math.max(System.currentTimeMillis(), f.lastModified());
+		offsetTmpFile.setLastModified(time);
+		Files.move(offsetTmpFile.toPath(), offsetFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		if ( saveIDs ) {
+			idTmpFile.setLastModified(time);
+			Files.move(idTmpFile.toPath(), idFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		syncDir(offsetFile.getAbsoluteFile().getParentFile());
+	}
+	
+	/**
+	 * Syncs the renames in the directory. Not supported on some platforms
+	 * (e.g. Windows), where it is skipped.
+	 */
+	private static void syncDir(File dir) {
+		FileChannel channel = null;
+		try {
+			channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+			channel.force(true);
+		} catch (IOException e) {
+		} finally {
+			if ( channel != null ) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+				}
+			}
+		}
 	}
 	
 	@Override
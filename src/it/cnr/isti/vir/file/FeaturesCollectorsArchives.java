@@ -16,8 +16,8 @@ import it.cnr.isti.vir.global.Log;
 import it.cnr.isti.vir.id.AbstractID;
 import it.cnr.isti.vir.id.IDInteger;
 import it.cnr.isti.vir.similarity.ISimilarity;
-import it.cnr.isti.vir.similarity.index.FeaturesCollectorsArchiveSearch;
 import it.cnr.isti.vir.similarity.index.FeaturesCollectorsArchiveSearch_multiSim;
+import it.cnr.isti.vir.similarity.index.FeaturesCollectorsArchivesSearch;
 import it.cnr.isti.vir.similarity.pqueues.SimPQueueDMax;
 import it.cnr.isti.vir.similarity.results.SimilarityResults;
 import it.cnr.isti.vir.util.RandomOperations;
@@ -237,11 +237,7 @@ public class FeaturesCollectorsArchives {
 			kNNQueue[i] = new SimPQueueDMax(k);
 		}
 
-		for (int i = 0; i < archive.length; i++) {
-			Log.info_verbose("... searching in archive " + archive[i].getfile());
-			FeaturesCollectorsArchiveSearch search = new FeaturesCollectorsArchiveSearch(archive[i]);
-			search.search(qObj, kNNQueue, sim, onlyID);
-		}
+		search(qObj, kNNQueue, sim, onlyID);
 
 		SimilarityResults[] res = new SimilarityResults[kNNQueue.length];
 		for (int i = 0; i < kNNQueue.length; i++) {
@@ -263,11 +259,7 @@ public class FeaturesCollectorsArchives {
 			kNNQueue[i] = new SimPQueueDMax(range);
 		}
 
-		for (int i = 0; i < archive.length; i++) {
-			Log.info_verbose("... searching in archive " + archive[i].getfile());
-			FeaturesCollectorsArchiveSearch search = new FeaturesCollectorsArchiveSearch(archive[i]);
-			search.search(qObj, kNNQueue, sim, onlyID);
-		}
+		search(qObj, kNNQueue, sim, onlyID);
 
 		SimilarityResults[] res = new SimilarityResults[kNNQueue.length];
 		for (int i = 0; i < kNNQueue.length; i++) {
@@ -278,6 +270,21 @@ public class FeaturesCollectorsArchives {
 		return res;
 	}
 	
+	/**
+	 * All the archives are searched in parallel by {@link FeaturesCollectorsArchivesSearch}.
+	 */
+	private void search(AbstractFeaturesCollector[] qObj,
+			SimPQueueDMax[] kNNQueue, final ISimilarity sim, final boolean onlyID)
+			throws IOException, InterruptedException {
+		try {
+			new FeaturesCollectorsArchivesSearch(this, sim).search(qObj, kNNQueue, sim, onlyID);
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+	
 	public synchronized SimilarityResults[][] getKNN_multiSim(AbstractFeaturesCollector[] qObj,
 			int k, final ISimilarity[] sim, final boolean onlyID)
 			throws IOException, SecurityException, NoSuchMethodException,
@@ -0,0 +1,543 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Fabrizio Falchi (NeMIS Lab., ISTI-CNR, Italy)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package it.cnr.isti.vir.file;
+
+import it.cnr.isti.vir.features.AbstractFeature;
+import it.cnr.isti.vir.features.AbstractFeaturesCollector;
+import it.cnr.isti.vir.features.FeatureClasses;
+import it.cnr.isti.vir.features.IArrayValues;
+import it.cnr.isti.vir.features.IFloatValues;
+import it.cnr.isti.vir.features.ILongBinaryValues;
+import it.cnr.isti.vir.features.IUByteValues;
+import it.cnr.isti.vir.features.localfeatures.VLAD;
+import it.cnr.isti.vir.global.Log;
+import it.cnr.isti.vir.id.AbstractID;
+import it.cnr.isti.vir.id.IDClasses;
+import it.cnr.isti.vir.similarity.pqueues.SimPQueueIntDMax;
+import it.cnr.isti.vir.similarity.results.SimilarityResults;
+import it.cnr.isti.vir.util.TimeManager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+/**
+ * Columnar companion of a {@link FeaturesCollectorsArchive} for dense global
+ * descriptors (e.g. Floats, CNNFloats, VLAD, FloatsL2Norm_UBytes, BinaryLongs).
+ *
+ * The file contains a header, one contiguous fixed-stride block of values for
+ * each feature class and the IDs. Blocks are memory-mapped when opening the
+ * archive and values are read directly from the mapped memory.
+ */
+public class FeaturesColumnsArchive {
+
+	public static final long fileID = 0x5a25287d3bL;
+
+	public static final int version = 1;
+
+	static final int FLOATS = 0;
+	static final int UBYTES = 1;
+	static final int LONGS = 2;
+
+	private final File f;
+	private final RandomAccessFile rndFile;
+	private final int size;
+	private final Class<? extends AbstractID> idClass;
+	private final Column[] column;
+	private final long idsOffset;
+
+	private AbstractID[] ids = null;
+
+	public static final String getColumnsFileName(File archiveFile) {
+		return archiveFile.getAbsolutePath() + ".col";
+	}
+
+	/**
+	 * Fixed-stride values of one feature class.
+	 */
+	public static class Column {
+
+		public final Class<? extends AbstractFeature> featureClass;
+		public final int dim;
+		final int type;
+		final double scale;
+		final int rowsPerSegment;
+
+		FloatBuffer[] floats;
+		ByteBuffer[] bytes;
+		LongBuffer[] longs;
+
+		Column(Class<? extends AbstractFeature> featureClass, int dim) throws ArchiveException {
+			this.featureClass = featureClass;
+			this.dim = dim;
+			this.type = getType(featureClass);
+			this.scale = getScale(featureClass);
+			this.rowsPerSegment = (int) Math.max(1, Integer.MAX_VALUE / getRowBytes());
+		}
+
+		final long getRowBytes() {
+			return (long) dim * getElementBytes(type);
+		}
+
+		final void map(FileChannel channel, long offset, int size) throws IOException {
+			int nSegments = (size + rowsPerSegment - 1) / rowsPerSegment;
+			if ( type == FLOATS ) floats = new FloatBuffer[nSegments];
+			else if ( type == UBYTES ) bytes = new ByteBuffer[nSegments];
+			else longs = new LongBuffer[nSegments];
+			for ( int iS=0; iS<nSegments; iS++ ) {
+				int nRows = Math.min(rowsPerSegment, size - iS*rowsPerSegment);
+				MappedByteBuffer curr = channel.map(
+						FileChannel.MapMode.READ_ONLY,
+						offset + iS*rowsPerSegment*getRowBytes(),
+						nRows*getRowBytes());
+				if ( type == FLOATS ) floats[iS] = curr.asFloatBuffer();
+				else if ( type == UBYTES ) bytes[iS] = curr;
+				else longs[iS] = curr.asLongBuffer();
+			}
+		}
+
+		public final void getValues(int row, float[] dest) {
+			FloatBuffer seg = floats[row / rowsPerSegment];
+			int base = (row % rowsPerSegment) * dim;
+			for ( int d=0; d<dim; d++ ) dest[d] = seg.get(base+d);
+		}
+
+		public final void getValues(int row, byte[] dest) {
+			ByteBuffer seg = bytes[row / rowsPerSegment];
+			int base = (row % rowsPerSegment) * dim;
+			for ( int d=0; d<dim; d++ ) dest[d] = seg.get(base+d);
+		}
+
+		public final void getValues(int row, long[] dest) {
+			LongBuffer seg = longs[row / rowsPerSegment];
+			int base = (row % rowsPerSegment) * dim;
+			for ( int d=0; d<dim; d++ ) dest[d] = seg.get(base+d);
+		}
+
+		/**
+		 * @param row	position of the object
+		 * @return		a new feature having the values stored at the given row
+		 */
+		public final AbstractFeature get(int row) throws ArchiveException {
+			try {
+				if ( type == FLOATS ) {
+					float[] values = new float[dim];
+					getValues(row, values);
+					return featureClass.getConstructor(float[].class).newInstance(values);
+				} else if ( type == UBYTES ) {
+					byte[] values = new byte[dim];
+					getValues(row, values);
+					return featureClass.getConstructor(byte[].class).newInstance(values);
+				} else {
+					long[] values = new long[dim];
+					getValues(row, values);
+					return featureClass.getConstructor(long[].class).newInstance(values);
+				}
+			} catch (ReflectiveOperationException e) {
+				throw new ArchiveException(e);
+			}
+		}
+
+		/**
+		 * Offers the rows in [from, to) to the queues using the raw values of
+		 * the queries. No object is allocated for rows that are not offered.
+		 *
+		 * @param q		float[], byte[] or long[] values of the queries
+		 * @param queue	one queue for each query, objects offered are positions
+		 */
+		public final void search(Object[] q, SimPQueueIntDMax[] queue, int from, int to) {
+			if ( type == FLOATS ) searchFloats(q, queue, from, to);
+			else if ( type == UBYTES ) searchUBytes(q, queue, from, to);
+			else searchLongs(q, queue, from, to);
+		}
+
+		private final void searchFloats(Object[] q, SimPQueueIntDMax[] queue, int from, int to) {
+			for ( int row=from; row<to; ) {
+				int iS = row / rowsPerSegment;
+				FloatBuffer seg = floats[iS];
+				int segTo = Math.min(to, (iS+1)*rowsPerSegment);
+				for ( int base=(row % rowsPerSegment)*dim; row<segTo; row++, base+=dim ) {
+					for ( int iQ=0; iQ<q.length; iQ++ ) {
+						float[] curr = (float[]) q[iQ];
+						double max = queue[iQ].excDistance / scale;
+						double maxSq = max*max;
+						double acc = 0;
+						int d = 0;
+						for ( ; d<dim; d++ ) {
+							double diff = seg.get(base+d) - curr[d];
+							acc += diff * diff;
+							if ( acc > maxSq ) break;
+						}
+						if ( d < dim ) continue;
+						double dist = Math.sqrt(acc) * scale;
+						if ( dist <= queue[iQ].excDistance ) queue[iQ].offer(row, dist);
+					}
+				}
+			}
+		}
+
+		private final void searchUBytes(Object[] q, SimPQueueIntDMax[] queue, int from, int to) {
+			for ( int row=from; row<to; ) {
+				int iS = row / rowsPerSegment;
+				ByteBuffer seg = bytes[iS];
+				int segTo = Math.min(to, (iS+1)*rowsPerSegment);
+				for ( int base=(row % rowsPerSegment)*dim; row<segTo; row++, base+=dim ) {
+					for ( int iQ=0; iQ<q.length; iQ++ ) {
+						byte[] curr = (byte[]) q[iQ];
+						double max = queue[iQ].excDistance / scale;
+						double maxSq = max*max;
+						int acc = 0;
+						int d = 0;
+						for ( ; d<dim; d++ ) {
+							int diff = seg.get(base+d) - curr[d];
+							acc += diff * diff;
+							if ( acc > maxSq ) break;
+						}
+						if ( d < dim ) continue;
+						double dist = Math.sqrt(acc) * scale;
+						if ( dist <= queue[iQ].excDistance ) queue[iQ].offer(row, dist);
+					}
+				}
+			}
+		}
+
+		private final void searchLongs(Object[] q, SimPQueueIntDMax[] queue, int from, int to) {
+			for ( int row=from; row<to; ) {
+				int iS = row / rowsPerSegment;
+				LongBuffer seg = longs[iS];
+				int segTo = Math.min(to, (iS+1)*rowsPerSegment);
+				for ( int base=(row % rowsPerSegment)*dim; row<segTo; row++, base+=dim ) {
+					for ( int iQ=0; iQ<q.length; iQ++ ) {
+						long[] curr = (long[]) q[iQ];
+						double max = queue[iQ].excDistance / scale;
+						int acc = 0;
+						int d = 0;
+						for ( ; d<dim; d++ ) {
+							acc += Long.bitCount(seg.get(base+d) ^ curr[d]);
+							if ( acc > max ) break;
+						}
+						if ( d < dim ) continue;
+						double dist = acc * scale;
+						if ( dist <= queue[iQ].excDistance ) queue[iQ].offer(row, dist);
+					}
+				}
+			}
+		}
+	}
+
+	static final int getType(Class<? extends AbstractFeature> c) throws ArchiveException {
+		if ( IFloatValues.class.isAssignableFrom(c) ) return FLOATS;
+		if ( IUByteValues.class.isAssignableFrom(c) ) return UBYTES;
+		if ( ILongBinaryValues.class.isAssignableFrom(c) ) return LONGS;
+		throw new ArchiveException("Feature class " + c + " can't be stored in columns");
+	}
+
+	static final int getElementBytes(int type) {
+		if ( type == FLOATS ) return Float.BYTES;
+		if ( type == UBYTES ) return Byte.BYTES;
+		return Long.BYTES;
+	}
+
+	/**
+	 * Same distances of the metrics used for the class
+	 * (e.g. FloatsNormUBytes_L2Metric, VLADSimilarity).
+	 */
+	static final double getScale(Class<? extends AbstractFeature> c) {
+		if ( VLAD.class.isAssignableFrom(c) ) return 0.5;
+		if ( IUByteValues.class.isAssignableFrom(c) ) return 1.0 / 255.0;
+		return 1.0;
+	}
+
+	static final long align(long offset) {
+		return (offset + 7) & ~7L;
+	}
+
+	/**
+	 * Writes sequentially to a file channel starting at a given position.
+	 */
+	private static class ChannelOutputStream extends OutputStream {
+		private final FileChannel channel;
+		private long position;
+
+		ChannelOutputStream(FileChannel channel, long position) {
+			this.channel = channel;
+			this.position = position;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+			while ( buf.hasRemaining() ) {
+				position += channel.write(buf, position);
+			}
+		}
+	}
+
+	/**
+	 * Creates the columns file beside the given archive.
+	 */
+	public static FeaturesColumnsArchive create(FeaturesCollectorsArchive in, Class<? extends AbstractFeature>... featureClasses) throws ArchiveException, IOException {
+		return create(new File(getColumnsFileName(in.getfile())), in, featureClasses);
+	}
+
+	/**
+	 * Converts an existing archive reading it once.
+	 * All the objects must contain all the requested features with the same length.
+	 *
+	 * @param file				columns file to be created
+	 * @param in				source archive
+	 * @param featureClasses	features to be stored
+	 * @return the created archive opened for reading
+	 */
+	public static FeaturesColumnsArchive create(File file, FeaturesCollectorsArchive in, Class<? extends AbstractFeature>... featureClasses) throws ArchiveException, IOException {
+
+		int size = in.size();
+		Class<? extends AbstractID> idClass = in.getIDClass();
+
+		Column[] column = new Column[featureClasses.length];
+		if ( size > 0 ) {
+			AbstractFeaturesCollector first = in.get(0);
+			for ( int iC=0; iC<column.length; iC++ ) {
+				AbstractFeature curr = first.getFeature(featureClasses[iC]);
+				if ( curr == null ) throw new ArchiveException("Feature " + featureClasses[iC] + " was not found in the first object");
+				column[iC] = new Column(featureClasses[iC], ((IArrayValues) curr).getLength());
+			}
+		} else {
+			for ( int iC=0; iC<column.length; iC++ ) {
+				column[iC] = new Column(featureClasses[iC], 0);
+			}
+		}
+
+		// offsets
+		long headerSize = Long.BYTES + 4 * Integer.BYTES + column.length * (1 + Integer.BYTES + Long.BYTES) + Long.BYTES;
+		long[] offset = new long[column.length];
+		long curr = align(headerSize);
+		for ( int iC=0; iC<column.length; iC++ ) {
+			offset[iC] = curr;
+			curr = align(curr + size * column[iC].getRowBytes());
+		}
+		long idsOffset = curr;
+
+		if ( file.exists() && !file.delete() )
+			throw new IOException("Unable to delete file " + file.getAbsolutePath());
+		RandomAccessFile rnd = new RandomAccessFile(file, "rw");
+
+		// header
+		rnd.writeLong(fileID);
+		rnd.writeInt(version);
+		rnd.writeInt(size);
+		IDClasses.writeClass_Int(idClass, rnd);
+		rnd.writeInt(column.length);
+		for ( int iC=0; iC<column.length; iC++ ) {
+			rnd.writeByte(FeatureClasses.getClassID(column[iC].featureClass));
+			rnd.writeInt(column[iC].dim);
+			rnd.writeLong(offset[iC]);
+		}
+		rnd.writeLong(idsOffset);
+
+		FileChannel channel = rnd.getChannel();
+		DataOutputStream[] colOut = new DataOutputStream[column.length];
+		for ( int iC=0; iC<column.length; iC++ ) {
+			colOut[iC] = new DataOutputStream(new BufferedOutputStream(new ChannelOutputStream(channel, offset[iC]), 1<<20));
+		}
+		DataOutputStream idOut = null;
+		if ( idClass != null )
+			idOut = new DataOutputStream(new BufferedOutputStream(new ChannelOutputStream(channel, idsOffset), 1<<20));
+
+		Log.info_verbose("Creating columns archive " + file.getAbsolutePath());
+		TimeManager tm = new TimeManager();
+		tm.setTotNEle(size);
+		int count = 0;
+		FeaturesCollectorsArchivePipelinedIterator it = in.pipelinedIterator(true);
+		try {
+			while ( it.hasNext() ) {
+				AbstractFeaturesCollector fc = it.next();
+				for ( int iC=0; iC<column.length; iC++ ) {
+					AbstractFeature feature = fc.getFeature(column[iC].featureClass);
+					if ( feature == null || ((IArrayValues) feature).getLength() != column[iC].dim ) {
+						throw new ArchiveException("Object " + count + " has not a " + column[iC].featureClass + " of length " + column[iC].dim);
+					}
+					DataOutputStream out = colOut[iC];
+					switch ( column[iC].type ) {
+						case FLOATS:
+							for ( float v : ((IFloatValues) feature).getValues() ) out.writeFloat(v);
+							break;
+						case UBYTES:
+							out.write(((IUByteValues) feature).getValues());
+							break;
+						default:
+							for ( long v : ((ILongBinaryValues) feature).getValues() ) out.writeLong(v);
+					}
+				}
+				if ( idOut != null ) fc.getID().writeData(idOut);
+				count++;
+				tm.reportProgress();
+			}
+
+			for ( DataOutputStream out : colOut ) out.flush();
+			if ( idOut != null ) idOut.flush();
+		} catch (RuntimeException e) {
+			// read errors of the iterator
+			if ( it.getException() != null ) throw new ArchiveException(it.getException());
+			throw e;
+		} finally {
+			it.close();
+			rnd.close();
+		}
+
+		if ( count != size ) throw new ArchiveException(count + " objects were read, " + size + " were expected");
+		Log.info_verbose("done");
+
+		return new FeaturesColumnsArchive(file);
+	}
+
+	/**
+	 * Opens an existing columns archive mapping all its columns.
+	 *
+	 * @param file The columns file
+	 */
+	public FeaturesColumnsArchive(File file) throws ArchiveException, IOException {
+		if ( !file.exists()) {
+			throw new IOException("The file ["+ file.getAbsolutePath() +"] was not found");
+		}
+		this.f = file;
+		rndFile = new RandomAccessFile(file, "r");
+		if ( rndFile.readLong() != fileID ) {
+			throw new IOException("The file ["+ file.getAbsolutePath() +"] does not appear to be a FeaturesColumnsArchive");
+		}
+		int fileVersion = rndFile.readInt();
+		if ( fileVersion != version ) {
+			throw new IOException("Version " + fileVersion + " not supported");
+		}
+		size = rndFile.readInt();
+		idClass = IDClasses.readClass_Int(rndFile);
+		column = new Column[rndFile.readInt()];
+		long[] offset = new long[column.length];
+		for ( int iC=0; iC<column.length; iC++ ) {
+			Class<? extends AbstractFeature> c = FeatureClasses.getClass(rndFile.readByte());
+			column[iC] = new Column(c, rndFile.readInt());
+			offset[iC] = rndFile.readLong();
+		}
+		idsOffset = rndFile.readLong();
+
+		FileChannel channel = rndFile.getChannel();
+		for ( int iC=0; iC<column.length; iC++ ) {
+			column[iC].map(channel, offset[iC], size);
+		}
+
+		Log.info_verbose("Columns archive " + file.getAbsolutePath()
+				+ " contains " + size + " objects and " + column.length + " columns.");
+	}
+
+	public final File getFile() {
+		return f;
+	}
+
+	public final int size() {
+		return size;
+	}
+
+	public final Class<? extends AbstractID> getIDClass() {
+		return idClass;
+	}
+
+	public final int getNColumns() {
+		return column.length;
+	}
+
+	public final Column getColumn(int i) {
+		return column[i];
+	}
+
+	public final Column getColumn(Class<? extends AbstractFeature> c) {
+		for ( Column curr : column ) {
+			if ( curr.featureClass.equals(c) ) return curr;
+		}
+		return null;
+	}
+
+	/**
+	 * IDs are read the first time they are requested.
+	 */
+	public synchronized AbstractID[] getIDs() throws IOException {
+		if ( ids == null && idClass != null ) {
+			InputStream is = Channels.newInputStream(rndFile.getChannel().position(idsOffset));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+			ids = IDClasses.readArray(in, size, idClass);
+		}
+		return ids;
+	}
+
+	public final AbstractID getID(int i) throws IOException {
+		return getIDs()[i];
+	}
+
+	static final Object getValues(AbstractFeature f) {
+		if ( f instanceof IFloatValues ) return ((IFloatValues) f).getValues();
+		if ( f instanceof IUByteValues ) return ((IUByteValues) f).getValues();
+		return ((ILongBinaryValues) f).getValues();
+	}
+
+	public SimilarityResults getKNN(AbstractFeature qObj, int k) throws ArchiveException, IOException {
+		AbstractFeature[] qObjs = { qObj };
+		return getKNN(qObjs, k)[0];
+	}
+
+	/**
+	 * Brute-force kNN on the column of the queries feature class.
+	 * Results contain IDs (positions if the archive has no IDs).
+	 */
+	public SimilarityResults[] getKNN(AbstractFeature[] qObj, int k) throws ArchiveException, IOException {
+		if ( qObj.length == 0 ) return new SimilarityResults[0];
+		Class<? extends AbstractFeature> c = qObj[0].getClass();
+		Column col = getColumn(c);
+		if ( col == null ) throw new ArchiveException("Column for " + c + " was not found");
+
+		Object[] q = new Object[qObj.length];
+		SimPQueueIntDMax[] queue = new SimPQueueIntDMax[qObj.length];
+		for ( int iQ=0; iQ<qObj.length; iQ++ ) {
+			if ( !c.equals(qObj[iQ].getClass()) ) throw new ArchiveException("Queries must be of the same class");
+			q[iQ] = getValues(qObj[iQ]);
+			queue[iQ] = new SimPQueueIntDMax(k);
+		}
+
+		col.search(q, queue, 0, size);
+
+		AbstractID[] currIDs = getIDs();
+		SimilarityResults[] res = new SimilarityResults[qObj.length];
+		for ( int iQ=0; iQ<qObj.length; iQ++ ) {
+			res[iQ] = queue[iQ].getResultsAndEmpty(qObj[iQ], currIDs);
+		}
+		return res;
+	}
+
+	public void close() throws IOException {
+		rndFile.close();
+	}
+}
@@ -217,7 +217,8 @@ public class PCAProject {
 		boolean bytes_flag = PropertiesUtils.getBoolean(prop, "PCAProject.Bytes", false);
 		
 		FeaturesCollectorsArchive in = new FeaturesCollectorsArchive(inFile);
-		FeaturesCollectorsArchive_Buffered out = FeaturesCollectorsArchive_Buffered.createAs(outFile, in);
+		// projected objects are written in the order they are computed
+		FeaturesCollectorsArchive_Buffered out = FeaturesCollectorsArchive_Buffered.createAs(outFile, in, false);
 
 		PrincipalComponents pc = PrincipalComponents.read(pcFile);
 		
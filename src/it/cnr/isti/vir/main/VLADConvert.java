@@ -20,6 +20,7 @@ import it.cnr.isti.vir.features.bof.LFWords;
 import it.cnr.isti.vir.features.localfeatures.ALocalFeaturesGroup;
 import it.cnr.isti.vir.features.localfeatures.VLAD;
 import it.cnr.isti.vir.file.FeaturesCollectorsArchive;
+import it.cnr.isti.vir.file.FeaturesCollectorsArchive_Buffered;
 import it.cnr.isti.vir.global.Log;
 import it.cnr.isti.vir.global.ParallelOptions;
 import it.cnr.isti.vir.id.AbstractID;
@@ -90,7 +91,7 @@ public class VLADConvert {
 		private final boolean intraNorm;
 		private final boolean rn;
 		private final PrincipalComponents pc;
-		private final FeaturesCollectorsArchive outArchive;
+		private final FeaturesCollectorsArchive_Buffered outArchive;
 		
 		ConvertThread(
 				Iterator<AbstractFeaturesCollector> it,
@@ -101,7 +102,7 @@ public class VLADConvert {
 				boolean intraNorm,
 				boolean rn,
 				PrincipalComponents pc,
-				FeaturesCollectorsArchive outArchive
+				FeaturesCollectorsArchive_Buffered outArchive
 				) {
 
 			this.it = it;
@@ -175,7 +176,8 @@ public class VLADConvert {
 		
 		Log.info("Creating: " + bowArchive_file);
 		
-		FeaturesCollectorsArchive outArchive = inArchive.getSameType( bowArchive_file );
+		// VLADs are written in the order they are computed
+		FeaturesCollectorsArchive_Buffered outArchive = FeaturesCollectorsArchive_Buffered.createAs( bowArchive_file, inArchive, false );
 		
 		PrincipalComponents pc = null;
 		if ( vladPC_file != null ) { 
@@ -208,15 +210,16 @@ public class VLADConvert {
         }
         ParallelOptions.free(nThread-1);
 		
+		outArchive.close();
 		
-		System.out.print( outArchive.getInfo() );
+		FeaturesCollectorsArchive created = new FeaturesCollectorsArchive(bowArchive_file);
+		System.out.print( created.getInfo() );
+		created.close();
 		
 		System.out.println("VLADs were created in " + tm.getTotalTime_STR());
 		
 		System.out.println();
 		
-		outArchive.close();
-		
 	}
 	
 	public static final File getBoWArchivesFile( String prefix, int n ) {
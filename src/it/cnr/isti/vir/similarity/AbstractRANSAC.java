@@ -167,18 +167,23 @@ public abstract class AbstractRANSAC<F extends ALocalFeaturesGroup> extends AGro
 		return LoweHoughTransform.getLoweHoughTransforms_HT(matches.getMatches(), false, RANSAC_minMaxSR);
 	}
 	
+	public final LoweHoughAccumulator getLoweHoughAccumulator(LocalFeaturesMatches matches ) {
+		if ( matches.size() <  minMatches ) return null;
+		return LoweHoughTransform.getLoweHoughAccumulator(matches.getMatches(), false, RANSAC_minMaxSR);
+	}
+	
 	public final ArrayList<TransformationHypothesis> getTrHypothesis(LocalFeaturesMatches matches, int qN ) {
 		
-		Hashtable<Long, LocalFeaturesMatches> ht = this.getLoweHoughTransforms_HT(matches);
+		LoweHoughAccumulator acc = this.getLoweHoughAccumulator(matches);
 		
-		if ( ht == null || ht.size() == 0 ) return null;
-		LocalFeaturesMatches[] ordered = LoweHoughTransform.orderHT(ht);
+		if ( acc == null || acc.size() == 0 ) return null;
+		LocalFeaturesMatches[] ordered = acc.getTopBins( Math.max(1, nHoughMaxForRANSAC) );
 		
 		if ( ordered[0].size() < minHoughMatches || ordered[0].size() / (double) qN < minPercMatches ) return null;
 		
 		totNRANSAC++;
 		
-		return 	matches.getRANSAC( ht, cycles, nHoughMaxForRANSAC, errorPerc, tr, minXYDist, true, rejectUnConsistent);
+		return 	matches.getRANSAC( ordered, cycles, nHoughMaxForRANSAC, errorPerc, tr, minXYDist, true, rejectUnConsistent);
 		
 	}
 	
@@ -199,14 +204,13 @@ public abstract class AbstractRANSAC<F extends ALocalFeaturesGroup> extends AGro
 		}
 		
 		if ( nHoughMatches ) {
-			Hashtable<Long, LocalFeaturesMatches> ht = this.getLoweHoughTransforms_HT(matches);
-			if ( ht == null || ht.size() == 0 ) {
+			LoweHoughAccumulator acc = this.getLoweHoughAccumulator(matches);
+			if ( acc == null || acc.size() == 0 ) {
 				updateStats(0, matches.size(), 0);
 				return 1.0;
 			}
-			LocalFeaturesMatches[] ordered = LoweHoughTransform.orderHT(ht);
 			updateStats(0, matches.size(), 0);
-			return 1.0-this.getPercentage(ordered[0].size(), g1.size(), g2.size() );
+			return 1.0-this.getPercentage(acc.getMaxCount(), g1.size(), g2.size() );
 		} else if (  onlyNMatches ) {
 			updateStats(0, matches.size(), 0);
 			return 1.0-this.getPercentage(matches.size(), g1.size(), g2.size() );
@@ -20,7 +20,6 @@ import it.cnr.isti.vir.geom.RSTTransformation;
 import it.cnr.isti.vir.geom.TransformationHypothesis;
 
 import java.util.ArrayList;
-import java.util.Hashtable;
 import java.util.Properties;
 
 public class BRISKGroupSimilarity_RANSAC extends AGroupSimilarity<BRISKGroup> {
@@ -136,8 +135,8 @@ public class BRISKGroupSimilarity_RANSAC extends AGroupSimilarity<BRISKGroup> {
 		else
 			matches = BRISKGroup.getLoweMatches( g1, g2, sqrLoweThr );
 		if ( matches == null || matches.size() < 2 ) return 1.0; 
-		Hashtable<Long, LocalFeaturesMatches> ht = LoweHoughTransform.getLoweHoughTransforms_HT(matches.getMatches(), false, RANSAC_minMaxSR);
-		trArr = matches.getRANSAC( ht, cycles, nHoughMaxForRANSAC, errorPerc, tr, minXYDist, true, rejectUnConsistent);
+		LocalFeaturesMatches[] bins = LoweHoughTransform.getLoweHoughAccumulator(matches.getMatches(), false, RANSAC_minMaxSR).getTopBins(nHoughMaxForRANSAC);
+		trArr = matches.getRANSAC( bins, cycles, nHoughMaxForRANSAC, errorPerc, tr, minXYDist, true, rejectUnConsistent);
 		
 		if ( trArr == null || trArr.size() == 0 ) sim = 0.0;
 		else sim = trArr.get(0).getHarmonicMeanOfPercentageMatches();
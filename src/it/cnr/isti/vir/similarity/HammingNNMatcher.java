@@ -3,6 +3,7 @@ package it.cnr.isti.vir.similarity;
 import it.cnr.isti.vir.distance.Hamming;
 import it.cnr.isti.vir.features.localfeatures.ALocalFeaturesGroup;
 import it.cnr.isti.vir.features.localfeatures.ORB;
+import it.cnr.isti.vir.features.localfeatures.PackedLocalFeatures;
 
 public class HammingNNMatcher {
 
@@ -20,9 +21,52 @@ public class HammingNNMatcher {
 		return best;
 	}
 	
+	/**
+	 * As {@link #getMatch(ORB, ALocalFeaturesGroup, int)} on packed local
+	 * features. Distances to all the descriptors of p2 are computed with
+	 * {@link Hamming#distances(long[], long[], int, int, int, int[], int)}.
+	 * 
+	 * @param q		the query descriptor
+	 * @param p2	packed local features to be searched
+	 * @param dist	temporary array of at least p2.n elements
+	 * @return		position of the match in p2 or -1
+	 */
+	static final public int getMatch(long[] q, PackedLocalFeatures p2, int maxD, int[] dist) {
+		if ( maxD <= 0 ) return -1;
+		Hamming.distances(q, p2.longs, 0, p2.n, maxD-1, dist, 0);
+		int best = -1;
+		int resDist = maxD;
+		for ( int i=0; i<p2.n; i++ ) {
+			int d = dist[i];
+			if ( d >= 0 && d < resDist ) {
+				resDist = d;
+				best = i;
+			}
+		}
+		return best;
+	}
+	
+	static final public LocalFeaturesMatches getMatches(PackedLocalFeatures p1, ALocalFeaturesGroup<ORB> sg1, PackedLocalFeatures p2, ALocalFeaturesGroup<ORB> sg2, final int maxD) {
+		LocalFeaturesMatches matches = new LocalFeaturesMatches();
+		ORB[] arr = sg1.lfArr;
+		ORB[] arr2 = sg2.lfArr;
+		long[] q = new long[p1.longsPerLF];
+		int[] dist = new int[p2.n];
+		for (int i=0; i<p1.n; i++ ) {
+			System.arraycopy(p1.longs, i*q.length, q, 0, q.length);
+			int match = getMatch(q, p2, maxD, dist);
+			if ( match >= 0 )
+				matches.add( new LocalFeatureMatch( arr[i], arr2[match], i, match ) );
+		}
+		return matches;
+	}
+	
 	static final public LocalFeaturesMatches getMatches(ALocalFeaturesGroup<ORB> sg1, ALocalFeaturesGroup<ORB> sg2, final int maxD) {
 		LocalFeaturesMatches matches = new LocalFeaturesMatches();
 		if ( sg2.size() < 2 ) return null;
+		if ( sg1.hasPacked() && sg2.hasPacked() ) {
+			return getMatches(sg1.getPacked(), sg1, sg2.getPacked(), sg2, maxD);
+		}
 		int nMatches = 0;
 		ORB[] arr = sg1.lfArr;
 		for (int i=0; i<arr.length; i++ ) {
@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Fabrizio Falchi (NeMIS Lab., ISTI-CNR, Italy)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package it.cnr.isti.vir.similarity;
+
+import it.cnr.isti.vir.features.AbstractFeaturesCollector;
+
+/**
+ * Similarities that can evaluate the distances between one object and
+ * several queries in a single call. The queries are prepared once for all
+ * the objects using {@link #getQueries(AbstractFeaturesCollector[])}, they
+ * can hold buffers reused by the evaluations thus each thread should prepare
+ * its own.
+ *
+ * @param <F>	feature of the objects
+ * @param <Q>	queries prepared for the evaluation
+ */
+public interface ISimilarityBatch<F, Q> extends ISimilarity<F> {
+
+	public F getFeature(AbstractFeaturesCollector fc);
+
+	public Q getQueries(AbstractFeaturesCollector[] fc);
+
+	/**
+	 * @param q		prepared queries
+	 * @param obj	feature of the object
+	 * @param max	maximum distance of interest for each query
+	 * @param dist	distance for each query (negative if greater than max)
+	 */
+	public void distance(Q q, F obj, double[] max, double[] dist);
+
+}
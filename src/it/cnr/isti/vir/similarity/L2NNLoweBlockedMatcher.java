@@ -0,0 +1,227 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Fabrizio Falchi (NeMIS Lab., ISTI-CNR, Italy)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package it.cnr.isti.vir.similarity;
+
+import it.cnr.isti.vir.features.IUByteValues;
+import it.cnr.isti.vir.features.localfeatures.ALocalFeature;
+import it.cnr.isti.vir.features.localfeatures.ALocalFeaturesGroup;
+import it.cnr.isti.vir.features.localfeatures.RootSIFT;
+import it.cnr.isti.vir.features.localfeatures.SIFT;
+
+/**
+ * All-pairs 2-NN matching with the Lowe check for byte descriptors (SIFT,
+ * RootSIFT) of two groups.
+ * Squared distances are obtained as |q|^2 + |t|^2 - 2 q.t from the norms,
+ * computed once per descriptor, and the dot products of tiles of
+ * {@link #blockQueries} x {@link #blockTargets} descriptors copied in short
+ * arrays. The two nearest neighbors of each query are kept in one pass,
+ * visiting the targets in the same order of {@link L2NNLoweMatcher}, so that
+ * the matches are the same.
+ */
+public class L2NNLoweBlockedMatcher {
+
+	/** Queries of a tile */
+	public static int blockQueries = 64;
+
+	/** Targets of a tile */
+	public static int blockTargets = 256;
+
+	/**
+	 * Descriptors of the group in one array, values are widened to short.
+	 */
+	private static final short[] getShorts(ALocalFeaturesGroup g, int dim) {
+		int n = g.size();
+		short[] res = new short[n*dim];
+		if ( g.hasPacked() ) {
+			byte[] bytes = g.getPacked().bytes;
+			for ( int i=0; i<res.length; i++ ) res[i] = bytes[i];
+		} else {
+			ALocalFeature[] arr = g.lfArr;
+			for ( int i=0, o=0; i<n; i++ ) {
+				byte[] values = ((IUByteValues) arr[i]).getValues();
+				for ( int k=0; k<dim; k++ ) res[o++] = values[k];
+			}
+		}
+		return res;
+	}
+
+	private static final int getDim(ALocalFeaturesGroup g) {
+		if ( g.hasPacked() ) return g.getPacked().bytesPerLF;
+		return ((IUByteValues) g.lfArr[0]).getValues().length;
+	}
+
+	private static final int[] getSquaredNorms(short[] v, int n, int dim) {
+		int[] res = new int[n];
+		for ( int i=0, o=0; i<n; i++ ) {
+			int acc = 0;
+			for ( int k=0; k<dim; k++, o++ ) acc += v[o]*v[o];
+			res[i] = acc;
+		}
+		return res;
+	}
+
+	/**
+	 * 2-NN state of the queries.
+	 */
+	private static class State {
+		final int[] distsq1;
+		final int[] distsq2;
+		final int[] excDist;
+		final int[] best;
+		final int maxFDsq;
+		final boolean rootSIFT;
+		long candidates = 0;
+
+		State(int n, double conf, int maxFDsq, boolean rootSIFT) {
+			distsq1 = new int[n];
+			distsq2 = new int[n];
+			excDist = new int[n];
+			best = new int[n];
+			this.maxFDsq = maxFDsq;
+			this.rootSIFT = rootSIFT;
+			int exc = (int) Math.ceil( maxFDsq / conf );
+			for ( int i=0; i<n; i++ ) {
+				distsq1[i] = Integer.MAX_VALUE;
+				distsq2[i] = exc;
+				excDist[i] = exc;
+				best[i] = -1;
+			}
+		}
+
+		/**
+		 * Same updates of {@link L2NNLoweMatcher#get(SIFT, ALocalFeaturesGroup, double, int)}
+		 * and {@link L2NNLoweMatcher#get(RootSIFT, ALocalFeaturesGroup, double, int)}.
+		 */
+		final void update(int i, int j, int dsq) {
+			if ( dsq > excDist[i] ) return;
+			candidates++;
+			if ( dsq < distsq1[i] && dsq <= maxFDsq ) {
+				distsq2[i] = distsq1[i];
+				distsq1[i] = dsq;
+				best[i] = j;
+			} else if ( rootSIFT ) {
+				if ( dsq < distsq2[i] ) {
+					distsq2[i] = dsq;
+					excDist[i] = dsq;
+				}
+			} else if ( dsq <= distsq2[i] ) {
+				distsq2[i] = dsq;
+			}
+		}
+
+		/**
+		 * @return the match of the i-th query after the Lowe check, -1 if none
+		 */
+		final int getMatch(int i, double conf) {
+			if ( distsq1[i] > maxFDsq ) return -1;
+			if ( distsq2[i] == 0 ) return -1;
+			double ratio = (double) distsq1[i] / (double) distsq2[i];
+			if ( rootSIFT ? ratio < conf : ratio <= conf ) return best[i];
+			return -1;
+		}
+	}
+
+	/**
+	 * Dot products of the tile [q0,q1) x [t0,t1), four queries at a time.
+	 * Targets are visited in increasing order for each query.
+	 */
+	private static final void tile(
+			short[] q, int[] qNorm, int q0, int q1,
+			short[] t, int[] tNorm, int t0, int t1,
+			int dim, State state ) {
+		int i = q0;
+		for ( ; i+4<=q1; i+=4 ) {
+			int o0 = i*dim;
+			int o1 = o0+dim;
+			int o2 = o1+dim;
+			int o3 = o2+dim;
+			for ( int j=t0; j<t1; j++ ) {
+				int ot = j*dim;
+				int a0=0, a1=0, a2=0, a3=0;
+				for ( int k=0; k<dim; k++ ) {
+					int tk = t[ot+k];
+					a0 += q[o0+k]*tk;
+					a1 += q[o1+k]*tk;
+					a2 += q[o2+k]*tk;
+					a3 += q[o3+k]*tk;
+				}
+				int tn = tNorm[j];
+				state.update(i,   j, qNorm[i]   + tn - 2*a0);
+				state.update(i+1, j, qNorm[i+1] + tn - 2*a1);
+				state.update(i+2, j, qNorm[i+2] + tn - 2*a2);
+				state.update(i+3, j, qNorm[i+3] + tn - 2*a3);
+			}
+		}
+		for ( ; i<q1; i++ ) {
+			int o = i*dim;
+			for ( int j=t0; j<t1; j++ ) {
+				int ot = j*dim;
+				int a = 0;
+				for ( int k=0; k<dim; k++ ) {
+					a += q[o+k]*t[ot+k];
+				}
+				state.update(i, j, qNorm[i] + tNorm[j] - 2*a);
+			}
+		}
+	}
+
+	/**
+	 * @return	for each local feature of g1 the position of its match in g2
+	 * 			or -1
+	 */
+	public static final int[] getMatchPositions(ALocalFeaturesGroup g1, ALocalFeaturesGroup g2, double conf, int maxFDsq, boolean rootSIFT) {
+		int n1 = g1.size();
+		int n2 = g2.size();
+		int dim = getDim(g1);
+		short[] q = getShorts(g1, dim);
+		short[] t = getShorts(g2, dim);
+		int[] qNorm = getSquaredNorms(q, n1, dim);
+		int[] tNorm = getSquaredNorms(t, n2, dim);
+
+		State state = new State(n1, conf, maxFDsq, rootSIFT);
+		for ( int t0=0; t0<n2; t0+=blockTargets ) {
+			int t1 = Math.min(n2, t0+blockTargets);
+			for ( int q0=0; q0<n1; q0+=blockQueries ) {
+				tile(q, qNorm, q0, Math.min(n1, q0+blockQueries), t, tNorm, t0, t1, dim, state);
+			}
+		}
+		L2NNLoweMatcher.candidatesCount += state.candidates;
+
+		int[] res = new int[n1];
+		for ( int i=0; i<n1; i++ ) {
+			res[i] = state.getMatch(i, conf);
+		}
+		return res;
+	}
+
+	private static final LocalFeaturesMatches getMatches(ALocalFeaturesGroup g1, ALocalFeaturesGroup g2, double conf, int maxFDsq, boolean rootSIFT) {
+		if ( g2.size() < 2 ) return null;
+		LocalFeaturesMatches matches = new LocalFeaturesMatches();
+		if ( g1.size() == 0 ) return matches;
+		int[] match = getMatchPositions(g1, g2, conf, maxFDsq, rootSIFT);
+		ALocalFeature[] arr1 = g1.lfArr;
+		ALocalFeature[] arr2 = g2.lfArr;
+		for ( int i=0; i<match.length; i++ ) {
+			if ( match[i] >= 0 )
+				matches.add( new LocalFeatureMatch( arr1[i], arr2[match[i]], i, match[i] ) );
+		}
+		return matches;
+	}
+
+	static final public LocalFeaturesMatches getLoweMatchesSIFT(ALocalFeaturesGroup<SIFT> sg1, ALocalFeaturesGroup<SIFT> sg2, double dRatioThr, final int maxLFDistSq) {
+		return getMatches(sg1, sg2, dRatioThr, maxLFDistSq, false);
+	}
+
+	static final public LocalFeaturesMatches getMatchesRootSIFT(ALocalFeaturesGroup<RootSIFT> sg1, ALocalFeaturesGroup<RootSIFT> sg2, double dRatioThr, final int maxLFDistSq) {
+		return getMatches(sg1, sg2, dRatioThr, maxLFDistSq, true);
+	}
+}
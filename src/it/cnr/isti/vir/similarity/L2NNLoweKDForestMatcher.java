@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Fabrizio Falchi (NeMIS Lab., ISTI-CNR, Italy)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package it.cnr.isti.vir.similarity;
+
+import it.cnr.isti.vir.features.localfeatures.ALocalFeature;
+import it.cnr.isti.vir.features.localfeatures.ALocalFeaturesGroup;
+import it.cnr.isti.vir.features.localfeatures.FloatsLF;
+import it.cnr.isti.vir.features.localfeatures.LocalFeaturesKDForest;
+import it.cnr.isti.vir.features.localfeatures.RootSIFT;
+import it.cnr.isti.vir.features.localfeatures.SIFT;
+
+/**
+ * Approximate 2-NN matching with the Lowe check using the
+ * {@link LocalFeaturesKDForest} of the matched group, that is created once
+ * and cached by the group. Each query costs about {@link #checks} distance
+ * computations instead of one per local feature of the matched group.
+ * The Lowe check is the same of {@link L2NNLoweMatcher}.
+ */
+public class L2NNLoweKDForestMatcher {
+
+	/** Max number of distance computations per query */
+	public static int checks = 128;
+
+	private static final int TYPE_SIFT = 0;
+	private static final int TYPE_ROOTSIFT = 1;
+	private static final int TYPE_FLOATS = 2;
+
+	/**
+	 * @return	for each local feature of g1 the position of its match in g2
+	 * 			or -1
+	 */
+	private static final int[] getMatchPositions(ALocalFeaturesGroup g1, ALocalFeaturesGroup g2, double conf, double maxFDsq, int type) {
+		LocalFeaturesKDForest forest = g2.getKDForest();
+		LocalFeaturesKDForest.Searcher searcher = forest.getSearcher();
+		float[] q = LocalFeaturesKDForest.getFloats(g1);
+		int dim = forest.dim;
+		int n1 = g1.size();
+		int[] res = new int[n1];
+		// as in L2NNLoweMatcher neighbors farther than the excluding distance
+		// are not considered, for SIFT and RootSIFT it is ceil(maxFDsq/conf)
+		double excDist = type == TYPE_FLOATS ? maxFDsq : (int) Math.ceil( maxFDsq / conf );
+		for ( int i=0; i<n1; i++ ) {
+			searcher.search2NN(q, i*dim, checks);
+			double distsq1 = searcher.dist1;
+			double distsq2 = searcher.nn2 < 0 ? Double.MAX_VALUE : searcher.dist2;
+			res[i] = -1;
+			if ( distsq1 > maxFDsq ) continue;
+			if ( distsq2 > excDist ) distsq2 = Double.MAX_VALUE;
+			if ( distsq2 == 0 ) continue;
+			double ratio = distsq1 / distsq2;
+			if ( type == TYPE_SIFT ? ratio <= conf : ratio < conf ) res[i] = searcher.nn1;
+		}
+		return res;
+	}
+
+	private static final LocalFeaturesMatches getMatches(ALocalFeaturesGroup g1, ALocalFeaturesGroup g2, double conf, double maxFDsq, int type) {
+		if ( g2.size() < 2 ) return null;
+		LocalFeaturesMatches matches = new LocalFeaturesMatches();
+		if ( g1.size() == 0 ) return matches;
+		int[] match = getMatchPositions(g1, g2, conf, maxFDsq, type);
+		ALocalFeature[] arr1 = g1.lfArr;
+		ALocalFeature[] arr2 = g2.lfArr;
+		for ( int i=0; i<match.length; i++ ) {
+			if ( match[i] >= 0 )
+				matches.add( new LocalFeatureMatch( arr1[i], arr2[match[i]], i, match[i] ) );
+		}
+		return matches;
+	}
+
+	static final public LocalFeaturesMatches getLoweMatchesSIFT(ALocalFeaturesGroup<SIFT> sg1, ALocalFeaturesGroup<SIFT> sg2, double dRatioThr, final int maxLFDistSq) {
+		return getMatches(sg1, sg2, dRatioThr, maxLFDistSq, TYPE_SIFT);
+	}
+
+	static final public LocalFeaturesMatches getMatchesRootSIFT(ALocalFeaturesGroup<RootSIFT> sg1, ALocalFeaturesGroup<RootSIFT> sg2, double dRatioThr, final int maxLFDistSq) {
+		return getMatches(sg1, sg2, dRatioThr, maxLFDistSq, TYPE_ROOTSIFT);
+	}
+
+	static final public LocalFeaturesMatches getMatchesFloatsLF(ALocalFeaturesGroup<FloatsLF> sg1, ALocalFeaturesGroup<FloatsLF> sg2, double dRatioThr, final double maxLFDistSq) {
+		return getMatches(sg1, sg2, dRatioThr, maxLFDistSq, TYPE_FLOATS);
+	}
+}
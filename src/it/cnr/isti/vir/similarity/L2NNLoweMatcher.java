@@ -3,6 +3,7 @@ package it.cnr.isti.vir.similarity;
 import it.cnr.isti.vir.distance.L2;
 import it.cnr.isti.vir.features.localfeatures.ALocalFeaturesGroup;
 import it.cnr.isti.vir.features.localfeatures.FloatsLF;
+import it.cnr.isti.vir.features.localfeatures.PackedLocalFeatures;
 import it.cnr.isti.vir.features.localfeatures.RootSIFT;
 import it.cnr.isti.vir.features.localfeatures.SIFT;
 
@@ -11,6 +12,18 @@ public class L2NNLoweMatcher {
 	
 	static long candidatesCount = 0;
 	
+	/**
+	 * If true pairs of SIFT and RootSIFT groups are matched by
+	 * {@link L2NNLoweBlockedMatcher}.
+	 */
+	public static boolean blocked = true;
+	
+	/**
+	 * If true matches are approximated by {@link L2NNLoweKDForestMatcher}
+	 * using the kd-forest of the matched group.
+	 */
+	public static boolean approximate = false;
+	
 	/**
 	 * 
 	 * Finds 2-NN with distance <= maxFDsq and then applies the Lowe check.
@@ -94,6 +107,93 @@ public class L2NNLoweMatcher {
 		return null;
 	}
 	
+	/**
+	 * 
+	 * As {@link #get(SIFT, ALocalFeaturesGroup, double, int)} on packed
+	 * local features.
+	 * 
+	 * @param p1	packed query local features
+	 * @param i1	position of the query in p1
+	 * @param p2	packed local features to be searched
+	 * @return		position of the match in p2 or -1
+	 */
+	static final public int getSIFT(PackedLocalFeatures p1, int i1, PackedLocalFeatures p2, double conf, int maxFDsq) {
+		int distsq1 = Integer.MAX_VALUE;
+		int excDist = (int) Math.ceil( maxFDsq / conf );
+		int distsq2 = excDist;
+		int dsq = 0;
+		int best = -1;
+		final int len = p1.bytesPerLF;
+		final byte[] b1 = p1.bytes;
+		final byte[] b2 = p2.bytes;
+		final int o1 = i1*len;
+		for (int i = 0, o2 = 0; i < p2.n; i++, o2 += len) {
+			dsq = L2.getSquared(b1, o1, b2, o2, len, excDist);
+			if (dsq >= 0) {
+				candidatesCount++;
+				if ( dsq < distsq1 && dsq <= maxFDsq) {
+					distsq2 = distsq1;
+					distsq1 = dsq;
+					best = i;
+				} else if (dsq <= distsq2) {
+					distsq2 = dsq;
+				}
+			}
+		}
+
+		if (distsq1 > maxFDsq) return -1;
+		
+		if (distsq2 == 0) return -1;
+		
+		// Lowe check
+		if ( (double) distsq1 / (double) distsq2 <= conf) return best;
+		
+		return -1;
+	}
+	
+	/**
+	 * 
+	 * As {@link #get(RootSIFT, ALocalFeaturesGroup, double, int)} on packed
+	 * local features.
+	 * 
+	 * @param p1	packed query local features
+	 * @param i1	position of the query in p1
+	 * @param p2	packed local features to be searched
+	 * @return		position of the match in p2 or -1
+	 */
+	static final public int getRootSIFT(PackedLocalFeatures p1, int i1, PackedLocalFeatures p2, double conf, int maxFDsq) {
+		int distsq1 = Integer.MAX_VALUE;
+		int excDist = (int) Math.ceil( maxFDsq / conf );
+		int distsq2 = excDist;
+		int dsq = 0;
+		int best = -1;
+		final int len = p1.bytesPerLF;
+		final byte[] b1 = p1.bytes;
+		final byte[] b2 = p2.bytes;
+		final int o1 = i1*len;
+		for (int i = 0, o2 = 0; i < p2.n; i++, o2 += len) {
+			dsq = L2.getSquared(b1, o1, b2, o2, len, excDist);
+			if (dsq >= 0) {
+				candidatesCount++;
+				if (dsq < distsq1 && dsq <= maxFDsq) {
+					distsq2 = distsq1;
+					distsq1 = dsq;
+					best = i;
+				} else if (dsq < distsq2) {
+					distsq2 = dsq;
+					excDist = distsq2;}
+			}
+		}
+
+		if (distsq1 > maxFDsq) return -1;
+		if (distsq2 == 0) return -1;
+		
+		// Lowe check
+		if ((double) distsq1 / (double) distsq2 < conf) return best;
+		
+		return -1;
+	}
+	
 	/**
 	 * 
 	 * Finds 2-NN with distance <= maxFDsq and then applies the Lowe check.
@@ -137,10 +237,23 @@ public class L2NNLoweMatcher {
 	}
 	
 	static final public LocalFeaturesMatches getLoweMatchesSIFT(ALocalFeaturesGroup<SIFT> sg1, ALocalFeaturesGroup<SIFT> sg2, double dRatioThr, final int maxLFDistSq) {
+		if ( approximate ) return L2NNLoweKDForestMatcher.getLoweMatchesSIFT(sg1, sg2, dRatioThr, maxLFDistSq);
+		if ( blocked ) return L2NNLoweBlockedMatcher.getLoweMatchesSIFT(sg1, sg2, dRatioThr, maxLFDistSq);
 		LocalFeaturesMatches matches = new LocalFeaturesMatches();
 		if ( sg2.size() < 2 ) return null;
 		int nMatches = 0;
 		SIFT[] arr = sg1.lfArr;
+		if ( sg1.hasPacked() && sg2.hasPacked() ) {
+			PackedLocalFeatures p1 = sg1.getPacked();
+			PackedLocalFeatures p2 = sg2.getPacked();
+			SIFT[] arr2 = sg2.lfArr;
+			for (int i=0; i<arr.length; i++ ) {
+				int match = getSIFT(p1, i, p2, dRatioThr, maxLFDistSq );
+				if ( match >= 0 )
+					matches.add( new LocalFeatureMatch( arr[i], arr2[match], i, match ) );
+			}
+			return matches;
+		}
 		for (int i=0; i<arr.length; i++ ) {
 			SIFT match = get(arr[i], sg2, dRatioThr, maxLFDistSq );
 			if ( match != null)
@@ -151,10 +264,23 @@ public class L2NNLoweMatcher {
 	}
 	
 	static final public LocalFeaturesMatches getMatchesRootSIFT(ALocalFeaturesGroup<RootSIFT> sg1, ALocalFeaturesGroup<RootSIFT> sg2, double dRatioThr, final int maxLFDistSq) {
+		if ( approximate ) return L2NNLoweKDForestMatcher.getMatchesRootSIFT(sg1, sg2, dRatioThr, maxLFDistSq);
+		if ( blocked ) return L2NNLoweBlockedMatcher.getMatchesRootSIFT(sg1, sg2, dRatioThr, maxLFDistSq);
 		LocalFeaturesMatches matches = new LocalFeaturesMatches();
 		if ( sg2.size() < 2 ) return null;
 		int nMatches = 0;
 		RootSIFT[] arr = sg1.lfArr;
+		if ( sg1.hasPacked() && sg2.hasPacked() ) {
+			PackedLocalFeatures p1 = sg1.getPacked();
+			PackedLocalFeatures p2 = sg2.getPacked();
+			RootSIFT[] arr2 = sg2.lfArr;
+			for (int i=0; i<arr.length; i++ ) {
+				int match = getRootSIFT(p1, i, p2, dRatioThr, maxLFDistSq );
+				if ( match >= 0 )
+					matches.add( new LocalFeatureMatch( arr[i], arr2[match], i, match ) );
+			}
+			return matches;
+		}
 		for (int i=0; i<arr.length; i++ ) {
 			RootSIFT match = get(arr[i], sg2, dRatioThr, maxLFDistSq );
 			if ( match != null)
@@ -165,6 +291,7 @@ public class L2NNLoweMatcher {
 	}
 	
 	static final public LocalFeaturesMatches getMatchesFloatsLF(ALocalFeaturesGroup<FloatsLF> sg1, ALocalFeaturesGroup<FloatsLF> sg2, double dRatioThr, final double maxLFDistSq) {
+		if ( approximate ) return L2NNLoweKDForestMatcher.getMatchesFloatsLF(sg1, sg2, dRatioThr, maxLFDistSq);
 		LocalFeaturesMatches matches = new LocalFeaturesMatches();
 		if ( sg2.size() < 2 ) return null;
 		int nMatches = 0;
@@ -24,6 +24,9 @@ public class LocalFeatureMatch {
 	public final float[] matchingnxy;
 	private final double weight;
 	private final int index;
+	/** positions of lf and lfMatching in their groups, -1 if unknown */
+	public final int pos;
+	public final int matchingPos;
 	
 	public final double getWeight() {
 		return weight;
@@ -83,6 +86,18 @@ public class LocalFeatureMatch {
 	}
 	
 	public LocalFeatureMatch(ALocalFeature lf, ALocalFeature matchingLF, double weight, int index ) {		
+		this(lf, matchingLF, weight, index, -1, -1);
+	}
+	
+	/**
+	 * @param pos			position of lf in its group
+	 * @param matchingPos	position of matchingLF in its group
+	 */
+	public LocalFeatureMatch(ALocalFeature lf, ALocalFeature matchingLF, int pos, int matchingPos ) {
+		this(lf, matchingLF, 1.0, -1, pos, matchingPos);
+	}
+	
+	private LocalFeatureMatch(ALocalFeature lf, ALocalFeature matchingLF, double weight, int index, int pos, int matchingPos ) {
 		super();
 		this.lf = lf;
 		this.lfMatching = matchingLF;
@@ -92,6 +107,8 @@ public class LocalFeatureMatch {
         matchingnxy = lfMatching.getNormXY();
 		this.weight = weight;
 		this.index = index;
+		this.pos = pos;
+		this.matchingPos = matchingPos;
 	}
 	
 	public LocalFeatureMatch(ALocalFeature lf, ALocalFeature matchingLF) {
@@ -16,7 +16,6 @@ import it.cnr.isti.vir.features.localfeatures.ALocalFeaturesGroup;
 import it.cnr.isti.vir.geom.AbstractTransformation;
 import it.cnr.isti.vir.geom.AffineTransformation;
 import it.cnr.isti.vir.geom.Box;
-import it.cnr.isti.vir.geom.RSTTransformation;
 import it.cnr.isti.vir.geom.TransformationHypothesis;
 import it.cnr.isti.vir.geom.Transformations;
 import it.cnr.isti.vir.util.RandomOperations;
@@ -29,7 +28,6 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Hashtable;
 import java.util.Iterator;
-import java.util.Map.Entry;
 
 public class LocalFeaturesMatches {
 
@@ -207,19 +205,15 @@ public class LocalFeaturesMatches {
             return;
         }
 
-        Hashtable<Long, LocalFeaturesMatches> ht = LoweHoughTransform.getLoweHoughTransforms_HT(matchesColl);
+        // among bins of the same size the first created is kept, not the
+        // first in Hashtable iteration order as before the accumulator
+        LocalFeaturesMatches[] top = LoweHoughTransform.getLoweHoughAccumulator(matchesColl, false, null).getTopBins(1);
 
         int maxSize = 0;
         LocalFeaturesMatches best = null;
-        long bestHash = -1;
-        for (Iterator<Entry<Long, LocalFeaturesMatches>> it = ht.entrySet().iterator(); it.hasNext();) {
-            Entry<Long,LocalFeaturesMatches> curr = it.next();
-
-            if (curr.getValue().size() > maxSize) {
-                maxSize = curr.getValue().size();
-                best = curr.getValue();
-                bestHash = curr.getKey();
-            }
+        if (top.length > 0) {
+            best = top[0];
+            maxSize = best.size();
         }
 //		System.out.println("Best transform: ");
 //		System.out.println("--- npoints: " + maxSize);
@@ -564,8 +558,10 @@ public class LocalFeaturesMatches {
     }
 
     /**
+     * RANSAC on the best Hough bins, see {@link RANSACEngine}.
+     * 
      * @param ht					LocalFeaturesMatches in bins
-     * @param cycles				number of cycles
+     * @param cycles				max number of cycles for each bin
      * @param nHoughMaxForRANSAC	number of best bins to consider
      * @param error					max relative distance
      * @param trClass				trasformation to be searched
@@ -583,235 +579,33 @@ public class LocalFeaturesMatches {
     				double minDist,
     				boolean onlyBest,
     				boolean rejectUnConsistent ) {
-    	
+    	return getRANSAC(LoweHoughTransform.orderHT(ht), cycles, nHoughMaxForRANSAC, error, trClass, minDist, onlyBest, rejectUnConsistent);
+    }
 
-    	int nPoints = Transformations.getNPointsForEstimation(trClass);
-    	
-//      int cycles = (int) getNHypothesizes( 0.25, nPoints ) + 1;
-		
-        int maxNPointsFound = 0;
-        if ( !onlyBest ) {
-        	maxNPointsFound = -1;
-        }
-        
-        ArrayList<TransformationHypothesis> res = new ArrayList<TransformationHypothesis>();
-        if (matchesColl == null || matchesColl.size() <= nPoints) {
+    /**
+     * As {@link #getRANSAC(Hashtable, int, int, double, Class, double, boolean, boolean)}
+     * given the bins in decreasing order of size
+     * (e.g. {@link LoweHoughAccumulator#getTopBins(int)}).
+     */
+    public ArrayList<TransformationHypothesis>
+    	getRANSAC(	LocalFeaturesMatches[] ordered,
+    				int cycles,
+    				int nHoughMaxForRANSAC,
+    				double error,
+    				Class trClass,
+    				double minDist,
+    				boolean onlyBest,
+    				boolean rejectUnConsistent ) {
+        if (matchesColl == null || matchesColl.size() <= Transformations.getNPointsForEstimation(trClass)) {
             matchesColl = null;
             return null;
         }
 
-        double errorSquare = error * error;
-
-        float[][] pDest = new float[nPoints][];
-        float[][] pSrc = new float[nPoints][];
-
-        LocalFeaturesMatches[] ordered = LoweHoughTransform.orderHT(ht);
-
-		for (int i = 0; i < ordered.length && i < nHoughMaxForRANSAC; i++) {
-			
-			// for each HoughTransform group
-			LocalFeaturesMatches currMatches = ordered[i];
-			if (currMatches.size() < nPoints
-				|| currMatches.size() < maxNPointsFound ) {
-				break; // next ones would be <= nPoints too
-			}
-
-			LocalFeaturesMatches bestFilteredMatches = null;
-
-			byte scaleBin = currMatches.getScaleBinFromHash();
-			byte oriBin = currMatches.getOriBinFromHash();
-
-			// counting all possible combinations
-			int size = currMatches.size();
-			int num = 1;
-			int den = 1;
-			for (int n = 0; n < nPoints; n++) {
-				num *= size - n;
-				den *= n + 1;
-			}
-			int total = num / den;
-
-			// prob = 1.0;
-			// if (cycles < total) {
-			AbstractTransformation bestTr = null;
-
-
-			//int actualCount = 0;
-
-			int lastModified = 0;
-			if (cycles > total / 2) {
-				int[] index = new int[nPoints];
-				for (int count = 0; count < total; count++) {
-					// we can check all					
-					
-					if ( count == 0 ) {
-						// initializing
-						for ( int ti=0; ti<index.length; ti++ ) {
-							index[ti] = ti;
-						}
-						lastModified = 0;
-
-					} else {
-	
-						lastModified = nextIDs(index, size);
-						if (lastModified < 0) break;
-					}
-					
-					// Check if the set of matches is strong enough for trasformation evaluation
-					boolean rejected = false;
-					for (int ti = lastModified; ti < index.length; ti++) {
-						LocalFeatureMatch m = currMatches.get(index[ti]);
-						pSrc[ti] = m.getMatchingNormXY();
-						pDest[ti] = m.getNormXY();
-						if ( !rejected ) rejected = reject(pSrc, pDest, ti, minDist, scaleBin, oriBin, rejectUnConsistent);
-					}														
-					if (rejected) continue;
-	
-					// searching for Transformation that maps imgSrc in imgDest
-					AbstractTransformation t = Transformations.getTransformation(trClass, pSrc, pDest);
-					if (t == null) 	continue;
-					
-					// filtering the matches according to the evaluated trasformation
-					LocalFeaturesMatches tempFiltered = getFiltered_L2(currMatches, t, errorSquare, maxNPointsFound);
-	
-					if (tempFiltered.size() >= nPoints && (bestFilteredMatches == null || tempFiltered.size() > bestFilteredMatches.size())) {
-						bestFilteredMatches = tempFiltered;
-						bestTr = t;
-					}
-				}
-
-			} else {
-				int[] index = new int[nPoints];
-				for (int count = 0; count < cycles; count++) {
-					boolean rejected = false;
-					for (int n = 0; !rejected && n < nPoints; n++) {
-						boolean duplicated;
-						do {
-							duplicated = false;
-							index[n] = RandomOperations.getInt(0, size - 1);
-							for (int ti = 0; ti < n; ti++) {
-								if (index[n] == index[ti]) {
-									duplicated = true;
-									break;
-								}
-							}
-						} while (duplicated);
-						LocalFeatureMatch m = currMatches.get(index[n]);
-						pSrc[n] = m.getMatchingNormXY();
-						pDest[n] = m.getNormXY();
-						rejected = reject(pSrc, pDest, n, minDist, scaleBin, oriBin, rejectUnConsistent);
-					}
-					if (rejected) continue;
-
-					//actualCount++;
-					// searching for Transformation that maps imgSrc in imgDest
-					AbstractTransformation t = Transformations.getTransformation(trClass, pSrc, pDest);
-					if (t == null) continue;
-					LocalFeaturesMatches tempFiltered = getFiltered_L2(currMatches, t, errorSquare);
-
-					if (tempFiltered.size() >= nPoints && (bestFilteredMatches == null || tempFiltered.size() > bestFilteredMatches.size())) {
-						bestFilteredMatches = tempFiltered;
-						bestTr = t;
-					}
-				}
-
-			}
-			if (bestFilteredMatches != null) {
-				if ( maxNPointsFound >= 0 ) {
-					// this is searching only for best Hypothesis
-					if ( bestFilteredMatches.size() > maxNPointsFound ) {
-						maxNPointsFound = bestFilteredMatches.size();
-						res.add(new TransformationHypothesis(bestTr, bestFilteredMatches));
-					}
-				} else {
-					res.add(new TransformationHypothesis(bestTr, bestFilteredMatches));
-				}
-				
-				if ( bestFilteredMatches.size() == currMatches.size() ) {
-					// all points are inliers
-					break;
-				}
-			}
-		}
-
-//            } else {
-//                int[] currIDs = new int[nPoints];
-//                for (int n = 0; n < nPoints; n++) {
-//                    currIDs[n] = n;
-//                    LocalFeatureMatch m = currMatches.get(currIDs[n]);
-//                    pDest[n] = m.getNormXY();
-//                    pSrc[n] = m.getMatchingNormXY();
-//                }
-//
-//                for (int count = 0; count < total; count++) {
-//                    if (count > 0) {
-//                        int firstChanged = nextIDs(currIDs, size);
-//                        for (int n = firstChanged; n < nPoints; n++) {
-//                            LocalFeatureMatch m = currMatches.get(currIDs[n]);
-//                            pDest[n] = m.getNormXY();
-//                            pSrc[n] = m.getMatchingNormXY();
-//
-//                        }
-//                    }
-//
-//                    // | Model P | = | A | * | imgP | + | t |
-//                    // searching for AffineTransformation that maps imgSrc in imgDest
-//                    Transformation t = Transformations.getTransformation(trClass, pSrc, pDest);
-//                    if (t == null) {
-//                        continue;
-//                    }
-//                    // System.out.println("Curr ori: " + t.getOri());
-//                    // N.B.: just currMatches!!!!!!!!!
-//                    ArrayList<LocalFeatureMatch> tempFiltered = getFiltered_L2(currMatches, t, errorSquare);
-//
-//                    if (bestFilteredMatches == null || tempFiltered.size() > bestFilteredMatches.size()) {
-//                        bestFilteredMatches = tempFiltered;
-//                        bestTr = t;
-//                    }
-//                }
-//            }
-
-        Collections.sort(res);
-        return res;
-//		System.out.println("Best AffineTransformation (npoints: " + bestFilteredMatches.size() + ")");
-//		System.out.println(best.toString());
-
+        return RANSACEngine.get().getRANSAC(
+        		ordered, cycles, nHoughMaxForRANSAC, error, trClass, minDist, onlyBest, rejectUnConsistent);
     }
 
-    /**
-     * This method is used to avoid weak match sets in evaluating the trasformation
-     * 
-     * @param pSrc					source points
-     * @param pDest					destination keypoints
-     * @param n						index of the match to be considered
-     * @param minDist				min distance between matching pairs
-     * @param scaleBin				expected scale bin
-     * @param oriBin				expected orientation bin
-     * @param rejectUnConsistent	if true, not consistent (scale and ori) matches are rejeceted
-     * @return
-     */
-    private static final boolean reject(float[][] pSrc, float[][] pDest, int n, double minDist, byte scaleBin, byte oriBin, boolean rejectUnConsistent) {
-    	// checks point n with previous ones (iDup<n) for consistency
-    	for (int iDup = 0; iDup < n; iDup++) {
-            if (    (   Math.abs(pDest[iDup][0] - pDest[n][0]) 		< minDist
-                        &&  Math.abs(pDest[iDup][1] - pDest[n][1]) 	< minDist )
-                    ||
-                    (   Math.abs(pSrc[iDup][0] - pSrc[n][0]) 		< minDist
-                        &&  Math.abs(pSrc[iDup][1] - pSrc[n][1]) 	< minDist )
-                ) {
-                return true;
-            }
-
-            if ( rejectUnConsistent ) {
-            	double[] scaleRot = RSTTransformation.getScaleAndRot(pSrc[iDup], pSrc[n], pDest[iDup], pDest[n]);
-            	if ( scaleConsistencyReject( scaleBin, scaleRot[0] ) ) return true;
-            	if ( oriConsistencyReject( oriBin, scaleRot[1] ) ) return true;
-            }
-        }
-        return false;
-	}
-
-	private static boolean scaleConsistencyReject(byte scaleBin, double scale ) {
+	static boolean scaleConsistencyReject(byte scaleBin, double scale ) {
 
 		byte currScaleBin_first = LoweHoughTransform.getScaleRatioBin_firstOfTwo(scale);
 		if (	currScaleBin_first != scaleBin 
@@ -823,7 +617,7 @@ public class LocalFeaturesMatches {
 		return false;
 	}
     
-    private static boolean oriConsistencyReject(byte oriBin, double ori ) {
+    static boolean oriConsistencyReject(byte oriBin, double ori ) {
 	    byte currOriBin_first = LoweHoughTransform.getOriDiffBin_firstOfTwo( ori );
 //	    if (    currOriBin_first != oriBin
 //	            && currOriBin_first+1 != oriBin
@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Fabrizio Falchi (NeMIS Lab., ISTI-CNR, Italy)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package it.cnr.isti.vir.similarity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+
+/**
+ * Bins of the {@link LoweHoughTransform}.
+ * Bin hash codes are mapped to bin ids by a long to int open addressing map
+ * and votes are kept as (bin id, match) int pairs, grouped by bin when the
+ * bins are requested. Matches of a bin are in voting order, as in the
+ * {@link LocalFeaturesMatches} of {@link LoweHoughTransform#getLoweHoughTransforms_HT}.
+ * Bins of the same size are ranked in creation order (i.e. by their first
+ * vote), so ties no longer depend on the iteration order of a Hashtable as
+ * with {@link LoweHoughTransform#orderHT}.
+ */
+public class LoweHoughAccumulator {
+
+	// open addressing map: hash code -> bin id + 1 (0 for empty slots)
+	private long[] slotKeys;
+	private int[] slotIds;
+	private int slotBits;
+
+	// bins
+	private long[] binKeys;
+	private int[] binCounts;
+	private int nBins = 0;
+
+	// votes
+	private final ArrayList<LocalFeatureMatch> matches;
+	private int[] voteBins;
+	private int[] voteMatches;
+	private int nVotes = 0;
+
+	// matches grouped by bin, null until needed
+	private int[] binStart;
+	private int[] binMatches;
+
+	/**
+	 * @param nMatches		expected number of matches
+	 * @param votesPerMatch	expected number of votes of each match
+	 */
+	public LoweHoughAccumulator(int nMatches, int votesPerMatch) {
+		int nVotesExp = Math.max(1, nMatches * votesPerMatch);
+		matches = new ArrayList<LocalFeatureMatch>(nMatches);
+		voteBins = new int[nVotesExp];
+		voteMatches = new int[nVotesExp];
+		// load factor <= 0.5 if all votes are in different bins
+		slotBits = 4;
+		while ( (1 << slotBits) < 2*nVotesExp ) slotBits++;
+		slotKeys = new long[1 << slotBits];
+		slotIds = new int[1 << slotBits];
+		binKeys = new long[16];
+		binCounts = new int[16];
+	}
+
+	private final int getSlot(long key) {
+		return (int) ( ( key * 0x9E3779B97F4A7C15L ) >>> ( 64 - slotBits ) );
+	}
+
+	/**
+	 * @return the id of the bin, created if not present
+	 */
+	private final int getBin(long key) {
+		int m = slotKeys.length - 1;
+		int s = getSlot(key);
+		while ( slotIds[s] != 0 ) {
+			if ( slotKeys[s] == key ) return slotIds[s] - 1;
+			s = ( s + 1 ) & m;
+		}
+		if ( nBins == binKeys.length ) {
+			binKeys = Arrays.copyOf(binKeys, 2*nBins);
+			binCounts = Arrays.copyOf(binCounts, 2*nBins);
+		}
+		int id = nBins++;
+		binKeys[id] = key;
+		slotKeys[s] = key;
+		slotIds[s] = id + 1;
+		if ( 2*nBins > slotKeys.length ) rehash();
+		return id;
+	}
+
+	private final void rehash() {
+		long[] oldKeys = slotKeys;
+		int[] oldIds = slotIds;
+		slotBits++;
+		slotKeys = new long[1 << slotBits];
+		slotIds = new int[1 << slotBits];
+		int m = slotKeys.length - 1;
+		for ( int i=0; i<oldKeys.length; i++ ) {
+			if ( oldIds[i] == 0 ) continue;
+			int s = getSlot(oldKeys[i]);
+			while ( slotIds[s] != 0 ) s = ( s + 1 ) & m;
+			slotKeys[s] = oldKeys[i];
+			slotIds[s] = oldIds[i];
+		}
+	}
+
+	/**
+	 * Adds a vote of the match for the bin with the given hash code.
+	 * Votes of a match are expected to be consecutive.
+	 */
+	public final void vote(long hashCode, LocalFeatureMatch match) {
+		int iMatch = matches.size() - 1;
+		if ( iMatch < 0 || matches.get(iMatch) != match ) {
+			matches.add(match);
+			iMatch++;
+		}
+		int bin = getBin(hashCode);
+		binCounts[bin]++;
+		if ( nVotes == voteBins.length ) {
+			voteBins = Arrays.copyOf(voteBins, 2*nVotes);
+			voteMatches = Arrays.copyOf(voteMatches, 2*nVotes);
+		}
+		voteBins[nVotes] = bin;
+		voteMatches[nVotes] = iMatch;
+		nVotes++;
+		binStart = null;
+	}
+
+	/**
+	 * @return number of bins
+	 */
+	public final int size() {
+		return nBins;
+	}
+
+	/**
+	 * @return number of matches of the largest bin
+	 */
+	public final int getMaxCount() {
+		int max = 0;
+		for ( int i=0; i<nBins; i++ ) {
+			if ( binCounts[i] > max ) max = binCounts[i];
+		}
+		return max;
+	}
+
+	/**
+	 * Groups the votes by bin (counting sort).
+	 */
+	private final void group() {
+		if ( binStart != null ) return;
+		int[] start = new int[nBins+1];
+		for ( int i=0; i<nBins; i++ ) {
+			start[i+1] = start[i] + binCounts[i];
+		}
+		int[] pos = Arrays.copyOf(start, nBins);
+		binMatches = new int[nVotes];
+		for ( int i=0; i<nVotes; i++ ) {
+			binMatches[pos[voteBins[i]]++] = voteMatches[i];
+		}
+		binStart = start;
+	}
+
+	private final LocalFeaturesMatches getMatches(int bin) {
+		group();
+		ArrayList<LocalFeatureMatch> res = new ArrayList<LocalFeatureMatch>(binCounts[bin]);
+		for ( int i=binStart[bin]; i<binStart[bin+1]; i++ ) {
+			res.add(matches.get(binMatches[i]));
+		}
+		LocalFeaturesMatches lfm = new LocalFeaturesMatches(res);
+		lfm.setHashCode(binKeys[bin]);
+		return lfm;
+	}
+
+	/**
+	 * Partial selection of the n largest bins, ties are in creation order
+	 * (the first created bin is returned first).
+	 *
+	 * @return the matches of the n largest bins in decreasing order of size
+	 */
+	public final LocalFeaturesMatches[] getTopBins(int n) {
+		if ( n > nBins ) n = nBins;
+		if ( n <= 0 ) return new LocalFeaturesMatches[0];
+		int[] top = new int[n];
+		int nTop = 0;
+		for ( int i=0; i<nBins; i++ ) {
+			int c = binCounts[i];
+			if ( nTop == n && c <= binCounts[top[nTop-1]] ) continue;
+			int j = nTop < n ? nTop++ : nTop-1;
+			while ( j > 0 && binCounts[top[j-1]] < c ) {
+				top[j] = top[j-1];
+				j--;
+			}
+			top[j] = i;
+		}
+		LocalFeaturesMatches[] res = new LocalFeaturesMatches[nTop];
+		for ( int i=0; i<nTop; i++ ) {
+			res[i] = getMatches(top[i]);
+		}
+		return res;
+	}
+
+	/**
+	 * @return all the bins by hash code
+	 */
+	public final Hashtable<Long, LocalFeaturesMatches> getHashtable() {
+		Hashtable<Long, LocalFeaturesMatches> ht = new Hashtable<Long, LocalFeaturesMatches>(2*nBins+1);
+		for ( int i=0; i<nBins; i++ ) {
+			ht.put(binKeys[i], getMatches(i));
+		}
+		return ht;
+	}
+}
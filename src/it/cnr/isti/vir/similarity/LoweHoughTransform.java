@@ -11,6 +11,8 @@
  ******************************************************************************/
 package it.cnr.isti.vir.similarity;
 
+import it.cnr.isti.vir.features.localfeatures.ALocalFeaturesGroup;
+import it.cnr.isti.vir.features.localfeatures.PackedLocalFeatures;
 import it.cnr.isti.vir.util.LocalFeaturesMatchesSizeComparator;
 import it.cnr.isti.vir.util.LocalFeaturesMatchesWeightsSumComparator;
 import it.cnr.isti.vir.util.Trigonometry;
@@ -80,23 +82,56 @@ public class LoweHoughTransform {
 	}
 	
 	public static Hashtable<Long, LocalFeaturesMatches> getLoweHoughTransforms_HT( Collection<LocalFeatureMatch> matches, boolean considerCoordinates, double[] minMaxScaleRatio ) {
+		LoweHoughAccumulator acc = getLoweHoughAccumulator(matches, considerCoordinates, minMaxScaleRatio);
+		if ( acc == null ) return null;
+		return acc.getHashtable();
+	}
+	
+	/**
+	 * Votes of the matches as in {@link #getLoweHoughTransforms_HT(Collection, boolean, double[])}
+	 * without creating a {@link LocalFeaturesMatches} for each bin.
+	 */
+	public static LoweHoughAccumulator getLoweHoughAccumulator( Collection<LocalFeatureMatch> matches, boolean considerCoordinates, double[] minMaxScaleRatio ) {
 
         if ( matches.isEmpty() ) return null;
         boolean considerScale = true;
         boolean considerOrientation = true;
 					
-		Hashtable<Long, LocalFeaturesMatches> ht = new Hashtable<Long, LocalFeaturesMatches>();
+		LoweHoughAccumulator acc = new LoweHoughAccumulator(matches.size(), considerCoordinates ? 16 : 4);
 		
 //		LocalFeatureMatch first = matches.iterator().next();
 //		float[] boxWidthHeight = first.getMatchingMaxBoxWidthHeight();
  		
 		float[] mappedXY = new float[2];
 		
+		// packed key points of the groups of the first match
+		LocalFeatureMatch first = matches.iterator().next();
+		ALocalFeaturesGroup g1 = first.lf.getLinkedGroup();
+		ALocalFeaturesGroup g2 = first.lfMatching.getLinkedGroup();
+		PackedLocalFeatures p1 = null;
+		PackedLocalFeatures p2 = null;
+		float normScale1 = 0;
+		float normScale2 = 0;
+		if ( g1 != null && g2 != null && g1.hasPacked() && g2.hasPacked() ) {
+			p1 = g1.getPacked();
+			p2 = g2.getPacked();
+			normScale1 = g1.getNormScale();
+			normScale2 = g2.getNormScale();
+		}
+		
 		for ( Iterator<LocalFeatureMatch> it = matches.iterator(); it.hasNext(); ) {
 			LocalFeatureMatch match = it.next();
 			
-			float oriDiff      		= match.getOrientationDiff();
-			float normScaleRatio   	= match.getNormScaleRatio();
+			float oriDiff;
+			float normScaleRatio;
+			if ( 	p1 != null && match.pos >= 0
+					&& match.lf.getLinkedGroup() == g1 && match.lfMatching.getLinkedGroup() == g2 ) {
+				oriDiff			= getOrientationDiff(p1.ori[match.pos], p2.ori[match.matchingPos]);
+				normScaleRatio	= ( normScale1 * p1.scale[match.pos] ) / ( normScale2 * p2.scale[match.matchingPos] );
+			} else {
+				oriDiff			= match.getOrientationDiff();
+				normScaleRatio	= match.getNormScaleRatio();
+			}
 			
 			if ( 	minMaxScaleRatio != null 
 					&& ( normScaleRatio < minMaxScaleRatio[0] || normScaleRatio > minMaxScaleRatio[1] ) )
@@ -159,17 +194,7 @@ public class LoweHoughTransform {
 //								if ( considerOrientation ) hashCode += iO * oriHashMultiplier;
 //								if ( considerScale ) hashCode += iS;
 								
-								// adding
-								LocalFeaturesMatches currColl = ht.get(hashCode);
-								if ( currColl != null ) {
-									currColl.add(match);
-								}
-								else {
-									currColl = new LocalFeaturesMatches();
-									currColl.setHashCode(hashCode);
-									currColl.add(match);
-									ht.put(hashCode, currColl);
-								}
+								acc.vote(hashCode, match);
 								
 							}
 						}
@@ -180,24 +205,24 @@ public class LoweHoughTransform {
 						if ( considerScale ) scaleToHash = iS;
 						long hashCode = getHash(0, 0, oriToHash, scaleToHash);
 						
-						// adding
-						LocalFeaturesMatches currColl = ht.get(hashCode);
-						if ( currColl != null ) {
-							currColl.add(match);
-						}
-						else {
-							currColl = new LocalFeaturesMatches();
-							currColl.setHashCode(hashCode);
-							currColl.add(match);
-							ht.put(hashCode, currColl);
-						}
+						acc.vote(hashCode, match);
 					}
 				}
 			}		
 			
 		}
 		
-		return ht;
+		return acc;
+	}
+	
+	/**
+	 * As {@link LocalFeatureMatch#getOrientationDiff()}.
+	 */
+	private static float getOrientationDiff(float ori, float matchingOri) {
+		float diff =  matchingOri - ori;
+		if ( diff < -Math.PI ) diff +=   2.0 * Math.PI;
+		if ( diff >  Math.PI ) diff += - 2.0 * Math.PI;
+		return diff;
 	}
 	
 	public static LocalFeaturesMatches[] orderHT( Hashtable<Long, LocalFeaturesMatches> ht, Comparator<LocalFeaturesMatches> comp ) {
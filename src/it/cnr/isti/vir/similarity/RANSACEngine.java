@@ -0,0 +1,611 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Fabrizio Falchi (NeMIS Lab., ISTI-CNR, Italy)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package it.cnr.isti.vir.similarity;
+
+import it.cnr.isti.vir.distance.Hamming;
+import it.cnr.isti.vir.distance.L2;
+import it.cnr.isti.vir.features.IFloatValues;
+import it.cnr.isti.vir.features.ILongBinaryValues;
+import it.cnr.isti.vir.features.IUByteValues;
+import it.cnr.isti.vir.features.localfeatures.ALocalFeature;
+import it.cnr.isti.vir.geom.AbstractTransformation;
+import it.cnr.isti.vir.geom.AffineTransformation;
+import it.cnr.isti.vir.geom.HomographyTransformation;
+import it.cnr.isti.vir.geom.RSTTransformation;
+import it.cnr.isti.vir.geom.TransformationHypothesis;
+import it.cnr.isti.vir.geom.Transformations;
+import it.cnr.isti.vir.util.RandomOperations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * RANSAC over the Hough bins of {@link LocalFeaturesMatches#getRANSAC}.
+ *
+ * Points of a bin are copied once in float arrays and each hypothesis is
+ * estimated in closed form from its minimal sample (2 points for RST, 3 for
+ * Affine, 4 for Homography) in a preallocated matrix. Inliers are marked in a
+ * preallocated mask, so that the transformation and the
+ * {@link LocalFeaturesMatches} are created only for the best hypothesis of
+ * each bin.
+ *
+ * Samples are drawn as in PROSAC: matches are ordered by descriptor distance
+ * and the samples are taken from a growing set of the best ones. Sampling
+ * stops when the number of hypotheses needed to find an all-inliers sample
+ * with probability {@link #confidence}, given the best inlier ratio found, has
+ * been reached (and never after cycles hypotheses).
+ *
+ * Buffers are reused, one engine for each thread is given by {@link #get()}.
+ */
+public class RANSACEngine {
+
+	/**
+	 * Probability of having drawn at least one all-inliers sample for
+	 * stopping. 1.0 disables the adaptive stop.
+	 */
+	public static double confidence = 0.99;
+
+	/** If false matches are sampled uniformly */
+	public static boolean prosac = true;
+
+	private static final ThreadLocal<RANSACEngine> local = new ThreadLocal<RANSACEngine>() {
+		@Override
+		protected RANSACEngine initialValue() {
+			return new RANSACEngine();
+		}
+	};
+
+	public static final RANSACEngine get() {
+		return local.get();
+	}
+
+	private static final int TR_RST = 0;
+	private static final int TR_AFFINE = 1;
+	private static final int TR_HOMOGRAPHY = 2;
+
+	// source (matching) and destination points of the current bin
+	private float[] sx = new float[0];
+	private float[] sy = new float[0];
+	private float[] dx = new float[0];
+	private float[] dy = new float[0];
+
+	// positions in the bin ordered by descriptor distance
+	private int[] order = new int[0];
+	private int[] pool = new int[0];
+	private long[] keys = new long[0];
+
+	private boolean[] mask = new boolean[0];
+	private boolean[] bestMask = new boolean[0];
+
+	private final int[] sample = new int[4];
+	private final int[] swaps = new int[4];
+	private final double[] h = new double[9];
+	private final double[] bestH = new double[9];
+	private final double[] a = new double[8*9];
+
+	private final void ensureCapacity(int size) {
+		if ( sx.length >= size ) return;
+		int c = Math.max(size, 2*sx.length);
+		sx = new float[c];
+		sy = new float[c];
+		dx = new float[c];
+		dy = new float[c];
+		order = new int[c];
+		pool = new int[c];
+		keys = new long[c];
+		mask = new boolean[c];
+		bestMask = new boolean[c];
+	}
+
+	private static final int getTrType(Class trClass) {
+		if ( trClass.equals(RSTTransformation.class) ) return TR_RST;
+		if ( trClass.equals(AffineTransformation.class) ) return TR_AFFINE;
+		return TR_HOMOGRAPHY;
+	}
+
+	/**
+	 * @return	squared L2 or Hamming distance of the descriptors of the match,
+	 * 			0 if the descriptors type is not known
+	 */
+	static final float getDescriptorDistance(LocalFeatureMatch m) {
+		ALocalFeature lf = m.lf;
+		ALocalFeature lfMatching = m.lfMatching;
+		if ( lf instanceof IUByteValues && lfMatching instanceof IUByteValues )
+			return L2.getSquared((IUByteValues) lf, (IUByteValues) lfMatching);
+		if ( lf instanceof ILongBinaryValues && lfMatching instanceof ILongBinaryValues )
+			return Hamming.distance(((ILongBinaryValues) lf).getValues(), ((ILongBinaryValues) lfMatching).getValues());
+		if ( lf instanceof IFloatValues && lfMatching instanceof IFloatValues )
+			return (float) L2.getSquared((IFloatValues) lf, (IFloatValues) lfMatching);
+		return 0;
+	}
+
+	/**
+	 * Copies the points of the matches and orders them by descriptor distance.
+	 */
+	private final void pack(LocalFeaturesMatches matches, int size) {
+		ensureCapacity(size);
+		for ( int i=0; i<size; i++ ) {
+			LocalFeatureMatch m = matches.get(i);
+			float[] src = m.getMatchingNormXY();
+			float[] dest = m.getNormXY();
+			sx[i] = src[0];
+			sy[i] = src[1];
+			dx[i] = dest[0];
+			dy[i] = dest[1];
+			pool[i] = i;
+		}
+		if ( prosac ) {
+			// non negative floats are ordered as their bits
+			for ( int i=0; i<size; i++ ) {
+				keys[i] = ( (long) Float.floatToIntBits(getDescriptorDistance(matches.get(i))) << 32 ) | i;
+			}
+			Arrays.sort(keys, 0, size);
+			for ( int i=0; i<size; i++ ) {
+				order[i] = (int) keys[i];
+			}
+		} else {
+			for ( int i=0; i<size; i++ ) {
+				order[i] = i;
+			}
+		}
+	}
+
+	/**
+	 * Same checks of {@link LocalFeaturesMatches} on the n-th point of the
+	 * sample against the previous ones.
+	 */
+	private final boolean reject(int n, double minDist, byte scaleBin, byte oriBin, boolean rejectUnConsistent) {
+		int p = sample[n];
+		for ( int iDup=0; iDup<n; iDup++ ) {
+			int q = sample[iDup];
+			if (	( Math.abs(dx[q] - dx[p]) < minDist && Math.abs(dy[q] - dy[p]) < minDist )
+					||
+					( Math.abs(sx[q] - sx[p]) < minDist && Math.abs(sy[q] - sy[p]) < minDist ) ) {
+				return true;
+			}
+			if ( rejectUnConsistent ) {
+				// as in RSTTransformation.getScaleAndRot
+				double vx = sx[q]-sx[p];
+				double vy = sy[q]-sy[p];
+				double vu = dx[q]-dx[p];
+				double vv = dy[q]-dy[p];
+				double scale = Math.sqrt( (vu*vu+vv*vv) / (vx*vx+vy*vy) );
+				double rot = Math.atan( vv / vu ) - Math.atan( vy / vx );
+				if ( LocalFeaturesMatches.scaleConsistencyReject(scaleBin, scale) ) return true;
+				if ( LocalFeaturesMatches.oriConsistencyReject(oriBin, rot) ) return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Estimates the transformation of the current sample in h as a 3x3
+	 * matrix (row-major).
+	 *
+	 * @return false if the sample is degenerate
+	 */
+	private final boolean estimate(int trType) {
+		switch ( trType ) {
+			case TR_RST:		return estimateRST();
+			case TR_AFFINE:		return estimateAffine();
+			default:			return estimateHomography();
+		}
+	}
+
+	/** As {@link RSTTransformation#getTransformation(float[][], float[][])} */
+	private final boolean estimateRST() {
+		int p0 = sample[0];
+		int p1 = sample[1];
+		double vx = sx[p0]-sx[p1];
+		double vy = sy[p0]-sy[p1];
+		double vu = dx[p0]-dx[p1];
+		double vv = dy[p0]-dy[p1];
+		double scale = Math.sqrt( (vu*vu+vv*vv) / (vx*vx+vy*vy) );
+		double rot = Math.atan( vv / vu ) - Math.atan( vy / vx );
+		h[0] = h[4] = scale*Math.cos(rot);
+		h[3] = scale*Math.sin(rot);
+		h[1] = -h[3];
+		h[2] = dx[p0] - h[0] * sx[p0] - h[1] * sy[p0];
+		h[5] = dy[p0] - h[3] * sx[p0] - h[4] * sy[p0];
+		h[6] = h[7] = 0.0;
+		h[8] = 1.0;
+		return true;
+	}
+
+	/** Exact solution for 3 points (Cramer's rule) */
+	private final boolean estimateAffine() {
+		int p0 = sample[0];
+		int p1 = sample[1];
+		int p2 = sample[2];
+		double x0 = sx[p0], y0 = sy[p0];
+		double x1 = sx[p1], y1 = sy[p1];
+		double x2 = sx[p2], y2 = sy[p2];
+
+		// cofactors of | x_i y_i 1 |
+		double c00 = y1 - y2,	c01 = x2 - x1,	c02 = x1*y2 - x2*y1;
+		double c10 = y2 - y0,	c11 = x0 - x2,	c12 = x2*y0 - x0*y2;
+		double c20 = y0 - y1,	c21 = x1 - x0,	c22 = x0*y1 - x1*y0;
+		double det = x0*c00 + y0*c01 + c02;
+		if ( det == 0.0 ) return false;
+		double inv = 1.0 / det;
+
+		double u0 = dx[p0], u1 = dx[p1], u2 = dx[p2];
+		double v0 = dy[p0], v1 = dy[p1], v2 = dy[p2];
+		h[0] = ( c00*u0 + c10*u1 + c20*u2 ) * inv;
+		h[1] = ( c01*u0 + c11*u1 + c21*u2 ) * inv;
+		h[2] = ( c02*u0 + c12*u1 + c22*u2 ) * inv;
+		h[3] = ( c00*v0 + c10*v1 + c20*v2 ) * inv;
+		h[4] = ( c01*v0 + c11*v1 + c21*v2 ) * inv;
+		h[5] = ( c02*v0 + c12*v1 + c22*v2 ) * inv;
+		h[6] = h[7] = 0.0;
+		h[8] = 1.0;
+		return true;
+	}
+
+	/**
+	 * Exact solution for 4 points with h[8]=1 (Gaussian elimination),
+	 * scaled to unit norm and checked as in
+	 * {@link HomographyTransformation#isNice_Other()}.
+	 */
+	private final boolean estimateHomography() {
+		for ( int i=0; i<4; i++ ) {
+			int p = sample[i];
+			double x = sx[p], y = sy[p], u = dx[p], v = dy[p];
+			int r = 2*i*9;
+			a[r  ] = x;		a[r+1] = y;		a[r+2] = 1;
+			a[r+3] = 0;		a[r+4] = 0;		a[r+5] = 0;
+			a[r+6] = -u*x;	a[r+7] = -u*y;	a[r+8] = u;
+			r += 9;
+			a[r  ] = 0;		a[r+1] = 0;		a[r+2] = 0;
+			a[r+3] = x;		a[r+4] = y;		a[r+5] = 1;
+			a[r+6] = -v*x;	a[r+7] = -v*y;	a[r+8] = v;
+		}
+
+		for ( int c=0; c<8; c++ ) {
+			// partial pivoting
+			int piv = c;
+			double max = Math.abs(a[c*9+c]);
+			for ( int r=c+1; r<8; r++ ) {
+				double abs = Math.abs(a[r*9+c]);
+				if ( abs > max ) {
+					max = abs;
+					piv = r;
+				}
+			}
+			if ( max < 1e-12 ) return false;
+			if ( piv != c ) {
+				for ( int k=c, o1=c*9, o2=piv*9; k<9; k++ ) {
+					double t = a[o1+k];
+					a[o1+k] = a[o2+k];
+					a[o2+k] = t;
+				}
+			}
+			int oc = c*9;
+			double inv = 1.0 / a[oc+c];
+			for ( int r=c+1; r<8; r++ ) {
+				int or = r*9;
+				double f = a[or+c] * inv;
+				if ( f == 0.0 ) continue;
+				for ( int k=c; k<9; k++ ) {
+					a[or+k] -= f * a[oc+k];
+				}
+			}
+		}
+		for ( int r=7; r>=0; r-- ) {
+			int or = r*9;
+			double acc = a[or+8];
+			for ( int k=r+1; k<8; k++ ) {
+				acc -= a[or+k] * h[k];
+			}
+			h[r] = acc / a[or+r];
+		}
+		h[8] = 1.0;
+
+		double norm = 0;
+		for ( int i=0; i<9; i++ ) norm += h[i]*h[i];
+		norm = 1.0 / Math.sqrt(norm);
+		for ( int i=0; i<9; i++ ) h[i] *= norm;
+
+		// orientation not reversing
+		return h[0] * h[4] - h[3] * h[1] >= 0.05;
+	}
+
+	/**
+	 * Estimates the transformation mapping pxy in puv from a minimal sample.
+	 *
+	 * @return null if the sample is degenerate
+	 */
+	final AbstractTransformation estimate(Class trClass, float[][] pxy, float[][] puv) {
+		int trType = getTrType(trClass);
+		ensureCapacity(pxy.length);
+		for ( int i=0; i<pxy.length; i++ ) {
+			sx[i] = pxy[i][0];
+			sy[i] = pxy[i][1];
+			dx[i] = puv[i][0];
+			dy[i] = puv[i][1];
+			sample[i] = i;
+		}
+		if ( !estimate(trType) ) return null;
+		System.arraycopy(h, 0, bestH, 0, 9);
+		return getTransformation(trType);
+	}
+
+	/**
+	 * Marks in mask the points mapped by h within the error.
+	 *
+	 * @param minPoints	the evaluation stops when the inliers can't be more
+	 * 					than minPoints
+	 * @return	number of inliers, or a value not greater than minPoints if
+	 * 			the evaluation was stopped
+	 */
+	private final int evaluate(int size, double errorSquare, int minPoints) {
+		double h0 = h[0], h1 = h[1], h2 = h[2];
+		double h3 = h[3], h4 = h[4], h5 = h[5];
+		double h6 = h[6], h7 = h[7], h8 = h[8];
+		int count = 0;
+		int maxPossible = size;
+		for ( int i=0; i<size; i++ ) {
+			float x = sx[i];
+			float y = sy[i];
+			double w = h6 * x + h7 * y + h8;
+			float diffX = (float) ( ( h0 * x + h1 * y + h2 ) / w ) - dx[i];
+			float diffY = (float) ( ( h3 * x + h4 * y + h5 ) / w ) - dy[i];
+			if ( diffX * diffX + diffY * diffY <= errorSquare ) {
+				mask[i] = true;
+				count++;
+			} else {
+				mask[i] = false;
+				if ( --maxPossible <= minPoints ) return count;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return	number of hypotheses needed for the given inlier ratio
+	 */
+	public static final double getNHypotheses(double inlierRatio, int nPoints, double confidence) {
+		if ( confidence >= 1.0 ) return Double.MAX_VALUE;
+		double allInliers = Math.pow(inlierRatio, nPoints);
+		if ( allInliers >= 1.0 ) return 0;
+		if ( allInliers <= 0.0 ) return Double.MAX_VALUE;
+		return Math.log(1.0 - confidence) / Math.log(1.0 - allInliers);
+	}
+
+	/**
+	 * Draws nPoints distinct positions in sample: the k-th of order and
+	 * nPoints-1 among the first k (k<0 for nPoints among the first size).
+	 */
+	private final void draw(int nPoints, int k, int size) {
+		int from = k < 0 ? size : k;
+		int nRandom = k < 0 ? nPoints : nPoints-1;
+		// partial shuffle of pool, undone after the draw
+		for ( int j=0; j<nRandom; j++ ) {
+			int r = j + RandomOperations.getInt(from - j);
+			swaps[j] = r;
+			int t = pool[j];
+			pool[j] = pool[r];
+			pool[r] = t;
+			sample[j] = order[pool[j]];
+		}
+		if ( k >= 0 ) sample[nPoints-1] = order[k];
+		for ( int j=nRandom-1; j>=0; j-- ) {
+			int r = swaps[j];
+			int t = pool[j];
+			pool[j] = pool[r];
+			pool[r] = t;
+		}
+	}
+
+	/**
+	 * Draws nDraws samples as {@link #draw(int, int, int)} from size
+	 * positions in their order.
+	 */
+	final int[][] draw(int nPoints, int k, int size, int nDraws) {
+		ensureCapacity(size);
+		for ( int i=0; i<size; i++ ) {
+			pool[i] = i;
+			order[i] = i;
+		}
+		int[][] res = new int[nDraws][];
+		for ( int i=0; i<nDraws; i++ ) {
+			draw(nPoints, k, size);
+			res[i] = Arrays.copyOf(sample, nPoints);
+		}
+		return res;
+	}
+
+	/**
+	 * @param ordered				Hough bins in decreasing order of size
+	 * @param cycles				max number of hypotheses for each bin
+	 * @param nHoughMaxForRANSAC	number of best bins to consider
+	 * @param error					max relative distance
+	 * @param trClass				trasformation to be searched
+	 * @param minDist				min distance between matches
+	 * @param onlyBest				if true, the algorithm returns only the best hypothesis
+	 * @param rejectUnConsistent	if true, unconsistent matches set are rejected
+	 * @return the hypotheses ordered by number of matches
+	 */
+	public ArrayList<TransformationHypothesis>
+		getRANSAC(	LocalFeaturesMatches[] ordered,
+					int cycles,
+					int nHoughMaxForRANSAC,
+					double error,
+					Class trClass,
+					double minDist,
+					boolean onlyBest,
+					boolean rejectUnConsistent ) {
+
+		int nPoints = Transformations.getNPointsForEstimation(trClass);
+		int trType = getTrType(trClass);
+		double errorSquare = error * error;
+
+		int maxNPointsFound = onlyBest ? 0 : -1;
+
+		ArrayList<TransformationHypothesis> res = new ArrayList<TransformationHypothesis>();
+
+		for ( int i = 0; i < ordered.length && i < nHoughMaxForRANSAC; i++ ) {
+
+			LocalFeaturesMatches currMatches = ordered[i];
+			int size = currMatches.size();
+			if ( size < nPoints || size < maxNPointsFound ) {
+				break; // next ones would be <= nPoints too
+			}
+
+			byte scaleBin = currMatches.getScaleBinFromHash();
+			byte oriBin = currMatches.getOriBinFromHash();
+
+			pack(currMatches, size);
+
+			// hypotheses not better than this are not considered
+			int bestCount = Math.max(nPoints-1, maxNPointsFound);
+			boolean found = false;
+
+			// counting all possible combinations
+			long total = 1;
+			for ( int n = 0; n < nPoints; n++ ) {
+				total = total * (size - n) / (n + 1);
+			}
+
+			if ( cycles > total / 2 ) {
+				// all combinations
+				int[] index = sample;
+				for ( int ti=0; ti<nPoints; ti++ ) {
+					index[ti] = ti;
+				}
+				for ( long count = 0; count < total; count++ ) {
+					int lastModified = 0;
+					if ( count > 0 ) {
+						lastModified = nextIDs(index, nPoints, size);
+						if ( lastModified < 0 ) break;
+					}
+					boolean rejected = false;
+					for ( int ti = 1; !rejected && ti < nPoints; ti++ ) {
+						rejected = reject(ti, minDist, scaleBin, oriBin, rejectUnConsistent);
+					}
+					if ( rejected ) continue;
+					if ( !estimate(trType) ) continue;
+
+					int nInliers = evaluate(size, errorSquare, bestCount);
+					if ( nInliers > bestCount ) {
+						bestCount = nInliers;
+						found = true;
+						keepBest();
+						if ( nInliers == size ) break;
+					}
+				}
+
+			} else {
+				// PROSAC growth of the sampling set, T_N = cycles
+				int m = nPoints;
+				int n = m;
+				double tn = cycles;
+				for ( int k = 0; k < m; k++ ) {
+					tn *= (double) (m - k) / (size - k);
+				}
+				long tnPrime = 1;
+				// a better hypothesis has at least bestCount+1 inliers
+				double maxHypotheses = getNHypotheses((bestCount + 1) / (double) size, nPoints, confidence);
+
+				for ( int t = 1; t <= cycles && t <= maxHypotheses; t++ ) {
+					if ( t > tnPrime && n < size ) {
+						double tn1 = tn * (n + 1) / (n + 1 - m);
+						tnPrime += (long) Math.ceil(tn1 - tn);
+						tn = tn1;
+						n++;
+					}
+					if ( !prosac || ( n == size && t > tnPrime ) ) {
+						draw(nPoints, -1, size);
+					} else {
+						draw(nPoints, n-1, size);
+					}
+
+					boolean rejected = false;
+					for ( int ti = 1; !rejected && ti < nPoints; ti++ ) {
+						rejected = reject(ti, minDist, scaleBin, oriBin, rejectUnConsistent);
+					}
+					if ( rejected ) continue;
+					if ( !estimate(trType) ) continue;
+
+					int nInliers = evaluate(size, errorSquare, bestCount);
+					if ( nInliers > bestCount ) {
+						bestCount = nInliers;
+						found = true;
+						keepBest();
+						if ( nInliers == size ) break;
+						maxHypotheses = getNHypotheses(nInliers / (double) size, nPoints, confidence);
+					}
+				}
+			}
+
+			if ( found ) {
+				res.add(new TransformationHypothesis(getTransformation(trType), getInliers(currMatches, size)));
+				if ( maxNPointsFound >= 0 ) {
+					// this is searching only for best Hypothesis
+					maxNPointsFound = bestCount;
+				}
+				if ( bestCount == size ) {
+					// all points are inliers
+					break;
+				}
+			}
+		}
+
+		Collections.sort(res);
+		return res;
+	}
+
+	private final void keepBest() {
+		System.arraycopy(h, 0, bestH, 0, 9);
+		boolean[] t = bestMask;
+		bestMask = mask;
+		mask = t;
+	}
+
+	private final LocalFeaturesMatches getInliers(LocalFeaturesMatches matches, int size) {
+		ArrayList<LocalFeatureMatch> good = new ArrayList<LocalFeatureMatch>();
+		for ( int i=0; i<size; i++ ) {
+			if ( bestMask[i] ) good.add(matches.get(i));
+		}
+		return new LocalFeaturesMatches(good);
+	}
+
+	private final AbstractTransformation getTransformation(int trType) {
+		if ( trType == TR_AFFINE ) {
+			return new AffineTransformation(new double[] { bestH[0], bestH[3], bestH[1], bestH[4], bestH[2], bestH[5] });
+		}
+		return new HomographyTransformation(bestH.clone());
+	}
+
+	/**
+	 * Next combination of n positions among size as
+	 * {@link LocalFeaturesMatches#nextIDs(int[], int)}.
+	 */
+	private static final int nextIDs(int[] currIDs, int n, int size) {
+		int lastModified = n - 1;
+		currIDs[lastModified]++;
+		if ( currIDs[lastModified] == size ) {
+			for ( int i = lastModified - 1; i >= 0; i-- ) {
+				if ( currIDs[i] < size - n + i ) {
+					currIDs[i]++;
+					for ( int i2 = i + 1; i2 < n; i2++ ) {
+						currIDs[i2] = currIDs[i2 - 1] + 1;
+					}
+					return i;
+				}
+			}
+			return -1;
+		}
+		return lastModified;
+	}
+}
@@ -20,7 +20,6 @@ import it.cnr.isti.vir.geom.RSTTransformation;
 import it.cnr.isti.vir.geom.TransformationHypothesis;
 
 import java.util.ArrayList;
-import java.util.Hashtable;
 import java.util.Properties;
 
 public class SURFGroupSimilarity_RANSAC extends AGroupSimilarity<SURFGroup> {
@@ -126,8 +125,8 @@ public class SURFGroupSimilarity_RANSAC extends AGroupSimilarity<SURFGroup> {
 		
 		matches = SURFGroup.getLoweMatches( g1, g2, sqrLoweThr );
 		if ( matches == null || matches.size() < 2 ) return 1.0; 
-		Hashtable<Long, LocalFeaturesMatches> ht = LoweHoughTransform.getLoweHoughTransforms_HT(matches.getMatches(), false, RANSAC_minMaxSR);
-		trArr = matches.getRANSAC( ht, cycles, nHoughMaxForRANSAC, errorPerc, tr, minDist, true, rejectUnConsistent);
+		LocalFeaturesMatches[] bins = LoweHoughTransform.getLoweHoughAccumulator(matches.getMatches(), false, RANSAC_minMaxSR).getTopBins(nHoughMaxForRANSAC);
+		trArr = matches.getRANSAC( bins, cycles, nHoughMaxForRANSAC, errorPerc, tr, minDist, true, rejectUnConsistent);
 		
 		if ( trArr == null || trArr.size() == 0 ) sim = 0.0;
 		else sim = trArr.get(0).getHarmonicMeanOfPercentageMatches();
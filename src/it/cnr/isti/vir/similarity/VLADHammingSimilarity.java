@@ -11,6 +11,7 @@
  ******************************************************************************/
 package it.cnr.isti.vir.similarity;
 
+import it.cnr.isti.vir.distance.Hamming;
 import it.cnr.isti.vir.features.AbstractFeaturesCollector;
 import it.cnr.isti.vir.features.FeatureClassCollector;
 import it.cnr.isti.vir.features.localfeatures.VLAD;
@@ -18,10 +19,24 @@ import it.cnr.isti.vir.features.localfeatures.VLADHamming;
 
 import java.util.Properties;
 
-public class VLADHammingSimilarity implements ISimilarity<VLADHamming> {
+public class VLADHammingSimilarity implements ISimilarity<VLADHamming>, ISimilarityBatch<VLADHamming, VLADHammingSimilarity.Queries> {
 	
 	public static final FeatureClassCollector reqFeatures = new FeatureClassCollector(VLAD.class);
 	
+	/**
+	 * Codes of the queries and the bounds on the bit counts of the current
+	 * evaluation.
+	 */
+	public static final class Queries {
+		final long[][] values;
+		final double[] maxBits;
+		
+		Queries(long[][] values) {
+			this.values = values;
+			this.maxBits = new double[values.length];
+		}
+	}
+	
 	public VLADHammingSimilarity() {
 		
 	}
@@ -50,6 +65,36 @@ public class VLADHammingSimilarity implements ISimilarity<VLADHamming> {
 		return distance((VLADHamming) f1.getFeature(VLADHamming.class), (VLADHamming) f2.getFeature(VLADHamming.class), max);
 	}
 
+	@Override
+	public VLADHamming getFeature(AbstractFeaturesCollector fc) {
+		return fc.getFeature(VLADHamming.class);
+	}
+
+	@Override
+	public Queries getQueries(AbstractFeaturesCollector[] fc) {
+		long[][] values = new long[fc.length][];
+		for ( int i=0; i<fc.length; i++ ) {
+			values[i] = fc[i].getFeature(VLADHamming.class).getValues();
+		}
+		return new Queries(values);
+	}
+
+	@Override
+	public void distance(Queries q, VLADHamming obj, double[] max, double[] dist) {
+		// bit counts normalized in float as in Hamming.distance_norm
+		int nBits = obj.getNBits();
+		double[] maxBits = q.maxBits;
+		for ( int i=0; i<maxBits.length; i++ ) {
+			maxBits[i] = max[i] * nBits;
+		}
+		Hamming.distances(q.values, obj.getValues(), maxBits, 1.0, dist);
+		for ( int i=0; i<maxBits.length; i++ ) {
+			dist[i] = (float) dist[i] / (float) nBits;
+			// the bound on the bit count is rounded up
+			if ( dist[i] > max[i] ) dist[i] = -dist[i];
+		}
+	}
+
 	@Override
 	public long getDistCount() {
 		return 0;
@@ -3,16 +3,21 @@ package it.cnr.isti.vir.similarity.index;
 import it.cnr.isti.vir.features.AbstractFeature;
 import it.cnr.isti.vir.features.AbstractFeaturesCollector;
 import it.cnr.isti.vir.file.FeaturesCollectorsArchive;
+import it.cnr.isti.vir.file.FeaturesCollectorsArchiveIterator;
+import it.cnr.isti.vir.file.FeaturesCollectorsArchivePipelinedIterator;
 import it.cnr.isti.vir.global.Log;
 import it.cnr.isti.vir.global.ParallelOptions;
 import it.cnr.isti.vir.id.IHasID;
 import it.cnr.isti.vir.similarity.ISimilarity;
+import it.cnr.isti.vir.similarity.ISimilarityBatch;
 import it.cnr.isti.vir.similarity.knn.IkNNExecuter;
 import it.cnr.isti.vir.similarity.pqueues.AbstractSimPQueue;
 import it.cnr.isti.vir.similarity.pqueues.SimPQueueDMax;
+import it.cnr.isti.vir.similarity.pqueues.SimPQueueIntDMax;
 import it.cnr.isti.vir.similarity.results.ISimilarityResults;
 import it.cnr.isti.vir.similarity.results.ObjectWithDistance;
 import it.cnr.isti.vir.similarity.results.SimilarityResults;
+import it.cnr.isti.vir.util.SplitInGroups;
 import it.cnr.isti.vir.util.TimeManager;
 
 import java.io.BufferedOutputStream;
@@ -26,6 +31,7 @@ import java.lang.reflect.InvocationTargetException;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class FeaturesCollectorsArchiveSearch  implements IkNNExecuter {
 	
@@ -139,6 +145,7 @@ public class FeaturesCollectorsArchiveSearch  implements IkNNExecuter {
 		private final ISimilarity sim;
 		private final AbstractFeaturesCollector[] q;
 		private final TimeManager tm;
+		RuntimeException exception = null;
 		
 		pQueueThread(
 				AbstractFeaturesCollector[] q,
@@ -159,32 +166,230 @@ public class FeaturesCollectorsArchiveSearch  implements IkNNExecuter {
 
 		@Override
 		public void run() {
-			// each query is processed on an independent thread
-			while ( true) {
-				AbstractFeaturesCollector obj = null;
-				synchronized ( it ) {
-					if ( it.hasNext() ) {
-						obj = it.next();
-						tm.reportProgress();
-					} else {
-						return;
+			try {
+				ISimilarityBatch batch = getBatch(sim);
+				Object qF = batch == null ? null : batch.getQueries(q);
+				double[] max = new double[q.length];
+				double[] dists = new double[q.length];
+				// each query is processed on an independent thread
+				while ( true) {
+					AbstractFeaturesCollector obj = null;
+					synchronized ( it ) {
+						if ( it.hasNext() ) {
+							obj = it.next();
+							tm.reportProgress();
+						} else {
+							return;
+						}
 					}
-				}
-				for (int iQ = 0; iQ<q.length; iQ++) {
-				
-					double dist = sim.distance(q[iQ], obj, knn[iQ].excDistance );
-					if ( dist >= 0) {
-						if ( onlyID)
-							knn[iQ].offer(obj.getID(), dist);
-						else 
-							knn[iQ].offer(obj, dist);
+					for (int iQ = 0; iQ<q.length; iQ++) {
+						max[iQ] = knn[iQ].excDistance;
 					}
+					distance(sim, batch, q, qF, obj, max, dists);
+					for (int iQ = 0; iQ<q.length; iQ++) {
+				
+						double dist = dists[iQ];
+						if ( dist >= 0) {
+							if ( onlyID)
+								knn[iQ].offer(obj.getID(), dist);
+							else 
+								knn[iQ].offer(obj, dist);
+						}
 				
+					}
 				}
+			} catch (RuntimeException e) {
+				// also read errors of the iterator, thrown after join
+				exception = e;
+			}
+		}
+	}
+	
+	/**
+	 * Scans the objects in [from, to) of the archive offering their positions
+	 * (start + position in the archive) to thread-local queues, the results
+	 * are read when the queues are merged. The excluding distance of each
+	 * query is shared among threads (as the bits of a double) for pruning.
+	 */
+	static class ChunkThread implements Runnable {
+		private final FeaturesCollectorsArchive archive;
+		private final int from;
+		private final int to;
+		private final int start;
+		private final AbstractFeaturesCollector[] q;
+		private final ISimilarity sim;
+		final SimPQueueIntDMax[] knn;
+		private final AtomicLong[] excDistance;
+		private final TimeManager tm;
+		Exception exception = null;
+		
+		ChunkThread(
+				FeaturesCollectorsArchive archive,
+				int from, int to,
+				int start,
+				AbstractFeaturesCollector[] q,
+				ISimilarity sim,
+				SimPQueueIntDMax[] knn,
+				AtomicLong[] excDistance,
+				TimeManager tm
+				) {
+			this.archive = archive;
+			this.from = from;
+			this.to = to;
+			this.start = start;
+			this.q = q;
+			this.sim = sim;
+			this.knn = knn;
+			this.excDistance = excDistance;
+			this.tm = tm;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				ISimilarityBatch batch = getBatch(sim);
+				Object qF = batch == null ? null : batch.getQueries(q);
+				double[] max = new double[q.length];
+				double[] dists = new double[q.length];
+				Iterator<AbstractFeaturesCollector> it = archive.iterator(from, to);
+				try {
+					int count = 0;
+					int pos = start + from;
+					while ( it.hasNext() ) {
+						AbstractFeaturesCollector obj = it.next();
+						for (int iQ = 0; iQ<q.length; iQ++) {
+							max[iQ] = Math.min(knn[iQ].excDistance, Double.longBitsToDouble(excDistance[iQ].get()));
+						}
+						distance(sim, batch, q, qF, obj, max, dists);
+						for (int iQ = 0; iQ<q.length; iQ++) {
+							SimPQueueIntDMax curr = knn[iQ];
+							double dist = dists[iQ];
+							if ( dist < 0 || dist > max[iQ] ) continue;
+							curr.offer(pos, dist);
+							if ( curr.isFull() ) updateExcDistance(excDistance[iQ], curr.excDistance);
+						}
+						pos++;
+						if ( ++count == 1000 ) {
+							synchronized ( tm ) {
+								tm.reportProgress(count);
+							}
+							count = 0;
+						}
+					}
+				} finally {
+					if ( it instanceof FeaturesCollectorsArchiveIterator ) ((FeaturesCollectorsArchiveIterator) it).close();
+				}
+			} catch (Exception e) {
+				exception = e;
+			}
+		}
+	}
+	
+	private static final ISimilarityBatch getBatch(ISimilarity sim) {
+		if ( sim instanceof ISimilarityBatch ) return (ISimilarityBatch) sim;
+		return null;
+	}
+	
+	/**
+	 * Distances of obj from all the queries. If the similarity supports batch
+	 * evaluation qF are the queries previously prepared by the thread.
+	 */
+	private static final void distance(
+			ISimilarity sim, ISimilarityBatch batch,
+			AbstractFeaturesCollector[] q, Object qF,
+			AbstractFeaturesCollector obj,
+			double[] max, double[] dist) {
+		if ( batch != null ) {
+			batch.distance(qF, batch.getFeature(obj), max, dist);
+		} else {
+			for (int iQ = 0; iQ<q.length; iQ++) {
+				dist[iQ] = sim.distance(q[iQ], obj, max[iQ]);
 			}
 		}
 	}
 	
+	static final void updateExcDistance(AtomicLong shared, double dist) {
+		long curr = shared.get();
+		while ( dist < Double.longBitsToDouble(curr) ) {
+			if ( shared.compareAndSet(curr, Double.doubleToLongBits(dist)) ) return;
+			curr = shared.get();
+		}
+	}
+	
+	/**
+	 * The archive is split in chunks of consecutive objects that are
+	 * searched in parallel. Each thread uses its own queues that are merged
+	 * at the end.
+	 */
+	private void searchChunks(
+			AbstractFeaturesCollector[] qObj,
+			AbstractSimPQueue[] kNNQueue,
+			final ISimilarity sim,
+			final boolean onlyID) throws Exception {
+		
+		int size = archive.size();
+		TimeManager tm = new TimeManager();
+		tm.setTotNEle(size);
+		
+		AtomicLong[] excDistance = new AtomicLong[kNNQueue.length];
+		for ( int iQ=0; iQ<kNNQueue.length; iQ++ ) {
+			excDistance[iQ] = new AtomicLong(Double.doubleToLongBits(kNNQueue[iQ].excDistance));
+		}
+		
+		int nThread = ParallelOptions.reserveNFreeProcessors()+1;
+		Thread[] thread = new Thread[nThread];
+		ChunkThread[] runnable = new ChunkThread[nThread];
+		try {
+			int[] group = SplitInGroups.split(size, nThread);
+			int from = 0;
+			for ( int ti=0; ti<thread.length; ti++ ) {
+				int to = from + group[ti];
+				SimPQueueIntDMax[] local = new SimPQueueIntDMax[kNNQueue.length];
+				for ( int iQ=0; iQ<local.length; iQ++ ) {
+					local[iQ] = SimPQueueIntDMax.getEmpty(kNNQueue[iQ]);
+				}
+				runnable[ti] = new ChunkThread(archive, from, to, 0, qObj, sim, local, excDistance, tm);
+				thread[ti] = new Thread( runnable[ti] ) ;
+				thread[ti].start();
+				from = to;
+			}
+			
+			for ( Thread t : thread ) {
+				if ( t != null ) t.join();
+			}
+		} finally {
+			ParallelOptions.free(nThread-1);
+		}
+		
+		// merging (only the results are read)
+		for ( ChunkThread curr : runnable ) {
+			if ( curr.exception != null ) throw curr.exception;
+		}
+		for ( ChunkThread curr : runnable ) {
+			for ( int iQ=0; iQ<kNNQueue.length; iQ++ ) {
+				SimPQueueIntDMax local = curr.knn[iQ];
+				int[] pos = new int[local.size()];
+				double[] dist = new double[local.size()];
+				int n = local.getSortedAndEmpty(pos, dist);
+				for ( int i=0; i<n; i++ ) {
+					if ( dist[i] > kNNQueue[iQ].excDistance ) break;
+					AbstractFeaturesCollector obj = archive.get(pos[i]);
+					if ( onlyID )
+						kNNQueue[iQ].offer(obj.getID(), dist[i]);
+					else
+						kNNQueue[iQ].offer(obj, dist[i]);
+				}
+			}
+		}
+	}
+	
+	static final boolean isDMax(AbstractSimPQueue[] kNNQueue) {
+		for ( AbstractSimPQueue curr : kNNQueue ) {
+			if ( !(curr instanceof SimPQueueDMax) ) return false;
+		}
+		return true;
+	}
+	
 	public synchronized void search(
 			Collection<AbstractFeaturesCollector> qObj,
 			AbstractSimPQueue[] kNNQueue,
@@ -228,22 +433,47 @@ public class FeaturesCollectorsArchiveSearch  implements IkNNExecuter {
 					iObj++;
 				}				
 			
+			} else if ( isDMax(kNNQueue) ) {
+				
+				try {
+					searchChunks(qObj, kNNQueue, sim, onlyID);
+				} catch (IOException | InterruptedException | RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new IOException(e);
+				}
+				
 			} else {
 				
-				Iterator<AbstractFeaturesCollector> it = archive.iterator();
+				// objects are decoded by the iterator threads, half of the processors are left for distances
+				FeaturesCollectorsArchivePipelinedIterator it = archive.pipelinedIterator(
+						0, archive.size(),
+						FeaturesCollectorsArchivePipelinedIterator.defaultQueueDepth,
+						ParallelOptions.nProcessors / 2,
+						false);
 				TimeManager tm = new TimeManager();
 				tm.setTotNEle(archive.size());
 				int nThread = ParallelOptions.reserveNFreeProcessors()+1;
-				Thread[] thread = new Thread[nThread];
-				for ( int ti=0; ti<thread.length; ti++ ) {
-					thread[ti] = new Thread( new pQueueThread(qObj, sim, kNNQueue, it, onlyID, tm) ) ;
-		        	thread[ti].start();
+				try {
+					Thread[] thread = new Thread[nThread];
+					pQueueThread[] runnable = new pQueueThread[nThread];
+					for ( int ti=0; ti<thread.length; ti++ ) {
+						runnable[ti] = new pQueueThread(qObj, sim, kNNQueue, it, onlyID, tm);
+						thread[ti] = new Thread( runnable[ti] ) ;
+			        	thread[ti].start();
+					}
+					
+			        for ( Thread t : thread ) {
+			        	if ( t != null ) t.join();
+			        }
+			        for ( pQueueThread curr : runnable ) {
+			        	if ( curr.exception != null ) throw curr.exception;
+			        }
+				} finally {
+					// also stops the threads still running if join was interrupted
+					it.close();
+			        ParallelOptions.free(nThread-1);
 				}
-				
-		        for ( Thread t : thread ) {
-		        	t.join();
-		        }
-		        ParallelOptions.free(nThread-1);
 			}
 		}
 	}
@@ -300,14 +530,19 @@ public class FeaturesCollectorsArchiveSearch  implements IkNNExecuter {
 				Iterator<AbstractFeaturesCollector> itObj = Arrays.asList(objects).iterator();
 				int nThread = ParallelOptions.reserveNFreeProcessors();
 				Thread[] thread = new Thread[nThread];
+				pQueueThread[] runnable = new pQueueThread[nThread];
 				for ( int ti=0; ti<thread.length; ti++ ) {
-					thread[ti] = new Thread( new pQueueThread(qObj, sim, kNNQueue, it, true, tm) ) ;
+					runnable[ti] = new pQueueThread(qObj, sim, kNNQueue, it, true, tm);
+					thread[ti] = new Thread( runnable[ti] ) ;
 		        	thread[ti].start();
 				}
 		        for ( Thread t : thread ) {
 		        	t.join();
 		        }
 		        ParallelOptions.free(nThread);
+		        for ( pQueueThread curr : runnable ) {
+		        	if ( curr.exception != null ) throw curr.exception;
+		        }
 //				int bnt = ParallelOptions.reserveNFreeProcessors();
 //				final int nQueriesPerThread = (int) Math.ceil((double) kNNQueue.length / (bnt+1) );
 //				final int nThread = (int) Math.ceil((double) kNNQueue.length / nQueriesPerThread);
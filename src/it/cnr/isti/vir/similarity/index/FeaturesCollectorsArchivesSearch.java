@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Fabrizio Falchi (NeMIS Lab., ISTI-CNR, Italy)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package it.cnr.isti.vir.similarity.index;
+
+import it.cnr.isti.vir.features.AbstractFeature;
+import it.cnr.isti.vir.features.AbstractFeaturesCollector;
+import it.cnr.isti.vir.features.FeaturesCollectorArr;
+import it.cnr.isti.vir.file.FeaturesCollectorsArchive;
+import it.cnr.isti.vir.file.FeaturesCollectorsArchives;
+import it.cnr.isti.vir.global.Log;
+import it.cnr.isti.vir.global.ParallelOptions;
+import it.cnr.isti.vir.similarity.ISimilarity;
+import it.cnr.isti.vir.similarity.knn.IkNNExecuter;
+import it.cnr.isti.vir.similarity.pqueues.AbstractSimPQueue;
+import it.cnr.isti.vir.similarity.pqueues.SimPQueueDMax;
+import it.cnr.isti.vir.similarity.pqueues.SimPQueueIntDMax;
+import it.cnr.isti.vir.similarity.results.ISimilarityResults;
+import it.cnr.isti.vir.similarity.results.SimilarityResults;
+import it.cnr.isti.vir.util.TimeManager;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Searches all the archives (shards) of a {@link FeaturesCollectorsArchives}
+ * in parallel. Shards are split in ranges of consecutive objects that are
+ * taken by the threads as soon as they are free. The excluding distance of
+ * each query is shared among all threads, results are merged at the end.
+ */
+public class FeaturesCollectorsArchivesSearch implements IkNNExecuter {
+
+	/** Ranges per thread, more ranges help balancing shards of different size */
+	public static int rangesPerThread = 4;
+
+	protected final FeaturesCollectorsArchives archives;
+	protected final ISimilarity sim;
+	protected boolean onlyID = true;
+
+	public FeaturesCollectorsArchivesSearch(FeaturesCollectorsArchives archives, ISimilarity sim) {
+		this.archives = archives;
+		this.sim = sim;
+	}
+
+	public void setOnlyID(boolean onlyID) {
+		this.onlyID = onlyID;
+	}
+
+	@Override
+	public ISimilarityResults getKNNResults(AbstractFeature qObj, int k) throws Exception {
+		AbstractFeaturesCollector fc = null;
+		if ( qObj instanceof AbstractFeaturesCollector ) fc = (AbstractFeaturesCollector) qObj;
+		else fc = new FeaturesCollectorArr(qObj);
+		AbstractFeaturesCollector[] qObjs = { fc };
+		return getKNN(qObjs, k)[0];
+	}
+
+	public SimilarityResults[] getKNN(AbstractFeaturesCollector[] qObj, int k) throws Exception {
+		SimPQueueDMax[] kNNQueue = new SimPQueueDMax[qObj.length];
+		for (int i = 0; i < kNNQueue.length; i++) {
+			kNNQueue[i] = new SimPQueueDMax(k);
+		}
+		return search(qObj, kNNQueue);
+	}
+
+	public SimilarityResults[] getRange(AbstractFeaturesCollector[] qObj, double range) throws Exception {
+		SimPQueueDMax[] pQueue = new SimPQueueDMax[qObj.length];
+		for (int i = 0; i < pQueue.length; i++) {
+			pQueue[i] = new SimPQueueDMax(range);
+		}
+		return search(qObj, pQueue);
+	}
+
+	private SimilarityResults[] search(AbstractFeaturesCollector[] qObj, SimPQueueDMax[] pQueue) throws Exception {
+		search(qObj, pQueue, sim, onlyID);
+		SimilarityResults[] res = new SimilarityResults[pQueue.length];
+		for (int i = 0; i < pQueue.length; i++) {
+			res[i] = pQueue[i].getResults();
+			res[i].setQuery(qObj[i]);
+		}
+		return res;
+	}
+
+	/**
+	 * A range of objects of a shard.
+	 */
+	private static class Range {
+		final FeaturesCollectorsArchive archive;
+		final int from;
+		final int to;
+		// position of the shard in the archives
+		final int start;
+
+		Range(FeaturesCollectorsArchive archive, int from, int to, int start) {
+			this.archive = archive;
+			this.from = from;
+			this.to = to;
+			this.start = start;
+		}
+	}
+
+	/**
+	 * Searches all the shards offering the results to the given queues.
+	 * Queues that are not {@link SimPQueueDMax} are searched shard by shard.
+	 */
+	public void search(
+			AbstractFeaturesCollector[] qObj,
+			AbstractSimPQueue[] kNNQueue,
+			final ISimilarity sim,
+			final boolean onlyID) throws Exception {
+
+		if ( !FeaturesCollectorsArchiveSearch.isDMax(kNNQueue) ) {
+			for (int i = 0; i < archives.getNArchives(); i++) {
+				new FeaturesCollectorsArchiveSearch(archives.getArchive(i)).search(qObj, kNNQueue, sim, onlyID);
+			}
+			return;
+		}
+
+		final int nThread = ParallelOptions.reserveNFreeProcessors()+1;
+
+		// ranges
+		int size = archives.size();
+		int maxRangeSize = Math.max(1, (int) Math.ceil( (double) size / (nThread * rangesPerThread)));
+		final ArrayList<Range> ranges = new ArrayList<Range>();
+		int start = 0;
+		for ( int iA=0; iA<archives.getNArchives(); iA++ ) {
+			FeaturesCollectorsArchive archive = archives.getArchive(iA);
+			for ( int from=0; from<archive.size(); from+=maxRangeSize ) {
+				ranges.add(new Range(archive, from, Math.min(archive.size(), from+maxRangeSize), start));
+			}
+			start += archive.size();
+		}
+		Log.info_verbose("Searching " + archives.getNArchives() + " archives in " + ranges.size() + " ranges using " + nThread + " threads");
+
+		final TimeManager tm = new TimeManager();
+		tm.setTotNEle(size);
+
+		final AtomicLong[] excDistance = new AtomicLong[kNNQueue.length];
+		for ( int iQ=0; iQ<kNNQueue.length; iQ++ ) {
+			excDistance[iQ] = new AtomicLong(Double.doubleToLongBits(kNNQueue[iQ].excDistance));
+		}
+		final AtomicInteger nextRange = new AtomicInteger(0);
+		final SimPQueueIntDMax[][] local = new SimPQueueIntDMax[nThread][kNNQueue.length];
+		final Exception[] exception = new Exception[nThread];
+
+		Thread[] thread = new Thread[nThread];
+		try {
+			for ( int ti=0; ti<thread.length; ti++ ) {
+				for ( int iQ=0; iQ<kNNQueue.length; iQ++ ) {
+					local[ti][iQ] = SimPQueueIntDMax.getEmpty(kNNQueue[iQ]);
+				}
+				final int currT = ti;
+				thread[ti] = new Thread() {
+					@Override
+					public void run() {
+						int iR;
+						while ( (iR = nextRange.getAndIncrement()) < ranges.size() ) {
+							Range r = ranges.get(iR);
+							FeaturesCollectorsArchiveSearch.ChunkThread scan = new FeaturesCollectorsArchiveSearch.ChunkThread(
+									r.archive, r.from, r.to, r.start,
+									qObj, sim, local[currT], excDistance, tm);
+							scan.run();
+							if ( scan.exception != null ) {
+								exception[currT] = scan.exception;
+								return;
+							}
+						}
+					}
+				};
+				thread[ti].start();
+			}
+
+			for ( Thread t : thread ) {
+				if ( t != null ) t.join();
+			}
+		} finally {
+			// threads still running if join was interrupted stop after their range
+			nextRange.set(ranges.size());
+			ParallelOptions.free(nThread-1);
+		}
+
+		for ( Exception e : exception ) {
+			if ( e != null ) throw e;
+		}
+
+		// merging (only the results are read)
+		for ( int ti=0; ti<nThread; ti++ ) {
+			for ( int iQ=0; iQ<kNNQueue.length; iQ++ ) {
+				int[] pos = new int[local[ti][iQ].size()];
+				double[] dist = new double[pos.length];
+				int n = local[ti][iQ].getSortedAndEmpty(pos, dist);
+				for ( int i=0; i<n; i++ ) {
+					if ( dist[i] > kNNQueue[iQ].excDistance ) break;
+					AbstractFeaturesCollector obj = archives.get(pos[i]);
+					if ( onlyID )
+						kNNQueue[iQ].offer(obj.getID(), dist[i]);
+					else
+						kNNQueue[iQ].offer(obj, dist[i]);
+				}
+			}
+		}
+	}
+
+	public String toString() {
+		return this.getClass() + "\n   similarity: " + sim;
+	}
+}
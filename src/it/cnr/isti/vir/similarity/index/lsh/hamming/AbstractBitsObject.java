@@ -22,6 +22,10 @@ public abstract class AbstractBitsObject {
 	public static final int nBits = nLongs*nBitsBatch;
 	
 	public static final long[] getRandomData() {
+		return getRandomData(nLongs);
+	}
+	
+	public static final long[] getRandomData(int nLongs) {
 		long[] res = new long[nLongs];
 		for(int i=0; i<res.length; i++) {
 			res[i] = RandomOperations.getLong();
@@ -32,6 +36,11 @@ public abstract class AbstractBitsObject {
 	
 	
 	public static final long[] getRandomData(double percentageOfOnes) {
+		return getRandomData(nLongs, percentageOfOnes);
+	}
+	
+	public static final long[] getRandomData(int nLongs, double percentageOfOnes) {
+		int nBits = nLongs*nBitsBatch;
 		int nOnes = (int) (nBits*percentageOfOnes);		
 		long[] res = new long[nLongs];
 		for(int i=0; i<nOnes; i++) {
@@ -69,11 +78,11 @@ public abstract class AbstractBitsObject {
 
 	public final int[] perturbateRandomExactly(int[] orig, int nBits) {
 		int[] res = orig.clone();
-		int[] pert = RandomOperations.getDistinctInts(nBits, LSHHammingLongs.nBits);
+		int[] pert = RandomOperations.getDistinctInts(nBits, orig.length*Integer.SIZE);
 		
 		for(int bit : pert) {
-			int int_pos = bit/64;
-			int mask = 1<<bit/64;
+			int int_pos = bit/Integer.SIZE;
+			int mask = 1<<bit%Integer.SIZE;
 			res[int_pos]=res[int_pos]^mask;
 		}
 		return res;
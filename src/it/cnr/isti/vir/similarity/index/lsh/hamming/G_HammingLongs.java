@@ -17,6 +17,9 @@ import it.cnr.isti.vir.util.RandomOperations;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
 
 
 public class G_HammingLongs {
@@ -38,6 +41,16 @@ public class G_HammingLongs {
 	int[] byte_pos;
     byte[] byte_mask;
     
+    /**
+     * Multi-probe: cost of flipping each hashed bit (null for uniform costs)
+     */
+    float[] flipCost;
+    
+    // Multi-probe: XOR masks of the probed buckets for probeMaxFlips and probeBudget
+    private int[] probeMasks;
+    private int probeMaxFlips = -1;
+    private int probeBudget = -1;
+    
     private void fillArrays() {
     	long_pos = new int[hs.length];
     	long_mask = new long[hs.length];
@@ -66,6 +79,18 @@ public class G_HammingLongs {
         fillArrays();
     }
     
+    /**
+     * @param bits	the hashed bits (see {@link G_HammingLongsTrainer})
+     */
+    public G_HammingLongs(int[] bits){
+        h=bits.length;
+        hs=new H_HammingLongs[h];
+        for(int i=0;i<h;i++){
+            hs[i]=new H_HammingLongs(bits[i], 1<<i);
+        }
+        fillArrays();
+    }
+    
     public G_HammingLongs(DataInputStream in) throws IOException {
 		h = in.readInt();
 		hs=new H_HammingLongs[h];
@@ -112,6 +137,147 @@ public class G_HammingLongs {
     	return res;
     }
 
+    /**
+     * @return the number of codes in each bucket
+     */
+    public final int[] getBucketSizes(long[][] data) {
+    	int[] res = new int[1<<h];
+    	for ( long[] d : data ) {
+    		res[eval(d)]++;
+    	}
+    	return res;
+    }
+    
+    /**
+     * Sets the cost of flipping each of the h hashed bits while probing.
+     * Buckets whose keys differ from the query key in the cheapest bits are
+     * probed first. Costs can be estimated using {@link #estimateFlipCosts}.
+     * 
+     * @param cost	h positive costs or null for uniform costs
+     */
+    public synchronized void setFlipCosts(float[] cost) {
+    	if ( cost != null && cost.length != h )
+    		throw new IllegalArgumentException(h + " costs were expected, " + cost.length + " were given");
+    	flipCost = cost;
+    	probeMasks = null;
+    }
+    
+    /**
+     * Estimates the cost of flipping each hashed bit as -log of the
+     * probability that the bit differs between an object and one of its
+     * neighbors.
+     * 
+     * @param data		objects
+     * @param neighbor	a near neighbor of each object
+     */
+    public final float[] estimateFlipCosts(long[][] data, long[][] neighbor) {
+    	float[] cost = new float[h];
+    	for ( int i=0; i<h; i++ ) {
+    		// smoothed probability
+    		int nDiff = 1;
+    		for ( int j=0; j<data.length; j++ ) {
+    			if ( ((eval(data[j]) ^ eval(neighbor[j])) & (1<<i)) != 0 ) nDiff++;
+    		}
+    		cost[i] = (float) -Math.log( nDiff / (double) (data.length+2) );
+    	}
+    	return cost;
+    }
+    
+    /**
+     * Perturbation set over the hashed bits sorted by cost.
+     */
+    private static class Perturbation implements Comparable<Perturbation> {
+    	final int[] sortedBits;
+    	final double cost;
+    	
+    	Perturbation(int[] sortedBits, double cost) {
+    		this.sortedBits = sortedBits;
+    		this.cost = cost;
+    	}
+
+		@Override
+		public int compareTo(Perturbation o) {
+			return Double.compare(cost, o.cost);
+		}
+    }
+    
+    /**
+     * Returns the XOR masks of the buckets to be probed after the query one,
+     * in increasing order of flipping cost (i.e. of Hamming distance from the
+     * query key if costs are uniform). Perturbation sets are generated
+     * with the shift/expand scheme so that only the returned masks are
+     * considered.
+     * 
+     * @param maxFlips	max Hamming distance from the query key (T)
+     * @param budget	max number of masks
+     */
+    public final synchronized int[] getProbeMasks(int maxFlips, int budget) {
+    	if ( probeMasks != null && probeMaxFlips == maxFlips && probeBudget == budget ) return probeMasks;
+    	
+    	// bits sorted by cost
+    	final float[] cost = new float[h];
+    	Integer[] order = new Integer[h];
+    	for ( int i=0; i<h; i++ ) {
+    		cost[i] = flipCost == null ? 1.0f : flipCost[i];
+    		order[i] = i;
+    	}
+    	Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return Float.compare(cost[o1], cost[o2]);
+			}
+    	});
+    	
+    	int[] res = new int[budget];
+    	int n = 0;
+    	PriorityQueue<Perturbation> heap = new PriorityQueue<Perturbation>();
+    	if ( maxFlips > 0 && budget > 0 ) heap.add(new Perturbation(new int[] {0}, cost[order[0]]));
+    	while ( n < budget && !heap.isEmpty() ) {
+    		Perturbation curr = heap.poll();
+    		int[] s = curr.sortedBits;
+    		int last = s[s.length-1];
+    		
+    		int mask = 0;
+    		for ( int b : s ) mask |= 1 << order[b];
+    		res[n++] = mask;
+    		
+    		if ( last+1 < h ) {
+    			// shift: the last bit is replaced by the next one
+    			int[] shift = s.clone();
+    			shift[s.length-1] = last+1;
+    			heap.add(new Perturbation(shift, curr.cost - cost[order[last]] + cost[order[last+1]]));
+    			// expand: the next bit is added
+    			if ( s.length < Math.min(maxFlips, h) ) {
+    				int[] expand = Arrays.copyOf(s, s.length+1);
+    				expand[s.length] = last+1;
+    				heap.add(new Perturbation(expand, curr.cost + cost[order[last+1]]));
+    			}
+    		}
+    	}
+    	
+    	probeMasks = n == res.length ? res : Arrays.copyOf(res, n);
+    	probeMaxFlips = maxFlips;
+    	probeBudget = budget;
+    	return probeMasks;
+    }
+    
+    /**
+     * @param data		the query
+     * @param maxFlips	max Hamming distance from the query key (T)
+     * @param budget	max number of buckets probed in addition to the query one
+     * @return the query key followed by the keys of the buckets to be probed
+     */
+    public final int[] getProbes(long[] data, int maxFlips, int budget) {
+    	int key = eval(data);
+    	int[] masks = getProbeMasks(maxFlips, budget);
+    	int[] res = new int[masks.length+1];
+    	res[0] = key;
+    	for ( int i=0; i<masks.length; i++ ) {
+    		res[i+1] = key ^ masks[i];
+    	}
+    	return res;
+    }
+    
     public String toString() {
     	StringBuilder tStr = new StringBuilder();
     	
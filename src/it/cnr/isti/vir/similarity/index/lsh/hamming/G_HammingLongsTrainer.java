@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Fabrizio Falchi (NeMIS Lab., ISTI-CNR, Italy)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package it.cnr.isti.vir.similarity.index.lsh.hamming;
+
+import it.cnr.isti.vir.global.Log;
+import it.cnr.isti.vir.util.RandomOperations;
+
+import java.util.Arrays;
+
+/**
+ * Selects the hashed bits of {@link G_HammingLongs} on a sample of the codes
+ * instead of uniformly at random. Nearly constant bits and bits correlated
+ * with the already selected ones produce big buckets, thus the bits of each
+ * G are selected greedily maximizing the entropy of the bit times one minus
+ * its max absolute correlation (phi coefficient) with the selected bits.
+ * At each step only {@link #candidatesPerStep} random bits are considered
+ * so that the Gs of different tables use different bits.
+ *
+ * The indexes train their Gs when {@link #sampleSize} is greater than 0.
+ */
+public class G_HammingLongsTrainer {
+
+	/** Number of codes used for training the Gs of the indexes (0 for random bits) */
+	public static int sampleSize = 0;
+
+	/** Random bits considered at each step of the greedy selection */
+	public static int candidatesPerStep = 32;
+
+	private final int nBits;
+	private final int nSample;
+
+	/** Values of each bit in the sample (bitset of the objects) */
+	private final long[][] column;
+	private final int[] nOnes;
+	private final double[] entropy;
+
+	/**
+	 * @param sample	codes of the sample (all of the same length)
+	 */
+	public G_HammingLongsTrainer(long[][] sample) {
+		nBits = sample[0].length * Long.SIZE;
+		nSample = sample.length;
+		int nWords = (nSample + 63) / 64;
+		column = new long[nBits][nWords];
+		nOnes = new int[nBits];
+		entropy = new double[nBits];
+		for ( int b=0; b<nBits; b++ ) {
+			// same bit of the codes used by H_HammingLongs
+			H_HammingLongs hb = new H_HammingLongs(b, 1);
+			for ( int o=0; o<nSample; o++ ) {
+				if ( hb.eval(sample[o]) != 0 ) {
+					column[b][o >>> 6] |= 1L << o;
+					nOnes[b]++;
+				}
+			}
+			double p = nOnes[b] / (double) nSample;
+			entropy[b] = p == 0.0 || p == 1.0 ? 0.0 : -(p * Math.log(p) + (1-p) * Math.log(1-p)) / Math.log(2);
+		}
+	}
+
+	/**
+	 * @return the absolute phi coefficient between bits b1 and b2 on the sample
+	 */
+	private final double getCorrelation(int b1, int b2) {
+		if ( nOnes[b1] == 0 || nOnes[b1] == nSample || nOnes[b2] == 0 || nOnes[b2] == nSample ) return 1.0;
+		long n11 = 0;
+		long[] c1 = column[b1];
+		long[] c2 = column[b2];
+		for ( int w=0; w<c1.length; w++ ) n11 += Long.bitCount(c1[w] & c2[w]);
+		double p1 = nOnes[b1] / (double) nSample;
+		double p2 = nOnes[b2] / (double) nSample;
+		double phi = (n11 / (double) nSample - p1 * p2) / Math.sqrt(p1 * (1-p1) * p2 * (1-p2));
+		return Math.min(1.0, Math.abs(phi));
+	}
+
+	public G_HammingLongs getG(int h) {
+		if ( h > nBits )
+			throw new IllegalArgumentException("h (" + h + ") is greater than the code width (" + nBits + " bits)");
+		int[] bits = new int[h];
+		boolean[] selected = new boolean[nBits];
+		double[] maxCorr = new double[nBits];
+		for ( int i=0; i<h; i++ ) {
+			int best = -1;
+			double bestScore = -1.0;
+			for ( int b : RandomOperations.getDistinctInts(Math.min(candidatesPerStep, nBits), nBits) ) {
+				if ( selected[b] ) continue;
+				double score = entropy[b] * (1.0 - maxCorr[b]);
+				if ( score > bestScore ) {
+					bestScore = score;
+					best = b;
+				}
+			}
+			// all the candidates were already selected
+			for ( int b=0; best < 0; b++ ) {
+				if ( !selected[b] ) best = b;
+			}
+			bits[i] = best;
+			selected[best] = true;
+			for ( int b=0; b<nBits; b++ ) {
+				if ( !selected[b] ) maxCorr[b] = Math.max(maxCorr[b], getCorrelation(b, best));
+			}
+		}
+		return new G_HammingLongs(bits);
+	}
+
+	public G_HammingLongs[] getGs(int h, int l) {
+		G_HammingLongs[] gs = new G_HammingLongs[l];
+		for ( int i=0; i<l; i++ ) {
+			gs[i] = getG(h);
+		}
+		return gs;
+	}
+
+	/**
+	 * @return the positions of the codes of the training sample of an index of size codes
+	 */
+	public static final int[] getSamplePositions(int size) {
+		int[] res = sampleSize >= size ? RandomOperations.getOrderedInts(size) : RandomOperations.getDistinctInts(sampleSize, size);
+		Arrays.sort(res);
+		return res;
+	}
+
+	/**
+	 * Random Gs if sample is null, trained Gs otherwise. The bucket size
+	 * histograms of the Gs on the sample are logged.
+	 */
+	public static final G_HammingLongs[] getGs(int h, int nBits, int l, long[][] sample) {
+		G_HammingLongs[] gs = new G_HammingLongs[l];
+		if ( sample == null || sample.length == 0 ) {
+			for ( int i=0; i<l; i++ ) {
+				gs[i] = new G_HammingLongs(h, nBits);
+			}
+			return gs;
+		}
+		Log.info("Selecting the hashed bits on a sample of " + sample.length + " codes");
+		gs = new G_HammingLongsTrainer(sample).getGs(h, l);
+		for ( int i=0; i<l; i++ ) {
+			Log.info_verbose("Table " + i + " bucket sizes on the sample: " + getBucketSizeHistogram(gs[i].getBucketSizes(sample)));
+		}
+		return gs;
+	}
+
+	/**
+	 * Histogram of the sizes of the not empty buckets in powers of 2 bins,
+	 * followed by the max size and the expected number of candidates of a
+	 * query distributed as the objects (sum of the squared sizes over the
+	 * number of objects).
+	 */
+	public static final String getBucketSizeHistogram(int[] bucketSize) {
+		int[] bin = new int[Integer.SIZE];
+		int maxBin = 0;
+		int max = 0;
+		long n = 0;
+		double sum2 = 0.0;
+		for ( int s : bucketSize ) {
+			if ( s == 0 ) continue;
+			int b = Integer.SIZE - 1 - Integer.numberOfLeadingZeros(s);
+			bin[b]++;
+			maxBin = Math.max(maxBin, b);
+			max = Math.max(max, s);
+			n += s;
+			sum2 += (double) s * s;
+		}
+		StringBuilder tStr = new StringBuilder();
+		for ( int b=0; b<=maxBin; b++ ) {
+			tStr.append("[" + (1<<b) + "," + ((1L<<(b+1))-1) + "]:" + bin[b] + " ");
+		}
+		tStr.append("max " + max + ", expected candidates " + (n == 0 ? 0 : Math.round(sum2 / n)));
+		return tStr.toString();
+	}
+}
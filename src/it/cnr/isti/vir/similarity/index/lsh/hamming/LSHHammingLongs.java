@@ -12,9 +12,7 @@
 
 package it.cnr.isti.vir.similarity.index.lsh.hamming;
 
-import gnu.trove.iterator.TIntIterator;
 import gnu.trove.list.array.TIntArrayList;
-import gnu.trove.set.hash.TIntHashSet;
 import it.cnr.isti.vir.distance.Hamming;
 import it.cnr.isti.vir.features.AbstractFeature;
 import it.cnr.isti.vir.features.AbstractFeaturesCollector;
@@ -27,6 +25,7 @@ import it.cnr.isti.vir.id.AbstractID;
 import it.cnr.isti.vir.id.IHasID;
 import it.cnr.isti.vir.similarity.knn.IkNNExecuter;
 import it.cnr.isti.vir.similarity.pqueues.AbstractSimPQueue;
+import it.cnr.isti.vir.similarity.pqueues.SimPQueueIntDMax;
 import it.cnr.isti.vir.similarity.pqueues.SimPQueue_kNN;
 import it.cnr.isti.vir.similarity.pqueues.SimPQueue_r;
 import it.cnr.isti.vir.similarity.results.ISimilarityResults;
@@ -41,9 +40,15 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 
 
@@ -57,9 +62,10 @@ public class LSHHammingLongs implements IkNNExecuter {
 
 	private File path;
 
-	public static int nLongs = 64;;
-	public static int nBits = nLongs * 64;
-	public static int nBytes = nLongs * 8;
+	/** Code width in longs, bits and bytes (from the indexed codes) */
+	int nLongs;
+	int nBits;
+	int nBytes;
 	
 	int l;
     int h;
@@ -75,13 +81,34 @@ public class LSHHammingLongs implements IkNNExecuter {
     AbstractID[] id;
     
     boolean parallel = false;
+    
+    /**
+     * In parallel mode, min number of candidates evaluated by each thread
+     */
+    public static int minCandidatesPerTask = 4096;
+    
+    /**
+     * Multi-probe: max Hamming distance from the query key of the probed
+     * buckets (0 for probing only the query bucket)
+     */
+    public int probeMaxFlips = 0;
+    
+    /**
+     * Multi-probe: max number of buckets probed in each table in addition
+     * to the query one
+     */
+    public int probeBudget = 0;
 
     
     ByteBuffer dataReading_BB;
     ByteBuffer dataWriting_BB;
     //LongBuffer data_BB_Long;
 
-    byte[] readArr_Byte = new byte[nBytes];
+    byte[] readArr_Byte;
+    
+    // mapped data file, segments of segmentCodes codes
+    LongBuffer[] dataSegment;
+    int segmentCodes;
     
     public int getNumberOfBuckets(int b){
         return tables[b].length;
@@ -94,7 +121,7 @@ public class LSHHammingLongs implements IkNNExecuter {
     }
     
     public final long getFileChannelPosition(int internalID ) {
-    	return nBytes*internalID;
+    	return nBytes*(long) internalID;
     }
     
 //    public LSHHammingLongs( String path, int h, int l) throws ArchiveException, IOException {
@@ -114,11 +141,20 @@ public class LSHHammingLongs implements IkNNExecuter {
     	this.path = new File(path);
     	
     	data_raf = new RandomAccessFile(getDataFile(), "rw");
+    	data_raf.setLength(0);
     	
     	this.fClass = fClass;
+    	this.h = h;
+    	this.l = l;
     	
     	id = new AbstractID[fca.size()];
     	
+    	// the code width is the one of the archive codes
+    	nLongs = ((ILongBinaryValues) fca.get(0).getFeature(fClass)).getValues().length;
+    	nBits = nLongs * Long.SIZE;
+    	nBytes = nLongs * Long.BYTES;
+    	readArr_Byte = new byte[nBytes];
+    	
     	int iID = 0;
     	int i=0;
     	
@@ -133,6 +169,8 @@ public class LSHHammingLongs implements IkNNExecuter {
     		id[iID++] = ((IHasID) f).getID();
     		
     		long[] curr = ((ILongBinaryValues) f.getFeature(fClass)).getValues();
+    		if ( curr.length != nLongs )
+    			throw new ArchiveException("Object " + id[iID-1] + " has a code of " + curr.length + " longs, " + nLongs + " were expected");
  
     		LongByteArrayUtil.convToBytes(curr, readArr_Byte );
     		data_raf.write(readArr_Byte);
@@ -141,7 +179,7 @@ public class LSHHammingLongs implements IkNNExecuter {
     	}
     	Log.info("LSHHammingLongs data read ended.");
     	
-    
+    	mapData();
 
     	buildIndex();
     	
@@ -178,12 +216,17 @@ public class LSHHammingLongs implements IkNNExecuter {
     	Log.info("Building index");
     	Log.info("Database size: " + id.length) ;
     	
-    	this.l=l;
-    	this.h=h;
-    	gs=new G_HammingLongs[l];
+    	long[][] sample = null;
+    	if ( G_HammingLongsTrainer.sampleSize > 0 ) {
+    		int[] pos = G_HammingLongsTrainer.getSamplePositions(id.length);
+    		sample = new long[pos.length][nLongs];
+    		for ( int i=0; i<pos.length; i++ ) {
+    			readData(pos[i], sample[i]);
+    		}
+    	}
+    	gs = G_HammingLongsTrainer.getGs(h, nBits, l, sample);
     	tables= new TIntArrayList[l][];
     	for( int i=0;i<l;i++){
-    		gs[i]=new G_HammingLongs(h, nBits);
     		tables[i]=new TIntArrayList[1<<h];
     	}
     	
@@ -197,17 +240,34 @@ public class LSHHammingLongs implements IkNNExecuter {
         Log.info("Building index done");
     }
     
-    private synchronized final void readData(int id, long[] data) throws IOException {
-    	data_raf.seek(getFileChannelPosition(id));
-    	data_raf.read(readArr_Byte);
-    	
-    	LongByteArrayUtil.convToLong(readArr_Byte, data );
+    /**
+     * Maps the data file, codes are read from the mapped segments.
+     */
+    private void mapData() throws IOException {
+    	FileChannel fc = data_raf.getChannel();
+    	long size = data_raf.length() / nBytes;
+    	segmentCodes = Integer.MAX_VALUE / nBytes;
+    	int nSegments = (int) ((size + segmentCodes - 1) / segmentCodes);
+    	dataSegment = new LongBuffer[nSegments];
+    	for ( int iS=0; iS<nSegments; iS++ ) {
+    		long first = (long) iS * segmentCodes;
+    		long n = Math.min(segmentCodes, size - first);
+    		dataSegment[iS] = fc.map(FileChannel.MapMode.READ_ONLY, first * nBytes, n * nBytes).asLongBuffer();
+    	}
+    }
+    
+    private final void readData(int id, long[] data) {
+    	LongBuffer lb = dataSegment[id / segmentCodes];
+    	int offset = (id % segmentCodes) * nLongs;
+    	for ( int i=0; i<nLongs; i++ ) {
+    		data[i] = lb.get(offset+i);
+    	}
     }
     
     private final void insert(int id) throws IOException{
         long[] data = new long[nLongs];
+        readData(id, data);
     	for(int i=0;i<l;i++){
-        	readData(id, data);
             int key= gs[i].eval(data);
             
             TIntArrayList curr = tables[i][key];
@@ -219,7 +279,30 @@ public class LSHHammingLongs implements IkNNExecuter {
         }
     }
 	
-    static TIntHashSetPool hashSetPool = new TIntHashSetPool(8,30);
+    /**
+     * Threads evaluating the candidates of all the indexes, created once
+     */
+    private static ExecutorService pool = null;
+    
+    private static final synchronized ExecutorService getPool() {
+    	if ( pool == null ) {
+    		pool = Executors.newFixedThreadPool(ParallelOptions.nProcessors, new ThreadFactory() {
+    			@Override
+    			public Thread newThread(Runnable r) {
+    				Thread t = new Thread(r, "LSHHammingLongs-evaluate");
+    				t.setDaemon(true);
+    				return t;
+    			}
+    		});
+    	}
+    	return pool;
+    }
+    
+    /**
+     * Bitsets used for removing duplicated candidates, one for each running
+     * query. Bitsets are cleared while candidates are extracted.
+     */
+    private final ConcurrentLinkedQueue<long[]> bitsetPool = new ConcurrentLinkedQueue<long[]>();
       
 
 	public ISimilarityResults getKNNResults(AbstractFeaturesCollector fc, int k)
@@ -253,151 +336,136 @@ public class LSHHammingLongs implements IkNNExecuter {
     
     
     
-	class Search implements Runnable {
+	/**
+	 * Computes the distances of a range of the candidates.
+	 */
+	class Evaluate implements Callable<Void> {
 
-		private final TIntHashSet objects;
 		private final long[] query;
-		private final Iterator<Integer> ls;
+		private final int[] cand;
+		private final int[] dist;
+		private final int from;
+		private final int to;
+		private final int max;
 	    
-		Search(long[] query, Iterator<Integer> ls, TIntArrayList[][] tables, G_HammingLongs[] gs, TIntHashSet objects) {
-            this.ls = ls;
-			this.objects = objects;
-            this.query=  query;
+		Evaluate(long[] query, int[] cand, int[] dist, int from, int to, int max) {
+            this.query = query;
+            this.cand = cand;
+            this.dist = dist;
+            this.from = from;
+            this.to = to;
+            this.max = max;
         }
         
         @Override
-        public void run() {
-        	
-        	Integer l;
-        	
-        	while (true) {
-            	try {
-            		l = ls.next();
-            	} catch (NoSuchElementException e) {
-            		break;
-            	}
-            	if ( l == null ) break;
-        	
-	            int key=gs[l].eval(query);
-	            
-	            TIntArrayList bucket = tables[l][key];
-	            if ( bucket!= null) {
-	
-	            	for(int iE=0; iE<bucket.size(); iE++ ){
-	                    int o=bucket.get(iE);
-	                    synchronized(objects) {
-		                	objects.add(o);
-	                    }
-		            }
-	            }
+        public Void call() {
+        	// candidates are sorted, those of the same segment are consecutive
+        	int i = from;
+        	while ( i < to ) {
+        		int iS = cand[i] / segmentCodes;
+        		int end = i+1;
+        		while ( end < to && cand[end] / segmentCodes == iS ) end++;
+        		Hamming.distances(query, dataSegment[iS], iS * segmentCodes, cand, i, end, max, dist);
+        		i = end;
         	}
-
+        	return null;
         }                
     }
-    
-	class Evaluate implements Runnable {
-
-		private final TIntIterator it;
-		private final long[] query;
-		private final AbstractSimPQueue pQueue;
-	    
-		Evaluate(long[] query, TIntIterator it, AbstractSimPQueue pQueue ) {
-            this.it = it;
-            this.pQueue = pQueue;
-            this.query=  query;
-        }
-        
-        @Override
-        public void run() {
-        	
-            long[] data = new long[nLongs];
-            while (true) {
-           		int oID;
-           		synchronized(it) {
-           			if ( it.hasNext() == false ) break;
-           			oID =it.next();
-           		}
-                try {
-					readData(oID, data);
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+	
+	/**
+	 * @return the candidates of the query in increasing order of id
+	 */
+	private final int[] getCandidates(long[] query) {
+		
+		long[] bitset = bitsetPool.poll();
+		if ( bitset == null ) bitset = new long[(id.length + 63) / 64];
+		
+		int minWord = bitset.length;
+		int maxWord = -1;
+		for(int i=0;i<l;i++){
+			for ( int key : gs[i].getProbes(query, probeMaxFlips, probeBudget) ) {
+				TIntArrayList bucket = tables[i][key];
+				if ( bucket == null ) continue;
+				for(int iE=0; iE<bucket.size(); iE++ ){
+					int o = bucket.get(iE);
+					int w = o >>> 6;
+					bitset[w] |= 1L << o;
+					if ( w < minWord ) minWord = w;
+					if ( w > maxWord ) maxWord = w;
 				}
-                int dist=Hamming.distance(query, data  );
-                pQueue.offer(id[oID], dist);
-            }
-
-        }                
-    }
+			}
+		}
+		
+		int n = 0;
+		for ( int w=minWord; w<=maxWord; w++ ) {
+			n += Long.bitCount(bitset[w]);
+		}
+		int[] cand = new int[n];
+		n = 0;
+		for ( int w=minWord; w<=maxWord; w++ ) {
+			long word = bitset[w];
+			while ( word != 0 ) {
+				cand[n++] = (w << 6) + Long.numberOfTrailingZeros(word);
+				word &= word - 1;
+			}
+			bitset[w] = 0;
+		}
+		bitsetPool.offer(bitset);
+		return cand;
+	}
 	
     public final ISimilarityResults search(long[] query, AbstractSimPQueue pQueue) throws IOException, InterruptedException{
-    	int iHashSet = hashSetPool.acquireTIntHashSet();
-    	TIntHashSet objects = hashSetPool.getHashSet(iHashSet);
-
-    	ArrayList<Integer> ls = new ArrayList(gs.length);
-    	for ( int i=0; i<gs.length; i++) {
-    		ls.add(i);
-    	}
+    	if ( query.length != nLongs )
+    		throw new IllegalArgumentException("Query code has " + query.length + " longs, the index " + nLongs);
     	
-
-    	// Parallel
-    	if ( parallel ) {
-			int nThread = ParallelOptions.reserveNFreeProcessors()+1;
-			Thread[] thread = new Thread[nThread];
-			for ( int ti=0; ti<thread.length; ti++ ) {
-				thread[ti] = new Thread( new Search(query, ls.iterator(), tables, gs, objects) ) ;
-	        	thread[ti].start();
-			}
-			
-	        for ( Thread t : thread ) {
-	        	t.join();
-	        }
-	        ParallelOptions.free(nThread-1);
-    	} else {
-	    	
-	        for(int i=0;i<l;i++){
-	        	
-	            int key=gs[i].eval(query);
-	            
-	            TIntArrayList bucket = tables[i][key];
-	            if ( bucket!= null) {
-	
-	            	for(int iE=0; iE<bucket.size(); iE++ ){
-	                    int o=bucket.get(iE);
-		                objects.add(o);
-		            }
-	            }
-	        }
-    	}
+    	int[] cand = getCandidates(query);
+    	Log.info_verbose("Candidate set size: " + cand.length);
     	
-    	if ( parallel ) {
-	        // Parallel
-	        TIntIterator it = objects.iterator();
-			int nThread = ParallelOptions.reserveNFreeProcessors()+1;
-			Thread[] thread = new Thread[nThread];
-			for ( int ti=0; ti<thread.length; ti++ ) {
-				thread[ti] = new Thread( new Evaluate(query, it, pQueue) ) ;
-	        	thread[ti].start();
-			}
-			
-	        for ( Thread t : thread ) {
-	        	t.join();
-	        }
-	        ParallelOptions.free(nThread-1);
-    	} else {
-    		Log.info_verbose("Candidate set size: " + objects.size());
-	       long[] data = new long[nLongs];
-	       for(TIntIterator it = objects.iterator(); it.hasNext(); ){
-	            int oID=it.next();
-	
-	            readData(oID, data);
-	            int dist=Hamming.distance(query, data  );
-	            pQueue.offer(id[oID], dist);
-	
-	        }
+    	// candidates are read in increasing order
+    	int[] dist = new int[cand.length];
+    	// candidates farther than the current excluding distance are not completely evaluated
+    	int max = (int) pQueue.excDistance;
+    	int nTasks = parallel ? Math.min(ParallelOptions.nProcessors, cand.length / minCandidatesPerTask) : 1;
+    	// pool threads are used only for the reserved processors
+    	int nReserved = nTasks > 1 ? ParallelOptions.reserveNFreeProcessors(nTasks-1) : 0;
+    	try {
+	    	if ( nReserved == 0 ) {
+	    		new Evaluate(query, cand, dist, 0, cand.length, max).call();
+	    	} else {
+	    		nTasks = nReserved + 1;
+	    		ExecutorService pool = getPool();
+	    		ArrayList<Future<Void>> futures = new ArrayList<Future<Void>>(nTasks-1);
+	    		int step = (cand.length + nTasks - 1) / nTasks;
+	    		Throwable error = null;
+	    		try {
+		    		for ( int from=step; from<cand.length; from+=step ) {
+		    			futures.add(pool.submit(new Evaluate(query, cand, dist, from, Math.min(cand.length, from+step), max)));
+		    		}
+		    		// the first range is evaluated by the current thread
+		    		new Evaluate(query, cand, dist, 0, step, max).call();
+	    		} finally {
+	    			// submitted tasks are completed before freeing the processors
+		    		for ( Future<Void> f : futures ) {
+		    			try {
+		    				f.get();
+		    			} catch (ExecutionException e) {
+		    				if ( error == null ) error = e.getCause();
+		    			}
+		    		}
+	    		}
+	    		if ( error != null ) throw new IOException(error);
+	    	}
+    	} finally {
+    		ParallelOptions.free(nReserved);
     	}
     	
-        hashSetPool.releaseTIntHashSet(iHashSet);
+    	// positions are offered to a primitive queue, only the results to the given one
+    	SimPQueueIntDMax local = SimPQueueIntDMax.getEmpty(pQueue);
+    	for ( int i=0; i<cand.length; i++ ) {
+    		if ( dist[i] < 0 || dist[i] > local.excDistance ) continue;
+    		local.offer(cand[i], dist[i]);
+    	}
+    	local.offerToAndEmpty(pQueue, id);
         
         return pQueue.getResults();
     }
@@ -441,6 +509,8 @@ public class LSHHammingLongs implements IkNNExecuter {
         					new FileOutputStream(
         							new File(fileName))));
     
+    	out.writeInt(-L_HammingLongs.version);
+    	out.writeInt(nLongs);
     	out.writeInt(l);
     	out.writeInt(h);
     	for(int i=0;i<l;i++){
@@ -498,7 +568,14 @@ public class LSHHammingLongs implements IkNNExecuter {
     }
     
     public int getNObjs() throws IOException {
-    	return (int) (data_raf.length() / nLongs);
+    	return (int) (data_raf.length() / nBytes);
+    }
+    
+    /**
+     * @return the code width in longs
+     */
+    public final int getNLongs() {
+    	return nLongs;
     }
     
     public String toString()  {
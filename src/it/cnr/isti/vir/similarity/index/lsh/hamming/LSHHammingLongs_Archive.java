@@ -14,6 +14,7 @@ package it.cnr.isti.vir.similarity.index.lsh.hamming;
 
 import gnu.trove.iterator.TIntIterator;
 import gnu.trove.iterator.TLongIntIterator;
+import gnu.trove.list.array.TLongArrayList;
 import gnu.trove.set.hash.TIntHashSet;
 import it.cnr.isti.vir.distance.Hamming;
 import it.cnr.isti.vir.features.AbstractFeature;
@@ -26,11 +27,10 @@ import it.cnr.isti.vir.global.Log;
 import it.cnr.isti.vir.global.ParallelOptions;
 import it.cnr.isti.vir.similarity.knn.IkNNExecuter;
 import it.cnr.isti.vir.similarity.pqueues.AbstractSimPQueue;
+import it.cnr.isti.vir.similarity.pqueues.SimPQueueIntDMax;
 import it.cnr.isti.vir.similarity.pqueues.SimPQueue_kNN;
 import it.cnr.isti.vir.similarity.pqueues.SimPQueue_r;
 import it.cnr.isti.vir.similarity.results.ISimilarityResults;
-import it.cnr.isti.vir.similarity.results.ObjectWithDistance;
-import it.cnr.isti.vir.similarity.results.SimilarityResults;
 import it.cnr.isti.vir.util.TimeManager;
 
 import java.io.BufferedInputStream;
@@ -46,7 +46,8 @@ import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
 import java.nio.LongBuffer;
 import java.nio.channels.FileChannel;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.hamcrest.internal.ArrayIterator;
 
@@ -63,6 +64,10 @@ public class LSHHammingLongs_Archive implements IkNNExecuter {
 	
 	L_HammingLongs[] ls;
     int h;
+    
+    /** Code width in longs and bytes */
+    int nLongs;
+    int nBytes;
         
     Class<? extends AbstractFeature> fClass;
     
@@ -71,7 +76,28 @@ public class LSHHammingLongs_Archive implements IkNNExecuter {
     
     public int maxBucketSize_SEARCH = Integer.MAX_VALUE;
     
+    /**
+     * Multi-probe: max Hamming distance from the query key of the probed
+     * buckets (0 for probing only the query bucket)
+     */
+    public int probeMaxFlips = 0;
+    
+    /**
+     * Multi-probe: max number of buckets probed in each table in addition
+     * to the query one
+     */
+    public int probeBudget = 0;
+    
     static boolean parallel = true;
+    
+    /** Max number of queries searched together by the batch search */
+    public static int batchQueries = 1 << 12;
+    
+    /**
+     * Max number of (object, query) candidate pairs of a batch, larger
+     * batches are split
+     */
+    public static int maxBatchPairs = 1 << 26;
 //    public final long getFileChannelPosition(int internalID ) {
 //    	return nBytes*internalID;
 //    }
@@ -95,6 +121,10 @@ public class LSHHammingLongs_Archive implements IkNNExecuter {
     		ILongBinaryValues b =  ((ILongBinaryValues) fc.getFeature(fClass));
     		
     		long[] values = b.getValues();
+    		if ( values.length != nLongs ) {
+    			out.close();
+    			throw new ArchiveException("Object " + fc.getID() + " has a code of " + values.length + " longs, " + nLongs + " were expected");
+    		}
     		
     		for ( long l : values ) {
     			out.writeLong(l);
@@ -115,7 +145,11 @@ public class LSHHammingLongs_Archive implements IkNNExecuter {
 
     	fca = new FeaturesCollectorsArchive(fcaName, false);
     	
-    	if ( !(new File( getLongsFileName() )).exists() ) {
+    	// the code width is the one of the archive codes
+    	setNLongs( ((ILongBinaryValues) fca.get(0).getFeature(fClass)).getValues().length );
+    	
+    	File longsFile = new File( getLongsFileName() );
+    	if ( !longsFile.exists() || longsFile.length() != fca.size() * (long) nBytes ) {
     		createLongsFile();
     	}
     	
@@ -132,12 +166,27 @@ public class LSHHammingLongs_Archive implements IkNNExecuter {
     
     private void buildIndex() throws Exception {
     	
+    	// all the tables are built reading the longs file once
+    	File[] lFiles = new File[ls.length];
     	for( int i=0;i<ls.length;i++){
-    		ls[i] = new L_HammingLongs(new File(getLongsFileName()), getLSHLFile(i), h);
+    		lFiles[i] = getLSHLFile(i);
     	}
+    	ls = L_HammingLongs.build(new File(getLongsFileName()), lFiles, h, nLongs);
     	
     }    
     
+    private void setNLongs(int nLongs) {
+    	this.nLongs = nLongs;
+    	this.nBytes = nLongs * Long.BYTES;
+    }
+    
+    /**
+     * @return the code width in longs
+     */
+    public final int getNLongs() {
+    	return nLongs;
+    }
+    
     public File getLSHFile() {
     	return new File(
     			fca.getfile().getAbsolutePath() + ".lsh" );
@@ -195,6 +244,13 @@ public class LSHHammingLongs_Archive implements IkNNExecuter {
 			ls[i] = new L_HammingLongs(getLSHLFile(i));			
 		}
 		in.close();
+		
+		// the code width is in the header of each L
+		setNLongs(ls[0].getNLongs());
+		for (int i = 1; i < l; i++) {
+			if ( ls[i].getNLongs() != nLongs )
+				throw new IOException("LSH file " + getLSHLFile(i).getAbsolutePath() + " has codes of " + ls[i].getNLongs() + " longs, " + nLongs + " were expected");
+		}
 	}
     
     
@@ -261,12 +317,14 @@ public class LSHHammingLongs_Archive implements IkNNExecuter {
             	if ( l == null ) break;
         	
 		        try {
-		        	IntBuffer ib = l.getInBucket(query);
-		        	if ( ib != null ) {
-		        		if ( ib.capacity() > maxBucketSize_SEARCH ) continue;
-			        	synchronized ( results ) {
-			        		while ( ib.hasRemaining() )
-			        			results.add(ib.get());
+		        	for ( int key : l.getProbes(query, probeMaxFlips, probeBudget) ) {
+			        	IntBuffer ib = l.getInBucket(key);
+			        	if ( ib != null ) {
+			        		if ( ib.capacity() > maxBucketSize_SEARCH ) continue;
+				        	synchronized ( results ) {
+				        		while ( ib.hasRemaining() )
+				        			results.add(ib.get());
+				        	}
 			        	}
 		        	}
 				} catch (IOException e) {
@@ -320,18 +378,19 @@ public class LSHHammingLongs_Archive implements IkNNExecuter {
 
 		private final TIntIterator it;
 		private final long[] query;
-		private final AbstractSimPQueue pQueue;
+		// positions of the results of the thread
+		final SimPQueueIntDMax pQueue;
 	    
 		Evaluate(long[] query, TIntIterator it, AbstractSimPQueue pQueue ) {
             this.it = it;
-            this.pQueue = pQueue;
+            this.pQueue = SimPQueueIntDMax.getEmpty(pQueue);
             this.query=  query;
         }
         
         @Override
         public void run() {
         	
-    		ByteBuffer bb = ByteBuffer.allocateDirect(L_HammingLongs.nBytes);
+    		ByteBuffer bb = ByteBuffer.allocateDirect(nBytes);
         	LongBuffer lb = bb.asLongBuffer();;
         	FileChannel fc = LSHHammingLongs_Archive.this.fileChannel;
             while (true) {
@@ -341,7 +400,7 @@ public class LSHHammingLongs_Archive implements IkNNExecuter {
            			oID =it.next();
            		}
                 try {
-                	fc.read(bb, oID*(long) L_HammingLongs.nBytes);
+                	fc.read(bb, oID*(long) nBytes);
 				} catch ( Exception e) {
 					// TODO Auto-generated catch block
 					e.printStackTrace();
@@ -350,7 +409,7 @@ public class LSHHammingLongs_Archive implements IkNNExecuter {
            		
 			    bb.flip();   
 				int dist=Hamming.distance(query, lb  );
-				if ( dist < pQueue.excDistance )
+				if ( dist <= pQueue.excDistance )
 					pQueue.offer(oID, dist);
 			    lb.clear();
             }
@@ -359,6 +418,8 @@ public class LSHHammingLongs_Archive implements IkNNExecuter {
     }
 	
     public final ISimilarityResults search(long[] query, AbstractSimPQueue pQueue) throws Exception{
+    	if ( query.length != nLongs )
+    		throw new IllegalArgumentException("Query code has " + query.length + " longs, the index " + nLongs);
     	int iHashSet = hashSetPool.acquireTIntHashSet();
     	TIntHashSet objects = hashSetPool.getHashSet(iHashSet);
     	
@@ -379,10 +440,12 @@ public class LSHHammingLongs_Archive implements IkNNExecuter {
 	        ParallelOptions.free(nThread-1);
     	} else {
     		for(L_HammingLongs l: ls){
-    			IntBuffer ib = l.getInBucket(query);
-    			if ( ib == null || ib.capacity() > maxBucketSize_SEARCH ) continue;
-        		while ( ib.hasRemaining() )
-        			objects.add(ib.get());
+    			for ( int key : l.getProbes(query, probeMaxFlips, probeBudget) ) {
+	    			IntBuffer ib = l.getInBucket(key);
+	    			if ( ib == null || ib.capacity() > maxBucketSize_SEARCH ) continue;
+	        		while ( ib.hasRemaining() )
+	        			objects.add(ib.get());
+    			}
    			}
     	}
     	
@@ -391,8 +454,10 @@ public class LSHHammingLongs_Archive implements IkNNExecuter {
 	        TIntIterator it = objects.iterator();
 			int nThread = ParallelOptions.reserveNFreeProcessors()+1;
 			Thread[] thread = new Thread[nThread];
+			Evaluate[] runnable = new Evaluate[nThread];
 			for ( int ti=0; ti<thread.length; ti++ ) {
-				thread[ti] = new Thread( new Evaluate(query, it, pQueue) ) ;
+				runnable[ti] = new Evaluate(query, it, pQueue);
+				thread[ti] = new Thread( runnable[ti] ) ;
 	        	thread[ti].start();
 			}
 			
@@ -400,6 +465,9 @@ public class LSHHammingLongs_Archive implements IkNNExecuter {
 	        	t.join();
 	        }
 	        ParallelOptions.free(nThread-1);
+	        for ( Evaluate curr : runnable ) {
+	        	offerResults(curr.pQueue, pQueue);
+	        }
 	        
 	        
     	} else {
@@ -407,42 +475,46 @@ public class LSHHammingLongs_Archive implements IkNNExecuter {
 //	    	byte[] bytes = new byte[L_HammingLongs.nBytes];
 //        	long[] v = new long[L_HammingLongs.nLongs];
     		
-    		ByteBuffer bb = ByteBuffer.allocateDirect(L_HammingLongs.nBytes);
+    		ByteBuffer bb = ByteBuffer.allocateDirect(nBytes);
         	LongBuffer lb = bb.asLongBuffer();
         	FileChannel fc = LSHHammingLongs_Archive.this.fileChannel;
+        	SimPQueueIntDMax local = SimPQueueIntDMax.getEmpty(pQueue);
 	    	
 	    	for(TIntIterator it = objects.iterator(); it.hasNext(); ){
 		        int oID=it.next();
 
 			    try {
-                	fc.read(bb, oID*(long) L_HammingLongs.nBytes);
+                	fc.read(bb, oID*(long) nBytes);
 				} catch (Exception e) {
 					e.printStackTrace();
 					break;
 				}
 			    bb.flip();   
 				int dist=Hamming.distance(query, lb  );
-			    pQueue.offer(oID, dist);
+			    local.offer(oID, dist);
 			    lb.clear();
 			    
 		    }
+	    	offerResults(local, pQueue);
 	    	
     	}
     	hashSetPool.releaseTIntHashSet(iHashSet);
     	
-    	ISimilarityResults res = pQueue.getResults();
-    	ObjectWithDistance[] od = new ObjectWithDistance[res.size()];
-    	int i=0;
-   		for ( Iterator<ObjectWithDistance> it=res.iterator(); it != null && it.hasNext(); ) {
-   			ObjectWithDistance c = it.next();
-   			od[i++] = new ObjectWithDistance(
-   						fca.get((int) c.obj).getID(), 
-   						c.dist
- 					);
-   	  	}
-      
-        
-        return new SimilarityResults(od);
+    	return pQueue.getResults();
+    }
+    
+    /**
+     * Offers the IDs of the objects at the positions in the local queue to
+     * the given queue. The local queue is emptied.
+     */
+    private final void offerResults(SimPQueueIntDMax local, AbstractSimPQueue pQueue) throws ArchiveException {
+    	int[] pos = new int[local.size()];
+    	double[] dist = new double[pos.length];
+    	int n = local.getSortedAndEmpty(pos, dist);
+    	for ( int i=0; i<n; i++ ) {
+    		if ( dist[i] > pQueue.excDistance ) break;
+    		pQueue.offer(fca.get(pos[i]).getID(), dist[i]);
+    	}
     }
     
 //    private static int current=0;
@@ -465,6 +537,223 @@ public class LSHHammingLongs_Archive implements IkNNExecuter {
 //        return res;
 //    }
     
+    public ISimilarityResults[] getKNNResults(AbstractFeaturesCollector[] fc, int k) throws Exception {
+    	long[][] query = new long[fc.length][];
+    	AbstractSimPQueue[] pQueue = new AbstractSimPQueue[fc.length];
+    	for ( int i=0; i<fc.length; i++ ) {
+    		query[i] = ((ILongBinaryValues) fc[i].getFeature(fClass)).getValues();
+    		pQueue[i] = new SimPQueue_kNN(k);
+    	}
+    	return search(query, pQueue);
+    }
+    
+    /**
+     * Batch search. Queries are processed in groups of {@link #batchQueries}.
+     * For each table the queries of a group are grouped by probed bucket,
+     * thus each bucket is read once. The (object, query) candidate pairs of
+     * all the tables are then sorted by object so that each code is read
+     * once, in the order of the longs file, and evaluated against all the
+     * queries that have it as candidate. Groups with more than
+     * {@link #maxBatchPairs} candidate pairs are split in halves.
+     * 
+     * @param query		the queries
+     * @param pQueue	a queue for each query
+     * @return the results of each query
+     */
+    public final ISimilarityResults[] search(long[][] query, AbstractSimPQueue[] pQueue) throws Exception {
+    	if ( query.length != pQueue.length )
+    		throw new IllegalArgumentException(query.length + " queries and " + pQueue.length + " queues were given");
+    	for ( long[] q : query ) {
+    		if ( q.length != nLongs )
+    			throw new IllegalArgumentException("Query code has " + q.length + " longs, the index " + nLongs);
+    	}
+    	
+    	// positions are offered to primitive queues, only the results to the given ones
+    	SimPQueueIntDMax[] local = new SimPQueueIntDMax[query.length];
+    	for ( int i=0; i<query.length; i++ ) {
+    		local[i] = SimPQueueIntDMax.getEmpty(pQueue[i]);
+    	}
+    	for ( int from=0; from<query.length; from+=batchQueries ) {
+    		searchBatch(query, local, from, Math.min(query.length, from+batchQueries));
+    	}
+    	
+    	ISimilarityResults[] res = new ISimilarityResults[query.length];
+    	for ( int i=0; i<query.length; i++ ) {
+    		offerResults(local[i], pQueue[i]);
+    		res[i] = pQueue[i].getResults();
+    	}
+    	return res;
+    }
+    
+    /**
+     * @return the (object, query) candidate pairs of queries [from, to) in the table,
+     * 		sorted and without duplicates
+     */
+    private final long[] getCandidatePairs(L_HammingLongs l, long[][] query, int from, int to) throws IOException {
+    	// (key, query) pairs sorted by key
+    	TLongArrayList keyQuery = new TLongArrayList();
+    	for ( int q=from; q<to; q++ ) {
+    		for ( int key : l.getProbes(query[q], probeMaxFlips, probeBudget) ) {
+    			keyQuery.add(((long) key << 32) | q);
+    		}
+    	}
+    	long[] kq = keyQuery.toArray();
+    	Arrays.sort(kq);
+    	
+    	TLongArrayList res = new TLongArrayList();
+    	for ( int i=0; i<kq.length; ) {
+    		int key = (int) (kq[i] >>> 32);
+    		int end = i+1;
+    		while ( end < kq.length && (int) (kq[end] >>> 32) == key ) end++;
+    		
+    		IntBuffer ib = l.getInBucket(key);
+    		if ( ib != null && ib.capacity() <= maxBucketSize_SEARCH ) {
+    			for ( int j=0; j<ib.capacity(); j++ ) {
+    				long obj = (long) ib.get(j) << 32;
+    				for ( int iq=i; iq<end; iq++ ) {
+    					res.add(obj | (kq[iq] & 0xFFFFFFFFL));
+    				}
+    			}
+    		}
+    		i = end;
+    	}
+    	long[] pairs = res.toArray();
+    	res = null;
+    	Arrays.sort(pairs);
+    	return Arrays.copyOf(pairs, unique(pairs, pairs.length));
+    }
+    
+    /**
+     * Removes the duplicates of a sorted array.
+     * @return the number of distinct values, moved at the beginning
+     */
+    private static final int unique(long[] sorted, int n) {
+    	if ( n == 0 ) return 0;
+    	int res = 1;
+    	for ( int i=1; i<n; i++ ) {
+    		if ( sorted[i] != sorted[res-1] ) sorted[res++] = sorted[i];
+    	}
+    	return res;
+    }
+    
+    private final void searchBatch(final long[][] query, final SimPQueueIntDMax[] pQueue, final int from, final int to) throws Exception {
+    	
+    	final int nThread = parallel ? ParallelOptions.reserveNFreeProcessors()+1 : 1;
+    	final Exception[] exception = new Exception[nThread];
+    	Thread[] thread = new Thread[nThread];
+    	
+    	// candidates of each table
+    	final long[][] tPairs = new long[ls.length][];
+    	final AtomicInteger nextTable = new AtomicInteger();
+    	for ( int ti=0; ti<nThread; ti++ ) {
+    		final int currT = ti;
+    		thread[ti] = new Thread() {
+    			@Override
+    			public void run() {
+    				int iL;
+    				try {
+	    				while ( (iL = nextTable.getAndIncrement()) < ls.length ) {
+	    					tPairs[iL] = getCandidatePairs(ls[iL], query, from, to);
+	    				}
+    				} catch (Exception e) {
+    					exception[currT] = e;
+    				}
+    			}
+    		};
+    		thread[ti].start();
+    	}
+    	for ( Thread t : thread ) {
+    		t.join();
+    	}
+    	for ( Exception e : exception ) {
+    		if ( e != null ) {
+    			ParallelOptions.free(nThread-1);
+    			throw e;
+    		}
+    	}
+    	
+    	long nTotPairs = 0;
+    	for ( long[] p : tPairs ) nTotPairs += p.length;
+    	if ( nTotPairs > maxBatchPairs && to-from > 1 ) {
+    		Log.info_verbose("Batch of " + (to-from) + " queries: " + nTotPairs + " candidate pairs, splitting");
+    		for ( int i=0; i<tPairs.length; i++ ) tPairs[i] = null;
+    		ParallelOptions.free(nThread-1);
+    		int middle = (from + to) / 2;
+    		searchBatch(query, pQueue, from, middle);
+    		searchBatch(query, pQueue, middle, to);
+    		return;
+    	}
+    	if ( nTotPairs > Integer.MAX_VALUE - 8 ) {
+    		ParallelOptions.free(nThread-1);
+    		throw new Exception("Query has " + nTotPairs + " candidate pairs");
+    	}
+    	
+    	final long[] pairs = new long[(int) nTotPairs];
+    	int nPairs = 0;
+    	for ( int i=0; i<tPairs.length; i++ ) {
+    		System.arraycopy(tPairs[i], 0, pairs, nPairs, tPairs[i].length);
+    		nPairs += tPairs[i].length;
+    		tPairs[i] = null;
+    	}
+    	Arrays.parallelSort(pairs);
+    	// the same candidate from different tables
+    	nPairs = unique(pairs, nPairs);
+    	Log.info_verbose("Batch of " + (to-from) + " queries: " + nPairs + " candidate pairs");
+    	
+    	// ranges of pairs starting with a new object
+    	final int[] rangeStart = new int[nThread+1];
+    	for ( int ti=1; ti<nThread; ti++ ) {
+    		int start = Math.max(rangeStart[ti-1], (int) ((long) nPairs * ti / nThread));
+    		while ( start > 0 && start < nPairs && (pairs[start] >>> 32) == (pairs[start-1] >>> 32) ) start++;
+    		rangeStart[ti] = start;
+    	}
+    	rangeStart[nThread] = nPairs;
+    	
+    	for ( int ti=0; ti<nThread; ti++ ) {
+    		final int currT = ti;
+    		thread[ti] = new Thread() {
+    			@Override
+    			public void run() {
+    				ByteBuffer bb = ByteBuffer.allocateDirect(nBytes);
+    				LongBuffer lb = bb.asLongBuffer();
+    				int lastObj = -1;
+    				try {
+	    				for ( int i=rangeStart[currT]; i<rangeStart[currT+1]; i++ ) {
+	    					int obj = (int) (pairs[i] >>> 32);
+	    					int q = (int) pairs[i];
+	    					if ( obj != lastObj ) {
+	    						bb.clear();
+	    						long pos = obj * (long) nBytes;
+	    						while ( bb.hasRemaining() ) {
+	    							int n = fileChannel.read(bb, pos);
+	    							if ( n < 0 ) throw new IOException("Unexpected end of file " + getLongsFileName());
+	    							pos += n;
+	    						}
+	    						lastObj = obj;
+	    					}
+	    					int dist = Hamming.distance(query[q], lb, 0);
+	    					SimPQueueIntDMax pq = pQueue[q];
+	    					if ( dist > pq.excDistance ) continue;
+	    					synchronized ( pq ) {
+	    						if ( dist <= pq.excDistance ) pq.offer(obj, dist);
+	    					}
+	    				}
+    				} catch (Exception e) {
+    					exception[currT] = e;
+    				}
+    			}
+    		};
+    		thread[ti].start();
+    	}
+    	for ( Thread t : thread ) {
+    		t.join();
+    	}
+    	ParallelOptions.free(nThread-1);
+    	for ( Exception e : exception ) {
+    		if ( e != null ) throw e;
+    	}
+    }
+    
     public final int getNOfNotNullBuckets() {
     	int res = 0;
     	for ( int i=0; i<ls.length; i++ ) {
@@ -603,7 +892,12 @@ public class LSHHammingLongs_Archive implements IkNNExecuter {
     	
     	tStr.append("- avgNotNullBucketSize\t" + sum/(double) nNotNulls + "\n");
     	
-    	tStr.append("- biggestBucket\t" + maxN + "\t" + "(" + maxID1 + "," + maxID2 +")");
+    	tStr.append("- biggestBucket\t" + maxN + "\t" + "(" + maxID1 + "," + maxID2 +")\n");
+    	
+    	tStr.append("- bucketSizes\n");
+    	for ( int i=0; i<ls.length; i++ ) {
+    		tStr.append("   " + i + ": " + G_HammingLongsTrainer.getBucketSizeHistogram(ls[i].getBucketSizes()) + "\n");
+    	}
     
     	//    	try {
 //			tStr.append("- sizeInBytes\t" + this.getDataSizeInBytes() + "\n");
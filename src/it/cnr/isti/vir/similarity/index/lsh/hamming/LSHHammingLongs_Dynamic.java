@@ -0,0 +1,731 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Fabrizio Falchi (NeMIS Lab., ISTI-CNR, Italy)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package it.cnr.isti.vir.similarity.index.lsh.hamming;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.set.hash.TIntHashSet;
+import gnu.trove.iterator.TIntIterator;
+import it.cnr.isti.vir.distance.Hamming;
+import it.cnr.isti.vir.features.AbstractFeature;
+import it.cnr.isti.vir.features.AbstractFeaturesCollector;
+import it.cnr.isti.vir.features.ILongBinaryValues;
+import it.cnr.isti.vir.file.ArchiveException;
+import it.cnr.isti.vir.file.FeaturesCollectorsArchive;
+import it.cnr.isti.vir.global.Log;
+import it.cnr.isti.vir.id.AbstractID;
+import it.cnr.isti.vir.id.IDClasses;
+import it.cnr.isti.vir.similarity.knn.IkNNExecuter;
+import it.cnr.isti.vir.similarity.pqueues.AbstractSimPQueue;
+import it.cnr.isti.vir.similarity.pqueues.SimPQueueIntDMax;
+import it.cnr.isti.vir.similarity.pqueues.SimPQueue_kNN;
+import it.cnr.isti.vir.similarity.pqueues.SimPQueue_r;
+import it.cnr.isti.vir.similarity.results.ISimilarityResults;
+import it.cnr.isti.vir.util.TimeManager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Hamming LSH index supporting inserts and deletes.
+ *
+ * The index is stored in a directory: codes (data.longs), IDs (ids.dat) and
+ * the tables ({@link L_HammingLongs}) plus the merged objects that have been
+ * removed (removed.dat), the header (lsh.dat) gives the number of merged
+ * objects and the generation of the tables and removed files. Inserted objects are kept in an
+ * in-memory delta segment, deleted objects are marked in a tombstones
+ * bitset. Both are seen by the queries immediately.
+ * The merge appends the delta to the data files and writes new tables
+ * reading each existing buckets file once (see
+ * {@link L_HammingLongsBuilder#merge}). During the merge the delta is frozen
+ * and searched, new inserts go to a new delta. Searches are only blocked
+ * while the new tables replace the old ones.
+ * A merge appends to the data and IDs files after the merged objects and
+ * writes the tables of a new generation, the header is written last: if it
+ * fails or the process dies the index opens with the previous generation.
+ * The delta is not persistent: {@link #close()} merges it.
+ *
+ * The hashed bits of the tables (see {@link G_HammingLongsTrainer}) are
+ * selected when the index is created: trained on the codes of the archive
+ * by {@link #LSHHammingLongs_Dynamic(File, FeaturesCollectorsArchive, Class, int, int)},
+ * random for an empty index. Merges do not change them.
+ */
+public class LSHHammingLongs_Dynamic implements IkNNExecuter {
+
+	public static final int version = 2;
+
+	/** Number of inserted objects that starts a background merge */
+	public static int autoMergeSize = 1 << 20;
+
+	/**
+	 * In-memory segment of the inserted objects.
+	 */
+	private class Delta {
+		/** Position of the first object */
+		final int first;
+		final ArrayList<AbstractID> ids = new ArrayList<AbstractID>();
+		long[] codes = new long[nLongs * 1024];
+		final HashMap<Integer, TIntArrayList>[] buckets;
+
+		@SuppressWarnings("unchecked")
+		Delta(int first) {
+			this.first = first;
+			buckets = new HashMap[ls.length];
+			for ( int i=0; i<buckets.length; i++ ) buckets[i] = new HashMap<Integer, TIntArrayList>();
+		}
+
+		final int size() {
+			return ids.size();
+		}
+
+		final boolean contains(int pos) {
+			return pos >= first && pos < first + ids.size();
+		}
+
+		final void add(AbstractID id, long[] code, int[] keys) {
+			int pos = first + ids.size();
+			int offset = ids.size() * nLongs;
+			if ( offset + nLongs > codes.length ) codes = Arrays.copyOf(codes, codes.length * 2);
+			System.arraycopy(code, 0, codes, offset, nLongs);
+			ids.add(id);
+			for ( int i=0; i<keys.length; i++ ) {
+				TIntArrayList bucket = buckets[i].get(keys[i]);
+				if ( bucket == null ) {
+					bucket = new TIntArrayList();
+					buckets[i].put(keys[i], bucket);
+				}
+				bucket.add(pos);
+			}
+		}
+	}
+
+	private final File dir;
+	private final int nLongs;
+	private final int nBytes;
+	private final int h;
+
+	private L_HammingLongs[] ls;
+	// generation of the tables and removed files
+	private int generation;
+
+	// merged objects
+	private int baseSize;
+	private long idsLength;
+	private AbstractID[] baseIDs;
+	private RandomAccessFile dataRAF;
+	private LongBuffer[] dataSegment;
+	private int segmentCodes;
+
+	private Delta active;
+	private Delta merging;
+	private final BitSet deleted = new BitSet();
+	// merged objects no more in the tables
+	private BitSet removed = new BitSet();
+	private final HashMap<AbstractID, Integer> position = new HashMap<AbstractID, Integer>();
+
+	// searches hold the read lock, updates and the tables replacement the write lock
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Object mergeLock = new Object();
+	private Thread mergeThread;
+	private volatile Exception mergeException;
+
+	/**
+	 * Multi-probe: max Hamming distance from the query key of the probed
+	 * buckets (0 for probing only the query bucket)
+	 */
+	public int probeMaxFlips = 0;
+
+	/**
+	 * Multi-probe: max number of buckets probed in each table in addition
+	 * to the query one
+	 */
+	public int probeBudget = 0;
+
+	static TIntHashSetPool hashSetPool = new TIntHashSetPool(8,30);
+
+	private final File getHeaderFile() {
+		return new File(dir, "lsh.dat");
+	}
+
+	private final File getDataFile() {
+		return new File(dir, "data.longs");
+	}
+
+	private final File getIDsFile() {
+		return new File(dir, "ids.dat");
+	}
+
+	private final File getRemovedFile(int gen) {
+		return new File(dir, gen == 0 ? "removed.dat" : "removed_" + gen + ".dat");
+	}
+
+	private final File getLFile(int i, int gen) {
+		return new File(dir, gen == 0 ? "l" + i : "l" + i + "_" + gen);
+	}
+
+	private static final File getTmpFile(File file) {
+		return new File(file.getAbsolutePath() + ".tmp");
+	}
+
+	/**
+	 * Creates an empty index.
+	 *
+	 * @param dir		directory of the index
+	 * @param nLongs	code width in longs
+	 * @param h			number of bits used for hashing
+	 * @param l			number of tables
+	 */
+	public LSHHammingLongs_Dynamic(File dir, int nLongs, int h, int l) throws Exception {
+		this(dir, nLongs, h, l, null, null);
+	}
+
+	/**
+	 * Creates the index with all the objects of an archive, the hashed bits
+	 * are trained on its codes if {@link G_HammingLongsTrainer#sampleSize}
+	 * is greater than 0.
+	 */
+	public LSHHammingLongs_Dynamic(File dir, FeaturesCollectorsArchive fca, Class<? extends AbstractFeature> fClass, int h, int l) throws Exception {
+		this(dir, getNLongs(fca, fClass), h, l, fca, fClass);
+	}
+
+	private static int getNLongs(FeaturesCollectorsArchive fca, Class<? extends AbstractFeature> fClass) throws Exception {
+		if ( fca.size() == 0 )
+			throw new ArchiveException("Archive " + fca.getfile().getAbsolutePath() + " is empty, the code width is unknown");
+		return ((ILongBinaryValues) fca.get(0).getFeature(fClass)).getValues().length;
+	}
+
+	private LSHHammingLongs_Dynamic(File dir, int nLongs, int h, int l, FeaturesCollectorsArchive fca, Class<? extends AbstractFeature> fClass) throws Exception {
+		this.dir = dir;
+		this.nLongs = nLongs;
+		this.nBytes = nLongs * Long.BYTES;
+		this.h = h;
+		dir.mkdirs();
+
+		// codes and IDs of the archive
+		ArrayList<AbstractID> ids = new ArrayList<AbstractID>();
+		DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getDataFile()), 1 << 20));
+		DataOutputStream idsOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getIDsFile()), 1 << 20));
+		try {
+			if ( fca != null ) {
+				Log.info("LSHHammingLongs_Dynamic is reading data in " + fca.getfile().getAbsolutePath());
+				TimeManager tm = new TimeManager(fca.size());
+				for ( AbstractFeaturesCollector fc : fca ) {
+					long[] code = ((ILongBinaryValues) fc.getFeature(fClass)).getValues();
+					if ( code.length != nLongs )
+						throw new ArchiveException("Object " + fc.getID() + " has a code of " + code.length + " longs, " + nLongs + " were expected");
+					for ( long v : code ) dataOut.writeLong(v);
+					IDClasses.writeData(fc.getID(), idsOut);
+					ids.add(fc.getID());
+					tm.reportProgress();
+				}
+			}
+		} finally {
+			dataOut.close();
+			idsOut.close();
+		}
+
+		File[] lFiles = new File[l];
+		for ( int i=0; i<l; i++ ) lFiles[i] = getLFile(i, 0);
+		ls = L_HammingLongs.build(getDataFile(), lFiles, h, nLongs);
+
+		generation = 0;
+		baseSize = ids.size();
+		idsLength = getIDsFile().length();
+		baseIDs = ids.toArray(new AbstractID[baseSize]);
+		for ( int i=0; i<baseSize; i++ ) {
+			// an object with the same ID is replaced
+			Integer old = position.put(baseIDs[i], i);
+			if ( old != null ) deleted.set(old);
+		}
+		writeRemoved(getRemovedFile(0), removed);
+		writeHeader(getHeaderFile(), baseSize, idsLength, 0);
+		openData();
+		active = new Delta(baseSize);
+		if ( !deleted.isEmpty() ) merge();
+	}
+
+	/**
+	 * Opens an existing index.
+	 */
+	public LSHHammingLongs_Dynamic(File dir) throws Exception {
+		this.dir = dir;
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(getHeaderFile())));
+		try {
+			int fileVersion = in.readInt();
+			if ( fileVersion < 1 || fileVersion > version )
+				throw new IOException("LSH file " + getHeaderFile().getAbsolutePath() + " version " + fileVersion + " is not supported");
+			nLongs = in.readInt();
+			h = in.readInt();
+			ls = new L_HammingLongs[in.readInt()];
+			baseSize = in.readInt();
+			idsLength = in.readLong();
+			generation = fileVersion > 1 ? in.readInt() : 0;
+		} finally {
+			in.close();
+		}
+		nBytes = nLongs * Long.BYTES;
+
+		for ( int i=0; i<ls.length; i++ ) {
+			ls[i] = new L_HammingLongs(getLFile(i, generation));
+		}
+
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(getRemovedFile(generation))));
+		try {
+			long[] words = new long[in.readInt()];
+			for ( int i=0; i<words.length; i++ ) words[i] = in.readLong();
+			removed = BitSet.valueOf(words);
+		} finally {
+			in.close();
+		}
+
+		baseIDs = new AbstractID[baseSize];
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(getIDsFile())));
+		try {
+			for ( int i=0; i<baseSize; i++ ) {
+				baseIDs[i] = IDClasses.readData(in);
+				if ( !removed.get(i) ) position.put(baseIDs[i], i);
+			}
+		} finally {
+			in.close();
+		}
+
+		openData();
+		active = new Delta(baseSize);
+	}
+
+	private void writeHeader(File file, int size, long idsLength, int gen) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		out.writeInt(version);
+		out.writeInt(nLongs);
+		out.writeInt(h);
+		out.writeInt(ls.length);
+		out.writeInt(size);
+		out.writeLong(idsLength);
+		out.writeInt(gen);
+		out.close();
+	}
+
+	private static void writeRemoved(File file, BitSet removed) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		long[] words = removed.toLongArray();
+		out.writeInt(words.length);
+		for ( long w : words ) out.writeLong(w);
+		out.close();
+	}
+
+	private static void sync(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Syncs the renames in the directory (not supported on all platforms).
+	 */
+	private static void syncDir(File dir) {
+		try {
+			FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			// not supported
+		}
+	}
+
+	/**
+	 * Deletes the tables and removed files of a generation.
+	 */
+	private void deleteGeneration(int gen, int l) {
+		for ( int i=0; i<l; i++ ) {
+			File lFile = getLFile(i, gen);
+			L_HammingLongs.getBucketsFile(lFile).delete();
+			lFile.delete();
+		}
+		getRemovedFile(gen).delete();
+	}
+
+	/**
+	 * Maps the codes of the merged objects.
+	 */
+	private void openData() throws IOException {
+		if ( dataRAF != null ) dataRAF.close();
+		dataRAF = new RandomAccessFile(getDataFile(), "r");
+		dataSegment = map(dataRAF, baseSize);
+	}
+
+	/**
+	 * Maps the first size codes of the file.
+	 */
+	private LongBuffer[] map(RandomAccessFile raf, int size) throws IOException {
+		FileChannel fc = raf.getChannel();
+		segmentCodes = Integer.MAX_VALUE / nBytes;
+		int nSegments = (size + segmentCodes - 1) / segmentCodes;
+		LongBuffer[] res = new LongBuffer[nSegments];
+		for ( int iS=0; iS<nSegments; iS++ ) {
+			long first = (long) iS * segmentCodes;
+			long n = Math.min(segmentCodes, size - first);
+			res[iS] = fc.map(FileChannel.MapMode.READ_ONLY, first * nBytes, n * nBytes).asLongBuffer();
+		}
+		return res;
+	}
+
+	/**
+	 * @return the number of objects in the index
+	 */
+	public final int size() {
+		lock.readLock().lock();
+		try {
+			return position.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public final int getNLongs() {
+		return nLongs;
+	}
+
+	/**
+	 * Inserts an object. An object with the same ID is replaced.
+	 */
+	public void insert(AbstractID id, long[] code) throws Exception {
+		if ( code.length != nLongs )
+			throw new IllegalArgumentException("Code has " + code.length + " longs, the index " + nLongs);
+
+		int deltaSize;
+		lock.writeLock().lock();
+		try {
+			int[] keys = new int[ls.length];
+			for ( int i=0; i<ls.length; i++ ) keys[i] = ls[i].g.eval(code);
+			Integer old = position.put(id, active.first + active.size());
+			if ( old != null ) deleted.set(old);
+			active.add(id, code, keys);
+			deltaSize = active.size();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		if ( deltaSize >= autoMergeSize ) mergeInBackground();
+	}
+
+	/**
+	 * @return false if the ID was not in the index
+	 */
+	public boolean delete(AbstractID id) {
+		lock.writeLock().lock();
+		try {
+			Integer pos = position.remove(id);
+			if ( pos == null ) return false;
+			deleted.set(pos);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Starts a merge in a background thread if none is running.
+	 */
+	public void mergeInBackground() {
+		synchronized ( this ) {
+			if ( mergeThread != null && mergeThread.isAlive() ) return;
+			mergeThread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						merge();
+					} catch (Exception e) {
+						mergeException = e;
+						e.printStackTrace();
+					}
+				}
+			};
+			mergeThread.setDaemon(true);
+			mergeThread.start();
+		}
+	}
+
+	/**
+	 * @return the exception of the last background merge, null if it succeeded
+	 */
+	public Exception getMergeException() {
+		return mergeException;
+	}
+
+	/**
+	 * Merges the delta and the tombstones in the files of the index.
+	 * Searches and updates can run during the merge.
+	 * The delta frozen by a failed merge is kept and merged first.
+	 */
+	public void merge() throws Exception {
+		synchronized ( mergeLock ) {
+			if ( merging != null ) mergeFrozen();
+
+			lock.writeLock().lock();
+			try {
+				if ( active.size() == 0 && deleted.isEmpty() ) {
+					mergeException = null;
+					return;
+				}
+				merging = active;
+				active = new Delta(merging.first + merging.size());
+			} finally {
+				lock.writeLock().unlock();
+			}
+			mergeFrozen();
+			mergeException = null;
+		}
+	}
+
+	/**
+	 * Merges the frozen delta. The tables and the removed objects of the new
+	 * generation are written in new files and the header, written last, makes
+	 * them the current ones. A failure before the header leaves the index and
+	 * the frozen delta unchanged.
+	 */
+	private void mergeFrozen() throws Exception {
+		BitSet toDelete;
+		lock.readLock().lock();
+		try {
+			toDelete = (BitSet) deleted.clone();
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		Log.info_verbose("Merging " + merging.size() + " inserted and " + toDelete.cardinality() + " deleted objects");
+		int newSize = merging.first + merging.size();
+
+		// appending codes and IDs of the frozen delta (after the merged ones,
+		// a previous failed attempt is overwritten)
+		RandomAccessFile data = new RandomAccessFile(getDataFile(), "rw");
+		try {
+			data.setLength(baseSize * (long) nBytes);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(data.getFD()), 1 << 20));
+			data.seek(data.length());
+			for ( int i=0; i<merging.size() * nLongs; i++ ) out.writeLong(merging.codes[i]);
+			out.flush();
+			data.getFD().sync();
+		} finally {
+			data.close();
+		}
+		RandomAccessFile ids = new RandomAccessFile(getIDsFile(), "rw");
+		ids.setLength(idsLength);
+		ids.close();
+		FileOutputStream idsOut = new FileOutputStream(getIDsFile(), true);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(idsOut, 1 << 20));
+		try {
+			for ( AbstractID id : merging.ids ) IDClasses.writeData(id, out);
+			out.flush();
+			idsOut.getFD().sync();
+		} finally {
+			out.close();
+		}
+		long newIDsLength = getIDsFile().length();
+
+		// new generation (the current files are not changed)
+		int newGen = generation + 1;
+		L_HammingLongs[] currLs = ls;
+		L_HammingLongs[] newLs = new L_HammingLongs[currLs.length];
+		RandomAccessFile newDataRAF = null;
+		LongBuffer[] newDataSegment;
+		BitSet newRemoved = (BitSet) removed.clone();
+		newRemoved.or(toDelete);
+		boolean committed = false;
+		try {
+			for ( int i=0; i<currLs.length; i++ ) {
+				File lFile = getLFile(i, newGen);
+				L_HammingLongsBuilder.merge(currLs[i], merging.buckets[i], toDelete, lFile);
+				sync(L_HammingLongs.getBucketsFile(lFile));
+				sync(lFile);
+			}
+			writeRemoved(getRemovedFile(newGen), newRemoved);
+			sync(getRemovedFile(newGen));
+			for ( int i=0; i<newLs.length; i++ ) newLs[i] = new L_HammingLongs(getLFile(i, newGen));
+			newDataRAF = new RandomAccessFile(getDataFile(), "r");
+			newDataSegment = map(newDataRAF, newSize);
+
+			// commit
+			File tmp = getTmpFile(getHeaderFile());
+			writeHeader(tmp, newSize, newIDsLength, newGen);
+			sync(tmp);
+			Files.move(tmp.toPath(), getHeaderFile().toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			committed = true;
+		} finally {
+			if ( !committed ) {
+				for ( L_HammingLongs l : newLs ) {
+					if ( l != null ) l.close();
+				}
+				if ( newDataRAF != null ) newDataRAF.close();
+				deleteGeneration(newGen, currLs.length);
+			}
+		}
+		syncDir(dir);
+
+		AbstractID[] newIDs = Arrays.copyOf(baseIDs, newSize);
+		for ( int i=0; i<merging.size(); i++ ) newIDs[merging.first+i] = merging.ids.get(i);
+
+		RandomAccessFile currDataRAF;
+		lock.writeLock().lock();
+		try {
+			ls = newLs;
+			generation = newGen;
+			baseSize = newSize;
+			idsLength = newIDsLength;
+			removed = newRemoved;
+			baseIDs = newIDs;
+			currDataRAF = dataRAF;
+			dataRAF = newDataRAF;
+			dataSegment = newDataSegment;
+			merging = null;
+			// deleted objects are no more in the tables
+			deleted.andNot(toDelete);
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		// the previous generation is no more used by the searches
+		for ( L_HammingLongs l : currLs ) l.close();
+		currDataRAF.close();
+		deleteGeneration(newGen - 1, currLs.length);
+		Log.info_verbose("Merge done");
+	}
+
+	private final int distance(long[] query, int pos) {
+		if ( pos < baseSize ) {
+			return Hamming.distance(query, dataSegment[pos / segmentCodes], (pos % segmentCodes) * nLongs);
+		}
+		Delta d = merging != null && merging.contains(pos) ? merging : active;
+		return Hamming.distance_offset(query, d.codes, (pos - d.first) * nLongs, nLongs);
+	}
+
+	private final AbstractID getID(int pos) {
+		if ( pos < baseSize ) return baseIDs[pos];
+		Delta d = merging != null && merging.contains(pos) ? merging : active;
+		return d.ids.get(pos - d.first);
+	}
+
+	@Override
+	public ISimilarityResults getKNNResults(AbstractFeature qObj, int k) throws Exception {
+		return search(qObj, new SimPQueue_kNN(k));
+	}
+
+	public ISimilarityResults getKNNResults(AbstractFeaturesCollector fc, Class<? extends AbstractFeature> fClass, int k) throws Exception {
+		return search(fc.getFeature(fClass), new SimPQueue_kNN(k));
+	}
+
+	public ISimilarityResults rangeSearch(AbstractFeature f, double r) throws Exception {
+		return search(f, new SimPQueue_r(r));
+	}
+
+	public final ISimilarityResults search(AbstractFeature f, AbstractSimPQueue pQueue) throws Exception {
+		return search(((ILongBinaryValues) f).getValues(), pQueue);
+	}
+
+	public final ISimilarityResults search(long[] query, AbstractSimPQueue pQueue) throws Exception {
+		if ( query.length != nLongs )
+			throw new IllegalArgumentException("Query code has " + query.length + " longs, the index " + nLongs);
+
+		int iHashSet = hashSetPool.acquireTIntHashSet();
+		TIntHashSet objects = hashSetPool.getHashSet(iHashSet);
+
+		lock.readLock().lock();
+		try {
+			for ( int i=0; i<ls.length; i++ ) {
+				for ( int key : ls[i].getProbes(query, probeMaxFlips, probeBudget) ) {
+					IntBuffer ib = ls[i].getInBucket(key);
+					if ( ib != null ) {
+						while ( ib.hasRemaining() ) objects.add(ib.get());
+					}
+					if ( merging != null ) add(objects, merging.buckets[i].get(key));
+					add(objects, active.buckets[i].get(key));
+				}
+			}
+
+			// positions are offered to a primitive queue, only the results to the given one
+			SimPQueueIntDMax local = SimPQueueIntDMax.getEmpty(pQueue);
+			for ( TIntIterator it = objects.iterator(); it.hasNext(); ) {
+				int pos = it.next();
+				if ( deleted.get(pos) ) continue;
+				int dist = distance(query, pos);
+				if ( dist > local.excDistance ) continue;
+				local.offer(pos, dist);
+			}
+
+			int[] resPos = new int[local.size()];
+			double[] resDist = new double[resPos.length];
+			int n = local.getSortedAndEmpty(resPos, resDist);
+			for ( int i=0; i<n; i++ ) pQueue.offer(getID(resPos[i]), resDist[i]);
+		} finally {
+			lock.readLock().unlock();
+			hashSetPool.releaseTIntHashSet(iHashSet);
+		}
+
+		return pQueue.getResults();
+	}
+
+	private static final void add(TIntHashSet objects, TIntArrayList bucket) {
+		if ( bucket == null ) return;
+		for ( int i=0; i<bucket.size(); i++ ) objects.add(bucket.get(i));
+	}
+
+	/**
+	 * Waits for a running background merge, merges the delta and closes the
+	 * files.
+	 */
+	public void close() throws Exception {
+		Thread t;
+		synchronized ( this ) {
+			t = mergeThread;
+		}
+		if ( t != null ) t.join();
+		try {
+			merge();
+		} finally {
+			lock.writeLock().lock();
+			try {
+				for ( L_HammingLongs l : ls ) l.close();
+				dataRAF.close();
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+	public String toString() {
+		return this.getClass().getSimpleName() + " " + dir.getAbsolutePath() +
+				"\n- nLongs\t" + nLongs + "\n- h\t" + h + "\n- l\t" + ls.length +
+				"\n- merged\t" + baseSize + "\n- objects\t" + size() + "\n";
+	}
+}
@@ -13,11 +13,11 @@
 package it.cnr.isti.vir.similarity.index.lsh.hamming;
 
 import gnu.trove.iterator.TIntIterator;
-import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.set.hash.TIntHashSet;
 import it.cnr.isti.vir.distance.Hamming;
 import it.cnr.isti.vir.features.AbstractFeature;
 import it.cnr.isti.vir.features.AbstractFeaturesCollector;
+import it.cnr.isti.vir.features.FeatureClasses;
 import it.cnr.isti.vir.features.ILongBinaryValues;
 import it.cnr.isti.vir.file.ArchiveException;
 import it.cnr.isti.vir.file.FeaturesCollectorsArchive;
@@ -26,16 +26,26 @@ import it.cnr.isti.vir.id.AbstractID;
 import it.cnr.isti.vir.id.IHasID;
 import it.cnr.isti.vir.similarity.knn.IkNNExecuter;
 import it.cnr.isti.vir.similarity.pqueues.AbstractSimPQueue;
+import it.cnr.isti.vir.similarity.pqueues.SimPQueueIntDMax;
 import it.cnr.isti.vir.similarity.pqueues.SimPQueue_kNN;
 import it.cnr.isti.vir.similarity.pqueues.SimPQueue_r;
 import it.cnr.isti.vir.similarity.results.ISimilarityResults;
 import it.cnr.isti.vir.util.TimeManager;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 
 
@@ -48,36 +58,72 @@ import java.io.IOException;
 public class LSHHammingLongs_Mem implements IkNNExecuter {
 
 
-	public static int nLongs = 64;;
-	public static int nBits = nLongs + 64;
+	/** Code width in longs and bits (from the indexed codes) */
+	final int nLongs;
+	final int nBits;
+	
+	/** Version of the snapshot files */
+	public static final int snapshotVersion = 1;
 	
 	int l;
     int h;
-    TIntArrayList[][] tables;
+    
+    /**
+     * Buckets of each table: the ids of the objects in bucket key of table i
+     * are ids[i] from offsets[i].get(key) to offsets[i].get(key+1).
+     * Buffers are on the heap for built indexes and memory-mapped for
+     * snapshots.
+     */
+    IntBuffer[] offsets;
+    IntBuffer[] ids;
 
     Class<? extends AbstractFeature> fClass;
     
     //BitsObjectWithStringDatabaseMem database;
-    long[] data;
+    final int nObjs;
+    LongBuffer[] dataSegment;
+    int segmentCodes;
     
+    /** IDs of the objects, null for snapshots (IDs are read from the archive) */
     AbstractID[] id;
+    final FeaturesCollectorsArchive fca;
+    
+    /** Snapshot file, null for built indexes */
+    private RandomAccessFile snapshotRAF = null;
     
     G_HammingLongs[] gs;
     
+    /**
+     * Multi-probe: max Hamming distance from the query key of the probed
+     * buckets (0 for probing only the query bucket)
+     */
+    public int probeMaxFlips = 0;
+    
+    /**
+     * Multi-probe: max number of buckets probed in each table in addition
+     * to the query one
+     */
+    public int probeBudget = 0;
+    
     public int getNumberOfBuckets(int b){
-        return tables[b].length;
+        return offsets[b].capacity()-1;
     }
     
     public LSHHammingLongs_Mem( FeaturesCollectorsArchive fca, Class<? extends AbstractFeature> fClass,  int h, int l) throws ArchiveException {
     	
-    	/// TO DO!!!!
-    	// long[] firstValues = ((ILongBinaryValues) fca.get(0).getFeature(fClass)).getValues();
-    	
+    	this.fca = fca;
     	this.fClass = fClass;
     	
-    	data = new long[AbstractBitsObject.nLongs*fca.size()];
+    	// the code width is the one of the archive codes
+    	nLongs = ((ILongBinaryValues) fca.get(0).getFeature(fClass)).getValues().length;
+    	nBits = nLongs * Long.SIZE;
+    	nObjs = fca.size();
+    	
+    	long[] data = new long[nLongs*nObjs];
+    	dataSegment = new LongBuffer[] { LongBuffer.wrap(data) };
+    	segmentCodes = Integer.MAX_VALUE / nLongs;
     	
-    	id = new AbstractID[fca.size()];
+    	id = new AbstractID[nObjs];
     	
     	int iID = 0;
     	int i=0;
@@ -89,8 +135,10 @@ public class LSHHammingLongs_Mem implements IkNNExecuter {
     		id[iID++] = ((IHasID) f).getID();
     		
     		long[] curr = ((ILongBinaryValues) f.getFeature(fClass)).getValues();
+    		if ( curr.length != nLongs )
+    			throw new ArchiveException("Object " + id[iID-1] + " has a code of " + curr.length + " longs, " + nLongs + " were expected");
     		
-    		for ( int j=0; j<AbstractBitsObject.nLongs; j++ ) {
+    		for ( int j=0; j<nLongs; j++ ) {
     			data[i++] = curr[j];
     		}
     		tm.reportProgress();
@@ -100,14 +148,150 @@ public class LSHHammingLongs_Mem implements IkNNExecuter {
     
     	this.l=l;
     	this.h=h;
-    	gs=new G_HammingLongs[l];
-    	tables= new TIntArrayList[l][];
-    	for( i=0;i<l;i++){
-    		gs[i]=new G_HammingLongs(h, nBits);
-    		tables[i]=new TIntArrayList[1<<h];
+    	long[][] sample = null;
+    	if ( G_HammingLongsTrainer.sampleSize > 0 ) {
+    		int[] pos = G_HammingLongsTrainer.getSamplePositions(nObjs);
+    		sample = new long[pos.length][];
+    		for ( i=0; i<pos.length; i++ ) {
+    			sample[i] = Arrays.copyOfRange(data, pos[i]*nLongs, (pos[i]+1)*nLongs);
+    		}
+    	}
+    	gs = G_HammingLongsTrainer.getGs(h, nBits, l, sample);
+    	buildIndex(data);
+    	
+    }
+    
+    private static final long align8(long pos) {
+    	return (pos + 7) & ~7L;
+    }
+    
+    /**
+     * Opens a snapshot saved by {@link #saveSnapshot(File)}. Tables and codes
+     * are memory-mapped, nothing is read but the header, thus the snapshot
+     * is shared through the page cache by all the JVMs opening it.
+     * 
+     * @param fca		the archive of the indexed objects (used for the IDs)
+     * @param snapshot	the snapshot file
+     */
+    public LSHHammingLongs_Mem( FeaturesCollectorsArchive fca, File snapshot) throws IOException, ArchiveException {
+    	this.fca = fca;
+    	
+    	DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)));
+    	long dataStart;
+    	try {
+	    	dataStart = in.readInt();
+	    	int version = in.readInt();
+	    	if ( version != snapshotVersion )
+	    		throw new IOException("LSHHammingLongs_Mem snapshot " + snapshot.getAbsolutePath() + " version " + version + " is not supported");
+	    	fClass = FeatureClasses.getClass(in.readInt());
+	    	nLongs = in.readInt();
+	    	nBits = nLongs * Long.SIZE;
+	    	l = in.readInt();
+	    	h = in.readInt();
+	    	nObjs = in.readInt();
+	    	gs = new G_HammingLongs[l];
+	    	for ( int i=0; i<l; i++ ) {
+	    		gs[i] = new G_HammingLongs(in);
+	    	}
+    	} finally {
+    		in.close();
+    	}
+    	if ( nObjs != fca.size() )
+    		throw new ArchiveException("LSHHammingLongs_Mem snapshot " + snapshot.getAbsolutePath() + " contains " + nObjs + " objects, the archive " + fca.size());
+    	if ( fca.getIDClass() == null )
+    		throw new ArchiveException("Archive " + fca.getfile().getAbsolutePath() + " has no IDs");
+    	
+    	snapshotRAF = new RandomAccessFile(snapshot, "r");
+    	FileChannel channel = snapshotRAF.getChannel();
+    	long pos = dataStart;
+    	long offsetsBytes = ((1L<<h)+1) * Integer.BYTES;
+    	long idsBytes = (long) nObjs * Integer.BYTES;
+    	offsets = new IntBuffer[l];
+    	ids = new IntBuffer[l];
+    	for ( int i=0; i<l; i++ ) {
+    		offsets[i] = channel.map(FileChannel.MapMode.READ_ONLY, pos, offsetsBytes).asIntBuffer();
+    		pos += offsetsBytes;
+    		ids[i] = channel.map(FileChannel.MapMode.READ_ONLY, pos, idsBytes).asIntBuffer();
+    		pos += idsBytes;
     	}
-    	buildIndex();
     	
+    	pos = align8(pos);
+    	int nBytes = nLongs * Long.BYTES;
+    	segmentCodes = Integer.MAX_VALUE / nBytes;
+    	int nSegments = (nObjs + segmentCodes - 1) / segmentCodes;
+    	dataSegment = new LongBuffer[nSegments];
+    	for ( int iS=0; iS<nSegments; iS++ ) {
+    		long first = (long) iS * segmentCodes;
+    		long n = Math.min(segmentCodes, nObjs - first);
+    		dataSegment[iS] = channel.map(FileChannel.MapMode.READ_ONLY, pos + first * nBytes, n * nBytes).asLongBuffer();
+    	}
+    	if ( pos + (long) nObjs * nBytes != snapshotRAF.length() )
+    		throw new IOException("LSHHammingLongs_Mem snapshot " + snapshot.getAbsolutePath() + " is truncated");
+    	
+    	Log.info("LSHHammingLongs_Mem snapshot " + snapshot.getAbsolutePath() + " opened");
+    }
+    
+    /**
+     * Saves the tables and the codes as flat arrays that can be opened
+     * using {@link #LSHHammingLongs_Mem(FeaturesCollectorsArchive, File)}.
+     * Layout: header length, header (version, feature class, nLongs, l, h,
+     * nObjs, gs), for each table the offsets and the ids of the buckets,
+     * the codes (8 bytes aligned).
+     */
+    public void saveSnapshot(File snapshot) throws IOException {
+    	Log.info("Saving LSHHammingLongs_Mem snapshot " + snapshot.getAbsolutePath());
+    	ByteArrayOutputStream header = new ByteArrayOutputStream();
+    	DataOutputStream hOut = new DataOutputStream(header);
+    	hOut.writeInt(snapshotVersion);
+    	hOut.writeInt(FeatureClasses.getClassID(fClass));
+    	hOut.writeInt(nLongs);
+    	hOut.writeInt(l);
+    	hOut.writeInt(h);
+    	hOut.writeInt(nObjs);
+    	for ( int i=0; i<l; i++ ) {
+    		gs[i].write(hOut);
+    	}
+    	hOut.close();
+    	
+    	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(snapshot), 1<<20));
+    	try {
+	    	long dataStart = align8(Integer.BYTES + header.size());
+	    	out.writeInt((int) dataStart);
+	    	header.writeTo(out);
+	    	long pos = Integer.BYTES + header.size();
+	    	for ( ; pos<dataStart; pos++ ) out.writeByte(0);
+	    	for ( int i=0; i<l; i++ ) {
+	    		for ( int k=0; k<offsets[i].capacity(); k++ ) out.writeInt(offsets[i].get(k));
+	    		for ( int k=0; k<nObjs; k++ ) out.writeInt(ids[i].get(k));
+	    		pos += ((long) offsets[i].capacity() + nObjs) * Integer.BYTES;
+	    	}
+	    	for ( long codesStart=align8(pos); pos<codesStart; pos++ ) out.writeByte(0);
+	    	long[] code = new long[nLongs];
+	    	for ( int o=0; o<nObjs; o++ ) {
+	    		readData(o, code);
+	    		for ( long v : code ) out.writeLong(v);
+	    	}
+    	} finally {
+    		out.close();
+    	}
+    }
+    
+    private final void readData(int o, long[] code) {
+    	LongBuffer lb = dataSegment[o / segmentCodes];
+    	int offset = (o % segmentCodes) * nLongs;
+    	for ( int i=0; i<nLongs; i++ ) code[i] = lb.get(offset+i);
+    }
+    
+    private final AbstractID getID(int o) {
+    	if ( id != null ) return id[o];
+    	return fca.getID(o);
+    }
+    
+    /**
+     * Closes the snapshot file (if any).
+     */
+    public void close() throws IOException {
+    	if ( snapshotRAF != null ) snapshotRAF.close();
     }
     	
 
@@ -133,32 +317,39 @@ public class LSHHammingLongs_Mem implements IkNNExecuter {
 //        buildIndex();
 //    }
     
-    private void buildIndex(){
+    /**
+     * Buckets are filled by a counting sort of the keys, table by table.
+     */
+    private void buildIndex(long[] data){
     	Log.info("Building index");
-    	Log.info("Database size: " + id.length) ;
+    	Log.info("Database size: " + nObjs) ;
     	
-    	TimeManager tm = new TimeManager(id.length);
-        for(int o =0; o<id.length; o++){
-            insert(o);
-            tm.reportProgress();
-        }
+    	int nBuckets = 1<<h;
+    	offsets = new IntBuffer[l];
+    	ids = new IntBuffer[l];
+    	int[] key = new int[nObjs];
+    	TimeManager tm = new TimeManager(l);
+    	for(int i=0;i<l;i++){
+    		int[] start = new int[nBuckets+1];
+    		for(int o=0; o<nObjs; o++){
+    			key[o] = gs[i].eval(data, o*nLongs);
+    			start[key[o]+1]++;
+    		}
+    		for(int k=0; k<nBuckets; k++){
+    			start[k+1] += start[k];
+    		}
+    		int[] next = Arrays.copyOf(start, nBuckets);
+    		int[] bucketIDs = new int[nObjs];
+    		for(int o=0; o<nObjs; o++){
+    			bucketIDs[next[key[o]]++] = o;
+    		}
+    		offsets[i] = IntBuffer.wrap(start);
+    		ids[i] = IntBuffer.wrap(bucketIDs);
+    		tm.reportProgress();
+    	}
         
         Log.info("Building index done");
     }
-    
-    private void insert(int id){
-        for(int i=0;i<l;i++){
-            int key=
-            		gs[i].eval(data, id*AbstractBitsObject.nLongs);
-            
-            TIntArrayList curr = tables[i][key];
-            if (curr==null){
-            	curr= new TIntArrayList();
-            	tables[i][key]=curr;
-            }
-            curr.add(id);
-        }
-    }
 	
     static TIntHashSetPool hashSetPool = new TIntHashSetPool(8,30);
       
@@ -192,34 +383,39 @@ public class LSHHammingLongs_Mem implements IkNNExecuter {
     }
     
     public final ISimilarityResults search(long[] query, AbstractSimPQueue pQueue){
+    	if ( query.length != nLongs )
+    		throw new IllegalArgumentException("Query code has " + query.length + " longs, the index " + nLongs);
     	int iHashSet = hashSetPool.acquireTIntHashSet();
     	TIntHashSet objects = hashSetPool.getHashSet(iHashSet);
 
 
         for(int i=0;i<l;i++){
-            int key=gs[i].eval(query);
-            
-            TIntArrayList bucket = tables[i][key];
-            if ( bucket!= null) {
-
-            	for(int iE=0; iE<bucket.size(); iE++ ){
-                    int o=bucket.get(iE);
-	                objects.add(o);
+        	for ( int key : gs[i].getProbes(query, probeMaxFlips, probeBudget) ) {
+	            IntBuffer bucket = ids[i];
+	            int to = offsets[i].get(key+1);
+            	for(int iE=offsets[i].get(key); iE<to; iE++ ){
+	                objects.add(bucket.get(iE));
 	            }
-            }
+        	}
         }
 
+        // positions are offered to a primitive queue, only the results to the given one
+        SimPQueueIntDMax local = SimPQueueIntDMax.getEmpty(pQueue);
         for(TIntIterator it = objects.iterator(); it.hasNext(); ){
             int oId=it.next();
 
-            int o_offset = oId*AbstractBitsObject.nLongs;
-            int dist=Hamming.distance_offset(query, data, o_offset, nLongs);
-           	pQueue.offer(id[oId], dist);
+            int dist=Hamming.distance(query, dataSegment[oId / segmentCodes], (oId % segmentCodes) * nLongs);
+            if ( dist <= local.excDistance ) local.offer(oId, dist);
 
         }
 
         hashSetPool.releaseTIntHashSet(iHashSet);
         
+        int[] pos = new int[local.size()];
+        double[] dist = new double[pos.length];
+        int n = local.getSortedAndEmpty(pos, dist);
+        for ( int i=0; i<n; i++ ) pQueue.offer(getID(pos[i]), dist[i]);
+        
         return pQueue.getResults();
     }
     
@@ -245,9 +441,9 @@ public class LSHHammingLongs_Mem implements IkNNExecuter {
     
     public final int getNOfNotNullBuckets() {
     	int res = 0;
-    	for ( int i1=0; i1<tables.length; i1++ ) {
-        	for ( int i2=0; i2<tables[i1].length; i2++ ) {
-        		if ( tables[i1][i2] != null ) {
+    	for ( int i1=0; i1<l; i1++ ) {
+        	for ( int i2=0; i2<getNumberOfBuckets(i1); i2++ ) {
+        		if ( offsets[i1].get(i2) != offsets[i1].get(i2+1) ) {
         			res += 1;
         		}
         	}
@@ -262,19 +458,19 @@ public class LSHHammingLongs_Mem implements IkNNExecuter {
         					new FileOutputStream(
         							new File(fileName))));
     
+    	out.writeInt(-L_HammingLongs.version);
+    	out.writeInt(nLongs);
     	out.writeInt(l);
     	out.writeInt(h);
     	for(int i=0;i<l;i++){
             gs[i].write(out);
-            for ( int i2=0; i2<tables[i].length; i2++) {
-            	if ( tables[i][i2] == null ) {
-            		out.writeInt(0);
-            	} else {
-            		out.writeInt(tables[i][i2].size());
-            		for( int i3=0; i3<tables[i][i2].size(); i3++) {
-            			out.writeInt(tables[i][i2].get(i3));
-            		}
-            	}
+            for ( int i2=0; i2<getNumberOfBuckets(i); i2++) {
+            	int from = offsets[i].get(i2);
+            	int to = offsets[i].get(i2+1);
+        		out.writeInt(to-from);
+        		for( int i3=from; i3<to; i3++) {
+        			out.writeInt(ids[i].get(i3));
+        		}
             }
         }
     	out.close();
@@ -313,28 +509,36 @@ public class LSHHammingLongs_Mem implements IkNNExecuter {
 //        }
 //    }
     
-    public int getDataSizeInBytes() {
-    	return this.data.length * 8;
+    public long getDataSizeInBytes() {
+    	return (long) nObjs * nLongs * Long.BYTES;
     }
     
     public int getNObjs() {
-    	return this.data.length * 8 / nLongs;
+    	return nObjs;
+    }
+    
+    /**
+     * @return the code width in longs
+     */
+    public final int getNLongs() {
+    	return nLongs;
     }
     
     public String toString() {
     	StringBuilder tStr = new StringBuilder();
     	
     	tStr.append("- buckets\n");
-    	for ( int i=0; i<tables.length; i++ ) {
+    	for ( int i=0; i<l; i++ ) {
     		
     		tStr.append(gs[i]);
     		
     		int sum = 0;
-        	for ( int j=0; j<tables[i].length; j++ ) {
+        	for ( int j=0; j<getNumberOfBuckets(i); j++ ) {
         		
-        		if (tables[i][j]==null) continue;
-        		tStr.append(tables[i][j].size() + " ");
-        		sum+=tables[i][j].size();
+        		int size = offsets[i].get(j+1) - offsets[i].get(j);
+        		if (size==0) continue;
+        		tStr.append(size + " ");
+        		sum+=size;
         		
         		
         	}
@@ -344,7 +548,7 @@ public class LSHHammingLongs_Mem implements IkNNExecuter {
     	}
     	
     	tStr.append( "- nBuckets:\t" );
-    	for ( int i=0; i<tables.length; i++ ) {
+    	for ( int i=0; i<l; i++ ) {
     		if ( i>0 ) tStr.append(", ");
     		tStr.append( this.getNumberOfBuckets(i) );
     	}
@@ -352,6 +556,14 @@ public class LSHHammingLongs_Mem implements IkNNExecuter {
     	tStr.append("- notNullBucks\t" + this.getNOfNotNullBuckets() + "\n");
     	tStr.append("- sizeInBytes\t" + this.getDataSizeInBytes() + "\n");
     	tStr.append("- nObjects\t" + this.getNObjs() + "\n");
+    	tStr.append("- bucketSizes\n");
+    	for ( int i=0; i<l; i++ ) {
+    		int[] size = new int[getNumberOfBuckets(i)];
+    		for ( int j=0; j<size.length; j++ ) {
+    			size[j] = offsets[i].get(j+1) - offsets[i].get(j);
+    		}
+    		tStr.append("   " + i + ": " + G_HammingLongsTrainer.getBucketSizeHistogram(size) + "\n");
+    	}
     	
 
     	return tStr.toString();
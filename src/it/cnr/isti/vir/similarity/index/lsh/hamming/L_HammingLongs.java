@@ -1,11 +1,7 @@
 package it.cnr.isti.vir.similarity.index.lsh.hamming;
 
-import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.hash.TLongIntHashMap;
 import gnu.trove.map.hash.TLongLongHashMap;
-import it.cnr.isti.vir.global.Log;
-import it.cnr.isti.vir.util.TimeManager;
-import it.cnr.isti.vir.util.bytes.LongByteArrayUtil;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -21,9 +17,19 @@ import java.nio.channels.FileChannel;
 
 public class L_HammingLongs {
 
-	public static int nLongs = 64;;
-	public static int nBits = nLongs * 64;
-	public static int nBytes = nLongs * 8;
+	/**
+	 * Version of the index header. Files written before the version was
+	 * introduced start with h and contain codes of {@link #legacyNLongs} longs.
+	 */
+	public static final int version = 1;
+	
+	/** Code width of the indexes saved without version */
+	public static final int legacyNLongs = 64;
+	
+	/** Code width in longs, bits and bytes */
+	int nLongs;
+	int nBits;
+	int nBytes;
 	
 	
 	//TIntArrayList[] bucket;
@@ -37,205 +43,124 @@ public class L_HammingLongs {
     TLongLongHashMap bucketOffset;
     RandomAccessFile bucketsRAF;
     FileChannel fileChannel;
-    //boolean parallel = true;
-
-    File dataFile;
-    int size;
+    File file;
     
     public L_HammingLongs(
     		File dataFile,
     		File lFile,
     		int h
     		) throws Exception {
-
-    	this.dataFile = dataFile;
-    	this.h = h;
-    	
-    	size = (int) (dataFile.length() / nBytes);
-    	
-    	build(lFile);
-    	
-    	//save(lFile);
-	}
-    
-    
-//	class Build implements Runnable {
-//
-//		private final TimeManager tm;
-//	    private final DataInputStream in;
-//		private final MutableInt mi;
-//		
-//		private final long[][] batch = new long[100][nLongs];
-//		
-//	    Build( DataInputStream in, TimeManager tm, MutableInt i) {
-//            this.in = in;
-//	    	this.tm = tm;
-//	    	this.mi = i;
-//        }
-//        
-//        @Override
-//        public void run() {
-//        	byte[] bytes = new byte[nBytes];
-//        	try {
-//        		while (true) {
-//        			int ib=0;
-//        			int startID=0;
-//        			synchronized(in) {
-//        				try {
-//        					startID=mi.get();
-//        					for ( ; ib<batch.length; ib++) {        						
-//        						in.readFully(bytes);
-//        						LongByteArrayUtil.convToLong(bytes, batch[ib]);
-//        						mi.inc();
-//        					}
-//        				} catch (EOFException err) {
-//        					int id = startID;
-//        					for ( int i=0; i<ib; i++) {
-//        						L_HammingLongs.this.insert(batch[i], id++);
-//        					}
-//        					return;
-//        				}
-//        			}
-//					int id = startID;
-//					for ( int i=0; i<ib; i++) {
-//						L_HammingLongs.this.insert(batch[i], id++);
-//					}
-//        			tm.reportProgress(ib-1);
-//        		}
-//			} catch (IOException e) {
-//				e.printStackTrace();
-//			}
-//        	
-//        }   
-//        
-//        
-//    }
+    	this(dataFile, lFile, h, legacyNLongs);
+    }
     
-    private void build(File file) throws Exception {
-    	
-    	nh = 1<<h;
-    	g=new G_HammingLongs(h, nBits);
-    	
-    	TIntArrayList[] bucket = new TIntArrayList[nh];
+    /**
+     * Builds the table (see {@link L_HammingLongsBuilder}).
+     * 
+     * @param dataFile	file of the codes, nLongs longs for each object
+     * @param lFile		file of the index
+     * @param h			number of bits used for hashing
+     * @param nLongs	code width in longs
+     */
+    public L_HammingLongs(
+    		File dataFile,
+    		File lFile,
+    		int h,
+    		int nLongs
+    		) throws Exception {
     	
-    	TimeManager tm = new TimeManager(size);
-
-   		DataInputStream in =
-   				new DataInputStream(
-   						new BufferedInputStream(
-   								new FileInputStream(dataFile)));
-   		
-//   		if ( parallel ) {
-//    		int nThread = ParallelOptions.reserveNFreeProcessors()+1;
-//			Thread[] thread = new Thread[nThread];
-//			TIntArrayList[] results = new TIntArrayList[nThread];
-//			MutableInt mi = new MutableInt();
-//			for ( int ti=0; ti<thread.length; ti++ ) {
-//				results[ti] = new TIntArrayList();
-//				thread[ti] = new Thread( new Build( in, tm, mi ));
-//	        	thread[ti].start();
-//			}
-//			
-//	        for ( int ti=0; ti<thread.length; ti++  ) {
-//	        	thread[ti].join();
-//	        }
-//	        ParallelOptions.free(nThread-1);
-//   		} else {
-   		
-    		byte[] bytes = new byte[nBytes];
-    		long[] values = new long[nLongs];
-	    	for ( int i=0; i<size; i++ ) {
-	    		in.readFully(bytes);
-	    		
-	    		//insert(g.eval(bytes), i);
-	    		LongByteArrayUtil.convToLong(bytes, values);
-	    		insert(bucket, g.eval(values), i);
-	    		
-	    		tm.reportProgress();
-    		}
-//   		}
-   		
-
-   		
-    	in.close();
-        Log.info("Building index done in: " + tm.getTotalTime_STR());
-        
-        save(bucket, file);
-    }  
+    	File[] lFiles = { lFile };
+    	L_HammingLongsBuilder.build(dataFile, lFiles, h, nLongs);
+    	load(lFile);
+	}
     
-    private final void insert(TIntArrayList[] bucket, int key, int id) throws IOException{
-        
-
-        TIntArrayList curr = bucket[key];
-        if (curr==null) {
-           	synchronized ( bucket ) {
-           		curr = bucket[key];
-           		if ( curr ==  null) {
-           			bucket[key]=curr=new TIntArrayList();
-           			curr.add(id);
-           			return;
-           		}
-           	}
-        }
-        curr.add(id);        
+    /**
+     * Builds l = lFiles.length tables reading the data file once
+     * (see {@link L_HammingLongsBuilder}).
+     * 
+     * @param dataFile	file of the codes, nLongs longs for each object
+     * @param lFiles	files of the tables
+     * @param h			number of bits used for hashing
+     * @param nLongs	code width in longs
+     */
+    public static L_HammingLongs[] build(File dataFile, File[] lFiles, int h, int nLongs) throws Exception {
+    	L_HammingLongsBuilder.build(dataFile, lFiles, h, nLongs);
+    	L_HammingLongs[] res = new L_HammingLongs[lFiles.length];
+    	for ( int i=0; i<res.length; i++ ) {
+    		res[i] = new L_HammingLongs(lFiles[i]);
+    	}
+    	return res;
     }
-
+    
     public int getNumberOfBuckets(){
         return nh;
     }
 
     
-	private void save(TIntArrayList[] bucket, File file) throws IOException {
+	static final File getBucketsFile(File file) {
+		return new File(file.getAbsolutePath() + ".b");
+	}
+	
+	/**
+	 * Writes the index file, the ids of the buckets are written in the
+	 * buckets file in increasing order of key.
+	 * 
+	 * @param count	number of ids of each bucket
+	 */
+	static void save(File file, int nLongs, G_HammingLongs g, int[] count) throws IOException {
 
 		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
 				new FileOutputStream(file)));
 		
-		out.writeInt(h);
+		// negative version distinguishes the header from the legacy one
+		out.writeInt(-version);
+		out.writeInt(nLongs);
+		out.writeInt(g.h);
 		g.write(out);
 		
-		//out.writeInt(this.getNOfNotNullBuckets());
-		
    		int nOfNotNullBuckets = 0;
-   		for ( int i=0; i<nh; i++ ) {
-   			if ( bucket[i] != null ) nOfNotNullBuckets ++;
+   		for ( int i=0; i<count.length; i++ ) {
+   			if ( count[i] != 0 ) nOfNotNullBuckets ++;
    		}
    		out.writeInt(nOfNotNullBuckets);
 		
-		for (int i2 = 0; i2 < bucket.length; i2++) {
-			if (bucket[i2] != null) {
+		for (int i2 = 0; i2 < count.length; i2++) {
+			if (count[i2] != 0) {
 				out.writeInt(i2);
-				out.writeInt(bucket[i2].size());
+				out.writeInt(count[i2]);
 			}
 		}
 		out.close();
-		
-        DataOutputStream out_b =
-        		new DataOutputStream(
-        				new BufferedOutputStream(
-        					new FileOutputStream(
-        							new File(file.getAbsolutePath() + ".b"))));
-		
-		for (int i2 = 0; i2 < bucket.length; i2++) {
-			if (bucket[i2] != null) {
-				for (int i3 = 0; i3 < bucket[i2].size(); i3++) {
-					out_b.writeInt(bucket[i2].get(i3));
-				}
-			}
-		}
-		out_b.close();
 	}
  
     
     public L_HammingLongs(File file) throws Exception {
+    	load(file);
+    }
+    
+    private void load(File file) throws Exception {
     	
+    	this.file = file;
 		DataInputStream in = new DataInputStream(new BufferedInputStream(
 				new FileInputStream(file)));
 		
-    	File bFile = new File(file.getAbsolutePath() + ".b");    	
+    	File bFile = getBucketsFile(file);    	
 		bucketsRAF = new RandomAccessFile(bFile, "r");		
 		fileChannel = bucketsRAF.getChannel();
 		
-    	h = in.readInt();
+    	int first = in.readInt();
+    	if ( first < 0 ) {
+    		if ( -first > version ) {
+    			in.close();
+    			throw new IOException("LSH file " + file.getAbsolutePath() + " version " + (-first) + " is not supported");
+    		}
+    		nLongs = in.readInt();
+    		h = in.readInt();
+    	} else {
+    		nLongs = legacyNLongs;
+    		h = first;
+    	}
+    	nBits = nLongs * Long.SIZE;
+    	nBytes = nLongs * Long.BYTES;
     	nh = 1 << h;
     	g = new G_HammingLongs(in);
     	
@@ -257,7 +182,7 @@ public class L_HammingLongs {
     		bSize.put(ib, csize);
 			bucketOffset.put(ib, offsetAcc);
 			if (csize != 0) {
-				offsetAcc += csize * Integer.BYTES; 
+				offsetAcc += csize * (long) Integer.BYTES; 
 			}
 		}
 		
@@ -265,6 +190,27 @@ public class L_HammingLongs {
 		
     }
 	
+    /**
+     * @return the code width in longs
+     */
+    public final int getNLongs() {
+    	return nLongs;
+    }
+    
+    /**
+     * Closes the buckets file. Buffers already returned remain valid.
+     */
+    public void close() throws IOException {
+    	bucketsRAF.close();
+    }
+    
+    /**
+     * @return the sizes of the not empty buckets
+     */
+    public final int[] getBucketSizes() {
+    	return bSize.values();
+    }
+    
     public final int getNOfNotNullBuckets() {
 //    	int res = 0;
 //    	for ( int i=0; i<bSize.length; i++ ) {
@@ -276,9 +222,18 @@ public class L_HammingLongs {
     	return bSize.size();
     }
     
-    public final synchronized IntBuffer getInBucket(long[] query) throws IOException {
-    	int key=g.eval(query);
-        
+    /**
+     * Multi-probe (see {@link G_HammingLongs#getProbes(long[], int, int)}).
+     */
+    public final int[] getProbes(long[] query, int maxFlips, int budget) {
+    	return g.getProbes(query, maxFlips, budget);
+    }
+    
+    public final IntBuffer getInBucket(long[] query) throws IOException {
+    	return getInBucket(g.eval(query));
+    }
+    
+    public final synchronized IntBuffer getInBucket(int key) throws IOException {
     	int size = bSize.get(key);
     	if ( size <= 0 ) {
     		return null;
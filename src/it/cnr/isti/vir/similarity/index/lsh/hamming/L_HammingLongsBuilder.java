@@ -0,0 +1,399 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Fabrizio Falchi (NeMIS Lab., ISTI-CNR, Italy)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package it.cnr.isti.vir.similarity.index.lsh.hamming;
+
+import gnu.trove.list.array.TIntArrayList;
+import it.cnr.isti.vir.global.Log;
+import it.cnr.isti.vir.global.ParallelOptions;
+import it.cnr.isti.vir.util.TimeManager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Bulk build of the tables of {@link L_HammingLongs}.
+ *
+ * The data file is read once: chunks of codes are hashed by parallel threads
+ * in all the tables and the keys are written in a keys file for each table
+ * (4 bytes per object). The buckets file of each table is then written by a
+ * counting sort of the keys. When the ids of a table do not fit in
+ * {@link #bufferIDs} the buckets are split in consecutive ranges and the keys
+ * file is scanned once for each range.
+ */
+public class L_HammingLongsBuilder {
+
+	/** Codes read and hashed by a thread at once */
+	public static int chunkCodes = 1 << 16;
+
+	/** Max number of ids kept in memory by each thread while writing the buckets */
+	public static int bufferIDs = 1 << 26;
+
+	/** Ints read or written at once from the keys and buckets files */
+	private static final int ioInts = 1 << 18;
+
+	/**
+	 * Builds l = lFiles.length tables writing for each of them the index
+	 * file and the buckets file (.b).
+	 *
+	 * @param dataFile	file of the codes, nLongs longs for each object
+	 * @param lFiles	files of the tables
+	 * @param h			number of bits used for hashing
+	 * @param nLongs	code width in longs
+	 */
+	public static void build(File dataFile, File[] lFiles, int h, int nLongs) throws Exception {
+
+		int nBits = nLongs * Long.SIZE;
+		int nBytes = nLongs * Long.BYTES;
+		if ( h > nBits )
+			throw new IllegalArgumentException("h (" + h + ") is greater than the code width (" + nBits + " bits)");
+		if ( dataFile.length() % nBytes != 0 )
+			throw new IOException("Data file " + dataFile.getAbsolutePath() + " does not contain codes of " + nBits + " bits");
+		long lSize = dataFile.length() / nBytes;
+		if ( lSize > Integer.MAX_VALUE )
+			throw new IOException("Data file " + dataFile.getAbsolutePath() + " contains more than " + Integer.MAX_VALUE + " codes");
+		int size = (int) lSize;
+
+		int l = lFiles.length;
+		int nh = 1 << h;
+		G_HammingLongs[] gs = G_HammingLongsTrainer.getGs(h, nBits, l, readSample(dataFile, size, nLongs));
+
+		File[] keysFile = new File[l];
+		RandomAccessFile[] keysRAF = new RandomAccessFile[l];
+		AtomicIntegerArray[] count = new AtomicIntegerArray[l];
+		for ( int i=0; i<l; i++ ) {
+			keysFile[i] = getKeysFile(lFiles[i]);
+			keysRAF[i] = new RandomAccessFile(keysFile[i], "rw");
+			keysRAF[i].setLength(size * (long) Integer.BYTES);
+			count[i] = new AtomicIntegerArray(nh);
+		}
+
+		try {
+			Log.info("Hashing " + size + " codes of " + nBits + " bits in " + l + " tables");
+			hash(dataFile, size, nLongs, gs, keysRAF, count);
+
+			Log.info("Writing buckets");
+			writeBuckets(lFiles, keysRAF, gs, count, size, nLongs);
+		} finally {
+			for ( int i=0; i<l; i++ ) {
+				keysRAF[i].close();
+				keysFile[i].delete();
+			}
+		}
+	}
+
+	/**
+	 * @return the training sample of the Gs, null if they are random
+	 */
+	private static long[][] readSample(File dataFile, int size, int nLongs) throws IOException {
+		if ( G_HammingLongsTrainer.sampleSize <= 0 ) return null;
+		int[] pos = G_HammingLongsTrainer.getSamplePositions(size);
+		long[][] sample = new long[pos.length][nLongs];
+		byte[] bytes = new byte[nLongs * Long.BYTES];
+		RandomAccessFile raf = new RandomAccessFile(dataFile, "r");
+		try {
+			for ( int i=0; i<pos.length; i++ ) {
+				raf.seek(pos[i] * (long) bytes.length);
+				raf.readFully(bytes);
+				ByteBuffer.wrap(bytes).asLongBuffer().get(sample[i]);
+			}
+		} finally {
+			raf.close();
+		}
+		return sample;
+	}
+
+	static final File getKeysFile(File lFile) {
+		return new File(lFile.getAbsolutePath() + ".keys");
+	}
+
+	/**
+	 * Reads the data file once hashing the codes in all the tables.
+	 */
+	private static void hash(
+			File dataFile, final int size, final int nLongs,
+			final G_HammingLongs[] gs, RandomAccessFile[] keysRAF, final AtomicIntegerArray[] count) throws Exception {
+
+		final DataInputStream in = new DataInputStream(
+				new BufferedInputStream(
+						new FileInputStream(dataFile), 1 << 22));
+		final FileChannel[] keysChannel = new FileChannel[keysRAF.length];
+		for ( int i=0; i<keysRAF.length; i++ ) keysChannel[i] = keysRAF[i].getChannel();
+
+		final TimeManager tm = new TimeManager(size);
+		final int[] next = { 0 };
+		final int nBytes = nLongs * Long.BYTES;
+
+		int nThread = ParallelOptions.reserveNFreeProcessors()+1;
+		Thread[] thread = new Thread[nThread];
+		final Exception[] exception = new Exception[nThread];
+		for ( int ti=0; ti<thread.length; ti++ ) {
+			final int currT = ti;
+			thread[ti] = new Thread() {
+				@Override
+				public void run() {
+					byte[] bytes = new byte[chunkCodes * nBytes];
+					long[] values = new long[chunkCodes * nLongs];
+					ByteBuffer keysBuffer = ByteBuffer.allocate(chunkCodes * Integer.BYTES);
+					IntBuffer keys = keysBuffer.asIntBuffer();
+					try {
+						while ( true ) {
+							int first;
+							int n;
+							synchronized ( in ) {
+								first = next[0];
+								n = Math.min(chunkCodes, size - first);
+								if ( n <= 0 ) break;
+								in.readFully(bytes, 0, n * nBytes);
+								next[0] += n;
+								tm.reportProgress(n);
+							}
+							ByteBuffer.wrap(bytes, 0, n * nBytes).asLongBuffer().get(values, 0, n * nLongs);
+
+							for ( int iG=0; iG<gs.length; iG++ ) {
+								keys.clear();
+								for ( int i=0; i<n; i++ ) {
+									int key = gs[iG].eval(values, i * nLongs);
+									keys.put(key);
+									count[iG].incrementAndGet(key);
+								}
+								// positional writes, chunks can be written in any order
+								keysBuffer.clear();
+								keysBuffer.limit(n * Integer.BYTES);
+								long pos = first * (long) Integer.BYTES;
+								while ( keysBuffer.hasRemaining() ) {
+									pos += keysChannel[iG].write(keysBuffer, pos);
+								}
+							}
+						}
+					} catch (Exception e) {
+						exception[currT] = e;
+					}
+				}
+			};
+			thread[ti].start();
+		}
+
+		for ( Thread t : thread ) {
+			t.join();
+		}
+		ParallelOptions.free(nThread-1);
+		in.close();
+
+		for ( Exception e : exception ) {
+			if ( e != null ) throw e;
+		}
+		Log.info("Hashing done in: " + tm.getTotalTime_STR());
+	}
+
+	/**
+	 * Writes the index and buckets files of the tables, tables are processed
+	 * in parallel.
+	 */
+	private static void writeBuckets(
+			final File[] lFiles, final RandomAccessFile[] keysRAF,
+			final G_HammingLongs[] gs, final AtomicIntegerArray[] count,
+			final int size, final int nLongs) throws Exception {
+
+		final int[] next = { 0 };
+		int nThread = ParallelOptions.reserveNFreeProcessors(lFiles.length-1)+1;
+		Thread[] thread = new Thread[nThread];
+		final Exception[] exception = new Exception[nThread];
+		for ( int ti=0; ti<thread.length; ti++ ) {
+			final int currT = ti;
+			thread[ti] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						while ( true ) {
+							int iL;
+							synchronized ( next ) {
+								iL = next[0]++;
+							}
+							if ( iL >= lFiles.length ) break;
+
+							int[] c = new int[count[iL].length()];
+							for ( int k=0; k<c.length; k++ ) c[k] = count[iL].get(k);
+							L_HammingLongs.save(lFiles[iL], nLongs, gs[iL], c);
+							writeBuckets(L_HammingLongs.getBucketsFile(lFiles[iL]), keysRAF[iL].getChannel(), c, size);
+						}
+					} catch (Exception e) {
+						exception[currT] = e;
+					}
+				}
+			};
+			thread[ti].start();
+		}
+
+		for ( Thread t : thread ) {
+			t.join();
+		}
+		ParallelOptions.free(nThread-1);
+
+		for ( Exception e : exception ) {
+			if ( e != null ) throw e;
+		}
+	}
+
+	/**
+	 * Writes a new table merging an existing one with the ids of new
+	 * buckets. The existing buckets file is read once sequentially, the
+	 * hashing functions are the ones of the existing table.
+	 *
+	 * @param old		existing table
+	 * @param added		ids to be added for each key, greater than the ids of the existing table
+	 * @param deleted	ids to be removed (both existing and added)
+	 * @param lFile		file of the new table
+	 */
+	public static void merge(L_HammingLongs old, Map<Integer, TIntArrayList> added, BitSet deleted, File lFile) throws IOException {
+
+		long[] oldKeys = old.bSize.keys();
+		Arrays.sort(oldKeys);
+		int[] addedKeys = new int[added.size()];
+		int iA = 0;
+		for ( Integer key : added.keySet() ) addedKeys[iA++] = key;
+		Arrays.sort(addedKeys);
+
+		int[] count = new int[old.getNumberOfBuckets()];
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(
+						new FileInputStream(L_HammingLongs.getBucketsFile(old.file)), 1 << 20));
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(
+						new FileOutputStream(L_HammingLongs.getBucketsFile(lFile)), 1 << 20));
+		try {
+			// buckets are in increasing order of key in both
+			int iO = 0;
+			iA = 0;
+			while ( iO < oldKeys.length || iA < addedKeys.length ) {
+				int key;
+				if ( iA == addedKeys.length || ( iO < oldKeys.length && oldKeys[iO] <= addedKeys[iA] ) ) key = (int) oldKeys[iO];
+				else key = addedKeys[iA];
+
+				if ( iO < oldKeys.length && oldKeys[iO] == key ) {
+					int size = old.bSize.get(key);
+					for ( int i=0; i<size; i++ ) {
+						int id = in.readInt();
+						if ( deleted.get(id) ) continue;
+						out.writeInt(id);
+						count[key]++;
+					}
+					iO++;
+				}
+				if ( iA < addedKeys.length && addedKeys[iA] == key ) {
+					TIntArrayList ids = added.get(key);
+					for ( int i=0; i<ids.size(); i++ ) {
+						int id = ids.get(i);
+						if ( deleted.get(id) ) continue;
+						out.writeInt(id);
+						count[key]++;
+					}
+					iA++;
+				}
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+
+		L_HammingLongs.save(lFile, old.nLongs, old.g, count);
+	}
+
+	/**
+	 * Counting sort of the ids by key. The ids of each bucket are in
+	 * increasing order.
+	 */
+	private static void writeBuckets(File bFile, FileChannel keysChannel, int[] count, int size) throws IOException {
+
+		RandomAccessFile bRAF = new RandomAccessFile(bFile, "rw");
+		bRAF.setLength(0);
+		FileChannel bChannel = bRAF.getChannel();
+
+		ByteBuffer ioBuffer = ByteBuffer.allocate(ioInts * Integer.BYTES);
+		IntBuffer ioIntBuffer = ioBuffer.asIntBuffer();
+		int[] keys = new int[ioInts];
+
+		int[] ids = null;
+		int nh = count.length;
+		int from = 0;
+		while ( from < nh ) {
+			// range of buckets whose ids fit in the buffer (at least one bucket)
+			int to = from;
+			long n = 0;
+			while ( to < nh && ( to == from || n + count[to] <= bufferIDs ) ) {
+				n += count[to++];
+			}
+			if ( n == 0 ) {
+				from = to;
+				continue;
+			}
+			if ( ids == null || ids.length < n ) ids = new int[(int) Math.max(n, Math.min(bufferIDs, size))];
+
+			// first position of each bucket of the range
+			int[] pos = new int[to-from];
+			for ( int k=from, acc=0; k<to; k++ ) {
+				pos[k-from] = acc;
+				acc += count[k];
+			}
+
+			// scanning the keys
+			long filePos = 0;
+			for ( int first=0; first<size; first+=ioInts ) {
+				int nKeys = Math.min(ioInts, size - first);
+				ioBuffer.clear();
+				ioBuffer.limit(nKeys * Integer.BYTES);
+				while ( ioBuffer.hasRemaining() ) {
+					int read = keysChannel.read(ioBuffer, filePos);
+					if ( read < 0 ) throw new IOException("Unexpected end of the keys file");
+					filePos += read;
+				}
+				ioIntBuffer.clear();
+				ioIntBuffer.get(keys, 0, nKeys);
+				for ( int i=0; i<nKeys; i++ ) {
+					int key = keys[i];
+					if ( key >= from && key < to ) {
+						ids[pos[key-from]++] = first + i;
+					}
+				}
+			}
+
+			// appending the ids of the range
+			for ( int i=0; i<n; i+=ioInts ) {
+				int nIDs = (int) Math.min(ioInts, n - i);
+				ioIntBuffer.clear();
+				ioIntBuffer.put(ids, i, nIDs);
+				ioBuffer.clear();
+				ioBuffer.limit(nIDs * Integer.BYTES);
+				while ( ioBuffer.hasRemaining() ) {
+					bChannel.write(ioBuffer);
+				}
+			}
+
+			from = to;
+		}
+
+		bRAF.close();
+	}
+}
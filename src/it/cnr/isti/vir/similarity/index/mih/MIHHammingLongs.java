@@ -0,0 +1,405 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Fabrizio Falchi (NeMIS Lab., ISTI-CNR, Italy)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package it.cnr.isti.vir.similarity.index.mih;
+
+import it.cnr.isti.vir.distance.Hamming;
+import it.cnr.isti.vir.features.AbstractFeature;
+import it.cnr.isti.vir.features.AbstractFeaturesCollector;
+import it.cnr.isti.vir.features.FeatureClasses;
+import it.cnr.isti.vir.features.ILongBinaryValues;
+import it.cnr.isti.vir.file.ArchiveException;
+import it.cnr.isti.vir.file.FeaturesCollectorsArchive;
+import it.cnr.isti.vir.global.Log;
+import it.cnr.isti.vir.id.AbstractID;
+import it.cnr.isti.vir.similarity.knn.IkNNExecuter;
+import it.cnr.isti.vir.similarity.pqueues.AbstractSimPQueue;
+import it.cnr.isti.vir.similarity.pqueues.SimPQueue_kNN;
+import it.cnr.isti.vir.similarity.pqueues.SimPQueue_r;
+import it.cnr.isti.vir.similarity.results.ISimilarityResults;
+import it.cnr.isti.vir.similarity.results.ObjectWithDistance;
+import it.cnr.isti.vir.similarity.results.SimilarityResults;
+import it.cnr.isti.vir.util.TimeManager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Multi-index hashing (Norouzi et al., "Fast Search in Hamming Space with
+ * Multi-Index Hashing", CVPR 2012) for exact Hamming searches.
+ *
+ * Codes are split in m disjoint substrings, each substring is the key of a
+ * table. An object at Hamming distance d from the query has at least one
+ * substring at distance at most d/m from the one of the query, thus buckets
+ * are probed at increasing radius r from the query substrings until no
+ * object outside the results can be found: after probing at radius r the
+ * substrings 0..j, all the objects within distance m*r+j have been found.
+ *
+ * Codes are read from the longs file of the archive (the same used by
+ * {@link it.cnr.isti.vir.similarity.index.lsh.hamming.LSHHammingLongs_Archive}),
+ * the tables are saved in the .mih file of the archive.
+ */
+public class MIHHammingLongs implements IkNNExecuter {
+
+	public static final int version = 1;
+
+	/** Max length of a substring (keys are non negative ints) */
+	public static final int maxSubstringBits = 31;
+
+	private final FeaturesCollectorsArchive fca;
+	private final Class<? extends AbstractFeature> fClass;
+	private final int nLongs;
+	private final int size;
+
+	// substrings
+	private final int m;
+	private final int[] subStart;
+	private final int[] subLength;
+
+	// tables: sorted keys, first position of each key in ids (plus the end), ids sorted by key
+	private final int[][] keys;
+	private final int[][] offsets;
+	private final int[][] ids;
+
+	private RandomAccessFile dataRAF;
+	private LongBuffer[] dataSegment;
+	private int segmentCodes;
+
+	/**
+	 * Bitsets of the found objects, one for each running query
+	 */
+	private final ConcurrentLinkedQueue<long[]> bitsetPool = new ConcurrentLinkedQueue<long[]>();
+
+	public static final File getMIHFile(FeaturesCollectorsArchive fca) {
+		return new File(fca.getfile().getAbsolutePath() + ".mih");
+	}
+
+	public static final File getLongsFile(FeaturesCollectorsArchive fca) {
+		return new File(fca.getfile().getAbsolutePath() + ".longs");
+	}
+
+	/**
+	 * @return the number of substrings for codes of nBits bits and n objects
+	 * 			(substrings of about log2(n) bits)
+	 */
+	public static final int getDefaultM(int nBits, int n) {
+		int subBits = (int) Math.round(Math.log(Math.max(2, n)) / Math.log(2));
+		subBits = Math.max(1, Math.min(maxSubstringBits, subBits));
+		return (nBits + subBits - 1) / subBits;
+	}
+
+	/**
+	 * Builds the index.
+	 *
+	 * @param fca		archive of the objects
+	 * @param fClass	class of the binary codes
+	 * @param m			number of substrings (0 for {@link #getDefaultM(int, int)})
+	 */
+	public MIHHammingLongs(FeaturesCollectorsArchive fca, Class<? extends AbstractFeature> fClass, int m) throws Exception {
+		this.fca = fca;
+		this.fClass = fClass;
+		this.size = fca.size();
+		this.nLongs = ((ILongBinaryValues) fca.get(0).getFeature(fClass)).getValues().length;
+		int nBits = nLongs * Long.SIZE;
+		if ( m <= 0 ) m = getDefaultM(nBits, size);
+		if ( m > nBits || (nBits + m - 1) / m > maxSubstringBits )
+			throw new IllegalArgumentException("m (" + m + ") is not valid for codes of " + nBits + " bits");
+		this.m = m;
+		subStart = new int[m];
+		subLength = new int[m];
+		setSubstrings(nBits);
+
+		File longsFile = getLongsFile(fca);
+		if ( !longsFile.exists() || longsFile.length() != size * (long) nLongs * Long.BYTES ) {
+			createLongsFile(longsFile);
+		}
+		openData();
+
+		Log.info("Building MIH with " + m + " substrings of " + subLength[m-1] + "-" + subLength[0] + " bits");
+		keys = new int[m][];
+		offsets = new int[m][];
+		ids = new int[m][];
+		long[] code = new long[nLongs];
+		long[] pairs = new long[size];
+		TimeManager tm = new TimeManager(m);
+		for ( int j=0; j<m; j++ ) {
+			// (key, id) pairs sorted by key and id
+			for ( int i=0; i<size; i++ ) {
+				readData(i, code);
+				pairs[i] = ((long) getSubstring(code, j) << 32) | i;
+			}
+			Arrays.sort(pairs);
+
+			int nKeys = 0;
+			for ( int i=0; i<size; i++ ) {
+				if ( i == 0 || (pairs[i] >>> 32) != (pairs[i-1] >>> 32) ) nKeys++;
+			}
+			keys[j] = new int[nKeys];
+			offsets[j] = new int[nKeys+1];
+			ids[j] = new int[size];
+			int iK = -1;
+			for ( int i=0; i<size; i++ ) {
+				int key = (int) (pairs[i] >>> 32);
+				if ( iK < 0 || keys[j][iK] != key ) {
+					keys[j][++iK] = key;
+					offsets[j][iK] = i;
+				}
+				ids[j][i] = (int) pairs[i];
+			}
+			offsets[j][nKeys] = size;
+			tm.reportProgress();
+		}
+		Log.info("MIH built in " + tm.getTotalTime_STR());
+	}
+
+	/**
+	 * Loads the index saved for the archive.
+	 */
+	public MIHHammingLongs(FeaturesCollectorsArchive fca) throws Exception {
+		this.fca = fca;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(getMIHFile(fca)), 1 << 20));
+		try {
+			int fileVersion = in.readInt();
+			if ( fileVersion != version )
+				throw new IOException("MIH file " + getMIHFile(fca).getAbsolutePath() + " version " + fileVersion + " is not supported");
+			fClass = FeatureClasses.getClass(in.readInt());
+			nLongs = in.readInt();
+			size = in.readInt();
+			if ( size != fca.size() )
+				throw new ArchiveException("MIH file " + getMIHFile(fca).getAbsolutePath() + " indexes " + size + " objects, the archive contains " + fca.size());
+			m = in.readInt();
+			subStart = new int[m];
+			subLength = new int[m];
+			setSubstrings(nLongs * Long.SIZE);
+			keys = new int[m][];
+			offsets = new int[m][];
+			ids = new int[m][];
+			for ( int j=0; j<m; j++ ) {
+				keys[j] = readInts(in, in.readInt());
+				offsets[j] = readInts(in, keys[j].length+1);
+				ids[j] = readInts(in, size);
+			}
+		} finally {
+			in.close();
+		}
+		File longsFile = getLongsFile(fca);
+		if ( longsFile.length() != size * (long) nLongs * Long.BYTES )
+			throw new ArchiveException("Longs file " + longsFile.getAbsolutePath() + " has " + longsFile.length() + " bytes, "
+					+ size * (long) nLongs * Long.BYTES + " were expected for " + size + " codes of " + nLongs + " longs");
+		openData();
+	}
+
+	private static final int[] readInts(DataInputStream in, int n) throws IOException {
+		int[] res = new int[n];
+		for ( int i=0; i<n; i++ ) res[i] = in.readInt();
+		return res;
+	}
+
+	public void save() throws IOException {
+		Log.info("Saving MIH for " + fca.getfile().getAbsolutePath());
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getMIHFile(fca)), 1 << 20));
+		out.writeInt(version);
+		out.writeInt(FeatureClasses.getClassID(fClass));
+		out.writeInt(nLongs);
+		out.writeInt(size);
+		out.writeInt(m);
+		for ( int j=0; j<m; j++ ) {
+			out.writeInt(keys[j].length);
+			for ( int v : keys[j] ) out.writeInt(v);
+			for ( int v : offsets[j] ) out.writeInt(v);
+			for ( int v : ids[j] ) out.writeInt(v);
+		}
+		out.close();
+	}
+
+	/**
+	 * Substrings of nBits/m bits, the first nBits%m have one more bit.
+	 */
+	private void setSubstrings(int nBits) {
+		int base = nBits / m;
+		int extra = nBits % m;
+		int start = 0;
+		for ( int j=0; j<m; j++ ) {
+			subStart[j] = start;
+			subLength[j] = base + (j < extra ? 1 : 0);
+			start += subLength[j];
+		}
+	}
+
+	private final int getSubstring(long[] code, int j) {
+		int start = subStart[j];
+		int len = subLength[j];
+		int w = start >>> 6;
+		int o = start & 63;
+		long v = code[w] >>> o;
+		if ( o + len > 64 ) v |= code[w+1] << (64 - o);
+		return (int) (v & ((1L << len) - 1));
+	}
+
+	private void createLongsFile(File longsFile) throws Exception {
+		Log.info("MIH is creating Longs file " + longsFile.getAbsolutePath());
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(longsFile), 1 << 20));
+		try {
+			for ( AbstractFeaturesCollector fc : fca ) {
+				long[] values = ((ILongBinaryValues) fc.getFeature(fClass)).getValues();
+				if ( values.length != nLongs )
+					throw new ArchiveException("Object " + fc.getID() + " has a code of " + values.length + " longs, " + nLongs + " were expected");
+				for ( long l : values ) out.writeLong(l);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private void openData() throws IOException {
+		dataRAF = new RandomAccessFile(getLongsFile(fca), "r");
+		FileChannel fc = dataRAF.getChannel();
+		int nBytes = nLongs * Long.BYTES;
+		segmentCodes = Integer.MAX_VALUE / nBytes;
+		int nSegments = (size + segmentCodes - 1) / segmentCodes;
+		dataSegment = new LongBuffer[nSegments];
+		for ( int iS=0; iS<nSegments; iS++ ) {
+			long first = (long) iS * segmentCodes;
+			long n = Math.min(segmentCodes, size - first);
+			dataSegment[iS] = fc.map(FileChannel.MapMode.READ_ONLY, first * nBytes, n * nBytes).asLongBuffer();
+		}
+	}
+
+	private final void readData(int id, long[] data) {
+		LongBuffer lb = dataSegment[id / segmentCodes];
+		int offset = (id % segmentCodes) * nLongs;
+		for ( int i=0; i<nLongs; i++ ) data[i] = lb.get(offset+i);
+	}
+
+	public final int getM() {
+		return m;
+	}
+
+	public final int size() {
+		return size;
+	}
+
+	@Override
+	public ISimilarityResults getKNNResults(AbstractFeature qObj, int k) throws Exception {
+		return search(qObj, new SimPQueue_kNN(k));
+	}
+
+	public ISimilarityResults getKNNResults(AbstractFeaturesCollector fc, int k) throws Exception {
+		return search(fc.getFeature(fClass), new SimPQueue_kNN(k));
+	}
+
+	public ISimilarityResults rangeSearch(AbstractFeaturesCollector fc, double r) throws Exception {
+		return search(fc.getFeature(fClass), new SimPQueue_r(r));
+	}
+
+	public final ISimilarityResults search(AbstractFeature f, AbstractSimPQueue pQueue) throws Exception {
+		return search(((ILongBinaryValues) f).getValues(), pQueue);
+	}
+
+	/**
+	 * Exact search, the results are the IDs of the objects.
+	 */
+	public final ISimilarityResults search(long[] query, AbstractSimPQueue pQueue) throws Exception {
+		if ( query.length != nLongs )
+			throw new IllegalArgumentException("Query code has " + query.length + " longs, the index " + nLongs);
+
+		long[] found = bitsetPool.poll();
+		if ( found == null ) found = new long[(size + 63) / 64];
+		int[] foundIDs = new int[64];
+		int nFound = 0;
+
+		int[] qSub = new int[m];
+		for ( int j=0; j<m; j++ ) qSub[j] = getSubstring(query, j);
+
+		search:
+		for ( int r=0; ; r++ ) {
+			for ( int j=0; j<m; j++ ) {
+				// all the buckets of the substring have been probed, all the objects have been found
+				if ( r > subLength[j] ) break search;
+
+				// keys at distance r from the query substring (Gosper's hack)
+				long mask = (1L << r) - 1;
+				long limit = 1L << subLength[j];
+				while ( mask < limit ) {
+					int iK = Arrays.binarySearch(keys[j], qSub[j] ^ (int) mask);
+					if ( iK >= 0 ) {
+						for ( int i=offsets[j][iK]; i<offsets[j][iK+1]; i++ ) {
+							int id = ids[j][i];
+							long bit = 1L << id;
+							if ( (found[id >>> 6] & bit) != 0 ) continue;
+							found[id >>> 6] |= bit;
+							if ( nFound == foundIDs.length ) foundIDs = Arrays.copyOf(foundIDs, nFound * 2);
+							foundIDs[nFound++] = id;
+
+							int dist = Hamming.distance(query, dataSegment[id / segmentCodes], (id % segmentCodes) * nLongs);
+							if ( dist <= pQueue.excDistance ) pQueue.offer(id, dist);
+						}
+					}
+					if ( r == 0 ) break;
+					long c = mask & -mask;
+					long rr = mask + c;
+					mask = (((rr ^ mask) >>> 2) / c) | rr;
+				}
+
+				// objects not found are at distance greater than m*r+j
+				if ( pQueue.excDistance < m * r + j + 1 ) break search;
+			}
+		}
+
+		for ( int i=0; i<nFound; i++ ) found[foundIDs[i] >>> 6] = 0;
+		bitsetPool.offer(found);
+
+		ISimilarityResults res = pQueue.getResults();
+		ObjectWithDistance[] od = new ObjectWithDistance[res.size()];
+		int i=0;
+		for ( Iterator<ObjectWithDistance> it=res.iterator(); it != null && it.hasNext(); ) {
+			ObjectWithDistance c = it.next();
+			od[i++] = new ObjectWithDistance(getID((Integer) c.obj), c.dist);
+		}
+		return new SimilarityResults(od);
+	}
+
+	private final AbstractID getID(int i) throws ArchiveException {
+		if ( fca.getIDClass() != null ) return fca.getID(i);
+		return fca.get(i).getID();
+	}
+
+	public void close() throws IOException {
+		dataRAF.close();
+	}
+
+	public String toString() {
+		StringBuilder tStr = new StringBuilder();
+		tStr.append(this.getClass().getSimpleName() + " " + fca.getfile().getAbsolutePath() + "\n");
+		tStr.append("- nObjs\t" + size + "\n");
+		tStr.append("- nBits\t" + nLongs * Long.SIZE + "\n");
+		tStr.append("- m\t" + m + "\n");
+		tStr.append("- notNullBuckets\t");
+		for ( int j=0; j<m; j++ ) {
+			if ( j > 0 ) tStr.append(", ");
+			tStr.append(keys[j].length);
+		}
+		tStr.append("\n");
+		return tStr.toString();
+	}
+}
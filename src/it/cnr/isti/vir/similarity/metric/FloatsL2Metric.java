@@ -6,11 +6,12 @@ import it.cnr.isti.vir.features.AbstractFeaturesCollector;
 import it.cnr.isti.vir.features.FeatureClassCollector;
 import it.cnr.isti.vir.features.Floats;
 import it.cnr.isti.vir.features.localfeatures.FloatsLF;
+import it.cnr.isti.vir.similarity.ISimilarityBatch;
 
 import java.util.Collection;
 import java.util.Properties;
 
-public class FloatsL2Metric  implements IMetric<Floats>, IMeanEvaluator<Floats> {
+public class FloatsL2Metric  implements IMetric<Floats>, ISimilarityBatch<Floats, Floats[]>, IMeanEvaluator<Floats> {
 
 	private static long distCount = 0;
 	private static final FeatureClassCollector reqFeatures = new FeatureClassCollector(Floats.class);
@@ -57,6 +58,28 @@ public class FloatsL2Metric  implements IMetric<Floats>, IMeanEvaluator<Floats>
 		return L2.get(f1.getValues(), f2.getValues(), max );
 	}
 
+	@Override
+	public final Floats getFeature(AbstractFeaturesCollector fc) {
+		return fc.getFeature(Floats.class);
+	}
+	
+	@Override
+	public final Floats[] getQueries(AbstractFeaturesCollector[] fc) {
+		Floats[] res = new Floats[fc.length];
+		for ( int i=0; i<fc.length; i++ ) {
+			res[i] = fc[i].getFeature(Floats.class);
+		}
+		return res;
+	}
+	
+	@Override
+	public final void distance(Floats[] q, Floats obj, double[] max, double[] dist) {
+		float[] values = obj.getValues();
+		for ( int i=0; i<q.length; i++ ) {
+			dist[i] = L2.get(q[i].getValues(), values, max[i]);
+		}
+	}
+
 	@Override
 	public Floats getMean(Collection<Floats> coll) {
 		return Floats.getMean(coll);
@@ -17,13 +17,14 @@ import it.cnr.isti.vir.features.AbstractFeaturesCollector;
 import it.cnr.isti.vir.features.FeatureClassCollector;
 import it.cnr.isti.vir.features.Floats;
 import it.cnr.isti.vir.features.FloatsL2Norm_UBytes;
+import it.cnr.isti.vir.similarity.ISimilarityBatch;
 import it.cnr.isti.vir.util.math.Mean;
 
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.Properties;
 
-public class FloatsL2NormUBytes_L2Metric  implements IMetric<FloatsL2Norm_UBytes>, IMeanEvaluator<FloatsL2Norm_UBytes> {
+public class FloatsL2NormUBytes_L2Metric  implements IMetric<FloatsL2Norm_UBytes>, ISimilarityBatch<FloatsL2Norm_UBytes, FloatsL2Norm_UBytes[]>, IMeanEvaluator<FloatsL2Norm_UBytes> {
 
 	private static long distCount = 0;
 	private static final FeatureClassCollector reqFeatures = new FeatureClassCollector(FloatsL2Norm_UBytes.class);
@@ -70,6 +71,28 @@ public class FloatsL2NormUBytes_L2Metric  implements IMetric<FloatsL2Norm_UBytes
 		return L2.get(f1.getValues(), f2.getValues(), max*255.0 ) / 255.0;
 	}
 
+	@Override
+	public final FloatsL2Norm_UBytes getFeature(AbstractFeaturesCollector fc) {
+		return fc.getFeature(FloatsL2Norm_UBytes.class);
+	}
+	
+	@Override
+	public final FloatsL2Norm_UBytes[] getQueries(AbstractFeaturesCollector[] fc) {
+		FloatsL2Norm_UBytes[] res = new FloatsL2Norm_UBytes[fc.length];
+		for ( int i=0; i<fc.length; i++ ) {
+			res[i] = fc[i].getFeature(FloatsL2Norm_UBytes.class);
+		}
+		return res;
+	}
+	
+	@Override
+	public final void distance(FloatsL2Norm_UBytes[] q, FloatsL2Norm_UBytes obj, double[] max, double[] dist) {
+		byte[] values = obj.getValues();
+		for ( int i=0; i<q.length; i++ ) {
+			dist[i] = L2.get(q[i].getValues(), values, max[i]*255.0 ) / 255.0;
+		}
+	}
+
 	@Override
 	public FloatsL2Norm_UBytes getMean(Collection<FloatsL2Norm_UBytes> coll) {
 		return FloatsL2Norm_UBytes.getMean(coll);
@@ -5,12 +5,13 @@ import it.cnr.isti.vir.distance.Hamming;
 import it.cnr.isti.vir.features.AbstractFeaturesCollector;
 import it.cnr.isti.vir.features.BinaryLongs;
 import it.cnr.isti.vir.features.FeatureClassCollector;
+import it.cnr.isti.vir.similarity.ISimilarityBatch;
 import it.cnr.isti.vir.util.bytes.LongBinaryUtil;
 
 import java.util.Collection;
 import java.util.Properties;
 
-public class HammingLongs  implements IMetric<BinaryLongs>, IMeanEvaluator<BinaryLongs> {
+public class HammingLongs  implements IMetric<BinaryLongs>, ISimilarityBatch<BinaryLongs, long[][]>, IMeanEvaluator<BinaryLongs> {
 
 	private static long distCount = 0;
 	private static final FeatureClassCollector reqFeatures = new FeatureClassCollector(BinaryLongs.class);
@@ -57,6 +58,25 @@ public class HammingLongs  implements IMetric<BinaryLongs>, IMeanEvaluator<Binar
 	public final double distance(BinaryLongs f1, BinaryLongs f2, double max) {
 		return Hamming.distance(f1.getValues(), f2.getValues(), (int) Math.ceil(max) );
 	}
+
+	@Override
+	public final BinaryLongs getFeature(AbstractFeaturesCollector fc) {
+		return fc.getFeature(BinaryLongs.class);
+	}
+	
+	@Override
+	public final long[][] getQueries(AbstractFeaturesCollector[] fc) {
+		long[][] res = new long[fc.length][];
+		for ( int i=0; i<fc.length; i++ ) {
+			res[i] = fc[i].getFeature(BinaryLongs.class).getValues();
+		}
+		return res;
+	}
+	
+	@Override
+	public final void distance(long[][] q, BinaryLongs obj, double[] max, double[] dist) {
+		Hamming.distances(q, obj.getValues(), max, 1.0, dist);
+	}
 	
 	public String getStatsString() { return ""; };
 	
@@ -16,11 +16,12 @@ import it.cnr.isti.vir.features.FeatureClassCollector;
 import it.cnr.isti.vir.features.AbstractFeaturesCollector;
 import it.cnr.isti.vir.features.localfeatures.SIFT;
 import it.cnr.isti.vir.features.localfeatures.SIFTGroup;
+import it.cnr.isti.vir.similarity.ISimilarityBatch;
 
 import java.util.Collection;
 import java.util.Properties;
 
-public class SIFTMetric implements IMetric<SIFT>, ILocalFeaturesMetric<SIFT>, IMeanEvaluator<SIFT> {
+public class SIFTMetric implements IMetric<SIFT>, ISimilarityBatch<SIFT, SIFT[]>, ILocalFeaturesMetric<SIFT>, IMeanEvaluator<SIFT> {
 
 	private static long distCount = 0;
 	private static final FeatureClassCollector reqFeatures = new FeatureClassCollector(SIFT.class);
@@ -72,6 +73,26 @@ public class SIFTMetric implements IMetric<SIFT>, ILocalFeaturesMetric<SIFT>, IM
 		distCount++;
 		return SIFT.getDistance_Norm( f1, f2, max);
 	}
+
+	@Override
+	public final SIFT getFeature(AbstractFeaturesCollector fc) {
+		return fc.getFeature(SIFT.class);
+	}
+	
+	@Override
+	public final SIFT[] getQueries(AbstractFeaturesCollector[] fc) {
+		SIFT[] res = new SIFT[fc.length];
+		for ( int i=0; i<fc.length; i++ ) {
+			res[i] = fc[i].getFeature(SIFT.class);
+		}
+		return res;
+	}
+	
+	@Override
+	public final void distance(SIFT[] q, SIFT obj, double[] max, double[] dist) {
+		distCount += q.length;
+		SIFT.getDistance_Norm(q, obj, max, dist);
+	}
 	
 	@Override
 	public SIFT getMean(Collection<SIFT> coll) {
@@ -0,0 +1,245 @@
+/*******************************************************************************
+ * Copyright (c) 2013, Fabrizio Falchi (NeMIS Lab., ISTI-CNR, Italy)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package it.cnr.isti.vir.similarity.pqueues;
+
+import it.cnr.isti.vir.similarity.results.ObjectWithDistance;
+import it.cnr.isti.vir.similarity.results.SimilarityResults;
+
+import java.util.Arrays;
+
+/**
+ * Same semantic of {@link SimPQueueDMax} for int positions (e.g. positions in
+ * an archive). Positions and distances are kept in parallel primitive arrays
+ * organized as a max-heap, no object is allocated during offers.
+ * Offers are not synchronized, each thread should use its own queue.
+ */
+public class SimPQueueIntDMax {
+
+	public final int k;
+	public final double range;
+	private static int initSize = 11;
+
+	public double excDistance = Double.MAX_VALUE;
+	private final double initExcDistance;
+
+	private int[] pos;
+	private double[] dist;
+	private int size = 0;
+
+	public static void setInitSize(int given ) {
+		initSize = given;
+	}
+
+	public SimPQueueIntDMax(double range, int k) {
+		this.range = range;
+		excDistance =  range + Double.MIN_VALUE;
+		this.k = k;
+		initExcDistance = excDistance;
+		init(k);
+	}
+
+	public SimPQueueIntDMax(double range) {
+		this.range = range;
+		excDistance =  range + Double.MIN_VALUE;
+		this.k = -1;
+		initExcDistance = excDistance;
+		init(initSize);
+	}
+
+	public SimPQueueIntDMax(int k) {
+		this.k = k;
+		this.range = -1;
+		initExcDistance = excDistance;
+		init(k);
+	}
+
+	public SimPQueueIntDMax() {
+		k=-1;
+		range=-Double.MAX_VALUE;
+		initExcDistance = excDistance;
+		init(initSize);
+	}
+
+	/**
+	 * Returns an empty queue with the same k and range of the given one,
+	 * its excluding distance is not greater than the given one.
+	 */
+	public static SimPQueueIntDMax getEmpty(AbstractSimPQueue given) {
+		int k = given.getK();
+		double range = given.getRange();
+		SimPQueueIntDMax res = null;
+		if ( k > 0 ) {
+			if ( range >= 0 ) res = new SimPQueueIntDMax(range, k);
+			else res = new SimPQueueIntDMax(k);
+		} else if ( range >= 0 ) {
+			res = new SimPQueueIntDMax(range);
+		} else {
+			res = new SimPQueueIntDMax();
+		}
+		res.excDistance = Math.min(res.excDistance, given.excDistance);
+		return res;
+	}
+
+	private final void init(int capacity) {
+		capacity = Math.max(1, capacity);
+		pos = new int[capacity];
+		dist = new double[capacity];
+	}
+
+	public final int getK() {
+		return k;
+	}
+
+	public final double getRange() {
+		return range;
+	}
+
+	public final int size() {
+		return size;
+	}
+
+	public final boolean isFull() {
+		if (k<0) return false;
+		return size>=k;
+	}
+
+	public final void empty() {
+		size = 0;
+		excDistance = initExcDistance;
+	}
+
+	/**
+	 * @return the largest distance in the queue
+	 */
+	public final double getLastDist() {
+		return dist[0];
+	}
+
+	public final void offer(int position, double distance) {
+
+		// excDistance takes also into account range!!!
+		if ( distance > excDistance) return;
+
+		if ( k>=0 && size == k ) {
+			// kNN and full: the root is replaced
+			if ( k == 0 ) return;
+			siftDown(position, distance);
+			excDistance = dist[0];
+			return;
+		}
+
+		if ( size == pos.length ) {
+			int newLength = pos.length*2;
+			pos = Arrays.copyOf(pos, newLength);
+			dist = Arrays.copyOf(dist, newLength);
+		}
+		siftUp(size++, position, distance);
+		if ( size == k ) excDistance = dist[0];
+	}
+
+	private final void siftUp(int i, int position, double distance) {
+		while ( i > 0 ) {
+			int parent = (i-1) >>> 1;
+			if ( dist[parent] >= distance ) break;
+			pos[i] = pos[parent];
+			dist[i] = dist[parent];
+			i = parent;
+		}
+		pos[i] = position;
+		dist[i] = distance;
+	}
+
+	private final void siftDown(int position, double distance) {
+		int i = 0;
+		int half = size >>> 1;
+		while ( i < half ) {
+			int child = 2*i+1;
+			int right = child+1;
+			if ( right < size && dist[right] > dist[child] ) child = right;
+			if ( distance >= dist[child] ) break;
+			pos[i] = pos[child];
+			dist[i] = dist[child];
+			i = child;
+		}
+		pos[i] = position;
+		dist[i] = distance;
+	}
+
+	/**
+	 * Sorts the content of the queue by increasing distance (ties by position).
+	 * The queue is emptied.
+	 *
+	 * @param resPos	at least size() positions
+	 * @param resDist	at least size() distances
+	 * @return the number of results
+	 */
+	public final int getSortedAndEmpty(int[] resPos, double[] resDist) {
+		int n = size;
+		// heap sort: the root is the largest
+		while ( size > 0 ) {
+			int last = --size;
+			resPos[last] = pos[0];
+			resDist[last] = dist[0];
+			if ( last > 0 ) siftDown(pos[last], dist[last]);
+		}
+		// heap order does not consider positions
+		for ( int i=1; i<n; i++ ) {
+			int currPos = resPos[i];
+			double currDist = resDist[i];
+			int j = i-1;
+			while ( j >= 0 && resDist[j] == currDist && resPos[j] > currPos ) {
+				resPos[j+1] = resPos[j];
+				resDist[j+1] = resDist[j];
+				j--;
+			}
+			resPos[j+1] = currPos;
+			resDist[j+1] = currDist;
+		}
+		empty();
+		return n;
+	}
+
+	/**
+	 * Offers the content of the queue to another queue. The queue is emptied.
+	 *
+	 * @param objs	objects at the positions (if null the Integer position is offered)
+	 */
+	public final <O> void offerToAndEmpty(AbstractSimPQueue<O> other, O[] objs) {
+		for ( int i=0; i<size; i++ ) {
+			if ( dist[i] > other.excDistance ) continue;
+			other.offer(objs == null ? (O) Integer.valueOf(pos[i]) : objs[pos[i]], dist[i]);
+		}
+		empty();
+	}
+
+	/**
+	 * Results are created only when requested.
+	 *
+	 * @param query	query of the results
+	 * @param objs	objects at the positions (if null Integer positions are used)
+	 */
+	public final SimilarityResults getResultsAndEmpty(Object query, Object[] objs) {
+		int[] resPos = new int[size];
+		double[] resDist = new double[size];
+		int n = getSortedAndEmpty(resPos, resDist);
+		ObjectWithDistance[] arr = new ObjectWithDistance[n];
+		for ( int i=0; i<n; i++ ) {
+			Object obj = objs == null ? Integer.valueOf(resPos[i]) : objs[resPos[i]];
+			arr[i] = new ObjectWithDistance(obj, resDist[i]);
+		}
+		return new SimilarityResults(query, arr);
+	}
+
+	public final SimilarityResults getResultsAndEmpty() {
+		return getResultsAndEmpty(null, null);
+	}
+}
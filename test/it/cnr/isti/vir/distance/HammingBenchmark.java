@@ -0,0 +1,50 @@
+package it.cnr.isti.vir.distance;
+
+import java.util.Random;
+
+/**
+ * Compares the blocked scan of {@link Hamming#distances(long[], long[], int, int, int, int[], int)}
+ * with the per-pair loop of {@link Hamming#distance(long[], long[], int)}.
+ * Arguments: number of codes, longs per code, repetitions.
+ */
+public class HammingBenchmark {
+
+	public static void main(String[] args) {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 20;
+		int nLongs = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		int reps = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+		Random rnd = new Random(1);
+		long[] data = new long[n*nLongs];
+		for ( int i=0; i<data.length; i++ ) data[i] = rnd.nextLong();
+		long[][] codes = new long[n][nLongs];
+		for ( int i=0; i<n; i++ ) System.arraycopy(data, i*nLongs, codes[i], 0, nLongs);
+		long[] q = new long[nLongs];
+		for ( int i=0; i<nLongs; i++ ) q[i] = rnd.nextLong();
+		int[] dist = new int[n];
+
+		for ( int max : new int[] {Integer.MAX_VALUE, nLongs*Long.SIZE*3/8} ) {
+			long check = 0;
+			long perPair = Long.MAX_VALUE;
+			long blocked = Long.MAX_VALUE;
+			// the first half of the repetitions is warm up
+			for ( int r=0; r<reps; r++ ) {
+				long start = System.nanoTime();
+				for ( int i=0; i<n; i++ ) {
+					dist[i] = Hamming.distance(q, codes[i], max);
+				}
+				long t = System.nanoTime() - start;
+				if ( r >= reps/2 ) perPair = Math.min(perPair, t);
+				check += dist[n-1];
+
+				start = System.nanoTime();
+				Hamming.distances(q, data, 0, n, max, dist, 0);
+				t = System.nanoTime() - start;
+				if ( r >= reps/2 ) blocked = Math.min(blocked, t);
+				check += dist[n-1];
+			}
+			System.out.printf("max %d: per pair %.2f ns/code, blocked %.2f ns/code, speedup %.2f (%d)%n",
+					max, (double) perPair / n, (double) blocked / n, (double) perPair / blocked, check);
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package it.cnr.isti.vir.distance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.LongBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HammingTest {
+
+	private static final Random rnd = new Random(7);
+
+	private static long[] getCode(int nLongs) {
+		long[] res = new long[nLongs];
+		for ( int i=0; i<nLongs; i++ ) res[i] = rnd.nextLong();
+		return res;
+	}
+
+	private static void check(int exp, int max, int res) {
+		if ( exp <= max ) assertEquals(exp, res);
+		else assertTrue(res < 0);
+	}
+
+	@Test
+	public void testBlocks() {
+		for ( int nLongs : new int[] {1, 2, 4, 8} ) {
+			int n = 3*Hamming.blockSize + 5;
+			long[] q = getCode(nLongs);
+			long[][] codes = new long[n][];
+			long[] data = new long[1 + n*nLongs];
+			for ( int i=0; i<n; i++ ) {
+				codes[i] = getCode(nLongs);
+				System.arraycopy(codes[i], 0, data, 1 + i*nLongs, nLongs);
+			}
+			int[] pos = new int[n];
+			for ( int i=0; i<n; i++ ) pos[i] = 10 + i;
+
+			for ( int max : new int[] {Integer.MAX_VALUE, nLongs*32, nLongs*24, 0} ) {
+				int[] dist = new int[n+2];
+				Hamming.distances(q, data, 1, n, max, dist, 2);
+				int[] bDist = new int[n];
+				Hamming.distances(q, LongBuffer.wrap(data, 1, n*nLongs).slice(), 10, pos, 0, n, max, bDist);
+				double[] dMax = new double[n];
+				double[] qDist = new double[n];
+				for ( int i=0; i<n; i++ ) dMax[i] = (i % 2 == 0) ? max : Double.MAX_VALUE;
+				Hamming.distances(codes, q, dMax, 1.0, qDist);
+
+				for ( int i=0; i<n; i++ ) {
+					int exp = Hamming.distance(q, codes[i]);
+					check(exp, max, dist[i+2]);
+					check(exp, max, bDist[i]);
+					if ( i % 2 == 0 ) check(exp, max, (int) qDist[i]);
+					else assertEquals(exp, qDist[i], 0.0);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package it.cnr.isti.vir.features;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import it.cnr.isti.vir.features.localfeatures.SIFTGroup;
+import it.cnr.isti.vir.features.localfeatures.SIFTGroupTest;
+import it.cnr.isti.vir.id.IDString;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FeaturesCollectorArrTest {
+
+	static final Random rnd = new Random(System.currentTimeMillis());
+	
+	@Test
+	public void lazyTest() throws Exception {
+		float[] f = new float[rnd.nextInt(100)];
+		for ( int i=0; i<f.length; i++ ) f[i] = rnd.nextFloat();
+		long[] l = new long[rnd.nextInt(10)];
+		for ( int i=0; i<l.length; i++ ) l[i] = rnd.nextLong();
+		
+		ArrayList<AbstractFeature> coll = new ArrayList<AbstractFeature>();
+		coll.add(new SIFTGroupTest().getRandomGroup());
+		coll.add(new Floats(f));
+		coll.add(new BinaryLongs(l));
+		FeaturesCollectorArr fc = new FeaturesCollectorArr(coll, new IDString("0"));
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		fc.writeData(new DataOutputStream(bytes));
+		
+		boolean prev = FeaturesCollectorArr.lazyDecodingOnReading;
+		FeaturesCollectorArr.lazyDecodingOnReading = true;
+		try {
+			FeaturesCollectorArr lazy = new FeaturesCollectorArr(ByteBuffer.wrap(bytes.toByteArray()));
+			assertEquals(fc.getID(), lazy.getID());
+			assertArrayEquals(f, lazy.getFeature(Floats.class).values, 0);
+			assertArrayEquals(l, lazy.getFeature(BinaryLongs.class).values);
+			assertEquals(fc.getFeature(SIFTGroup.class), lazy.getFeature(SIFTGroup.class));
+			assertEquals(3, lazy.getFeatures().size());
+		} finally {
+			FeaturesCollectorArr.lazyDecodingOnReading = prev;
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package it.cnr.isti.vir.similarity;
+
+import static org.junit.Assert.*;
+import it.cnr.isti.vir.distance.L2;
+import it.cnr.isti.vir.features.localfeatures.KeyPoint;
+import it.cnr.isti.vir.features.localfeatures.RootSIFT;
+import it.cnr.isti.vir.features.localfeatures.RootSIFTGroup;
+import it.cnr.isti.vir.features.localfeatures.SIFT;
+import it.cnr.isti.vir.features.localfeatures.SIFTGroup;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class L2NNLoweKDForestMatcherTest {
+
+	private static byte[] getRndData(Random rnd) {
+		byte[] data = new byte[128];
+		for ( int i=0; i<data.length; i++ ) data[i] = (byte) rnd.nextInt(128);
+		return data;
+	}
+
+	@Test
+	public void testExcludingDistance() {
+		Random rnd = new Random(5);
+		byte[] a = getRndData(rnd);
+		byte[] q = a.clone();
+		q[0] = (byte) (q[0] / 2);
+		SIFTGroup g2 = new SIFTGroup(new SIFT[] { new SIFT(KeyPoint.getRandom(), a), new SIFT(KeyPoint.getRandom(), getRndData(rnd)) });
+		SIFTGroup g1 = new SIFTGroup(new SIFT[] { new SIFT(KeyPoint.getRandom(), q) });
+		RootSIFTGroup r2 = new RootSIFTGroup(g2, null);
+		RootSIFTGroup r1 = new RootSIFTGroup(g1, null);
+
+		RootSIFT rq = r1.lfArr[0];
+		int d1 = L2.getSquared(rq.getValues(), r2.lfArr[0].getValues());
+		int d2 = L2.getSquared(rq.getValues(), r2.lfArr[1].getValues());
+		assertTrue(d1 > 0 && d2 > d1);
+
+		// second neighbor closer and farther than ceil(maxFDsq/conf)
+		double[] conf = { 0.5, 0.8, (double) d1 / d2, (double) d1 / (d2-1), (double) d1 / (d2+1), 1.0 / d2 };
+		int[] maxFDsq = { d1-1, d1, (d1+d2)/2, d2, Integer.MAX_VALUE };
+		for ( double c : conf ) {
+			for ( int m : maxFDsq ) {
+				assertEquals(
+						L2NNLoweMatcher.getLoweMatchesSIFT(g1, g2, c, m).size(),
+						L2NNLoweKDForestMatcher.getLoweMatchesSIFT(g1, g2, c, m).size());
+				assertEquals(
+						L2NNLoweMatcher.getMatchesRootSIFT(r1, r2, c, m).size(),
+						L2NNLoweKDForestMatcher.getMatchesRootSIFT(r1, r2, c, m).size());
+			}
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package it.cnr.isti.vir.similarity;
+
+import static org.junit.Assert.*;
+import it.cnr.isti.vir.features.localfeatures.KeyPoint;
+import it.cnr.isti.vir.features.localfeatures.SIFT;
+import it.cnr.isti.vir.features.localfeatures.SIFTGroup;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LoweHoughAccumulatorTest {
+
+	private static void assertSameBin(LocalFeaturesMatches expected, LocalFeaturesMatches actual) {
+		assertEquals(expected.getHashCode(), actual.getHashCode());
+		assertEquals(expected.size(), actual.size());
+		for ( int i=0; i<expected.size(); i++ ) {
+			assertSame(expected.get(i), actual.get(i));
+		}
+	}
+
+	private static void assertSameBins(Hashtable<Long, LocalFeaturesMatches> expected, Hashtable<Long, LocalFeaturesMatches> actual) {
+		assertEquals(expected.size(), actual.size());
+		for ( Long key : expected.keySet() ) {
+			assertNotNull(actual.get(key));
+			assertSameBin(expected.get(key), actual.get(key));
+		}
+	}
+
+	/**
+	 * Top bins in decreasing order of size, as the first n of orderHT apart
+	 * from the order of the bins of the same size (creation order, checked
+	 * if given).
+	 */
+	private static void assertTopBins(LoweHoughAccumulator acc, Hashtable<Long, LocalFeaturesMatches> ht, ArrayList<Long> creationOrder, int n) {
+		LocalFeaturesMatches[] ordered = LoweHoughTransform.orderHT(ht);
+		LocalFeaturesMatches[] top = acc.getTopBins(n);
+		assertEquals(Math.min(n, ordered.length), top.length);
+		if ( top.length > 0 ) assertEquals(ordered[0].size(), acc.getMaxCount());
+		HashSet<Long> returned = new HashSet<Long>();
+		for ( int i=0; i<top.length; i++ ) {
+			assertEquals(ordered[i].size(), top[i].size());
+			assertSameBin(ht.get(top[i].getHashCode()), top[i]);
+			assertTrue(returned.add(top[i].getHashCode()));
+			if ( creationOrder != null && i > 0 && top[i].size() == top[i-1].size() ) {
+				assertTrue(creationOrder.indexOf(top[i-1].getHashCode()) < creationOrder.indexOf(top[i].getHashCode()));
+			}
+		}
+		// bins of the same size of the last one are the first created
+		if ( creationOrder != null && top.length > 0 ) {
+			int last = top[top.length-1].size();
+			boolean missing = false;
+			for ( Long key : creationOrder ) {
+				if ( ht.get(key).size() != last ) continue;
+				if ( !returned.contains(key) ) missing = true;
+				else assertFalse("tie not in creation order", missing);
+			}
+		}
+	}
+
+	@Test
+	public void testVotes() {
+		Random rnd = new Random(1);
+		for ( int votesPerMatch : new int[] { 4, 16 } ) {
+			for ( int rep=0; rep<20; rep++ ) {
+				int nMatches = rnd.nextInt(300);
+				ArrayList<LocalFeatureMatch> matches = getMatches(rnd, nMatches);
+				int nKeys = 1 + rnd.nextInt(200);
+				// the expected size is not always the actual one
+				LoweHoughAccumulator acc = new LoweHoughAccumulator(rnd.nextInt(nMatches+1), votesPerMatch);
+				Hashtable<Long, LocalFeaturesMatches> ht = new Hashtable<Long, LocalFeaturesMatches>();
+				ArrayList<Long> creationOrder = new ArrayList<Long>();
+				for ( int i=0; i<nMatches; i++ ) {
+					LocalFeatureMatch match = matches.get(i);
+					HashSet<Long> voted = new HashSet<Long>();
+					for ( int v=0; v<votesPerMatch; v++ ) {
+						long hashCode = rnd.nextInt(nKeys) * 0x100000001L;
+						if ( !voted.add(hashCode) ) continue;
+						acc.vote(hashCode, match);
+						// as LoweHoughTransform before the accumulator
+						LocalFeaturesMatches currColl = ht.get(hashCode);
+						if ( currColl == null ) {
+							currColl = new LocalFeaturesMatches();
+							currColl.setHashCode(hashCode);
+							ht.put(hashCode, currColl);
+							creationOrder.add(hashCode);
+						}
+						currColl.add(match);
+					}
+				}
+				assertEquals(ht.size(), acc.size());
+				assertSameBins(ht, acc.getHashtable());
+				for ( int n : new int[] { 0, 1, 3, 10, ht.size(), ht.size()+1 } ) {
+					assertTopBins(acc, ht, creationOrder, n);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Matches between two groups, half of them with the same orientation
+	 * and scale differences.
+	 */
+	private static ArrayList<LocalFeatureMatch> getMatches(Random rnd, int n) {
+		SIFT[] s1 = new SIFT[n];
+		SIFT[] s2 = new SIFT[n];
+		float ori = (float) ( Math.PI * ( 2 * rnd.nextDouble() - 1 ) );
+		float scale = 1 + 3 * rnd.nextFloat();
+		for ( int i=0; i<n; i++ ) {
+			float ori1 = (float) ( Math.PI * ( 2 * rnd.nextDouble() - 1 ) );
+			float scale1 = 1 + 3 * rnd.nextFloat();
+			s1[i] = new SIFT(new KeyPoint(600 * rnd.nextFloat(), 400 * rnd.nextFloat(), ori1, scale1), new byte[128]);
+			float ori2 = i % 2 == 0 ? ori1 + ori : (float) ( Math.PI * ( 2 * rnd.nextDouble() - 1 ) );
+			if ( ori2 > Math.PI ) ori2 -= 2 * Math.PI;
+			float scale2 = i % 2 == 0 ? scale1 * scale : 1 + 3 * rnd.nextFloat();
+			s2[i] = new SIFT(new KeyPoint(600 * rnd.nextFloat(), 400 * rnd.nextFloat(), ori2, scale2), new byte[128]);
+		}
+		new SIFTGroup(s1);
+		new SIFTGroup(s2);
+		ArrayList<LocalFeatureMatch> res = new ArrayList<LocalFeatureMatch>();
+		for ( int i=0; i<n; i++ ) res.add(new LocalFeatureMatch(s2[i], s1[i], i, i));
+		return res;
+	}
+
+	@Test
+	public void testLoweHoughTransform() {
+		Random rnd = new Random(2);
+		for ( boolean considerCoordinates : new boolean[] { false, true } ) {
+			for ( int rep=0; rep<10; rep++ ) {
+				ArrayList<LocalFeatureMatch> matches = getMatches(rnd, 1 + rnd.nextInt(500));
+				LoweHoughAccumulator acc = LoweHoughTransform.getLoweHoughAccumulator(matches, considerCoordinates, null);
+				Hashtable<Long, LocalFeaturesMatches> ht = acc.getHashtable();
+				assertEquals(acc.size(), ht.size());
+				assertSameBins(ht, LoweHoughTransform.getLoweHoughTransforms_HT(matches, considerCoordinates, null));
+
+				// each match is in 4 bins (16 considering the coordinates)
+				int nVotes = 0;
+				for ( LocalFeaturesMatches bin : ht.values() ) nVotes += bin.size();
+				assertEquals(matches.size() * ( considerCoordinates ? 16 : 4 ), nVotes);
+
+				for ( int n : new int[] { 1, 5, ht.size() } ) {
+					assertTopBins(acc, ht, null, n);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,257 @@
+package it.cnr.isti.vir.similarity;
+
+import static org.junit.Assert.*;
+import it.cnr.isti.vir.features.localfeatures.KeyPoint;
+import it.cnr.isti.vir.features.localfeatures.SIFT;
+import it.cnr.isti.vir.features.localfeatures.SIFTGroup;
+import it.cnr.isti.vir.geom.AbstractTransformation;
+import it.cnr.isti.vir.geom.AffineTransformation;
+import it.cnr.isti.vir.geom.HomographyTransformation;
+import it.cnr.isti.vir.geom.RSTTransformation;
+import it.cnr.isti.vir.geom.TransformationHypothesis;
+import it.cnr.isti.vir.geom.Transformations;
+import it.cnr.isti.vir.util.RandomOperations;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RANSACEngineTest {
+
+	private static final double error = 0.02;
+
+	private static float[][] getRandomPoints(Random rnd, int n) {
+		float[][] res = new float[n][2];
+		for ( int i=0; i<n; i++ ) {
+			res[i][0] = rnd.nextFloat();
+			res[i][1] = rnd.nextFloat();
+		}
+		return res;
+	}
+
+	// near identity, not reversing the orientation
+	private static double[] getRandomHomography(Random rnd, Class trClass) {
+		double[] h = { 1, 0, 0, 0, 1, 0, 0, 0, 1 };
+		if ( trClass.equals(RSTTransformation.class) ) {
+			double scale = 0.8 + 0.4 * rnd.nextDouble();
+			double rot = 0.6 * rnd.nextDouble() - 0.3;
+			h[0] = h[4] = scale * Math.cos(rot);
+			h[3] = scale * Math.sin(rot);
+			h[1] = -h[3];
+		} else {
+			for ( int i=0; i<6; i++ ) h[i] += 0.2 * rnd.nextDouble() - 0.1;
+			if ( trClass.equals(HomographyTransformation.class) ) {
+				h[6] = 0.2 * rnd.nextDouble() - 0.1;
+				h[7] = 0.2 * rnd.nextDouble() - 0.1;
+			}
+		}
+		h[2] = 0.2 * rnd.nextDouble() - 0.1;
+		h[5] = 0.2 * rnd.nextDouble() - 0.1;
+		return h;
+	}
+
+	private static float[] transform(double[] h, float[] p) {
+		double w = h[6] * p[0] + h[7] * p[1] + h[8];
+		return new float[] {
+				(float) ( ( h[0] * p[0] + h[1] * p[1] + h[2] ) / w ),
+				(float) ( ( h[3] * p[0] + h[4] * p[1] + h[5] ) / w ) };
+	}
+
+	private static void assertSameMapping(AbstractTransformation expected, AbstractTransformation actual, Random rnd) {
+		for ( float[] p : getRandomPoints(rnd, 10) ) {
+			float[] e = expected.getTransformed(p);
+			float[] a = actual.getTransformed(p);
+			assertEquals(e[0], a[0], 1e-3);
+			assertEquals(e[1], a[1], 1e-3);
+		}
+	}
+
+	@Test
+	public void testEstimate() {
+		Random rnd = new Random(1);
+		RANSACEngine engine = new RANSACEngine();
+		Class[] trClasses = { AffineTransformation.class, HomographyTransformation.class };
+		for ( Class trClass : trClasses ) {
+			int nPoints = Transformations.getNPointsForEstimation(trClass);
+			int nCompared = 0;
+			for ( int i=0; i<100; i++ ) {
+				double[] h = getRandomHomography(rnd, trClass);
+				float[][] pxy = getRandomPoints(rnd, nPoints);
+				float[][] puv = new float[nPoints][];
+				for ( int j=0; j<nPoints; j++ ) puv[j] = transform(h, pxy[j]);
+
+				AbstractTransformation expected = trClass.equals(AffineTransformation.class)
+						? AffineTransformation.getTransformation(pxy, puv)
+						: HomographyTransformation.getTransformation(pxy, puv);
+				AbstractTransformation actual = engine.estimate(trClass, pxy, puv);
+				if ( expected == null || actual == null ) continue;
+				assertSameMapping(expected, actual, rnd);
+				nCompared++;
+			}
+			assertTrue(trClass.getSimpleName() + " compared " + nCompared, nCompared >= 90);
+		}
+	}
+
+	@Test
+	public void testDraw() {
+		RandomOperations.setSeed(1);
+		RANSACEngine engine = new RANSACEngine();
+		int size = 20;
+		for ( int nPoints=2; nPoints<=4; nPoints++ ) {
+			// uniform
+			for ( int[] sample : engine.draw(nPoints, -1, size, 1000) ) {
+				HashSet<Integer> set = new HashSet<Integer>();
+				for ( int p : sample ) {
+					assertTrue(p >= 0 && p < size);
+					assertTrue("duplicate " + p, set.add(p));
+				}
+			}
+			// PROSAC: the k-th and nPoints-1 among the first k
+			for ( int k=nPoints-1; k<size; k++ ) {
+				for ( int[] sample : engine.draw(nPoints, k, size, 100) ) {
+					HashSet<Integer> set = new HashSet<Integer>();
+					assertEquals(k, sample[nPoints-1]);
+					for ( int j=0; j<nPoints; j++ ) {
+						if ( j < nPoints-1 ) assertTrue(sample[j] >= 0 && sample[j] < k);
+						assertTrue("duplicate " + sample[j], set.add(sample[j]));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Matches of the transformation, with outliers.
+	 */
+	private static LocalFeaturesMatches getMatches(Random rnd, Class trClass, int n, double inliersRatio) {
+		double[] h = getRandomHomography(rnd, trClass);
+		SIFT[] src = new SIFT[n];
+		SIFT[] dest = new SIFT[n];
+		for ( int i=0; i<n; i++ ) {
+			float[] xy = { 600 * rnd.nextFloat(), 400 * rnd.nextFloat() };
+			float[] uv;
+			if ( i < n * inliersRatio ) {
+				uv = transform(h, new float[] { xy[0] / 600, xy[1] / 600 });
+				uv[0] *= 600;
+				uv[1] *= 600;
+			} else {
+				uv = new float[] { 600 * rnd.nextFloat(), 400 * rnd.nextFloat() };
+			}
+			src[i] = new SIFT(new KeyPoint(xy[0], xy[1], 0, 2), new byte[128]);
+			dest[i] = new SIFT(new KeyPoint(uv[0], uv[1], 0, 2), new byte[128]);
+		}
+		new SIFTGroup(src);
+		new SIFTGroup(dest);
+		LocalFeaturesMatches res = new LocalFeaturesMatches();
+		for ( int i=0; i<n; i++ ) res.add(new LocalFeatureMatch(dest[i], src[i], i, i));
+		return res;
+	}
+
+	private static LocalFeaturesMatches getFiltered(LocalFeaturesMatches matches, AbstractTransformation t) {
+		float[] diff = new float[2];
+		ArrayList<LocalFeatureMatch> good = new ArrayList<LocalFeatureMatch>();
+		for ( int i=0; i<matches.size(); i++ ) {
+			LocalFeatureMatch m = matches.get(i);
+			LocalFeatureMatch.getXYDiff(t.getTransformed(m.getMatchingNormXY()), m.getNormXY(), diff);
+			if ( diff[0] * diff[0] + diff[1] * diff[1] <= error * error ) good.add(m);
+		}
+		return new LocalFeaturesMatches(good);
+	}
+
+	/**
+	 * RANSAC on a bin as before RANSACEngine (no minDist and consistency checks).
+	 */
+	private static TransformationHypothesis getOldRANSAC(LocalFeaturesMatches matches, int cycles, Class trClass) {
+		int nPoints = Transformations.getNPointsForEstimation(trClass);
+		int size = matches.size();
+		long total = 1;
+		for ( int n=0; n<nPoints; n++ ) total = total * (size - n) / (n + 1);
+
+		float[][] pSrc = new float[nPoints][];
+		float[][] pDest = new float[nPoints][];
+		int[] index = new int[nPoints];
+		LocalFeaturesMatches best = null;
+		AbstractTransformation bestTr = null;
+		for ( long count=0; count < ( cycles > total / 2 ? total : cycles ); count++ ) {
+			if ( cycles > total / 2 ) {
+				if ( count == 0 ) {
+					for ( int i=0; i<nPoints; i++ ) index[i] = i;
+				} else if ( matches.nextIDs(index, size) < 0 ) {
+					break;
+				}
+			} else {
+				for ( int n=0; n<nPoints; n++ ) {
+					boolean duplicated;
+					do {
+						duplicated = false;
+						index[n] = RandomOperations.getInt(0, size - 1);
+						for ( int i=0; i<n; i++ ) duplicated |= index[n] == index[i];
+					} while ( duplicated );
+				}
+			}
+			for ( int i=0; i<nPoints; i++ ) {
+				pSrc[i] = matches.get(index[i]).getMatchingNormXY();
+				pDest[i] = matches.get(index[i]).getNormXY();
+			}
+			AbstractTransformation t = Transformations.getTransformation(trClass, pSrc, pDest);
+			if ( t == null ) continue;
+			LocalFeaturesMatches filtered = getFiltered(matches, t);
+			if ( filtered.size() >= nPoints && ( best == null || filtered.size() > best.size() ) ) {
+				best = filtered;
+				bestTr = t;
+			}
+		}
+		return best == null ? null : new TransformationHypothesis(bestTr, best);
+	}
+
+	private static void assertSameHypothesis(TransformationHypothesis expected, TransformationHypothesis actual, boolean sameTr) {
+		LocalFeaturesMatches e = expected.getMatches();
+		LocalFeaturesMatches a = actual.getMatches();
+		assertEquals(e.size(), a.size());
+		for ( int i=0; i<e.size(); i++ ) {
+			assertSame(e.get(i), a.get(i));
+		}
+		if ( sameTr ) assertSameMapping(expected.getTransformation(), actual.getTransformation(), new Random(0));
+	}
+
+	@Test
+	public void testAsBefore() {
+		double confidence = RANSACEngine.confidence;
+		boolean prosac = RANSACEngine.prosac;
+		RANSACEngine.confidence = 1.0;
+		RANSACEngine.prosac = false;
+		try {
+			Random rnd = new Random(2);
+			RANSACEngine engine = new RANSACEngine();
+			Class[] trClasses = { RSTTransformation.class, AffineTransformation.class, HomographyTransformation.class };
+			int[] exhaustiveSize = { 40, 25, 16 };
+			for ( int iTr=0; iTr<trClasses.length; iTr++ ) {
+				Class trClass = trClasses[iTr];
+				for ( int rep=0; rep<5; rep++ ) {
+					// all the combinations: same first best hypothesis
+					LocalFeaturesMatches bin = getMatches(rnd, trClass, exhaustiveSize[iTr], 0.5);
+					TransformationHypothesis expected = getOldRANSAC(bin, 100000, trClass);
+					ArrayList<TransformationHypothesis> res = engine.getRANSAC(
+							new LocalFeaturesMatches[] { bin }, 100000, 1, error, trClass, 0.0, true, false);
+					assertEquals(1, res.size());
+					assertSameHypothesis(expected, res.get(0), true);
+
+					// fixed number of cycles: same inliers
+					bin = getMatches(rnd, trClass, 200, 0.6);
+					RandomOperations.setSeed(rep);
+					expected = getOldRANSAC(bin, 2000, trClass);
+					res = engine.getRANSAC(
+							new LocalFeaturesMatches[] { bin }, 2000, 1, error, trClass, 0.0, true, false);
+					assertEquals(1, res.size());
+					assertSameHypothesis(expected, res.get(0), false);
+				}
+			}
+			assertEquals(Double.MAX_VALUE, RANSACEngine.getNHypotheses(0.1, 4, 1.0), 0.0);
+		} finally {
+			RANSACEngine.confidence = confidence;
+			RANSACEngine.prosac = prosac;
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package it.cnr.isti.vir.similarity;
+
+import static org.junit.Assert.*;
+import it.cnr.isti.vir.features.AbstractFeaturesCollector;
+import it.cnr.isti.vir.features.FeaturesCollectorArr;
+import it.cnr.isti.vir.features.localfeatures.VLADHamming;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class VLADHammingSimilarityTest {
+
+	private static VLADHamming getRandom(Random rnd, int nLongs) {
+		long[] values = new long[nLongs];
+		for ( int i=0; i<nLongs; i++ ) values[i] = rnd.nextLong();
+		return new VLADHamming(values);
+	}
+
+	@Test
+	public void testBatch() {
+		Random rnd = new Random(3);
+		VLADHammingSimilarity sim = new VLADHammingSimilarity();
+		for ( int nLongs=1; nLongs<=7; nLongs++ ) {
+			VLADHamming[] q = new VLADHamming[19];
+			AbstractFeaturesCollector[] qFC = new AbstractFeaturesCollector[q.length];
+			double[] max = new double[q.length];
+			for ( int i=0; i<q.length; i++ ) {
+				q[i] = getRandom(rnd, nLongs);
+				qFC[i] = new FeaturesCollectorArr(q[i]);
+				max[i] = i % 3 == 0 ? Double.MAX_VALUE : rnd.nextDouble();
+			}
+			// the prepared queries are reused for all the objects
+			VLADHammingSimilarity.Queries prepared = sim.getQueries(qFC);
+			for ( int rep=0; rep<50; rep++ ) {
+				VLADHamming obj = getRandom(rnd, nLongs);
+				double[] dist = new double[q.length];
+				sim.distance(prepared, obj, max, dist);
+				for ( int i=0; i<q.length; i++ ) {
+					double exp = sim.distance(q[i], obj);
+					// same rounding as the single pair distance
+					if ( exp <= max[i] ) assertEquals(exp, dist[i], 0.0);
+					else assertTrue(dist[i] < 0);
+				}
+			}
+		}
+	}
+}
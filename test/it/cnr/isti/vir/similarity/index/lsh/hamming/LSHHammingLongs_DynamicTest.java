@@ -0,0 +1,132 @@
+package it.cnr.isti.vir.similarity.index.lsh.hamming;
+
+import static org.junit.Assert.*;
+import it.cnr.isti.vir.features.BinaryLongs;
+import it.cnr.isti.vir.features.FeaturesCollectorArr;
+import it.cnr.isti.vir.file.ArchiveException;
+import it.cnr.isti.vir.file.FeaturesCollectorsArchive;
+import it.cnr.isti.vir.id.AbstractID;
+import it.cnr.isti.vir.id.IDInteger;
+import it.cnr.isti.vir.similarity.pqueues.SimPQueue_kNN;
+import it.cnr.isti.vir.similarity.results.ISimilarityResults;
+import it.cnr.isti.vir.similarity.results.ObjectWithDistance;
+import it.cnr.isti.vir.util.TempFile;
+
+import java.io.File;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LSHHammingLongs_DynamicTest {
+
+	private static final int nLongs = 2;
+
+	private static void checkAll(LSHHammingLongs_Dynamic index, long[][] codes, int n) throws Exception {
+		assertEquals(n, index.size());
+		for ( int i=0; i<n; i++ ) {
+			ISimilarityResults res = index.search(codes[i], new SimPQueue_kNN(1));
+			assertEquals(1, res.size());
+			ObjectWithDistance first = res.getFirst();
+			assertEquals(new IDInteger(i), (AbstractID) first.getObj());
+			assertEquals(0.0, first.getDist(), 0.0);
+		}
+	}
+
+	private static void delete(File dir) {
+		File[] files = dir.listFiles();
+		if ( files != null ) for ( File f : files ) delete(f);
+		dir.delete();
+	}
+
+	@Test
+	public void testFailedMerge() throws Exception {
+		Random rnd = new Random(1);
+		int n = 2000;
+		long[][] codes = new long[n][nLongs];
+		for ( int i=0; i<n; i++ ) {
+			for ( int j=0; j<nLongs; j++ ) codes[i][j] = rnd.nextLong();
+		}
+
+		File dir = new File(TempFile.getTempFileName());
+		LSHHammingLongs_Dynamic index = new LSHHammingLongs_Dynamic(dir, nLongs, 8, 3);
+		for ( int i=0; i<n/2; i++ ) index.insert(new IDInteger(i), codes[i]);
+		index.merge();
+		for ( int i=n/2; i<3*n/4; i++ ) index.insert(new IDInteger(i), codes[i]);
+
+		// the removed file of the second generation can't be written
+		File obstacle = new File(dir, "removed_2.dat");
+		assertTrue(obstacle.mkdir());
+		try {
+			index.merge();
+			fail("merge should fail");
+		} catch (Exception e) {
+		}
+		obstacle.delete();
+		checkAll(index, codes, 3*n/4);
+
+		// the files still have the first merge
+		LSHHammingLongs_Dynamic reopened = new LSHHammingLongs_Dynamic(dir);
+		checkAll(reopened, codes, n/2);
+		reopened.close();
+
+		for ( int i=3*n/4; i<n; i++ ) index.insert(new IDInteger(i), codes[i]);
+		index.merge();
+		checkAll(index, codes, n);
+		index.close();
+
+		index = new LSHHammingLongs_Dynamic(dir);
+		checkAll(index, codes, n);
+		index.close();
+		delete(dir);
+	}
+
+	@Test
+	public void testArchive() throws Exception {
+		Random rnd = new Random(2);
+		int n = 1000;
+		long[][] codes = new long[n][nLongs];
+		File file = new File(TempFile.getTempFileName());
+		FeaturesCollectorsArchive fca = new FeaturesCollectorsArchive(file, IDInteger.class, FeaturesCollectorArr.class);
+		for ( int i=0; i<n; i++ ) {
+			for ( int j=0; j<nLongs; j++ ) codes[i][j] = rnd.nextLong();
+			fca.add(new FeaturesCollectorArr(new BinaryLongs(codes[i]), new IDInteger(i)));
+		}
+		fca.close();
+
+		int sampleSize = G_HammingLongsTrainer.sampleSize;
+		G_HammingLongsTrainer.sampleSize = 500;
+		fca = new FeaturesCollectorsArchive(file);
+		File dir = new File(TempFile.getTempFileName());
+		try {
+			LSHHammingLongs_Dynamic index = new LSHHammingLongs_Dynamic(dir, fca, BinaryLongs.class, 8, 3);
+			checkAll(index, codes, n);
+			index.close();
+
+			index = new LSHHammingLongs_Dynamic(dir);
+			checkAll(index, codes, n);
+			index.close();
+		} finally {
+			G_HammingLongsTrainer.sampleSize = sampleSize;
+			fca.close();
+			file.delete();
+			delete(dir);
+		}
+	}
+
+	@Test
+	public void testEmptyArchive() throws Exception {
+		File file = new File(TempFile.getTempFileName());
+		new FeaturesCollectorsArchive(file, IDInteger.class, FeaturesCollectorArr.class).close();
+		FeaturesCollectorsArchive fca = new FeaturesCollectorsArchive(file);
+		File dir = new File(TempFile.getTempFileName());
+		try {
+			new LSHHammingLongs_Dynamic(dir, fca, BinaryLongs.class, 8, 3);
+			fail("an empty archive should be rejected");
+		} catch (ArchiveException e) {
+		} finally {
+			fca.close();
+			file.delete();
+			delete(dir);
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package it.cnr.isti.vir.similarity.index.mih;
+
+import static org.junit.Assert.*;
+import it.cnr.isti.vir.distance.Hamming;
+import it.cnr.isti.vir.features.BinaryLongs;
+import it.cnr.isti.vir.features.FeaturesCollectorArr;
+import it.cnr.isti.vir.file.ArchiveException;
+import it.cnr.isti.vir.file.FeaturesCollectorsArchive;
+import it.cnr.isti.vir.id.IDInteger;
+import it.cnr.isti.vir.similarity.pqueues.SimPQueue_kNN;
+import it.cnr.isti.vir.similarity.pqueues.SimPQueue_r;
+import it.cnr.isti.vir.similarity.results.ISimilarityResults;
+import it.cnr.isti.vir.similarity.results.ObjectWithDistance;
+import it.cnr.isti.vir.util.TempFile;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MIHHammingLongsTest {
+
+	private static final int nLongs = 2;
+	private static final int n = 600;
+
+	/**
+	 * Codes with few random bits, many objects at the same distance.
+	 */
+	private static long[][] getCodes(Random rnd) {
+		long[] base = { rnd.nextLong(), rnd.nextLong() };
+		long[][] res = new long[n][nLongs];
+		for ( int i=0; i<n; i++ ) {
+			for ( int j=0; j<nLongs; j++ ) {
+				res[i][j] = base[j] ^ ( rnd.nextLong() & rnd.nextLong() & rnd.nextLong() );
+			}
+		}
+		return res;
+	}
+
+	private static File createArchive(long[][] codes) throws Exception {
+		File file = new File(TempFile.getTempFileName() + ".dat");
+		FeaturesCollectorsArchive fca = new FeaturesCollectorsArchive(file, IDInteger.class, FeaturesCollectorArr.class);
+		for ( int i=0; i<codes.length; i++ ) {
+			fca.add(new FeaturesCollectorArr(new BinaryLongs(codes[i]), new IDInteger(i)));
+		}
+		fca.close();
+		return file;
+	}
+
+	private static void delete(File file) {
+		for ( String ext : new String[] { "", ".off", ".id", ".longs", ".mih" } ) {
+			new File(file.getAbsolutePath() + ext).delete();
+		}
+	}
+
+	/**
+	 * Results with the distances of a linear scan, in increasing order and
+	 * without duplicates.
+	 */
+	private static int[] check(ISimilarityResults res, int[] dist) {
+		int[] resDist = new int[res.size()];
+		HashSet<Integer> ids = new HashSet<Integer>();
+		int i = 0;
+		for ( Iterator<ObjectWithDistance> it=res.iterator(); it != null && it.hasNext(); ) {
+			ObjectWithDistance owd = it.next();
+			int id = ((IDInteger) owd.getObj()).id;
+			assertTrue("duplicate " + id, ids.add(id));
+			assertEquals(dist[id], owd.getDist(), 0.0);
+			resDist[i++] = (int) owd.getDist();
+		}
+		for ( i=1; i<resDist.length; i++ ) assertTrue(resDist[i-1] <= resDist[i]);
+		return resDist;
+	}
+
+	private static void checkSearches(MIHHammingLongs index, long[][] codes, Random rnd) throws Exception {
+		for ( int q=0; q<40; q++ ) {
+			long[] query = q % 2 == 0 ? codes[rnd.nextInt(n)].clone() : new long[] { rnd.nextLong(), rnd.nextLong() };
+			if ( q % 4 == 0 ) query[0] ^= rnd.nextLong() & rnd.nextLong();
+			int[] dist = new int[n];
+			for ( int i=0; i<n; i++ ) dist[i] = Hamming.distance(query, codes[i]);
+			int[] sorted = dist.clone();
+			Arrays.sort(sorted);
+
+			// kNN: same distances (ties broken in any order), also with k greater than n
+			for ( int k : new int[] { 1, 10, 50, n, n+10 } ) {
+				int[] resDist = check(index.search(query, new SimPQueue_kNN(k)), dist);
+				assertArrayEquals(Arrays.copyOf(sorted, Math.min(k, n)), resDist);
+			}
+
+			// range: all the objects within the range, also on the boundary
+			for ( int r : new int[] { 0, sorted[0], sorted[n/10], sorted[n-1] } ) {
+				int[] resDist = check(index.search(query, new SimPQueue_r(r)), dist);
+				int count = 0;
+				for ( int d : dist ) if ( d <= r ) count++;
+				assertEquals(count, resDist.length);
+			}
+		}
+	}
+
+	@Test
+	public void testLinearScan() throws Exception {
+		Random rnd = new Random(1);
+		long[][] codes = getCodes(rnd);
+		File file = createArchive(codes);
+		FeaturesCollectorsArchive fca = new FeaturesCollectorsArchive(file);
+		for ( int m : new int[] { 0, 8, 13, 32 } ) {
+			MIHHammingLongs index = new MIHHammingLongs(fca, BinaryLongs.class, m);
+			checkSearches(index, codes, rnd);
+			index.save();
+			index.close();
+
+			index = new MIHHammingLongs(fca);
+			checkSearches(index, codes, rnd);
+			index.close();
+		}
+		fca.close();
+		delete(file);
+	}
+
+	/**
+	 * Objects at the bound of the pigeonhole stop: r+1 bits differ in the
+	 * substrings 0..j, r bits in the others (distance m*r+j+1). Each one is
+	 * found only when probing the substring 0 at radius r+1.
+	 */
+	@Test
+	public void testBound() throws Exception {
+		int m = 8;
+		int subBits = nLongs * Long.SIZE / m;
+		int maxR = 3;
+		Random rnd = new Random(3);
+		long[] query = { rnd.nextLong(), rnd.nextLong() };
+		long[][] codes = new long[m * maxR][];
+		for ( int r=0; r<maxR; r++ ) {
+			for ( int j=0; j<m; j++ ) {
+				long[] code = query.clone();
+				for ( int s=0; s<m; s++ ) {
+					int nFlips = s <= j ? r+1 : r;
+					for ( int t=0; t<nFlips; t++ ) {
+						int bit = s * subBits + t;
+						code[bit >>> 6] ^= 1L << (bit & 63);
+					}
+				}
+				codes[r * m + j] = code;
+			}
+		}
+		int[] dist = new int[codes.length];
+		for ( int i=0; i<codes.length; i++ ) {
+			dist[i] = Hamming.distance(query, codes[i]);
+			assertEquals(i+1, dist[i]);
+		}
+		File file = createArchive(codes);
+		FeaturesCollectorsArchive fca = new FeaturesCollectorsArchive(file);
+		MIHHammingLongs index = new MIHHammingLongs(fca, BinaryLongs.class, m);
+		for ( int i=0; i<codes.length; i++ ) {
+			assertEquals(i+1, check(index.search(query, new SimPQueue_r(dist[i])), dist).length);
+			int[] resDist = check(index.search(query, new SimPQueue_kNN(i+1)), dist);
+			assertEquals(i+1, resDist.length);
+			assertEquals(dist[i], resDist[i]);
+		}
+		index.close();
+		fca.close();
+		delete(file);
+	}
+
+	@Test
+	public void testTruncatedLongsFile() throws Exception {
+		Random rnd = new Random(2);
+		File file = createArchive(getCodes(rnd));
+		FeaturesCollectorsArchive fca = new FeaturesCollectorsArchive(file);
+		MIHHammingLongs index = new MIHHammingLongs(fca, BinaryLongs.class, 0);
+		index.save();
+		index.close();
+
+		RandomAccessFile longs = new RandomAccessFile(MIHHammingLongs.getLongsFile(fca), "rw");
+		longs.setLength(longs.length() - Long.BYTES);
+		longs.close();
+		try {
+			new MIHHammingLongs(fca);
+			fail("truncated longs file should be rejected");
+		} catch (ArchiveException e) {
+		}
+		fca.close();
+		delete(file);
+	}
+}
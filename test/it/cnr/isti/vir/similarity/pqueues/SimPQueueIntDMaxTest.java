@@ -0,0 +1,49 @@
+package it.cnr.isti.vir.similarity.pqueues;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SimPQueueIntDMaxTest {
+
+	@Test
+	public void testKNN() {
+		Random rnd = new Random(1);
+		int n = 10000;
+		int k = 25;
+		double[] dist = new double[n];
+		SimPQueueIntDMax queue = new SimPQueueIntDMax(k);
+		for ( int i=0; i<n; i++ ) {
+			dist[i] = rnd.nextInt(1000);
+			queue.offer(i, dist[i]);
+		}
+		assertEquals(k, queue.size());
+
+		int[] resPos = new int[k];
+		double[] resDist = new double[k];
+		assertEquals(k, queue.getSortedAndEmpty(resPos, resDist));
+		assertEquals(0, queue.size());
+
+		double[] sorted = dist.clone();
+		Arrays.sort(sorted);
+		for ( int i=0; i<k; i++ ) {
+			assertEquals(sorted[i], resDist[i], 0.0);
+			assertEquals(dist[resPos[i]], resDist[i], 0.0);
+			if ( i > 0 && resDist[i-1] == resDist[i] ) assertTrue(resPos[i-1] < resPos[i]);
+		}
+	}
+
+	@Test
+	public void testRange() {
+		SimPQueueIntDMax queue = new SimPQueueIntDMax(10.0);
+		for ( int i=0; i<100; i++ ) {
+			queue.offer(i, i);
+		}
+		assertEquals(11, queue.size());
+		assertFalse(queue.isFull());
+	}
+
+}